@@ -20,6 +20,7 @@ import java.io.PrintWriter;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 
 import org.apache.commons.cli.BasicParser;
@@ -39,6 +40,8 @@ import org.transitclock.configData.AgencyConfig;
 import org.transitclock.configData.CoreConfig;
 import org.transitclock.core.ServiceUtils;
 import org.transitclock.core.TimeoutHandlerModule;
+import org.transitclock.core.dataCache.CacheSnapshotManager;
+import org.transitclock.core.dataCache.HistoricalCacheLoader;
 import org.transitclock.core.dataCache.PredictionDataCache;
 import org.transitclock.core.dataCache.StopArrivalDepartureCacheFactory;
 import org.transitclock.core.dataCache.TripDataHistoryCacheFactory;
@@ -54,6 +57,7 @@ import org.transitclock.db.structs.ActiveRevisions;
 import org.transitclock.db.structs.Agency;
 import org.transitclock.gtfs.DbConfig;
 import org.transitclock.ipc.servers.CacheQueryServer;
+import org.transitclock.ipc.servers.ChangesServer;
 import org.transitclock.ipc.servers.CommandsServer;
 import org.transitclock.ipc.servers.ConfigServer;
 import org.transitclock.ipc.servers.HoldingTimeServer;
@@ -77,7 +81,8 @@ import org.transitclock.utils.Time;
  */
 public class Core {
 
-	private static Core singleton = null;
+	// Volatile so that getInstance() can return it without synchronizing
+	private static volatile Core singleton = null;
 
 	// Contains the configuration data read from database
 	private final DbConfig configData;
@@ -226,17 +231,26 @@ public class Core {
 	}
 
 	/**
-	 * For obtaining singleton Core object.
-	 * Synchronized to prevent race conditions if starting lots of optional modules.
+	 * For obtaining singleton Core object. Called very frequently, such as
+	 * several times for every AVL report, so once the Core has been created
+	 * it is returned without synchronizing. Creating the Core is still
+	 * synchronized to prevent race conditions if starting lots of optional
+	 * modules.
 	 *
 	 * @returns the Core singleton object for this application, or null if it
 	 *          could not be created
 	 */
-	public synchronized static Core getInstance() {
-		if (Core.singleton == null)
-			createCore();
+	public static Core getInstance() {
+		Core core = Core.singleton;
+		if (core != null)
+			return core;
+
+		synchronized (Core.class) {
+			if (Core.singleton == null)
+				createCore();
 
-		return singleton;
+			return singleton;
+		}
 	}
 
 	/**
@@ -409,8 +423,36 @@ public class Core {
 		CacheQueryServer.start(agencyId);
 		PredictionAnalysisServer.start(agencyId);
 		HoldingTimeServer.start(agencyId);
+		ChangesServer.start(agencyId);
 	}
 	
+	/**
+	 * Reads in the cache snapshots and then populates the caches with the
+	 * arrivals/departures since the snapshots.
+	 *
+	 * @param endDate
+	 *            the time the caches are to be populated up to
+	 * @return true if the snapshots could be used
+	 * @throws InterruptedException
+	 */
+	static private boolean restoreCacheSnapshots(Date endDate)
+			throws InterruptedException {
+		Date oldestSnapshotTime = DateUtils.addDays(endDate,
+				-CoreConfig.getDaysPopulateHistoricalCache());
+		Map<String, Date> snapshotTimes =
+				CacheSnapshotManager.getInstance().readSnapshots(
+						getInstance().getDbConfig().getConfigRev(),
+						oldestSnapshotTime);
+		if (snapshotTimes == null)
+			return false;
+
+		// Only need the arrivals/departures since the snapshots
+		new HistoricalCacheLoader(
+				CacheSnapshotManager.getReplayStartTime(snapshotTimes),
+				endDate, snapshotTimes).load();
+		return true;
+	}
+
 	static private void populateCaches() throws Exception
 	{
 		Session session = HibernateUtils.getSession();
@@ -444,6 +486,14 @@ public class Core {
 				ScheduleBasedHistoricalAverageCache.getInstance().populateCacheFromDb(session, new Date(Time.parse(cacheReloadStartTimeStr.getValue()).getTime()), new Date(Time.parse(cacheReloadEndTimeStr.getValue()).getTime()));
 			}
 			*/
+		}else if(CacheSnapshotManager.isEnabled() && restoreCacheSnapshots(endDate))
+		{
+			// Caches read in from the snapshots and the period since the
+			// snapshot has been read from the db
+		}else if(HistoricalCacheLoader.isEnabled())
+		{
+			// Read each day once and populate all the caches in parallel
+			new HistoricalCacheLoader(CoreConfig.getDaysPopulateHistoricalCache()).load();
 		}else
 		{
 			for(int i=0;i<CoreConfig.getDaysPopulateHistoricalCache();i++)
@@ -532,6 +582,11 @@ public class Core {
 				logger.error("Failed to populate cache.", e);
 			}
 
+			// Write the cache snapshots periodically
+			if (CacheSnapshotManager.isEnabled())
+				CacheSnapshotManager.getInstance().start(
+						getInstance().getDbConfig().getConfigRev());
+
 			// Close cache if shutting down.
 			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() 
 			{
@@ -539,6 +594,12 @@ public class Core {
 		            {
 		            	try {
 		            		System.out.println("Calling shutdown hook.");
+							if (CacheSnapshotManager.isEnabled()) {
+								logger.info("Writing cache snapshots.");
+								CacheSnapshotManager.getInstance().stop();
+								CacheSnapshotManager.getInstance().writeSnapshots(
+										getInstance().getDbConfig().getConfigRev());
+							}
 							logger.info("Closing cache.");
 							System.out.println("Closing cache...");
 							CacheManagerFactory.getInstance().close();
@@ -23,6 +23,8 @@ import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitclock.config.BooleanConfigValue;
+import org.transitclock.config.DoubleConfigValue;
 import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.configData.AgencyConfig;
 import org.transitclock.db.structs.AvlReport;
@@ -37,6 +39,11 @@ import org.transitclock.utils.threading.NamedThreadFactory;
  * of threads is specified using the Java property transitclock.avl.numThreads .
  * The queue size is set using the Java property transitclock.avl.queueSize .
  * <p>
+ * If transitclock.avl.useVehicleLanes is set then instead of a
+ * ThreadPoolExecutor an AvlLaneExecutor is used, where each vehicle is
+ * always processed by the same single threaded lane. This preserves ordering
+ * per vehicle and avoids threads blocking on each other.
+ * <p>
  * Causes AvlClient.run() to be called on each AvlReport, unless using test
  * executor, in which case the AvlClientTester() is called.
  * 
@@ -48,6 +55,9 @@ public class AvlExecutor {
 	// The actual executor
 	ThreadPoolExecutor avlClientExecutor = null;
 	
+	// Used instead of avlClientExecutor if useVehicleLanes is set
+	AvlLaneExecutor avlLaneExecutor = null;
+	
 	// Singleton class
 	private static AvlExecutor singleton;
 	
@@ -76,6 +86,34 @@ public class AvlExecutor {
 					"multiple threads, such as 3-15 so that more of the cores " +
 					"are used.");
 	
+	private static BooleanConfigValue useVehicleLanes =
+			new BooleanConfigValue("transitclock.avl.useVehicleLanes", false,
+					"If true then instead of a pool of threads sharing a "
+					+ "single queue the AVL reports are hashed by vehicle ID "
+					+ "onto single threaded lanes. Each lane keeps only the "
+					+ "latest report per vehicle. This way the reports for a "
+					+ "vehicle are processed in order and threads don't block "
+					+ "each other, which allows large fleets to use all of "
+					+ "the cores.");
+	
+	private static IntegerConfigValue numVehicleLanes =
+			new IntegerConfigValue("transitclock.avl.numVehicleLanes",
+					Runtime.getRuntime().availableProcessors(),
+					"Number of single threaded lanes to use when "
+					+ "transitclock.avl.useVehicleLanes is true. Defaults to "
+					+ "the number of available processors.");
+	
+	private static DoubleConfigValue backedUpQueueFraction =
+			new DoubleConfigValue("transitclock.avl.backedUpQueueFraction", 
+					0.8,
+					"When the number of AVL reports waiting to be processed "
+					+ "is at least this fraction of "
+					+ "transitclock.avl.queueSize the AvlExecutor is "
+					+ "considered backed up. Batches of AVL reports pushed "
+					+ "via the API are only queued up to this point and the "
+					+ "rest are rejected so that the sender can slow down "
+					+ "instead of reports being dropped.");
+	
 	private static final Logger logger= 
 			LoggerFactory.getLogger(AvlExecutor.class);	
 
@@ -90,6 +128,24 @@ public class AvlExecutor {
 		int numberThreads = numAvlThreads.getValue();
 		final int maxAVLQueueSize = avlQueueSize.getValue();
 
+		if (useVehicleLanes.getValue()) {
+			int numberLanes = numVehicleLanes.getValue();
+			if (numberLanes < 1) {
+				logger.error("Number of vehicle lanes must be at least 1 but "
+						+ "{} was specified. Therefore using 1 lane.", 
+						numberLanes);
+				numberLanes = 1;
+			}
+			
+			logger.info("Starting AvlExecutor for directly handling AVL "
+					+ "reports using per vehicle lanes. maxAVLQueueSize={} and "
+					+ "numberLanes={}", 
+					maxAVLQueueSize, numberLanes);
+			avlLaneExecutor = 
+					new AvlLaneExecutor(numberLanes, maxAVLQueueSize);
+			return;
+		}
+
 		// Make sure that numberThreads is reasonable
 		if (numberThreads < 1) {
 			logger.error("Number of threads must be at least 1 but {} was "
@@ -182,10 +238,50 @@ public class AvlExecutor {
 	public void processAvlReport(AvlReport newAvlReport,
 			boolean... useTestExecutor) {
 		boolean testing = useTestExecutor.length > 0 && useTestExecutor[0];
-		Runnable avlClient = !testing ? 
+		AvlClient avlClient = !testing ? 
 				new AvlClient(newAvlReport) : new AvlClientTester(newAvlReport);
 
-		avlClientExecutor.execute(avlClient);		
+		if (avlLaneExecutor != null)
+			avlLaneExecutor.execute(avlClient);
+		else
+			avlClientExecutor.execute(avlClient);		
+	}
+
+	/**
+	 * Returns number of AVL reports waiting to be processed.
+	 * 
+	 * @return the queue depth
+	 */
+	public int getQueueDepth() {
+		if (avlLaneExecutor != null)
+			return avlLaneExecutor.getQueueDepth();
+		else
+			return avlClientExecutor.getQueue().size();
+	}
+	
+	/**
+	 * Returns how many more AVL reports can be queued before the AvlExecutor
+	 * is considered backed up. For sources that can be told to slow down so
+	 * that they don't fill up the queue and cause reports to be rejected.
+	 * The rest of the queue is left for other sources and, when using vehicle
+	 * lanes, for reports not being distributed evenly amongst the lanes.
+	 * 
+	 * @return number of reports that can be queued. 0 if backed up.
+	 */
+	public int getAvailableCapacity() {
+		int capacity = (int) (avlQueueSize.getValue() 
+				* backedUpQueueFraction.getValue()) - getQueueDepth();
+		return Math.max(capacity, 0);
+	}
+	
+	/**
+	 * Returns the lane executor if transitclock.avl.useVehicleLanes is set so
+	 * that can access its stats.
+	 * 
+	 * @return the AvlLaneExecutor or null if not using vehicle lanes
+	 */
+	public AvlLaneExecutor getAvlLaneExecutor() {
+		return avlLaneExecutor;
 	}
 
 	/**
@@ -0,0 +1,437 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.avl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.configData.AgencyConfig;
+import org.transitclock.db.structs.AvlReport;
+import org.transitclock.logging.Markers;
+import org.transitclock.monitoring.CloudwatchService;
+import org.transitclock.utils.StringUtils;
+import org.transitclock.utils.Time;
+import org.transitclock.utils.threading.NamedThread;
+
+/**
+ * An alternative to the ThreadPoolExecutor used by AvlExecutor. Each vehicle
+ * is hashed onto one of N lanes and each lane is processed by a single
+ * thread. Since a vehicle is always handled by the same thread the AVL
+ * reports for a vehicle are processed in order and threads never block on
+ * each other when synchronizing on the VehicleState.
+ * <p>
+ * Each lane keeps only the latest AVL report per vehicle. If a new report
+ * for a vehicle arrives while an older one is still waiting to be processed
+ * then the older one is dropped (coalesced) since there is no point in
+ * processing obsolete data.
+ * <p>
+ * Keeps track of queue depth, number of coalesced reports, and processing
+ * latency per lane so that can determine if the system is keeping up.
+ * <p>
+ * For playback, where every AVL report needs to be processed, the lanes can
+ * instead be created so that they don't coalesce. Then every report is
+ * queued in order and execute() blocks when a lane is full.
+ */
+public class AvlLaneExecutor {
+
+	// The lanes that AVL reports are distributed to
+	private final Lane[] lanes;
+
+	// Max number of vehicles waiting to be processed in a single lane. If not
+	// coalescing then the max number of AVL reports.
+	private final int laneCapacity;
+
+	// If false then every AVL report is processed, in order
+	private final boolean coalesce;
+
+	// The lane and stats threads, so that they can be stopped
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private volatile boolean shutdown = false;
+
+	private static boolean emailSentDueToQueueFull = false;
+
+	private static IntegerConfigValue statsLogIntervalSecs =
+			new IntegerConfigValue("transitclock.avl.laneStatsIntervalSecs", 60,
+					"How frequently the queue depth, coalesced count, and "
+					+ "processing latency of each AVL lane should be logged "
+					+ "and reported when transitclock.avl.useVehicleLanes is "
+					+ "true. Set to 0 to disable.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(AvlLaneExecutor.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates the lanes and starts up a thread for each one.
+	 *
+	 * @param numberLanes
+	 *            How many single threaded lanes to use
+	 * @param queueSize
+	 *            Total number of vehicles that can be waiting to be processed.
+	 *            Divided evenly amongst the lanes.
+	 */
+	public AvlLaneExecutor(int numberLanes, int queueSize) {
+		this(numberLanes, queueSize, true);
+	}
+
+	/**
+	 * Creates the lanes and starts up a thread for each one.
+	 *
+	 * @param numberLanes
+	 *            How many single threaded lanes to use
+	 * @param queueSize
+	 *            Total number of vehicles, or AVL reports if not coalescing,
+	 *            that can be waiting to be processed. Divided evenly amongst
+	 *            the lanes.
+	 * @param coalesce
+	 *            If true then only the latest AVL report waiting for a
+	 *            vehicle is processed. If false then all reports are
+	 *            processed in order and execute() blocks if the lane is full.
+	 */
+	public AvlLaneExecutor(int numberLanes, int queueSize, boolean coalesce) {
+		this.laneCapacity = Math.max(1, queueSize / numberLanes);
+		this.coalesce = coalesce;
+		this.lanes = new Lane[numberLanes];
+		for (int i = 0; i < numberLanes; ++i) {
+			lanes[i] = new Lane(i);
+			NamedThread thread = new NamedThread(lanes[i], "avlLane");
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+
+		if (statsLogIntervalSecs.getValue() > 0) {
+			NamedThread statsThread =
+					new NamedThread(new StatsReporter(), "avlLaneStats");
+			statsThread.setDaemon(true);
+			statsThread.start();
+			threads.add(statsThread);
+		}
+	}
+
+	/**
+	 * Stops the lane and stats threads, such as when playback is done. AVL
+	 * reports still waiting in the lanes are not processed so call
+	 * waitUntilIdle() first if they need to be.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		for (Thread thread : threads)
+			thread.interrupt();
+	}
+
+	/**
+	 * Returns the lane that the vehicle is always to be processed by. Uses a
+	 * spread hash so that sequential vehicle IDs are distributed evenly.
+	 *
+	 * @param vehicleId
+	 * @return the lane for the vehicle
+	 */
+	private Lane getLane(String vehicleId) {
+		int h = vehicleId.hashCode();
+		h ^= (h >>> 16);
+		return lanes[(h & 0x7fffffff) % lanes.length];
+	}
+
+	/**
+	 * Queues the AvlClient in the lane for its vehicle. If there is already
+	 * an AVL report waiting for the vehicle then it is replaced by the new one
+	 * (unless the new one is older). If the lane is full then the report is
+	 * rejected and an error is logged.
+	 *
+	 * @param avlClient
+	 *            Contains the AVL report to be processed
+	 */
+	public void execute(AvlClient avlClient) {
+		AvlReport avlReport = avlClient.getAvlReport();
+		Lane lane = getLane(avlReport.getVehicleId());
+		if (!coalesce) {
+			try {
+				lane.unfinishedCount.incrementAndGet();
+				lane.orderedQueue.put(avlClient);
+			} catch (InterruptedException e) {
+				lane.unfinishedCount.decrementAndGet();
+				logger.error("Interrupted while queuing AVL report {}",
+						avlReport);
+				Thread.currentThread().interrupt();
+			}
+			return;
+		}
+		if (!lane.offer(avlClient)) {
+			String message = "Rejected AVL report in AvlLaneExecutor for "
+					+ "agencyId=" + AgencyConfig.getAgencyId() + ". Lane "
+					+ lane.laneNumber + " with capacity " + laneCapacity
+					+ " must be full. " + avlReport;
+			// If first one then send out an e-mail message since this can
+			// be a serious issue indicating that system is locked up.
+			if (!emailSentDueToQueueFull) {
+				emailSentDueToQueueFull = true;
+				logger.error(Markers.email(), message);
+			} else {
+				logger.error(message);
+			}
+		}
+	}
+
+	/**
+	 * Waits until all of the AVL reports queued so far have been processed.
+	 * Only for when not coalescing, such as for playback so that know when
+	 * done.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void waitUntilIdle() throws InterruptedException {
+		for (Lane lane : lanes) {
+			while (lane.unfinishedCount.get() > 0)
+				Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * @return Number of lanes being used
+	 */
+	public int getNumberLanes() {
+		return lanes.length;
+	}
+
+	/**
+	 * @return Total number of vehicles waiting to be processed, for all lanes
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for (Lane lane : lanes)
+			depth += lane.getQueueDepth();
+		return depth;
+	}
+
+	/**
+	 * @return Total number of AVL reports that were dropped because a newer
+	 *         report for the vehicle was received before the older one could
+	 *         be processed.
+	 */
+	public long getCoalescedCount() {
+		long count = 0;
+		for (Lane lane : lanes)
+			count += lane.coalescedCount.get();
+		return count;
+	}
+
+	/**
+	 * Returns summary of the queue depth, coalesced count, and processing
+	 * latency for each lane. Useful for logging and monitoring.
+	 *
+	 * @return the stats as a String
+	 */
+	public String getStats() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("AvlLaneExecutor queueDepth=").append(getQueueDepth())
+				.append(" coalescedCount=").append(getCoalescedCount());
+		for (Lane lane : lanes) {
+			sb.append("\n  ").append(lane);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Periodically logs the lane stats and reports the overall queue depth
+	 * and coalesced count as metrics.
+	 */
+	private class StatsReporter implements Runnable {
+		@Override
+		public void run() {
+			long lastCoalescedCount = 0;
+			while (!shutdown) {
+				Time.sleep(statsLogIntervalSecs.getValue() * Time.MS_PER_SEC);
+				if (shutdown)
+					return;
+				try {
+					logger.info(getStats());
+
+					long coalescedCount = getCoalescedCount();
+					CloudwatchService cloudwatchService =
+							CloudwatchService.getInstance();
+					cloudwatchService.saveMetric("AvlLaneQueueDepth",
+							(double) getQueueDepth(), 1,
+							CloudwatchService.MetricType.AVERAGE,
+							CloudwatchService.ReportingIntervalTimeUnit.MINUTE,
+							false);
+					cloudwatchService.saveMetric("AvlLaneCoalescedReports",
+							(double) (coalescedCount - lastCoalescedCount), 1,
+							CloudwatchService.MetricType.SUM,
+							CloudwatchService.ReportingIntervalTimeUnit.MINUTE,
+							false);
+					lastCoalescedCount = coalescedCount;
+				} catch (Exception e) {
+					logger.error("Exception reporting AvlLaneExecutor stats",
+							e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A single lane. Keeps latest AvlClient per vehicle plus a FIFO queue of
+	 * vehicle IDs so that vehicles are processed in the order that they were
+	 * first queued.
+	 */
+	private class Lane implements Runnable {
+		private final int laneNumber;
+
+		// Latest AvlClient waiting to be processed, keyed on vehicle ID
+		private final ConcurrentMap<String, AvlClient> pendingByVehicle =
+				new ConcurrentHashMap<String, AvlClient>();
+
+		// Order that vehicles are to be processed in. A vehicle ID is only in
+		// the queue once, at the position of its first pending report.
+		private final LinkedBlockingQueue<String> vehicleQueue =
+				new LinkedBlockingQueue<String>();
+
+		// All AvlClients in order. Only used if not coalescing.
+		private final LinkedBlockingQueue<AvlClient> orderedQueue;
+
+		// Number of AvlClients queued or being processed. Only used if not
+		// coalescing.
+		private final AtomicInteger unfinishedCount = new AtomicInteger();
+
+		private final AtomicLong coalescedCount = new AtomicLong();
+		private final AtomicLong processedCount = new AtomicLong();
+		private final AtomicLong totalProcessingNanos = new AtomicLong();
+		private volatile long maxProcessingNanos = 0;
+
+		private Lane(int laneNumber) {
+			this.laneNumber = laneNumber;
+			this.orderedQueue = coalesce ? null
+					: new LinkedBlockingQueue<AvlClient>(laneCapacity);
+		}
+
+		/**
+		 * Adds the AvlClient to the lane. Returns false if lane is full.
+		 * Only the thread offering reports for the vehicle and the single
+		 * lane thread access the entry for a vehicle so the compute() on the
+		 * map is sufficient to make the replacement atomic.
+		 */
+		private boolean offer(final AvlClient avlClient) {
+			final String vehicleId = avlClient.getAvlReport().getVehicleId();
+			final boolean[] isNewVehicle = { false };
+			AvlClient existing = pendingByVehicle.get(vehicleId);
+			if (existing == null && vehicleQueue.size() >= laneCapacity)
+				return false;
+
+			pendingByVehicle.compute(vehicleId, (key, previous) -> {
+				if (previous == null) {
+					isNewVehicle[0] = true;
+					return avlClient;
+				}
+
+				// Already a report waiting for the vehicle. Keep the newer one
+				coalescedCount.incrementAndGet();
+				if (avlClient.getAvlReport().getTime() < previous
+						.getAvlReport().getTime()) {
+					logger.debug("AVL report is older than the one already "
+							+ "queued for the vehicle so ignoring it. {}",
+							avlClient.getAvlReport());
+					return previous;
+				}
+				return avlClient;
+			});
+
+			if (isNewVehicle[0])
+				vehicleQueue.offer(vehicleId);
+			return true;
+		}
+
+		private int getQueueDepth() {
+			return coalesce ? vehicleQueue.size() : orderedQueue.size();
+		}
+
+		/**
+		 * @return the next AvlClient to process, or null if a vehicle's
+		 *         report has already been taken
+		 */
+		private AvlClient take() throws InterruptedException {
+			if (!coalesce)
+				return orderedQueue.take();
+			String vehicleId = vehicleQueue.take();
+			return pendingByVehicle.remove(vehicleId);
+		}
+
+		/**
+		 * Processes AvlClients for the lane until shut down.
+		 */
+		@Override
+		public void run() {
+			while (!shutdown) {
+				try {
+					AvlClient avlClient = take();
+					if (avlClient == null)
+						continue;
+
+					long start = System.nanoTime();
+					try {
+						avlClient.run();
+					} finally {
+						if (!coalesce)
+							unfinishedCount.decrementAndGet();
+					}
+					long elapsed = System.nanoTime() - start;
+
+					processedCount.incrementAndGet();
+					totalProcessingNanos.addAndGet(elapsed);
+					if (elapsed > maxProcessingNanos)
+						maxProcessingNanos = elapsed;
+				} catch (InterruptedException e) {
+					if (!shutdown)
+						logger.error("AvlLaneExecutor lane {} interrupted.",
+								laneNumber);
+					Thread.currentThread().interrupt();
+					return;
+				} catch (Exception e) {
+					// AvlClient catches its own exceptions but still don't
+					// want the lane thread to be killed
+					logger.error("Exception in AvlLaneExecutor lane {}",
+							laneNumber, e);
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			long processed = processedCount.get();
+			double avgMsec = processed == 0 ? 0.0
+					: (double) totalProcessingNanos.get() / processed
+							/ Time.NSEC_PER_MSEC;
+			return "Lane ["
+					+ "laneNumber=" + laneNumber
+					+ ", queueDepth=" + getQueueDepth()
+					+ ", coalescedCount=" + coalescedCount.get()
+					+ ", processedCount=" + processed
+					+ ", avgProcessingMsec=" + StringUtils.twoDigitFormat(avgMsec)
+					+ ", maxProcessingMsec="
+					+ maxProcessingNanos / Time.NSEC_PER_MSEC
+					+ "]";
+		}
+	}
+}
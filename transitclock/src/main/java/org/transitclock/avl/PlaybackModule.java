@@ -22,6 +22,11 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,12 +40,19 @@ import org.transitclock.modules.Module;
 import org.transitclock.utils.IntervalTimer;
 import org.transitclock.utils.PlaybackIntervalTimer;
 import org.transitclock.utils.Time;
+import org.transitclock.utils.threading.NamedThreadFactory;
 
 /**
  * For running the system in "playback mode" where AVL data is read from the
  * database instead of from a realtime AVL feed. Useful for debugging the system
  * software because can easily debug what is happening for a particular vehicle
  * at a particular time.
+ * <p>
+ * When not playing back in realtime the next batch of AVL data can be read
+ * from the database in the background while the current batch is being
+ * processed, and the AVL reports can be processed by per vehicle lanes of
+ * an AvlLaneExecutor so that multiple cores are used. This makes it
+ * feasible to replay days of data for testing prediction accuracy.
  * 
  * @author SkiBu Smith
  *
@@ -90,6 +102,52 @@ public class PlaybackModule extends Module {
 					3,
 					"Time to sleep before starting. Gives some time to connect remote debugger.");
 	
+	protected static BooleanConfigValue playbackPrefetch =
+			new BooleanConfigValue("transitclock.avl.playbackPrefetch", 
+					true,
+					"If true then the next batch of AVL data is read from the "
+					+ "database in the background while the current batch is "
+					+ "being processed.");
+	
+	protected static IntegerConfigValue playbackNumLanes =
+			new IntegerConfigValue("transitclock.avl.playbackNumLanes", 
+					0,
+					"If greater than 0, and not playing back in realtime, then "
+					+ "the AVL reports are processed by this many threads, with "
+					+ "the reports for a vehicle always processed in order by "
+					+ "the same thread. If 0 then all AVL reports are "
+					+ "processed by the playback thread, which is slower but "
+					+ "fully deterministic.");
+	
+	protected static IntegerConfigValue playbackMaxLaneLeadSecs =
+			new IntegerConfigValue("transitclock.avl.playbackMaxLaneLeadSecs", 
+					30,
+					"When processing AVL reports using lanes, the most that the "
+					+ "times of the queued AVL reports can be ahead of the "
+					+ "report being processed. The lanes are drained before a "
+					+ "report further ahead is queued so that the system time "
+					+ "seen while processing a report is at most this much "
+					+ "later than the report.");
+	
+	// Number of AVL reports that can be queued per lane
+	private static final int LANE_QUEUE_SIZE = 200;
+	
+	// How frequently progress is logged
+	private static final long PROGRESS_LOG_INTERVAL_MSEC = 30 * Time.MS_PER_SEC;
+	
+	// For processing AVL reports using multiple threads. Null if processing
+	// them in the playback thread.
+	private AvlLaneExecutor laneExecutor = null;
+	
+	// When using lanes, the time of the latest AVL report that a lane has
+	// started processing. The system time is only ever advanced to it so
+	// that lanes processing reports at the same time don't move it back.
+	private long laneSystemTime = 0;
+	
+	// When using lanes, the time of the first AVL report queued since the
+	// lanes were last drained
+	private long laneWindowStartTime = -1;
+	
 	/********************* Logging **************************/
 	private static final Logger logger = 
 			LoggerFactory.getLogger(PlaybackModule.class);
@@ -176,7 +234,7 @@ public class PlaybackModule extends Module {
 		long start = dbReadBeginTime;
 		long end = dbReadBeginTime + DB_POLLING_TIME_MSEC;
 				
-		logger.info("PlaybackModule getting batch of AVLReports for " +
+		logger.debug("PlaybackModule getting batch of AVLReports for " +
 				"between beginTime={} and endTime={} " +
 				"and vehicleId={}", 
 				Time.dateTimeStr(start),
@@ -190,7 +248,7 @@ public class PlaybackModule extends Module {
 						getPlaybackVehicleId(),
 						"ORDER BY time");
 		
-		logger.info("PlaybackModule read {} AVLReports.", avlReports.size());
+		logger.debug("PlaybackModule read {} AVLReports.", avlReports.size());
 
 		// For next time this method is called.
 		dbReadBeginTime = end;
@@ -212,6 +270,99 @@ public class PlaybackModule extends Module {
 		}
 	}
 	
+	/**
+	 * @return true if there is more AVL data to be read from the db
+	 */
+	private boolean moreToRead() {
+		return dbReadBeginTime < System.currentTimeMillis()
+				&& (playbackEndTimeStr.getValue().length() == 0 
+					|| dbReadBeginTime < parsePlaybackEndTime(playbackEndTimeStr.getValue()));
+	}
+	
+	/**
+	 * Starts reading the next batch of AVL data in the background. Only the
+	 * reader thread calls getBatchOfAvlReportsFromDb() so only it updates
+	 * dbReadBeginTime, and the playback thread only looks at it once the
+	 * batch has been obtained from the Future.
+	 */
+	private Future<List<AvlReport>> readNextBatch(ExecutorService reader) {
+		return reader.submit(new Callable<List<AvlReport>>() {
+			@Override
+			public List<AvlReport> call() {
+				return getBatchOfAvlReportsFromDb();
+			}
+		});
+	}
+	
+	/**
+	 * Processes the AVL report, either directly or by handing it to the
+	 * lane for the vehicle.
+	 */
+	private void processAvlReport(AvlReport avlReport) {
+		logger.debug("Processing avlReport={}", avlReport);
+		
+		if (laneExecutor != null) {
+			// The lane advances the system time when it processes the report.
+			// So that the queued reports are never too far ahead of the one
+			// being processed drain the lanes once the reports queued span
+			// more than the max lead.
+			if (laneWindowStartTime < 0) {
+				laneWindowStartTime = avlReport.getTime();
+			} else if (avlReport.getTime() - laneWindowStartTime
+					> playbackMaxLaneLeadSecs.getValue() * Time.MS_PER_SEC) {
+				try {
+					laneExecutor.waitUntilIdle();
+				} catch (InterruptedException e) {
+					logger.error("Interrupted waiting for AVL lanes.");
+					Thread.currentThread().interrupt();
+				}
+				laneWindowStartTime = avlReport.getTime();
+			}
+			laneExecutor.execute(new PlaybackAvlClient(avlReport));
+		} else {
+			// Update the Core SystemTime to use this AVL time
+			Core.getInstance().setSystemTime(avlReport.getTime());
+			
+			// Do the actual processing of the AVL data
+			AvlProcessor.getInstance().processAvlReport(avlReport);
+		}
+	}
+	
+	/**
+	 * Called by a lane before it processes an AVL report. Only moves the
+	 * system time forward since the lanes process reports concurrently.
+	 * 
+	 * @param avlTime
+	 */
+	private synchronized void advanceSystemTime(long avlTime) {
+		if (avlTime > laneSystemTime) {
+			laneSystemTime = avlTime;
+			Core.getInstance().setSystemTime(avlTime);
+		}
+	}
+	
+	/**
+	 * For processing an AVL report using the AvlLaneExecutor. Doesn't do the
+	 * filtering that AvlClient does so that the results are the same as when
+	 * processing the reports directly.
+	 */
+	private class PlaybackAvlClient extends AvlClient {
+		private PlaybackAvlClient(AvlReport avlReport) {
+			super(avlReport);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				advanceSystemTime(getAvlReport().getTime());
+				AvlProcessor.getInstance().processAvlReport(getAvlReport());
+			} catch (Exception e) {
+				logger.error("Exception processing avlReport={}", 
+						getAvlReport(), e);
+			}
+		}
+	}
+	
 	/* Reads AVL data from db and processes it
 	 * (non-Javadoc)
 	 * @see java.lang.Runnable#run()
@@ -225,11 +376,43 @@ public class PlaybackModule extends Module {
 		
 		}
 		
+		if (playbackNumLanes.getValue() > 0 && !playbackRealtime.getValue()) {
+			logger.info("PlaybackModule processing AVL reports using {} "
+					+ "vehicle lanes.", playbackNumLanes.getValue());
+			laneExecutor = new AvlLaneExecutor(playbackNumLanes.getValue(), 
+					playbackNumLanes.getValue() * LANE_QUEUE_SIZE, false);
+		}
+		
+		ExecutorService reader = null;
+		Future<List<AvlReport>> nextBatch = null;
+		if (playbackPrefetch.getValue()) {
+			reader = Executors.newSingleThreadExecutor(
+					new NamedThreadFactory("playbackReader"));
+			if (moreToRead())
+				nextBatch = readNextBatch(reader);
+		}
+		
 		IntervalTimer timer = new IntervalTimer();
+		long numAvlReports = 0;
+		long lastProgressLogTime = System.currentTimeMillis();
+		
 		// Keep running as long as not trying to access in the future.
 		long last_avl_time=-1;	
-		while (dbReadBeginTime < System.currentTimeMillis() && (playbackEndTimeStr.getValue().length()==0 || dbReadBeginTime<parsePlaybackEndTime(playbackEndTimeStr.getValue()))) {
-			List<AvlReport> avlReports = getBatchOfAvlReportsFromDb();
+		while (playbackPrefetch.getValue() ? nextBatch != null : moreToRead()) {
+			List<AvlReport> avlReports;
+			if (nextBatch != null) {
+				try {
+					avlReports = nextBatch.get();
+				} catch (InterruptedException | ExecutionException e) {
+					logger.error("Exception reading AVL reports for playback", e);
+					break;
+				}
+				// Start reading the following batch while this one is 
+				// processed
+				nextBatch = moreToRead() ? readNextBatch(reader) : null;
+			} else {
+				avlReports = getBatchOfAvlReportsFromDb();
+			}
 			
 			// Process the AVL Reports read in.			
 			for (AvlReport avlReport : avlReports) {
@@ -254,16 +437,35 @@ public class PlaybackModule extends Module {
 						last_avl_time=avlReport.getTime();
 					}
 				}				
-				logger.info("Processing avlReport={}", avlReport);
 				
-				// Update the Core SystemTime to use this AVL time
-				Core.getInstance().setSystemTime(avlReport.getTime());
-				
-				// Do the actual processing of the AVL data
-				AvlProcessor.getInstance().processAvlReport(avlReport);						
+				processAvlReport(avlReport);
+				++numAvlReports;
+			}
 			
+			if (System.currentTimeMillis() - lastProgressLogTime > PROGRESS_LOG_INTERVAL_MSEC) {
+				lastProgressLogTime = System.currentTimeMillis();
+				logger.info("PlaybackModule processed {} AVL reports up to {}. "
+						+ "{} AVL reports/sec.", numAvlReports, 
+						Time.dateTimeStr(Core.getInstance().getSystemTime()),
+						numAvlReports * Time.MS_PER_SEC / Math.max(1, timer.elapsedMsec()));
 			}
 		}
+		
+		if (reader != null)
+			reader.shutdown();
+		
+		// Wait for the lanes to finish processing the AVL reports and then
+		// stop their threads
+		if (laneExecutor != null) {
+			try {
+				laneExecutor.waitUntilIdle();
+			} catch (InterruptedException e) {
+				logger.error("Interrupted waiting for AVL lanes to finish.");
+			}
+			laneExecutor.shutdown();
+		}
+		
+		logger.info("PlaybackModule processed {} AVL reports.", numAvlReports);
 		// logging here as the rest is database access dependent.
 		logger.info("Processed AVL from playbackStartTimeStr:{} to playbackEndTimeStr:{} in {} secs.",playbackStartTimeStr,playbackEndTimeStr,  Time.secondsStr(timer.elapsedMsec()));
 		
@@ -246,6 +246,21 @@ public class MiniEventReport extends Report {
 	 */
 	@Override
 	public void process() {
+		AvlReport avlReport = getAvlReport();
+		if (avlReport != null) {
+			// Use AvlExecutor to actually process the data using a thread
+			// executor
+			AvlExecutor.getInstance().processAvlReport(avlReport);
+		}
+	}
+	
+	/**
+	 * Converts the CalAmp MiniEventReport into a an AvlReport.
+	 * 
+	 * @return the AvlReport, or null if not a valid GPS fix
+	 */
+	@Override
+	public AvlReport getAvlReport() {
 		if (isValidGps()) {
 			logger.debug("Processing GPS fix mini event report {}", this);
 
@@ -259,16 +274,12 @@ public class MiniEventReport extends Report {
 			String vehicleId =
 					vehicleConfig != null ? vehicleConfig.getId() : mobileId;
 
-			AvlReport avlReport =
-					new AvlReport(vehicleId, getEpochTime(), getLat(),
-							getLon(), getSpeed(), getHeading(), "CalAmp");
-
-			// Use AvlExecutor to actually process the data using a thread
-			// executor
-			AvlExecutor.getInstance().processAvlReport(avlReport);
+			return new AvlReport(vehicleId, getEpochTime(), getLat(),
+					getLon(), getSpeed(), getHeading(), "CalAmp");
 		} else {
 			logger.error("GPS fix mini event report is not valid. Fix status "
 					+ "is \"{}\". {}", getFixStatusStr(), this);
+			return null;
 		}
 	}
 	
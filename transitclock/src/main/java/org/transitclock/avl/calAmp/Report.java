@@ -23,6 +23,7 @@ import java.nio.ByteBuffer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitclock.db.structs.AvlReport;
 
 public abstract class Report {
 	
@@ -44,6 +45,15 @@ public abstract class Report {
 	 */
 	public abstract void process();
 	
+	/**
+	 * Converts the report into an AvlReport, for when the caller handles the
+	 * processing of it.
+	 * 
+	 * @return the AvlReport, or null if the report doesn't contain a valid
+	 *         GPS fix
+	 */
+	public abstract AvlReport getAvlReport();
+	
 	/**
 	 * Returns the mobile ID associated with the report
 	 * 
@@ -114,7 +124,19 @@ public abstract class Report {
 	 * @return The Report, or null if not successful
 	 */
 	public static Report parseReport(DatagramPacket packet) {
-		byte[] bytes = packet.getData();
+		return parseReport(packet.getData(), packet.getLength());
+	}
+	
+	/**
+	 * Reads the CalAmp report from the bytes of a message
+	 * 
+	 * @param bytes
+	 *            Contains the data, starting at index 0
+	 * @param length
+	 *            Length of the message
+	 * @return The Report, or null if not successful
+	 */
+	public static Report parseReport(byte[] bytes, int length) {
 
 		// Log the entire message in hexadecimal format
 		if (logger.isDebugEnabled()) {
@@ -125,12 +147,12 @@ public abstract class Report {
 			int UDP_HEADER_SIZE = 8;
 			logger.debug("Message data is {} bytes long. Including IP Header "
 					+ "and UDP header total size is {} bytes long.", 
-					bytes.length, 
-					bytes.length + IP_HEADER_SIZE + UDP_HEADER_SIZE);
+					length, 
+					length + IP_HEADER_SIZE + UDP_HEADER_SIZE);
 			
 			// Actually log message
 			StringBuilder sb = new StringBuilder();
-			for (int i = 0; i < packet.getLength(); ++i) {
+			for (int i = 0; i < length; ++i) {
 				sb.append(String.format("%02X", bytes[i]));
 			}
 			logger.debug("Message={}", sb.toString());
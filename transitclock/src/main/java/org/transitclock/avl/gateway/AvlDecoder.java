@@ -0,0 +1,66 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.avl.gateway;
+
+import org.transitclock.db.structs.AvlReport;
+
+/**
+ * For decoding the messages of a GPS device format for the
+ * AvlGatewayModule. The gateway first uses getMessageLength() to split the
+ * data read from a TCP connection or UDP datagram into messages and then
+ * calls decode() for each message on a decoder thread.
+ * <p>
+ * Implementations must have a no-arg constructor so that they can be
+ * configured by class name. A single instance is used by all the decoder
+ * threads so it must be thread safe. Per connection state, such as a
+ * vehicle ID sent once when a device connects, is kept in the
+ * GatewaySession. Messages for a session are always decoded in order by the
+ * same thread.
+ */
+public interface AvlDecoder {
+
+	/**
+	 * Returns the length of the first complete message in the data, so that
+	 * the data read from a stream can be split into messages.
+	 *
+	 * @param bytes
+	 * @param offset
+	 *            where the data starts
+	 * @param length
+	 *            number of bytes of data
+	 * @return length of the first message, or 0 if the data doesn't yet
+	 *         contain a complete message
+	 */
+	public int getMessageLength(byte[] bytes, int offset, int length);
+
+	/**
+	 * Decodes a single message.
+	 *
+	 * @param bytes
+	 * @param offset
+	 *            where the message starts
+	 * @param length
+	 *            length of the message
+	 * @param session
+	 *            state of the connection the message was received on
+	 * @return the AvlReport, or null if the message is not a valid position
+	 *         report
+	 */
+	public AvlReport decode(byte[] bytes, int offset, int length,
+			GatewaySession session);
+}
@@ -0,0 +1,579 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.avl.gateway;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.avl.AvlModule;
+import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.config.StringConfigValue;
+import org.transitclock.db.structs.AvlReport;
+import org.transitclock.utils.ClassInstantiator;
+import org.transitclock.utils.Time;
+import org.transitclock.utils.threading.NamedThreadFactory;
+
+/**
+ * A gateway for receiving AVL data directly from GPS devices, both over raw
+ * TCP connections and as UDP datagrams. Instead of a thread per connection,
+ * or processing each datagram on the thread that receives it, a single
+ * thread uses a NIO Selector to accept connections and to read the data.
+ * This way thousands of devices can be connected at once. The data is split
+ * into messages and copied into pooled buffers that are then decoded on a
+ * small number of decoder threads. The messages from a connection, or from a
+ * UDP address, are always decoded by the same thread so they are handled in
+ * order.
+ * <p>
+ * The device format is handled by a pluggable AvlDecoder, configured
+ * separately for TCP and UDP. Available decoders are NmeaAvlDecoder,
+ * TaipAvlDecoder, and CalAmpAvlDecoder (UDP only).
+ * <p>
+ * If the decoder threads fall behind then messages are dropped and an error
+ * is logged, since by the time they would be processed newer positions will
+ * likely have been received.
+ * <p>
+ * To use with a core project use:
+ *   -Dtransitclock.modules.optionalModulesList=org.transitclock.avl.gateway.AvlGatewayModule
+ */
+public class AvlGatewayModule extends AvlModule {
+
+	private Selector selector;
+	private AvlDecoder tcpDecoder;
+	private AvlDecoder udpDecoder;
+
+	// Single threaded executors so that messages for a session are decoded
+	// in order
+	private ThreadPoolExecutor[] decoderLanes;
+
+	private BufferPool bufferPool;
+
+	// Only accessed by the selector thread
+	private int numberConnections = 0;
+	private int nextLaneIndex = 0;
+
+	// UDP sessions keyed by the address of the device, so that state such
+	// as the vehicle ID from a "VID=" line is kept between datagrams. In
+	// access order so that the least recently used session is removed when
+	// there are too many. Only accessed by the selector thread.
+	private Map<SocketAddress, GatewaySession> udpSessions;
+
+	private final AtomicLong numberDropped = new AtomicLong();
+
+	// So that a flood of datagrams doesn't starve the TCP connections
+	private static final int MAX_DATAGRAMS_PER_SELECT = 1000;
+
+	private static final long IDLE_CHECK_INTERVAL_MSEC = 10 * Time.MS_PER_SEC;
+
+	/*********** Configurable Parameters for this module ***********/
+
+	private static IntegerConfigValue tcpPort = new IntegerConfigValue(
+			"transitclock.avl.gateway.tcpPort",
+			0,
+			"Port that the AvlGatewayModule accepts TCP connections from GPS "
+			+ "devices on. 0 means TCP is not used.");
+
+	private static StringConfigValue tcpDecoderClass = new StringConfigValue(
+			"transitclock.avl.gateway.tcpDecoder",
+			NmeaAvlDecoder.class.getName(),
+			"Name of the AvlDecoder class used for decoding the data "
+			+ "received on TCP connections.");
+
+	private static IntegerConfigValue udpPort = new IntegerConfigValue(
+			"transitclock.avl.gateway.udpPort",
+			20500,
+			"Port that the AvlGatewayModule receives UDP datagrams from GPS "
+			+ "devices on. 0 means UDP is not used.");
+
+	private static StringConfigValue udpDecoderClass = new StringConfigValue(
+			"transitclock.avl.gateway.udpDecoder",
+			CalAmpAvlDecoder.class.getName(),
+			"Name of the AvlDecoder class used for decoding the UDP "
+			+ "datagrams.");
+
+	private static IntegerConfigValue numDecoderThreads = new IntegerConfigValue(
+			"transitclock.avl.gateway.numDecoderThreads",
+			2,
+			"Number of threads used to decode the messages received by the "
+			+ "AvlGatewayModule.");
+
+	private static IntegerConfigValue decoderQueueSize = new IntegerConfigValue(
+			"transitclock.avl.gateway.decoderQueueSize",
+			10000,
+			"Maximum number of messages waiting to be decoded per decoder "
+			+ "thread. If exceeded then messages are dropped.");
+
+	private static IntegerConfigValue maxConnections = new IntegerConfigValue(
+			"transitclock.avl.gateway.maxConnections",
+			10000,
+			"Maximum number of TCP connections from devices. Additional "
+			+ "connections are closed right away.");
+
+	private static IntegerConfigValue maxMessageSize = new IntegerConfigValue(
+			"transitclock.avl.gateway.maxMessageSize",
+			2048,
+			"Maximum size in bytes of a TCP message or a UDP datagram. Also "
+			+ "the size of the pooled buffers.");
+
+	private static IntegerConfigValue idleTimeoutSecs = new IntegerConfigValue(
+			"transitclock.avl.gateway.idleTimeoutSecs",
+			600,
+			"TCP connections that haven't sent any data for this long are "
+			+ "closed so that devices that went away without closing their "
+			+ "connection don't use up resources. UDP sessions that haven't "
+			+ "received any datagrams for this long are also removed.");
+
+	private static IntegerConfigValue maxUdpSessions = new IntegerConfigValue(
+			"transitclock.avl.gateway.maxUdpSessions",
+			10000,
+			"Maximum number of UDP device addresses that the session state, "
+			+ "such as the vehicle ID, is kept for. When exceeded the least "
+			+ "recently used session is removed.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(AvlGatewayModule.class);
+
+	/**
+	 * State of a TCP connection. Attached to its SelectionKey.
+	 */
+	private static class Connection {
+		private final GatewaySession session;
+		private final ByteBuffer readBuffer;
+
+		private Connection(GatewaySession session, int bufferSize) {
+			this.session = session;
+			this.readBuffer = ByteBuffer.allocate(bufferSize);
+		}
+	}
+
+	/**
+	 * Decodes the data and processes the resulting AVL reports. Releases the
+	 * buffer back to the pool when done.
+	 */
+	private class DecodeTask implements Runnable {
+		private final AvlDecoder decoder;
+		private final byte[] buffer;
+		private final int length;
+		private final GatewaySession session;
+		// True for datagrams, which can contain multiple messages
+		private final boolean split;
+
+		private DecodeTask(AvlDecoder decoder, byte[] buffer, int length,
+				GatewaySession session, boolean split) {
+			this.decoder = decoder;
+			this.buffer = buffer;
+			this.length = length;
+			this.session = session;
+			this.split = split;
+		}
+
+		@Override
+		public void run() {
+			try {
+				int offset = 0;
+				while (offset < length) {
+					int messageLength = split ?
+							decoder.getMessageLength(buffer, offset,
+									length - offset) : length - offset;
+					// Last message doesn't need to be terminated
+					if (messageLength <= 0)
+						messageLength = length - offset;
+
+					AvlReport avlReport = decoder.decode(buffer, offset,
+							messageLength, session);
+					if (avlReport != null)
+						processAvlReport(avlReport);
+					offset += messageLength;
+				}
+			} catch (Exception e) {
+				logger.error("Exception decoding message from {}. {}",
+						session, e.getMessage(), e);
+			} finally {
+				release();
+			}
+		}
+
+		private void release() {
+			bufferPool.release(buffer);
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor
+	 *
+	 * @param agencyId
+	 */
+	public AvlGatewayModule(String agencyId) {
+		super(agencyId);
+	}
+
+	/**
+	 * Creates the single threaded decoder lanes. When a lane is full the
+	 * message is dropped.
+	 */
+	private void createDecoderLanes() {
+		int numberLanes = Math.max(1, numDecoderThreads.getValue());
+		RejectedExecutionHandler rejectedHandler =
+				new RejectedExecutionHandler() {
+			@Override
+			public void rejectedExecution(Runnable r,
+					ThreadPoolExecutor executor) {
+				DecodeTask task = (DecodeTask) r;
+				task.release();
+				// Log first one and then only occasionally so that the log
+				// isn't flooded
+				long dropped = numberDropped.incrementAndGet();
+				if (dropped % 1000 == 1)
+					logger.error("AvlGatewayModule decoder queue is full so "
+							+ "dropped message from {}. Total dropped={}",
+							task.session, dropped);
+			}
+		};
+
+		decoderLanes = new ThreadPoolExecutor[numberLanes];
+		for (int i = 0; i < numberLanes; ++i) {
+			decoderLanes[i] = new ThreadPoolExecutor(1, 1, 0L,
+					TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(decoderQueueSize.getValue()),
+					new NamedThreadFactory("avlGatewayDecoder"),
+					rejectedHandler);
+		}
+	}
+
+	/**
+	 * Opens the TCP and UDP channels and registers them with the selector.
+	 *
+	 * @return true if at least one channel opened
+	 */
+	private boolean openChannels() throws IOException {
+		selector = Selector.open();
+		boolean opened = false;
+
+		if (tcpPort.getValue() > 0) {
+			tcpDecoder = ClassInstantiator.instantiate(
+					tcpDecoderClass.getValue(), AvlDecoder.class);
+			if (tcpDecoder != null) {
+				ServerSocketChannel serverChannel = ServerSocketChannel.open();
+				serverChannel.configureBlocking(false);
+				serverChannel.socket().setReuseAddress(true);
+				serverChannel.socket().bind(
+						new InetSocketAddress(tcpPort.getValue()));
+				serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+				logger.info("AvlGatewayModule accepting TCP connections on "
+						+ "port {} using {}", tcpPort.getValue(),
+						tcpDecoderClass.getValue());
+				opened = true;
+			}
+		}
+
+		if (udpPort.getValue() > 0) {
+			udpDecoder = ClassInstantiator.instantiate(
+					udpDecoderClass.getValue(), AvlDecoder.class);
+			if (udpDecoder != null) {
+				DatagramChannel datagramChannel = DatagramChannel.open();
+				datagramChannel.configureBlocking(false);
+				datagramChannel.socket().bind(
+						new InetSocketAddress(udpPort.getValue()));
+				datagramChannel.register(selector, SelectionKey.OP_READ);
+				logger.info("AvlGatewayModule receiving UDP datagrams on "
+						+ "port {} using {}", udpPort.getValue(),
+						udpDecoderClass.getValue());
+				opened = true;
+			}
+		}
+
+		return opened;
+	}
+
+	/**
+	 * Copies the message into a pooled buffer and queues it to be decoded.
+	 */
+	private void submit(AvlDecoder decoder, byte[] bytes, int offset,
+			int length, GatewaySession session) {
+		byte[] buffer = length <= bufferPool.getBufferSize() ?
+				bufferPool.take() : new byte[length];
+		System.arraycopy(bytes, offset, buffer, 0, length);
+		decoderLanes[session.getLaneIndex()].execute(
+				new DecodeTask(decoder, buffer, length, session, false));
+	}
+
+	/**
+	 * Creates the map of UDP sessions, limited to maxUdpSessions.
+	 */
+	private void createUdpSessions() {
+		final int maxSessions = Math.max(1, maxUdpSessions.getValue());
+		udpSessions = new LinkedHashMap<SocketAddress, GatewaySession>(16,
+				0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<SocketAddress, GatewaySession> eldest) {
+				return size() > maxSessions;
+			}
+		};
+	}
+
+	/**
+	 * Returns the session for the UDP address, creating it if there isn't
+	 * one yet.
+	 *
+	 * @param remoteAddress
+	 * @return the session
+	 */
+	private GatewaySession getUdpSession(SocketAddress remoteAddress) {
+		GatewaySession session = udpSessions.get(remoteAddress);
+		if (session == null) {
+			// Datagrams from the same address are decoded by the same lane
+			int laneIndex = (remoteAddress.hashCode() & 0x7fffffff)
+					% decoderLanes.length;
+			session = new GatewaySession(remoteAddress, laneIndex);
+			udpSessions.put(remoteAddress, session);
+		}
+		return session;
+	}
+
+	/**
+	 * Accepts all pending TCP connections.
+	 *
+	 * @param key
+	 * @throws IOException
+	 */
+	private void accept(SelectionKey key) throws IOException {
+		ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			if (numberConnections >= maxConnections.getValue()) {
+				logger.error("AvlGatewayModule already has maximum of {} "
+						+ "connections so closing connection from {}",
+						maxConnections.getValue(),
+						channel.socket().getRemoteSocketAddress());
+				channel.close();
+				continue;
+			}
+
+			channel.configureBlocking(false);
+			GatewaySession session = new GatewaySession(
+					channel.socket().getRemoteSocketAddress(),
+					nextLaneIndex++ % decoderLanes.length);
+			channel.register(selector, SelectionKey.OP_READ,
+					new Connection(session, maxMessageSize.getValue()));
+			++numberConnections;
+			logger.debug("AvlGatewayModule accepted connection from {}. "
+					+ "numberConnections={}", session.getRemoteAddress(),
+					numberConnections);
+		}
+	}
+
+	/**
+	 * Reads from a TCP connection and queues each complete message to be
+	 * decoded. An incomplete message is kept in the read buffer of the
+	 * connection until the rest of it is read.
+	 *
+	 * @param key
+	 */
+	private void read(SelectionKey key) {
+		Connection connection = (Connection) key.attachment();
+		SocketChannel channel = (SocketChannel) key.channel();
+		ByteBuffer buffer = connection.readBuffer;
+
+		int numberRead;
+		try {
+			numberRead = channel.read(buffer);
+		} catch (IOException e) {
+			logger.debug("Exception reading from {}. {}",
+					connection.session.getRemoteAddress(), e.getMessage());
+			numberRead = -1;
+		}
+		if (numberRead < 0) {
+			close(key);
+			return;
+		}
+		connection.session.setLastReadTime(System.currentTimeMillis());
+
+		// Split the data into messages
+		buffer.flip();
+		byte[] bytes = buffer.array();
+		while (buffer.hasRemaining()) {
+			int messageLength = tcpDecoder.getMessageLength(bytes,
+					buffer.position(), buffer.remaining());
+			if (messageLength <= 0)
+				break;
+			submit(tcpDecoder, bytes, buffer.position(), messageLength,
+					connection.session);
+			buffer.position(buffer.position() + messageLength);
+		}
+
+		// If buffer is full but doesn't contain a complete message then the
+		// message is too long so discard it
+		if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+			logger.error("Message from {} is longer than {} bytes so "
+					+ "discarding it.", connection.session.getRemoteAddress(),
+					buffer.capacity());
+			buffer.clear();
+		} else {
+			buffer.compact();
+		}
+	}
+
+	/**
+	 * Receives the waiting UDP datagrams and queues them to be decoded.
+	 *
+	 * @param key
+	 * @throws IOException
+	 */
+	private void receive(SelectionKey key) throws IOException {
+		DatagramChannel channel = (DatagramChannel) key.channel();
+		for (int i = 0; i < MAX_DATAGRAMS_PER_SELECT; ++i) {
+			byte[] bytes = bufferPool.take();
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			SocketAddress remoteAddress = channel.receive(buffer);
+			if (remoteAddress == null) {
+				bufferPool.release(bytes);
+				return;
+			}
+
+			GatewaySession session = getUdpSession(remoteAddress);
+			session.setLastReadTime(System.currentTimeMillis());
+			decoderLanes[session.getLaneIndex()].execute(new DecodeTask(
+					udpDecoder, bytes, buffer.position(), session, true));
+		}
+	}
+
+	/**
+	 * Closes the TCP connection.
+	 *
+	 * @param key
+	 */
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			logger.debug("Exception closing channel. {}", e.getMessage());
+		}
+		--numberConnections;
+		logger.debug("AvlGatewayModule closed connection from {}. "
+				+ "numberConnections={}",
+				((Connection) key.attachment()).session.getRemoteAddress(),
+				numberConnections);
+	}
+
+	/**
+	 * Closes the TCP connections that haven't sent data for idleTimeoutSecs,
+	 * and removes the UDP sessions that haven't received any datagrams for
+	 * that long.
+	 */
+	private void closeIdleConnections() {
+		long cutoff = System.currentTimeMillis()
+				- idleTimeoutSecs.getValue() * Time.MS_PER_SEC;
+		for (SelectionKey key : selector.keys()) {
+			if (key.isValid() && key.attachment() instanceof Connection
+					&& ((Connection) key.attachment()).session
+							.getLastReadTime() < cutoff) {
+				logger.info("Closing idle connection from {}",
+						((Connection) key.attachment()).session);
+				close(key);
+			}
+		}
+
+		// Sessions are in access order so the idle ones are first
+		Iterator<GatewaySession> sessions = udpSessions.values().iterator();
+		while (sessions.hasNext()
+				&& sessions.next().getLastReadTime() < cutoff)
+			sessions.remove();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		// Log that module successfully started
+		logger.info("Started module {} for agencyId={}", getClass().getName(),
+				getAgencyId());
+
+		bufferPool = new BufferPool(maxMessageSize.getValue(),
+				Math.max(1, numDecoderThreads.getValue())
+						* decoderQueueSize.getValue());
+		createDecoderLanes();
+		createUdpSessions();
+
+		try {
+			if (!openChannels()) {
+				logger.error("AvlGatewayModule has neither a TCP nor a UDP "
+						+ "port with a valid decoder configured so exiting.");
+				return;
+			}
+		} catch (IOException e) {
+			logger.error("Exception opening channels for AvlGatewayModule. "
+					+ "{}", e.getMessage(), e);
+			return;
+		}
+
+		long lastIdleCheckTime = System.currentTimeMillis();
+		while (true) {
+			try {
+				selector.select(IDLE_CHECK_INTERVAL_MSEC);
+
+				Iterator<SelectionKey> iterator =
+						selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					if (!key.isValid())
+						continue;
+
+					if (key.isAcceptable())
+						accept(key);
+					else if (key.channel() instanceof DatagramChannel)
+						receive(key);
+					else if (key.isReadable())
+						read(key);
+				}
+
+				long now = System.currentTimeMillis();
+				if (now - lastIdleCheckTime > IDLE_CHECK_INTERVAL_MSEC) {
+					closeIdleConnections();
+					lastIdleCheckTime = now;
+				}
+			} catch (Exception e) {
+				logger.error("Unexpected exception in AvlGatewayModule. {}",
+						e.getMessage(), e);
+			}
+		}
+	}
+}
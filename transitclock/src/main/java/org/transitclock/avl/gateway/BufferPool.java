@@ -0,0 +1,70 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.avl.gateway;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pool of fixed size byte arrays so that a new array doesn't need to be
+ * allocated for every message received by the AvlGatewayModule. If the pool
+ * is empty then a new array is allocated, and if the pool is full when an
+ * array is released then it is left for the garbage collector. Therefore the
+ * pool never blocks.
+ */
+class BufferPool {
+
+	private final int bufferSize;
+	private final BlockingQueue<byte[]> buffers;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param bufferSize
+	 *            size of each array
+	 * @param maxPooled
+	 *            maximum number of arrays kept in the pool
+	 */
+	BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.buffers = new ArrayBlockingQueue<byte[]>(maxPooled);
+	}
+
+	/**
+	 * @return an array of bufferSize from the pool, or a new one if the pool
+	 *         is empty
+	 */
+	byte[] take() {
+		byte[] buffer = buffers.poll();
+		return buffer != null ? buffer : new byte[bufferSize];
+	}
+
+	/**
+	 * Returns the array to the pool.
+	 *
+	 * @param buffer
+	 */
+	void release(byte[] buffer) {
+		if (buffer.length == bufferSize)
+			buffers.offer(buffer);
+	}
+
+	int getBufferSize() {
+		return bufferSize;
+	}
+}
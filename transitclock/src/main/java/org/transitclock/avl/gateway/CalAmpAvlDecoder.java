@@ -0,0 +1,59 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.avl.gateway;
+
+import org.transitclock.avl.calAmp.Report;
+import org.transitclock.db.structs.AvlReport;
+
+/**
+ * AvlDecoder for the binary LM Direct messages of CalAmp GPS trackers. These
+ * are sent as UDP datagrams with one message per datagram, so this decoder
+ * should only be used for UDP. It does the same as the CalAmpAvlModule but
+ * without processing each datagram on the thread that receives them.
+ */
+public class CalAmpAvlDecoder implements AvlDecoder {
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Each datagram is a single message so the whole data is the message.
+	 *
+	 * @see org.transitclock.avl.gateway.AvlDecoder#getMessageLength(byte[], int, int)
+	 */
+	@Override
+	public int getMessageLength(byte[] bytes, int offset, int length) {
+		return length;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.avl.gateway.AvlDecoder#decode(byte[], int, int, org.transitclock.avl.gateway.GatewaySession)
+	 */
+	@Override
+	public AvlReport decode(byte[] bytes, int offset, int length,
+			GatewaySession session) {
+		// Report parses from the start of the array
+		if (offset != 0) {
+			byte[] message = new byte[length];
+			System.arraycopy(bytes, offset, message, 0, length);
+			bytes = message;
+		}
+
+		Report report = Report.parseReport(bytes, length);
+		return report != null ? report.getAvlReport() : null;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.avl.gateway;
+
+import java.net.SocketAddress;
+
+/**
+ * State of a TCP connection, or of the UDP datagrams from an address, for
+ * the AvlDecoder. Since the messages of a session are always decoded by the
+ * same thread the decoder can simply set and get the vehicle ID.
+ */
+public class GatewaySession {
+
+	private final SocketAddress remoteAddress;
+
+	// So that messages for the session are decoded by the same thread
+	private final int laneIndex;
+
+	// For devices that identify themselves once instead of in each message
+	private volatile String vehicleId;
+
+	// Only used by the selector thread, for closing idle connections and
+	// removing idle UDP sessions
+	private long lastReadTime;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param remoteAddress
+	 *            address of the device
+	 * @param laneIndex
+	 *            which decoder thread handles the messages
+	 */
+	GatewaySession(SocketAddress remoteAddress, int laneIndex) {
+		this.remoteAddress = remoteAddress;
+		this.laneIndex = laneIndex;
+		this.lastReadTime = System.currentTimeMillis();
+	}
+
+	public SocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	int getLaneIndex() {
+		return laneIndex;
+	}
+
+	/**
+	 * @return the vehicle ID set by the decoder, or null if not set
+	 */
+	public String getVehicleId() {
+		return vehicleId;
+	}
+
+	public void setVehicleId(String vehicleId) {
+		this.vehicleId = vehicleId;
+	}
+
+	long getLastReadTime() {
+		return lastReadTime;
+	}
+
+	void setLastReadTime(long lastReadTime) {
+		this.lastReadTime = lastReadTime;
+	}
+
+	@Override
+	public String toString() {
+		return "GatewaySession ["
+				+ "remoteAddress=" + remoteAddress
+				+ ", vehicleId=" + vehicleId
+				+ "]";
+	}
+}
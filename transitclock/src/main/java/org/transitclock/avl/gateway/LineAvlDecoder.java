@@ -0,0 +1,79 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.avl.gateway;
+
+import java.nio.charset.StandardCharsets;
+
+import org.transitclock.db.structs.AvlReport;
+
+/**
+ * For text device formats where each message is a line. Lines can end with
+ * either "\n" or "\r\n". Since devices often only send their position and
+ * not their ID, a line of the form "VID=vehicleId" sets the vehicle ID for
+ * the rest of the session, the same as for the GeorgiaTech feed.
+ */
+public abstract class LineAvlDecoder implements AvlDecoder {
+
+	private static final String VEHICLE_ID_PREFIX = "VID=";
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Decodes a single line that is not a "VID=" line.
+	 *
+	 * @param line
+	 *            the line, without the line ending
+	 * @param session
+	 * @return the AvlReport, or null if not a valid position report
+	 */
+	protected abstract AvlReport decodeLine(String line,
+			GatewaySession session);
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.avl.gateway.AvlDecoder#getMessageLength(byte[], int, int)
+	 */
+	@Override
+	public int getMessageLength(byte[] bytes, int offset, int length) {
+		for (int i = offset; i < offset + length; ++i) {
+			if (bytes[i] == '\n')
+				return i - offset + 1;
+		}
+		return 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.avl.gateway.AvlDecoder#decode(byte[], int, int, org.transitclock.avl.gateway.GatewaySession)
+	 */
+	@Override
+	public AvlReport decode(byte[] bytes, int offset, int length,
+			GatewaySession session) {
+		String line =
+				new String(bytes, offset, length, StandardCharsets.US_ASCII)
+						.trim();
+		if (line.isEmpty())
+			return null;
+
+		if (line.startsWith(VEHICLE_ID_PREFIX)) {
+			session.setVehicleId(
+					line.substring(VEHICLE_ID_PREFIX.length()).trim());
+			return null;
+		}
+
+		return decodeLine(line, session);
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.avl.gateway;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.avl.NmeaGpsLocation;
+import org.transitclock.config.BooleanConfigValue;
+import org.transitclock.db.structs.AvlReport;
+
+/**
+ * AvlDecoder for devices that send NMEA $GPRMC sentences, one per line. The
+ * device needs to first send a "VID=vehicleId" line so that the vehicle is
+ * known. Other NMEA sentences are ignored.
+ */
+public class NmeaAvlDecoder extends LineAvlDecoder {
+
+	private static BooleanConfigValue ignoreChecksum = new BooleanConfigValue(
+			"transitclock.avl.gateway.nmeaIgnoreChecksum",
+			false,
+			"If true then the checksum of NMEA sentences received by the "
+			+ "AvlGatewayModule is not checked. For devices that don't "
+			+ "set it properly.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(NmeaAvlDecoder.class);
+
+	/********************** Member Functions **************************/
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.avl.gateway.LineAvlDecoder#decodeLine(java.lang.String, org.transitclock.avl.gateway.GatewaySession)
+	 */
+	@Override
+	protected AvlReport decodeLine(String line, GatewaySession session) {
+		NmeaGpsLocation gpsLoc = ignoreChecksum.getValue() ?
+				NmeaGpsLocation.parseIgnoringChecksum(line) :
+				NmeaGpsLocation.parse(line);
+		if (gpsLoc == null)
+			return null;
+
+		String vehicleId = session.getVehicleId();
+		if (vehicleId == null) {
+			logger.warn("Received NMEA location from {} before the vehicle "
+					+ "ID was set with a VID= line so ignoring it. {}",
+					session.getRemoteAddress(), line);
+			return null;
+		}
+
+		return new AvlReport(vehicleId, gpsLoc.getTime(),
+				gpsLoc.getLocation(), gpsLoc.getSpeed(), gpsLoc.getHeading(),
+				"NMEA");
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.avl.gateway;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.avl.TaipGpsLocation;
+import org.transitclock.db.structs.AvlReport;
+
+/**
+ * AvlDecoder for devices that send Trimble TAIP RPV messages, such as
+ * "&gt;RPV15714+3739438-1420384601512612;ID=1234&lt;". TAIP messages are
+ * delimited by the '&gt;' and '&lt;' characters and devices don't
+ * necessarily put each one on its own line, so a message ends at a '&lt;' as
+ * well as at a line ending. The vehicle ID is taken from the ";ID=" field if
+ * there is one. Otherwise it needs to have been set by a "VID=vehicleId"
+ * line. Other TAIP messages are ignored.
+ */
+public class TaipAvlDecoder extends LineAvlDecoder {
+
+	private static final String ID_FIELD = ";ID=";
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(TaipAvlDecoder.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Returns the value of the ";ID=" field of the TAIP message.
+	 *
+	 * @param line
+	 * @return the ID, or null if there isn't one
+	 */
+	private static String getId(String line) {
+		int start = line.indexOf(ID_FIELD);
+		if (start < 0)
+			return null;
+		start += ID_FIELD.length();
+
+		int end = start;
+		while (end < line.length() && line.charAt(end) != ';'
+				&& line.charAt(end) != '<')
+			++end;
+		return end > start ? line.substring(start, end) : null;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.avl.gateway.LineAvlDecoder#getMessageLength(byte[], int, int)
+	 */
+	@Override
+	public int getMessageLength(byte[] bytes, int offset, int length) {
+		// A TAIP message ends with '<'. A "VID=" line ends with a newline.
+		for (int i = offset; i < offset + length; ++i) {
+			if (bytes[i] == '<' || bytes[i] == '\n')
+				return i - offset + 1;
+		}
+		return 0;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.avl.gateway.LineAvlDecoder#decodeLine(java.lang.String, org.transitclock.avl.gateway.GatewaySession)
+	 */
+	@Override
+	protected AvlReport decodeLine(String line, GatewaySession session) {
+		// Only RPV messages contain a position. Check here so that other
+		// messages don't cause warnings to be logged.
+		if (!line.startsWith(">RPV"))
+			return null;
+
+		TaipGpsLocation taipGpsLoc = TaipGpsLocation.get(line);
+		if (taipGpsLoc == null)
+			return null;
+
+		String id = getId(line);
+		if (id != null)
+			session.setVehicleId(id);
+		String vehicleId = session.getVehicleId();
+		if (vehicleId == null) {
+			logger.warn("Received TAIP location from {} without an ID so "
+					+ "ignoring it. {}", session.getRemoteAddress(), line);
+			return null;
+		}
+
+		return new AvlReport(vehicleId, taipGpsLoc.getFixEpochTime(),
+				taipGpsLoc.getLatitude(), taipGpsLoc.getLongitude(),
+				taipGpsLoc.getSpeedMetersPerSecond(), taipGpsLoc.getHeading(),
+				"TAIP");
+	}
+}
@@ -181,6 +181,61 @@ public class CoreConfig {
 					+ "maxDistanceFromSegmentForAutoAssigning should be less"
 					+ "than or equal to maxDistanceFromSegment.");
 	
+	/**
+	 * Whether a spatial index of the stop path segments should be created
+	 * when the config is read in so that auto assigning only needs to look
+	 * at trip patterns near the AVL report.
+	 * @return
+	 */
+	public static boolean getUseSegmentSpatialIndex() {
+		return useSegmentSpatialIndex.getValue();
+	}
+	private static BooleanConfigValue useSegmentSpatialIndex =
+			new BooleanConfigValue("transitclock.core.useSegmentSpatialIndex", 
+					false,
+					"If true then a grid based spatial index of all the stop "
+					+ "path segments is created when the configuration is "
+					+ "read in. When auto assigning, only the trip patterns "
+					+ "that have a segment near the AVL report are then "
+					+ "examined for spatial matches, which greatly reduces "
+					+ "CPU use for large systems. Since all stop paths are "
+					+ "read in at startup the startup takes longer.");
+	
+	/**
+	 * Whether the trips of all blocks should be fully read in after the
+	 * configuration is read so that Block.getTrips() doesn't need to lazy
+	 * load them.
+	 * @return
+	 */
+	public static boolean getUseScheduleSnapshot() {
+		return useScheduleSnapshot.getValue();
+	}
+	private static BooleanConfigValue useScheduleSnapshot =
+			new BooleanConfigValue("transitclock.core.useScheduleSnapshot", 
+					false,
+					"If true then after the configuration is read in the "
+					+ "trips for all blocks, including their schedule times "
+					+ "and stop paths, are read in by a background thread "
+					+ "and put into an immutable snapshot. Once it is "
+					+ "available blocks and trips are accessed without "
+					+ "locking and without lazy loading through the global "
+					+ "session. Uses more memory since all trip data is "
+					+ "read in.");
+	
+	/**
+	 * Size in meters of the grid cells for the segment spatial index.
+	 * @return
+	 */
+	public static double getSegmentSpatialIndexCellSize() {
+		return segmentSpatialIndexCellSize.getValue();
+	}
+	private static DoubleConfigValue segmentSpatialIndexCellSize =
+			new DoubleConfigValue("transitclock.core.segmentSpatialIndexCellSize", 
+					250.0,
+					"Size in meters of each grid cell of the segment spatial "
+					+ "index. Should be somewhat larger than "
+					+ "transitclock.core.maxDistanceFromSegmentForAutoAssigning.");
+	
 	/**
 	 * How many bad spatial/temporal matches a predictable vehicle can have in a
 	 * row before the vehicle is made unpredictable.
@@ -17,6 +17,7 @@
 
 package org.transitclock.configData;
 
+import org.transitclock.config.BooleanConfigValue;
 import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.config.StringConfigValue;
 
@@ -112,4 +113,29 @@ public class DbSetupConfig {
                     100,
                     "Specifies the database batch size, defaults to 100");
 
+    public static boolean getUseJdbcBatchWriter() {
+        return useJdbcBatchWriter.getValue();
+    }
+    private static BooleanConfigValue useJdbcBatchWriter =
+            new BooleanConfigValue("transitclock.db.useJdbcBatchWriter",
+                    false,
+                    "If true then append only data such as arrivals/departures, "
+                    + "AVL reports, and matches are written to the database "
+                    + "using JDBC batches of prepared statements instead of "
+                    + "through a Hibernate session. This is much more "
+                    + "efficient for high volumes of data. If a batch fails "
+                    + "then the objects are written individually through "
+                    + "Hibernate so that the good data is still stored.");
+
+    public static int getNumWriterThreadsPerQueue() {
+        return numWriterThreadsPerQueue.getValue();
+    }
+    private static IntegerConfigValue numWriterThreadsPerQueue =
+            new IntegerConfigValue("transitclock.db.numWriterThreadsPerQueue",
+                    1,
+                    "Number of threads used to write the data for each type "
+                    + "of object queued to be written to the database. Using "
+                    + "more than one thread can help if the database can "
+                    + "handle parallel writes and the queues are backing up.");
+
 }
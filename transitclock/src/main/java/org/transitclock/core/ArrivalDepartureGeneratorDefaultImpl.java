@@ -31,6 +31,8 @@ import org.transitclock.core.dataCache.HoldingTimeCache;
 import org.transitclock.core.dataCache.HoldingTimeCacheKey;
 import org.transitclock.core.dataCache.StopArrivalDepartureCacheFactory;
 import org.transitclock.core.dataCache.TripDataHistoryCacheFactory;
+import org.transitclock.core.dataCache.TravelTimeHistoryCache;
+import org.transitclock.core.dataCache.TripKey;
 import org.transitclock.core.dataCache.VehicleStateManager;
 import org.transitclock.core.dataCache.ehcache.StopArrivalDepartureCache;
 import org.transitclock.core.dataCache.ehcache.scheduled.TripDataHistoryCache;
@@ -344,7 +346,13 @@ public class ArrivalDepartureGeneratorDefaultImpl
 								
 		
 		if(TripDataHistoryCacheFactory.getInstance()!=null)
-			TripDataHistoryCacheFactory.getInstance().putArrivalDeparture(arrivalDeparture);
+		{
+			TripKey tripKey = TripDataHistoryCacheFactory.getInstance().putArrivalDeparture(arrivalDeparture);
+
+			if(TravelTimeHistoryCache.isEnabled() && arrivalDeparture.isArrival())
+				TravelTimeHistoryCache.getInstance().arrivalDepartureAdded(
+						TripDataHistoryCacheFactory.getInstance(), tripKey, arrivalDeparture.getStopPathIndex());
+		}
 
 		if(StopArrivalDepartureCacheFactory.getInstance()!=null)
 		{
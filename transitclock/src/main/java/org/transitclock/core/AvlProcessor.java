@@ -48,6 +48,7 @@ import org.transitclock.db.structs.VehicleEvent;
 import org.transitclock.db.structs.AvlReport.AssignmentType;
 import org.transitclock.logging.Markers;
 import org.transitclock.monitoring.CloudwatchService;
+import org.transitclock.monitoring.LatencyMetrics;
 import org.transitclock.utils.Geo;
 import org.transitclock.utils.IntervalTimer;
 import org.transitclock.utils.StringUtils;
@@ -1618,6 +1619,12 @@ public class AvlProcessor {
 		// Do the low level work of matching vehicle and then generating results
 		lowLevelProcessAvlReport(avlReport, false);
 		logger.debug("Processing AVL report took {}msec", timer);
+		LatencyMetrics.getInstance().recordMicros(
+				LatencyMetrics.AVL_REPORT_PROCESSING,
+				timer.elapsedNanoSec() / 1000);
+		LatencyMetrics.getInstance().recordMicros(
+				LatencyMetrics.AVL_REPORT_TOTAL_LATENCY,
+				(System.currentTimeMillis() - avlReport.getTime()) * 1000);
         CloudwatchService.getInstance().saveMetric("PredictionProcessingTimeInMillis", Double.valueOf(timer.elapsedMsec()), 1, CloudwatchService.MetricType.AVERAGE, CloudwatchService.ReportingIntervalTimeUnit.MINUTE, false);
         CloudwatchService.getInstance().saveMetric("PredictionTotalLatencyInMillis", Double.valueOf((System.currentTimeMillis() - avlReport.getTime())), 1, CloudwatchService.MetricType.AVERAGE, CloudwatchService.ReportingIntervalTimeUnit.MINUTE, false);
 	}
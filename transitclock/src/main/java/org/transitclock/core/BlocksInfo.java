@@ -19,14 +19,17 @@ package org.transitclock.core;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Set;
 
 import org.transitclock.applications.Core;
 import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.db.structs.Block;
+import org.transitclock.gtfs.BlockTimeIndex;
 import org.transitclock.gtfs.DbConfig;
 import org.transitclock.utils.Time;
 
@@ -127,6 +130,16 @@ public class BlocksInfo {
 		if (core == null)
 			return activeBlocks;
 		
+		// If the index of block times is available use it since then don't
+		// need to look at every block
+		BlockTimeIndex blockTimeIndex = core.getDbConfig().getBlockTimeIndex();
+		if (blockTimeIndex != null) {
+			getCurrentlyActiveBlocks(core, blockTimeIndex, routeIds,
+					blockIdsToIgnore, allowableBeforeTimeSecs,
+					allowableAfterStartTimeSecs, activeBlocks);
+			return activeBlocks;
+		}
+		
 		// Determine which service IDs are currently active
 		Set<String> serviceIds = new HashSet<String>();
 		long now = core.getSystemTime();
@@ -194,4 +207,127 @@ public class BlocksInfo {
 		// Done!
 		return activeBlocks;
 	}
+
+	/**
+	 * Adds the currently active blocks to activeBlocks using the
+	 * BlockTimeIndex.
+	 * 
+	 * @param core
+	 * @param blockTimeIndex
+	 * @param routeIds
+	 * @param blockIdsToIgnore
+	 * @param allowableBeforeTimeSecs
+	 * @param allowableAfterStartTimeSecs
+	 * @param activeBlocks
+	 *            the list that the active blocks are added to
+	 */
+	private static void getCurrentlyActiveBlocks(Core core,
+			BlockTimeIndex blockTimeIndex, Collection<String> routeIds,
+			Set<String> blockIdsToIgnore, int allowableBeforeTimeSecs,
+			int allowableAfterStartTimeSecs, List<Block> activeBlocks) {
+		long now = core.getSystemTime();
+		ServiceUtils serviceUtils = core.getServiceUtils();
+		getActiveBlocks(blockTimeIndex, core.getTime().getSecondsIntoDay(now),
+				serviceUtils.getServiceIdsForDay(now),
+				serviceUtils.getServiceIdsForDay(now - Time.DAY_IN_MSECS),
+				serviceUtils.getServiceIdsForDay(now + Time.DAY_IN_MSECS),
+				routeIds, blockIdsToIgnore, allowableBeforeTimeSecs,
+				allowableAfterStartTimeSecs, activeBlocks);
+	}
+
+	/**
+	 * Adds the active blocks to activeBlocks using the BlockTimeIndex. Gives
+	 * the same results as the loop in getCurrentlyActiveBlocks() that calls
+	 * Block.isActive() for each block of the service IDs it looks at. Those
+	 * are today's service IDs, yesterday's if the time is within 4 hours
+	 * after midnight, and tomorrow's if the time is within
+	 * allowableBeforeTimeSecs before midnight. Just like Block.isActive() the
+	 * blocks of a service ID are checked at the time of day if the service
+	 * is valid today, at the time of day plus a day if it was valid
+	 * yesterday, for blocks that run past midnight, and at the time of day
+	 * minus a day if it is valid tomorrow, for blocks that are about to
+	 * start right after midnight.
+	 * 
+	 * @param blockTimeIndex
+	 * @param secsInDay
+	 *            the current time of day
+	 * @param serviceIdsToday
+	 * @param serviceIdsYesterday
+	 * @param serviceIdsTomorrow
+	 * @param routeIds
+	 * @param blockIdsToIgnore
+	 * @param allowableBeforeTimeSecs
+	 * @param allowableAfterStartTimeSecs
+	 * @param activeBlocks
+	 *            the list that the active blocks are added to
+	 */
+	static void getActiveBlocks(BlockTimeIndex blockTimeIndex,
+			int secsInDay, Collection<String> serviceIdsToday,
+			Collection<String> serviceIdsYesterday,
+			Collection<String> serviceIdsTomorrow,
+			Collection<String> routeIds, Set<String> blockIdsToIgnore,
+			int allowableBeforeTimeSecs, int allowableAfterStartTimeSecs,
+			List<Block> activeBlocks) {
+		// The service IDs that the blocks are looked at for, the same as
+		// when not using the index
+		Set<String> serviceIds = new HashSet<String>(serviceIdsToday);
+		if (secsInDay < 4 * Time.HOUR_IN_SECS)
+			serviceIds.addAll(serviceIdsYesterday);
+		if (secsInDay > Time.DAY_IN_SECS - allowableBeforeTimeSecs)
+			serviceIds.addAll(serviceIdsTomorrow);
+		
+		// Keep track of how many of the lookups found blocks since if more
+		// than one did then the same block might have been found more than
+		// once, such as for a block that is for more than one of the routes
+		int numberLookupsWithBlocks = 0;
+		
+		for (String serviceId : serviceIds) {
+			if (serviceIdsToday.contains(serviceId)) {
+				int sizeBefore = activeBlocks.size();
+				blockTimeIndex.addActiveBlocks(serviceId, routeIds, secsInDay,
+						allowableBeforeTimeSecs, allowableAfterStartTimeSecs,
+						activeBlocks);
+				if (activeBlocks.size() > sizeBefore)
+					++numberLookupsWithBlocks;
+			}
+			if (serviceIdsYesterday.contains(serviceId)) {
+				int sizeBefore = activeBlocks.size();
+				blockTimeIndex.addActiveBlocks(serviceId, routeIds,
+						secsInDay + Time.DAY_IN_SECS, allowableBeforeTimeSecs,
+						allowableAfterStartTimeSecs, activeBlocks);
+				if (activeBlocks.size() > sizeBefore)
+					++numberLookupsWithBlocks;
+			}
+			if (serviceIdsTomorrow.contains(serviceId)) {
+				int sizeBefore = activeBlocks.size();
+				blockTimeIndex.addActiveBlocks(serviceId, routeIds,
+						secsInDay - Time.DAY_IN_SECS, allowableBeforeTimeSecs,
+						allowableAfterStartTimeSecs, activeBlocks);
+				if (activeBlocks.size() > sizeBefore)
+					++numberLookupsWithBlocks;
+			}
+		}
+		
+		boolean mightHaveDuplicates = numberLookupsWithBlocks > 1
+				|| (routeIds != null && routeIds.size() > 1);
+		if (blockIdsToIgnore == null && !mightHaveDuplicates)
+			return;
+		
+		// Remove blocks to be ignored and duplicates, keeping the order
+		Set<Block> blocksAlreadyIncluded = mightHaveDuplicates ? 
+				Collections.newSetFromMap(new IdentityHashMap<Block, Boolean>())
+				: null;
+		int numberKept = 0;
+		for (int i = 0; i < activeBlocks.size(); ++i) {
+			Block block = activeBlocks.get(i);
+			if (blockIdsToIgnore != null
+					&& blockIdsToIgnore.contains(block.getId()))
+				continue;
+			if (blocksAlreadyIncluded != null
+					&& !blocksAlreadyIncluded.add(block))
+				continue;
+			activeBlocks.set(numberKept++, block);
+		}
+		activeBlocks.subList(numberKept, activeBlocks.size()).clear();
+	}
 }
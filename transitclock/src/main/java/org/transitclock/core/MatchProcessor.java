@@ -30,6 +30,7 @@ import org.transitclock.db.structs.HoldingTime;
 import org.transitclock.db.structs.Match;
 import org.transitclock.db.structs.Prediction;
 import org.transitclock.ipc.data.IpcPrediction;
+import org.transitclock.monitoring.LatencyMetrics;
 import org.transitclock.utils.Time;
 
 /**
@@ -75,9 +76,17 @@ public class MatchProcessor {
 		logger.debug("Processing predictions for vehicleId={}",
 				vehicleState.getVehicleId());
 
-		// Generate the new predictions for the vehicle
+		// Generate the new predictions for the vehicle. The latency is
+		// recorded per generator class so that they can be compared.
+		long startNanos = System.nanoTime();
+		PredictionGenerator predictionGenerator =
+				PredictionGeneratorFactory.getInstance();
 		List<IpcPrediction> newPredictions = 
-				PredictionGeneratorFactory.getInstance().generate(vehicleState);
+				predictionGenerator.generate(vehicleState);
+		LatencyMetrics.getInstance().record(
+				LatencyMetrics.PREDICTION_GENERATION + "."
+						+ predictionGenerator.getClass().getSimpleName(),
+				startNanos);
 
 		// Store the predictions in database if so configured
 		if (CoreConfig.getMaxPredictionsTimeForDbSecs() > 0) {
@@ -101,8 +110,11 @@ public class MatchProcessor {
 		// Update the predictions cache to use the new predictions for the
 		// vehicle
 		List<IpcPrediction> oldPredictions = vehicleState.getPredictions();
+		startNanos = System.nanoTime();
 		PredictionDataCache.getInstance().updatePredictions(oldPredictions,
 				newPredictions);
+		LatencyMetrics.getInstance().record(
+				LatencyMetrics.PREDICTION_DATA_CACHE_UPDATE, startNanos);
 
 		// Update predictions for vehicle
 		vehicleState.setPredictions(newPredictions);
@@ -140,7 +152,10 @@ public class MatchProcessor {
 		logger.debug("Processing arrivals/departures for vehicleId={}",
 				vehicleState.getVehicleId());
 		
+		long startNanos = System.nanoTime();
 		ArrivalDepartureGeneratorFactory.getInstance().generate(vehicleState);
+		LatencyMetrics.getInstance().record(
+				LatencyMetrics.ARRIVAL_DEPARTURE_GENERATION, startNanos);
 	}
 	
 	/**
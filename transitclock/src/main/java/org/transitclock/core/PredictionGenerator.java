@@ -34,15 +34,14 @@ import org.transitclock.core.dataCache.PredictionComparator;
 import org.transitclock.core.dataCache.PredictionDataCache;
 import org.transitclock.core.dataCache.StopArrivalDepartureCacheFactory;
 import org.transitclock.core.dataCache.StopArrivalDepartureCacheKey;
-import org.transitclock.core.dataCache.TripDataHistoryCacheFactory;
+import org.transitclock.core.dataCache.StopEvents;
+import org.transitclock.core.dataCache.TravelTimeHistoryCache;
 import org.transitclock.core.dataCache.TripDataHistoryCacheInterface;
 import org.transitclock.core.dataCache.TripKey;
 import org.transitclock.core.dataCache.ehcache.StopArrivalDepartureCache;
 import org.transitclock.core.dataCache.ehcache.scheduled.TripDataHistoryCache;
 import org.transitclock.core.predictiongenerator.datafilter.DwellTimeDataFilter;
 import org.transitclock.core.predictiongenerator.datafilter.DwellTimeFilterFactory;
-import org.transitclock.core.predictiongenerator.datafilter.TravelTimeDataFilter;
-import org.transitclock.core.predictiongenerator.datafilter.TravelTimeFilterFactory;
 import org.transitclock.db.structs.ArrivalDeparture;
 import org.transitclock.db.structs.AvlReport;
 import org.transitclock.db.structs.Block;
@@ -107,13 +106,15 @@ public abstract class PredictionGenerator {
 			StopArrivalDepartureCacheKey currentStopKey = new StopArrivalDepartureCacheKey(currentStopId,
 					new Date(currentVehicleState.getMatch().getAvlTime()));
 
-			List<IpcArrivalDeparture> currentStopList = StopArrivalDepartureCacheFactory.getInstance().getStopHistory(currentStopKey);
+			StopEvents currentStopEvents = StopArrivalDepartureCacheFactory.getInstance().getStopEvents(currentStopKey);
 
-			List<IpcArrivalDeparture> nextStopList = StopArrivalDepartureCacheFactory.getInstance().getStopHistory(nextStopKey);
+			StopEvents nextStopEvents = StopArrivalDepartureCacheFactory.getInstance().getStopEvents(nextStopKey);
 
-			if (currentStopList != null && nextStopList != null) {
-				// lists are already sorted when put into cache.
-				for (IpcArrivalDeparture currentArrivalDeparture : currentStopList) {
+			if (currentStopEvents != null && nextStopEvents != null) {
+				// Only need to look at the departures before the AVL time. They
+				// are sorted with the most recent first.
+				for (IpcArrivalDeparture currentArrivalDeparture : currentStopEvents
+						.getDeparturesAtOrBefore(currentVehicleState.getMatch().getAvlTime())) {
 
 					if(currentArrivalDeparture.isDeparture()
 							&& !currentArrivalDeparture.getVehicleId().equals(currentVehicleState.getVehicleId())
@@ -121,7 +122,8 @@ public abstract class PredictionGenerator {
 					{
 						IpcArrivalDeparture found;
 
-						if ((found = findMatchInList(nextStopList, currentArrivalDeparture)) != null) {
+						if ((found = nextStopEvents.getArrival(currentArrivalDeparture.getTripId(),
+								currentArrivalDeparture.getVehicleId())) != null) {
 							TravelTimeDetails travelTimeDetails=new TravelTimeDetails(currentArrivalDeparture, found);
 							if(travelTimeDetails.getTravelTime()>0)
 							{
@@ -164,20 +166,23 @@ public abstract class PredictionGenerator {
 			StopArrivalDepartureCacheKey currentStopKey = new StopArrivalDepartureCacheKey(currentStopId,
 					new Date(currentVehicleState.getMatch().getAvlTime()));
 
-			List<IpcArrivalDeparture> currentStopList = StopArrivalDepartureCacheFactory.getInstance().getStopHistory(currentStopKey);
+			StopEvents currentStopEvents = StopArrivalDepartureCacheFactory.getInstance().getStopEvents(currentStopKey);
 
-			List<IpcArrivalDeparture> nextStopList = StopArrivalDepartureCacheFactory.getInstance().getStopHistory(nextStopKey);
+			StopEvents nextStopEvents = StopArrivalDepartureCacheFactory.getInstance().getStopEvents(nextStopKey);
 
-			if (currentStopList != null && nextStopList != null) {
-				// lists are already sorted when put into cache.
-				for (IpcArrivalDeparture currentArrivalDeparture : currentStopList) {
+			if (currentStopEvents != null && nextStopEvents != null) {
+				// Only need to look at the departures before the AVL time. They
+				// are sorted with the most recent first.
+				for (IpcArrivalDeparture currentArrivalDeparture : currentStopEvents
+						.getDeparturesAtOrBefore(currentVehicleState.getMatch().getAvlTime())) {
 
 					if(currentArrivalDeparture.isDeparture() && !currentArrivalDeparture.getVehicleId().equals(currentVehicleState.getVehicleId())
 							&& (currentVehicleState.getTrip().getDirectionId()==null || currentVehicleState.getTrip().getDirectionId().equals(currentArrivalDeparture.getDirectionId())))
 					{
 						IpcArrivalDeparture found;
 
-						if ((found = findMatchInList(nextStopList, currentArrivalDeparture)) != null) {
+						if ((found = nextStopEvents.getArrival(currentArrivalDeparture.getTripId(),
+								currentArrivalDeparture.getVehicleId())) != null) {
 							if(found.getTime().getTime() - currentArrivalDeparture.getTime().getTime()>0)
 							{
 								Block currentBlock=null;
@@ -266,8 +271,14 @@ public abstract class PredictionGenerator {
 
 			Integer startTime, int num_days_look_back, int num_days) {
 
+		// Days that have already been looked at don't need to be looked up
+		// in the trip history cache again
+		if (TravelTimeHistoryCache.isEnabled())
+			return TravelTimeHistoryCache.getInstance().getLastDaysTimes(cache,
+					tripId, stopPathIndex, startDate, startTime,
+					num_days_look_back, num_days);
+
 		List<TravelTimeDetails> times = new ArrayList<TravelTimeDetails>();
-		List<IpcArrivalDeparture> results = null;
 		int num_found = 0;
 		/*
 		 * TODO This could be smarter about the dates it looks at by looking at
@@ -280,31 +291,12 @@ public abstract class PredictionGenerator {
 
 			TripKey tripKey = new TripKey(tripId, nearestDay, startTime);
 
-			results = cache.getTripHistory(tripKey);
-
-			if (results != null) {
-
-				IpcArrivalDeparture arrival = getArrival(stopPathIndex, results);
+			TravelTimeDetails travelTimeDetails = TravelTimeHistoryCache
+					.getTravelTime(cache, cache.getTripHistory(tripKey), stopPathIndex);
 
-				if(arrival!=null)
-				{
-					IpcArrivalDeparture departure = TripDataHistoryCacheFactory.getInstance().findPreviousDepartureEvent(results, arrival);
-
-					if (arrival != null && departure != null) {
-
-						TravelTimeDetails travelTimeDetails=new TravelTimeDetails(departure, arrival);
-						
-						if(travelTimeDetails.getTravelTime()!=-1)
-						{
-							TravelTimeDataFilter travelTimefilter = TravelTimeFilterFactory.getInstance();
-							if(!travelTimefilter.filter(travelTimeDetails.getDeparture(),travelTimeDetails.getArrival()))
-							{
-								times.add(travelTimeDetails);
-								num_found++;
-							}
-						}
-					}
-				}
+			if (travelTimeDetails != null) {
+				times.add(travelTimeDetails);
+				num_found++;
 			}
 		}
 		return times;
@@ -0,0 +1,252 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.db.structs.Location;
+import org.transitclock.db.structs.StopPath;
+import org.transitclock.db.structs.TripPattern;
+import org.transitclock.db.structs.Vector;
+import org.transitclock.db.structs.VectorWithHeading;
+import org.transitclock.utils.Geo;
+import org.transitclock.utils.GridIndex;
+import org.transitclock.utils.IntervalTimer;
+
+/**
+ * A grid based spatial index of all the StopPath segments of all the trip
+ * patterns. Built once when the configuration is read in so that when
+ * matching an AVL report only the segments near the AVL location need to be
+ * looked at instead of every segment of every trip pattern.
+ * <p>
+ * Each grid cell contains the segments whose bounding box overlaps the cell.
+ * Cells are roughly square, cellSize meters on a side, based on the average
+ * latitude of the locations indexed.
+ */
+public class SegmentSpatialIndex {
+
+	// Each cell contains the segments that overlap the cell
+	private final GridIndex<Entry> grid;
+
+	// Largest StopPath specific max distance of all the stop paths indexed.
+	// Needed so that when querying for segments that could possibly match
+	// the query radius can be large enough.
+	private double largestStopPathMaxDistance = 0.0;
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(SegmentSpatialIndex.class);
+
+	/**
+	 * A single segment of a StopPath of a TripPattern.
+	 */
+	public static class Entry {
+		private final String tripPatternId;
+		private final int stopPathIndex;
+		private final int segmentIndex;
+		private final Vector segment;
+
+		Entry(String tripPatternId, int stopPathIndex,
+				int segmentIndex, Vector segment) {
+			this.tripPatternId = tripPatternId;
+			this.stopPathIndex = stopPathIndex;
+			this.segmentIndex = segmentIndex;
+			this.segment = segment;
+		}
+
+		public String getTripPatternId() {
+			return tripPatternId;
+		}
+
+		public int getStopPathIndex() {
+			return stopPathIndex;
+		}
+
+		public int getSegmentIndex() {
+			return segmentIndex;
+		}
+
+		public Vector getSegment() {
+			return segment;
+		}
+
+		@Override
+		public String toString() {
+			return "Entry ["
+					+ "tripPatternId=" + tripPatternId
+					+ ", stopPathIndex=" + stopPathIndex
+					+ ", segmentIndex=" + segmentIndex
+					+ "]";
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Creates an empty index. Use add() to add trip patterns.
+	 *
+	 * @param cellSize
+	 *            Size of grid cell in meters
+	 * @param referenceLat
+	 *            Latitude used for determining size of cell in degrees
+	 *            longitude. Should be near the center of the area covered.
+	 */
+	SegmentSpatialIndex(double cellSize, double referenceLat) {
+		this.grid = new GridIndex<Entry>(cellSize, referenceLat);
+	}
+
+	/**
+	 * Creates the index for all of the trip patterns.
+	 *
+	 * @param tripPatterns
+	 *            The trip patterns to index
+	 * @param cellSize
+	 *            Size of grid cell in meters
+	 * @return the new index
+	 */
+	public static SegmentSpatialIndex create(
+			Collection<TripPattern> tripPatterns, double cellSize) {
+		IntervalTimer timer = new IntervalTimer();
+
+		// Determine reference latitude so that cells are roughly square
+		double latSum = 0.0;
+		int latCount = 0;
+		for (TripPattern tripPattern : tripPatterns) {
+			if (tripPattern.getExtent() != null) {
+				latSum += (tripPattern.getExtent().getMinLat()
+						+ tripPattern.getExtent().getMaxLat()) / 2;
+				++latCount;
+			}
+		}
+		double referenceLat = latCount > 0 ? latSum / latCount : 0.0;
+
+		SegmentSpatialIndex index =
+				new SegmentSpatialIndex(cellSize, referenceLat);
+		for (TripPattern tripPattern : tripPatterns) {
+			index.add(tripPattern);
+		}
+
+		logger.info("Created SegmentSpatialIndex of {} segments for {} trip "
+				+ "patterns using {} cells. Took {} msec.",
+				index.grid.getNumberItems(), tripPatterns.size(),
+				index.grid.getNumberCells(),
+				timer.elapsedMsec());
+
+		return index;
+	}
+
+	/**
+	 * Adds all the segments of all the stop paths of the trip pattern to the
+	 * index.
+	 *
+	 * @param tripPattern
+	 */
+	private void add(TripPattern tripPattern) {
+		List<StopPath> stopPaths = tripPattern.getStopPaths();
+		for (int stopPathIndex = 0; stopPathIndex < stopPaths.size();
+				++stopPathIndex) {
+			StopPath stopPath = stopPaths.get(stopPathIndex);
+			if (stopPath.getMaxDistance() != null
+					&& stopPath.getMaxDistance() > largestStopPathMaxDistance)
+				largestStopPathMaxDistance = stopPath.getMaxDistance();
+
+			List<VectorWithHeading> segments = stopPath.getSegmentVectors();
+			if (segments == null)
+				continue;
+			for (int segmentIndex = 0; segmentIndex < segments.size();
+					++segmentIndex) {
+				add(new Entry(tripPattern.getId(), stopPathIndex,
+						segmentIndex, segments.get(segmentIndex)));
+			}
+		}
+	}
+
+	/**
+	 * Adds the entry to each cell that its bounding box overlaps.
+	 *
+	 * @param entry
+	 */
+	void add(Entry entry) {
+		Location l1 = entry.segment.getL1();
+		Location l2 = entry.segment.getL2();
+		grid.add(entry,
+				Math.min(l1.getLat(), l2.getLat()),
+				Math.min(l1.getLon(), l2.getLon()),
+				Math.max(l1.getLat(), l2.getLat()),
+				Math.max(l1.getLon(), l2.getLon()));
+	}
+
+	/**
+	 * Returns the segments that are within the specified distance of the
+	 * location. The distance is checked exactly, not just whether the segment
+	 * is in a nearby cell.
+	 *
+	 * @param loc
+	 * @param distance
+	 *            in meters
+	 * @return non-null possibly empty list of entries
+	 */
+	public List<Entry> getSegmentsNear(Location loc, double distance) {
+		List<Entry> results = new ArrayList<Entry>();
+		for (Entry entry : grid.getCandidates(loc, distance)) {
+			if (Geo.distance(loc, entry.segment) <= distance)
+				results.add(entry);
+		}
+		return results;
+	}
+
+	/**
+	 * Returns IDs of the trip patterns that have at least one segment within
+	 * the specified distance of the location.
+	 *
+	 * @param loc
+	 * @param distance
+	 *            in meters
+	 * @return non-null possibly empty set of trip pattern IDs
+	 */
+	public Set<String> getTripPatternIdsNear(Location loc, double distance) {
+		Set<String> tripPatternIds = new HashSet<String>();
+		for (Entry entry : getSegmentsNear(loc, distance)) {
+			tripPatternIds.add(entry.tripPatternId);
+		}
+		return tripPatternIds;
+	}
+
+	/**
+	 * Returns the largest StopPath specific max distance from segment. The
+	 * StopPath max distance overrides the configured value so when looking
+	 * for segments that could possibly match need to use a radius at least
+	 * this large.
+	 *
+	 * @return largest StopPath max distance, or 0.0 if none set
+	 */
+	public double getLargestStopPathMaxDistance() {
+		return largestStopPathMaxDistance;
+	}
+
+	/**
+	 * @return Number of segments in the index
+	 */
+	public int getNumberSegments() {
+		return grid.getNumberItems();
+	}
+}
@@ -25,6 +25,7 @@ import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitclock.applications.Core;
 import org.transitclock.config.BooleanConfigValue;
 import org.transitclock.configData.AvlConfig;
 import org.transitclock.configData.CoreConfig;
@@ -36,6 +37,7 @@ import org.transitclock.db.structs.Route;
 import org.transitclock.db.structs.StopPath;
 import org.transitclock.db.structs.Trip;
 import org.transitclock.db.structs.VectorWithHeading;
+import org.transitclock.monitoring.LatencyMetrics;
 import org.transitclock.utils.Geo;
 import org.transitclock.utils.Time;
 
@@ -281,6 +283,23 @@ public class SpatialMatcher {
 			AvlReport avlReport,
 			Block block, List<Trip> tripsToInvestigate,
 			MatchingType matchingType) {
+		long startNanos = System.nanoTime();
+		try {
+			return determineSpatialMatches(avlReport, block,
+					tripsToInvestigate, matchingType);
+		} finally {
+			LatencyMetrics.getInstance().record(
+					LatencyMetrics.SPATIAL_MATCHING, startNanos);
+		}
+	}
+
+	/**
+	 * Does the work for getSpatialMatches().
+	 */
+	private static List<SpatialMatch> determineSpatialMatches(
+			AvlReport avlReport,
+			Block block, List<Trip> tripsToInvestigate,
+			MatchingType matchingType) {
 		List<SpatialMatch> spatialMatchesForAllTrips = 
 				new ArrayList<SpatialMatch>();
 
@@ -395,6 +414,12 @@ public class SpatialMatcher {
 	public static List<SpatialMatch> getSpatialMatchesForAutoAssigning(
 			AvlReport avlReport, Block block,
 			List<Trip> tripsToInvestigate) {
+		// If layover matches are not used then only the trips whose trip
+		// pattern has a segment near the AVL report can have a spatial match
+		if (!spatialMatchToLayoversAllowedForAutoAssignment.getValue())
+			tripsToInvestigate = 
+					getTripsNearAvlReport(avlReport, tripsToInvestigate);
+		
 		// Get all the spatial matches
 		List<SpatialMatch> allSpatialMatches =
 				getSpatialMatches(avlReport, block, tripsToInvestigate,
@@ -411,6 +436,49 @@ public class SpatialMatcher {
 		return spatialMatches;
 	}
 
+	/**
+	 * Uses the SegmentSpatialIndex, if there is one, to filter out the trips
+	 * whose trip pattern doesn't have any segment close enough to the AVL
+	 * report for there to be a non-layover spatial match. This way don't need
+	 * to look at every segment of every trip when auto assigning.
+	 * 
+	 * @param avlReport
+	 * @param trips
+	 * @return the trips that could have a non-layover spatial match. If there
+	 *         is no spatial index then all the trips are returned.
+	 */
+	private static List<Trip> getTripsNearAvlReport(AvlReport avlReport,
+			List<Trip> trips) {
+		if (trips == null || trips.isEmpty())
+			return trips;
+		
+		if (!Core.isCoreApplication())
+			return trips;
+		SegmentSpatialIndex index = 
+				Core.getInstance().getDbConfig().getSegmentSpatialIndex();
+		if (index == null)
+			return trips;
+		
+		// The max distance for a stop path can be larger than the configured
+		// max distance so need to use the larger of the two
+		double distance = 
+				Math.max(CoreConfig.getMaxDistanceFromSegmentForAutoAssigning(),
+						index.getLargestStopPathMaxDistance());
+		Set<String> tripPatternIdsNearby = 
+				index.getTripPatternIdsNear(avlReport.getLocation(), distance);
+		
+		List<Trip> tripsNearby = new ArrayList<Trip>();
+		for (Trip trip : trips) {
+			if (tripPatternIdsNearby.contains(trip.getTripPattern().getId()))
+				tripsNearby.add(trip);
+		}
+		
+		logger.debug("For vehicleId={} segment spatial index reduced trips to "
+				+ "investigate from {} to {}", avlReport.getVehicleId(), 
+				trips.size(), tripsNearby.size());
+		return tripsNearby;
+	}
+	
 	/**
 	 * Returns the max distance that an AVL report can be from the segment.
 	 * Currently uses the max distance for the route if it is set. If max
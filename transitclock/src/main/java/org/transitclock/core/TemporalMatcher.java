@@ -23,6 +23,7 @@ import org.transitclock.configData.CoreConfig;
 import org.transitclock.db.structs.AvlReport;
 import org.transitclock.db.structs.Location;
 import org.transitclock.db.structs.Trip;
+import org.transitclock.monitoring.LatencyMetrics;
 import org.transitclock.utils.Geo;
 import org.transitclock.utils.Time;
 
@@ -360,6 +361,20 @@ public class TemporalMatcher {
 	 */
 	public TemporalMatch getBestTemporalMatch(VehicleState vehicleState,
 			List<SpatialMatch> spatialMatches) {
+		long startNanos = System.nanoTime();
+		try {
+			return determineBestTemporalMatch(vehicleState, spatialMatches);
+		} finally {
+			LatencyMetrics.getInstance().record(
+					LatencyMetrics.TEMPORAL_MATCHING, startNanos);
+		}
+	}
+
+	/**
+	 * Does the work for getBestTemporalMatch().
+	 */
+	private TemporalMatch determineBestTemporalMatch(VehicleState vehicleState,
+			List<SpatialMatch> spatialMatches) {
 		// Convenience variables		
 		SpatialMatch previousMatch = vehicleState.getMatch();
 		Date previousAvlTime =
@@ -523,6 +538,21 @@ public class TemporalMatcher {
 	 */
 	public TemporalMatch getBestTemporalMatchComparedToSchedule(
 			AvlReport avlReport, List<SpatialMatch> spatialMatches) {
+		long startNanos = System.nanoTime();
+		try {
+			return determineBestTemporalMatchComparedToSchedule(avlReport,
+					spatialMatches);
+		} finally {
+			LatencyMetrics.getInstance().record(
+					LatencyMetrics.TEMPORAL_MATCHING, startNanos);
+		}
+	}
+
+	/**
+	 * Does the work for getBestTemporalMatchComparedToSchedule().
+	 */
+	private TemporalMatch determineBestTemporalMatchComparedToSchedule(
+			AvlReport avlReport, List<SpatialMatch> spatialMatches) {
 		TemporalDifference bestDifferenceFromExpectedTime = null;
 		SpatialMatch bestSpatialMatch = null;
 		
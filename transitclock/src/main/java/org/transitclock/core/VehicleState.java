@@ -27,6 +27,7 @@ import java.util.Objects;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.configData.CoreConfig;
+import org.transitclock.core.dataCache.HeadwayAggregates;
 import org.transitclock.core.dataCache.VehicleStateManager;
 import org.transitclock.db.structs.Arrival;
 import org.transitclock.db.structs.ArrivalDeparture;
@@ -106,6 +107,8 @@ public class VehicleState {
 		return headway;
 	}
 	public void setHeadway(Headway headway) {
+		HeadwayAggregates.getInstance().updateHeadway(vehicleId, this.headway,
+				headway);
 		this.headway = headway;
 	}
 
@@ -115,6 +118,8 @@ public class VehicleState {
 		return holdingTime;
 	}
 	public void setHoldingTime(HoldingTime holdingTime) {
+		HeadwayAggregates.getInstance().updateHoldingTime(vehicleId,
+				this.holdingTime, holdingTime);
 		this.holdingTime = holdingTime;
 	}
 	public Integer getTripCounter() {
@@ -164,6 +169,12 @@ public class VehicleState {
 		this.assignmentId = assignmentId;
 		this.predictable = predictable;
 		this.assignmentTime = getAvlReport().getDate();
+
+		// Headway and holding time of an unpredictable vehicle shouldn't be
+		// part of the aggregates for the route and stop
+		if (!predictable)
+			HeadwayAggregates.getInstance().removeVehicle(vehicleId);
+		updateRouteForAggregates();
 	}
 
 	/**
@@ -234,7 +245,15 @@ public class VehicleState {
 			// when get a new assignment won't try to use it since something
 			// peculiar might have happened.
 			setArrivalToStoreToDb(null);
+
+			HeadwayAggregates.getInstance().removeVehicle(vehicleId);
+		} else if (headway != null && match.getTrip() != null
+				&& !match.getTrip().getRouteId().equals(headway.getRouteId())) {
+			// Vehicle changed route so its headway and holding time are no
+			// longer valid for the aggregates of the old route
+			HeadwayAggregates.getInstance().removeVehicle(vehicleId);
 		}
+		updateRouteForAggregates();
 
 		// Reset numberOfBadMatches
 		numberOfBadMatches = 0;
@@ -246,6 +265,16 @@ public class VehicleState {
 		}
 	}
 
+	/**
+	 * Tells the HeadwayAggregates which route the vehicle is a predictable
+	 * vehicle of, so that it knows which vehicles of a route need a headway
+	 * before they can be ordered.
+	 */
+	private void updateRouteForAggregates() {
+		HeadwayAggregates.getInstance().updateVehicleRoute(vehicleId,
+				predictable ? getRouteId() : null);
+	}
+
 	/**
 	 * Returns the last temporal match. Returns null if there isn't one.
 	 * @return
@@ -0,0 +1,380 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.core.TemporalDifference;
+import org.transitclock.db.structs.ArrivalDeparture;
+import org.transitclock.ipc.data.IpcArrivalDeparture;
+import org.transitclock.utils.Time;
+
+/**
+ * A compact in memory store of arrival/departure events that can be shared
+ * by the caches of historic arrivals/departures, such as the trip and stop
+ * caches in the columnar package. Instead of each cache holding its own
+ * IpcArrivalDeparture objects each event is stored once, column by column,
+ * in primitive arrays. The IDs are dictionary encoded as ints so that each
+ * distinct ID string is only stored once. A cache then only needs to keep
+ * the long index of each of its events and the IpcArrivalDeparture objects
+ * are created when the events are actually read.
+ * <p>
+ * The events are stored in fixed size segments. Once the newest event of
+ * the oldest segment is older than the max age that segment is dropped.
+ * The index of an event never changes so the caches can tell that an event
+ * has been dropped by comparing its index to getFirstIndex().
+ * <p>
+ * Adding is synchronized so there is a single writer at a time, but reading
+ * doesn't lock. The columns of an event are written before add() returns its
+ * index, and the caches publish the index through volatile or concurrent
+ * structures, so a reader that has an index sees the event. The list of
+ * segments is replaced, not modified, when a segment is added or dropped.
+ */
+public class ArrivalDepartureStore {
+
+	private static final ArrivalDepartureStore singleton =
+			new ArrivalDepartureStore();
+
+	// The segments that have not yet been dropped
+	private volatile Segments segments = new Segments(new Segment[0], 0);
+	private final int segmentSize;
+
+	// Time of the newest event added. Used instead of the system time to
+	// determine which segments are too old so that works when historic
+	// data is loaded.
+	private long latestEventTime = 0;
+
+	// The dictionary for the IDs. The position in the array is the int code.
+	// The array is replaced when it grows so that it can be read without
+	// locking. Only modified by add().
+	private final Map<String, Integer> idCodes = new HashMap<String, Integer>();
+	private volatile String[] ids = new String[256];
+	private int numIds = 0;
+
+	// The same event is put into several caches. So that it is only stored
+	// once remember the index of the recently added events.
+	private final Map<ArrivalDeparture, Long> recentlyAdded =
+			new LinkedHashMap<ArrivalDeparture, Long>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<ArrivalDeparture, Long> eldest) {
+					return size() > MAX_RECENTLY_ADDED;
+				}
+			};
+	private static final int MAX_RECENTLY_ADDED = 1000;
+
+	private static final int NO_ID = -1;
+	private static final long NO_TIME = Long.MIN_VALUE;
+	private static final int NO_ADHERENCE = Integer.MIN_VALUE;
+
+	private static IntegerConfigValue maxAgeSec = new IntegerConfigValue(
+			"transitclock.core.cache.arrivalDepartureStore.maxAgeSec",
+			15 * Time.SEC_PER_DAY,
+			"How old arrivals/departures in the shared arrival/departure "
+			+ "store can be before they are dropped. Should be at least as "
+			+ "long as the history needed by the caches that use the "
+			+ "store.");
+
+	private static IntegerConfigValue eventsPerSegment = new IntegerConfigValue(
+			"transitclock.core.cache.arrivalDepartureStore.eventsPerSegment",
+			65536,
+			"Number of arrivals/departures in each segment of the shared "
+			+ "arrival/departure store. Old events are dropped a segment "
+			+ "at a time.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(ArrivalDepartureStore.class);
+
+	/**
+	 * The events of a segment, column by column.
+	 */
+	private static class Segment {
+		private final long[] times;
+		private final long[] avlTimes;
+		private final long[] freqStartTimes;
+		private final int[] vehicleIds;
+		private final int[] stopIds;
+		private final int[] tripIds;
+		private final int[] blockIds;
+		private final int[] routeIds;
+		private final int[] serviceIds;
+		private final int[] directionIds;
+		private final int[] stopPathIndexes;
+		private final int[] scheduleAdherences;
+		private final boolean[] isArrivals;
+		private int size = 0;
+		private long maxTime = Long.MIN_VALUE;
+
+		private Segment(int capacity) {
+			times = new long[capacity];
+			avlTimes = new long[capacity];
+			freqStartTimes = new long[capacity];
+			vehicleIds = new int[capacity];
+			stopIds = new int[capacity];
+			tripIds = new int[capacity];
+			blockIds = new int[capacity];
+			routeIds = new int[capacity];
+			serviceIds = new int[capacity];
+			directionIds = new int[capacity];
+			stopPathIndexes = new int[capacity];
+			scheduleAdherences = new int[capacity];
+			isArrivals = new boolean[capacity];
+		}
+	}
+
+	/**
+	 * The segments that have not yet been dropped. The index of the first
+	 * event of segments[0] is firstSegmentNumber * segmentSize. Immutable so
+	 * that readers always see a consistent list.
+	 */
+	private static class Segments {
+		private final Segment[] segments;
+		private final long firstSegmentNumber;
+
+		private Segments(Segment[] segments, long firstSegmentNumber) {
+			this.segments = segments;
+			this.firstSegmentNumber = firstSegmentNumber;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @return the singleton ArrivalDepartureStore
+	 */
+	public static ArrivalDepartureStore getInstance() {
+		return singleton;
+	}
+
+	private ArrivalDepartureStore() {
+		segmentSize = Math.max(1, eventsPerSegment.getValue());
+	}
+
+	/**
+	 * Adds the event to the store. If the same event was recently added,
+	 * such as by another cache, then the index of that one is returned
+	 * instead of storing it again.
+	 *
+	 * @param arrivalDeparture
+	 * @return index of the event, for reading it back with get()
+	 */
+	public synchronized long add(ArrivalDeparture arrivalDeparture) {
+		Long existingIndex = recentlyAdded.get(arrivalDeparture);
+		if (existingIndex != null && existingIndex >= getFirstIndex())
+			return existingIndex;
+
+		Segment[] currentSegments = segments.segments;
+		Segment segment = currentSegments.length == 0 ? null
+				: currentSegments[currentSegments.length - 1];
+		if (segment == null || segment.size == segmentSize) {
+			dropOldSegments();
+			segment = new Segment(segmentSize);
+			Segment[] newSegments = Arrays.copyOf(segments.segments,
+					segments.segments.length + 1);
+			newSegments[newSegments.length - 1] = segment;
+			segments = new Segments(newSegments, segments.firstSegmentNumber);
+		}
+
+		int i = segment.size;
+		segment.times[i] = arrivalDeparture.getTime();
+		segment.avlTimes[i] = toLong(arrivalDeparture.getAvlTime());
+		segment.freqStartTimes[i] = toLong(arrivalDeparture.getFreqStartTime());
+		segment.vehicleIds[i] = encode(arrivalDeparture.getVehicleId());
+		segment.stopIds[i] = encode(arrivalDeparture.getStopId());
+		segment.tripIds[i] = encode(arrivalDeparture.getTripId());
+		segment.blockIds[i] = encode(arrivalDeparture.getBlockId());
+		segment.routeIds[i] = encode(arrivalDeparture.getRouteId());
+		segment.serviceIds[i] = encode(arrivalDeparture.getServiceId());
+		segment.directionIds[i] = encode(arrivalDeparture.getDirectionId());
+		segment.stopPathIndexes[i] = arrivalDeparture.getStopPathIndex();
+		TemporalDifference scheduleAdherence =
+				arrivalDeparture.getScheduleAdherence();
+		segment.scheduleAdherences[i] = scheduleAdherence == null ? NO_ADHERENCE
+				: scheduleAdherence.getTemporalDifference();
+		segment.isArrivals[i] = arrivalDeparture.isArrival();
+		segment.size++;
+		segment.maxTime = Math.max(segment.maxTime, arrivalDeparture.getTime());
+		latestEventTime = Math.max(latestEventTime, arrivalDeparture.getTime());
+
+		Segments current = segments;
+		long index = (current.firstSegmentNumber + current.segments.length - 1)
+				* segmentSize + i;
+		recentlyAdded.put(arrivalDeparture, index);
+		return index;
+	}
+
+	/**
+	 * Drops the segments whose newest event is older than the max age. The
+	 * last segment is never dropped.
+	 */
+	private void dropOldSegments() {
+		long cutoffTime =
+				latestEventTime - (long) maxAgeSec.getValue() * Time.MS_PER_SEC;
+		Segment[] currentSegments = segments.segments;
+		int numDropped = 0;
+		while (currentSegments.length - numDropped > 1
+				&& currentSegments[numDropped].maxTime < cutoffTime)
+			++numDropped;
+		if (numDropped > 0) {
+			segments = new Segments(Arrays.copyOfRange(currentSegments,
+					numDropped, currentSegments.length),
+					segments.firstSegmentNumber + numDropped);
+			logger.info("Dropped {} segments of arrivals/departures older "
+					+ "than {}. {} segments remain.", numDropped,
+					new Date(cutoffTime), segments.segments.length);
+		}
+	}
+
+	/**
+	 * @return index of the oldest event still in the store. Events with a
+	 *         lower index have been dropped.
+	 */
+	public long getFirstIndex() {
+		return segments.firstSegmentNumber * segmentSize;
+	}
+
+	/**
+	 * @param index
+	 * @return the time of the event, or 0 if it has been dropped
+	 */
+	public long getTime(long index) {
+		Segment segment = getSegment(segments, index);
+		return segment == null ? 0 : segment.times[(int) (index % segmentSize)];
+	}
+
+	/**
+	 * @param index
+	 *            index returned by add()
+	 * @return the event, or null if it has been dropped
+	 */
+	public IpcArrivalDeparture get(long index) {
+		Segment segment = getSegment(segments, index);
+		return segment == null ? null
+				: createEvent(segment, (int) (index % segmentSize));
+	}
+
+	/**
+	 * Creates an IpcArrivalDeparture for each of the events that are still
+	 * in the store. Events that have been dropped are skipped.
+	 *
+	 * @param indexes
+	 *            indexes returned by add()
+	 * @param count
+	 *            how many of the indexes to use
+	 * @return the events, in the same order as the indexes
+	 */
+	public List<IpcArrivalDeparture> get(long[] indexes, int count) {
+		Segments currentSegments = segments;
+		List<IpcArrivalDeparture> events =
+				new ArrayList<IpcArrivalDeparture>(count);
+		for (int j = 0; j < count; ++j) {
+			Segment segment = getSegment(currentSegments, indexes[j]);
+			if (segment != null)
+				events.add(createEvent(segment, (int) (indexes[j] % segmentSize)));
+		}
+		return events;
+	}
+
+	private Segment getSegment(Segments currentSegments, long index) {
+		long segmentNumber = index / segmentSize;
+		long firstSegmentNumber = currentSegments.firstSegmentNumber;
+		if (segmentNumber < firstSegmentNumber || segmentNumber
+				>= firstSegmentNumber + currentSegments.segments.length)
+			return null;
+		return currentSegments.segments[(int) (segmentNumber - firstSegmentNumber)];
+	}
+
+	private IpcArrivalDeparture createEvent(Segment segment, int i) {
+		IpcArrivalDeparture event = new IpcArrivalDeparture();
+		event.setTime(new Date(segment.times[i]));
+		event.setAvlTime(toDate(segment.avlTimes[i]));
+		event.setFreqStartTime(toDate(segment.freqStartTimes[i]));
+		event.setVehicleId(decode(segment.vehicleIds[i]));
+		event.setStopId(decode(segment.stopIds[i]));
+		event.setTripId(decode(segment.tripIds[i]));
+		event.setBlockId(decode(segment.blockIds[i]));
+		event.setRouteId(decode(segment.routeIds[i]));
+		event.setServiceId(decode(segment.serviceIds[i]));
+		event.setDirectionId(decode(segment.directionIds[i]));
+		event.setStopPathIndex(segment.stopPathIndexes[i]);
+		if (segment.scheduleAdherences[i] != NO_ADHERENCE)
+			event.setScheduledAdherence(
+					new TemporalDifference(segment.scheduleAdherences[i]));
+		event.setArrival(segment.isArrivals[i]);
+		return event;
+	}
+
+	private int encode(String id) {
+		if (id == null)
+			return NO_ID;
+		Integer code = idCodes.get(id);
+		if (code == null) {
+			code = numIds++;
+			String[] currentIds = ids;
+			if (code == currentIds.length) {
+				currentIds = Arrays.copyOf(currentIds, 2 * currentIds.length);
+				ids = currentIds;
+			}
+			currentIds[code] = id;
+			idCodes.put(id, code);
+		}
+		return code;
+	}
+
+	private String decode(int code) {
+		return code == NO_ID ? null : ids[code];
+	}
+
+	private static long toLong(Date date) {
+		return date == null ? NO_TIME : date.getTime();
+	}
+
+	private static Date toDate(long time) {
+		return time == NO_TIME ? null : new Date(time);
+	}
+
+	/**
+	 * @return number of events in the store
+	 */
+	public synchronized long size() {
+		long size = 0;
+		for (Segment segment : segments.segments)
+			size += segment.size;
+		return size;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ArrivalDepartureStore ["
+				+ "events=" + size()
+				+ ", segments=" + segments.segments.length
+				+ ", firstIndex=" + getFirstIndex()
+				+ ", distinctIds=" + numIds
+				+ "]";
+	}
+}
@@ -0,0 +1,470 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.core.dataCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.ehcache.Cache;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.config.BooleanConfigValue;
+import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.config.StringConfigValue;
+import org.transitclock.core.dataCache.frequency.FrequencyBasedHistoricalAverageCache;
+import org.transitclock.core.dataCache.scheduled.ScheduleBasedHistoricalAverageCache;
+import org.transitclock.ipc.data.IpcArrivalDeparture;
+import org.transitclock.utils.IntervalTimer;
+import org.transitclock.utils.Time;
+import org.transitclock.utils.threading.NamedThreadFactory;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
+
+/**
+ * Writes the caches that are otherwise rebuilt from the database at startup,
+ * plus the Kalman error cache, to snapshot files periodically and when the
+ * core is shut down. At startup the snapshots are memory mapped and read
+ * back in so that only the arrivals/departures since the snapshot need to be
+ * read from the database, and so that the Kalman filter keeps its error
+ * values across restarts.
+ * <p>
+ * Each cache is written to its own file using Kryo. A file is written to a
+ * temporary file first and then renamed so that a crash while writing can't
+ * leave a partial snapshot. Every file has a header with the time that
+ * cache was written and the configuration revision. The snapshots are only
+ * used if the files for all the caches are there and have the current
+ * configuration revision. Otherwise the caches are populated from the
+ * database as usual.
+ * <p>
+ * The caches are written one after the other while they keep being updated,
+ * so each cache has its own snapshot time. At startup the arrivals/
+ * departures since the oldest snapshot are read from the database. The trip
+ * history and stop arrival/departure caches ignore events they already have.
+ * The historical average caches can't tell if an arrival/departure has
+ * already been added to an average, so HistoricalCacheLoader only gives them
+ * the arrivals/departures generated from AVL reports after their own
+ * snapshot time.
+ */
+public class CacheSnapshotManager {
+
+	private static final CacheSnapshotManager singleton =
+			new CacheSnapshotManager();
+
+	private ScheduledExecutorService executor = null;
+
+	private static BooleanConfigValue useCacheSnapshots =
+			new BooleanConfigValue("transitclock.core.cacheSnapshot.enabled",
+					false,
+					"If true then the historical caches and the Kalman error "
+					+ "cache are periodically written to snapshot files, and "
+					+ "at shutdown, and read back in at startup so that only "
+					+ "the data since the snapshot needs to be read from the "
+					+ "database.");
+
+	private static StringConfigValue snapshotDirectory =
+			new StringConfigValue("transitclock.core.cacheSnapshot.directory",
+					"/usr/local/transitclock/cache/snapshots/",
+					"Directory where the cache snapshot files are written.");
+
+	private static IntegerConfigValue snapshotIntervalMinutes =
+			new IntegerConfigValue("transitclock.core.cacheSnapshot.intervalMinutes",
+					15,
+					"How frequently the cache snapshots are written. If 0 "
+					+ "then only written at shutdown.");
+
+	private static IntegerConfigValue replayMarginMinutes =
+			new IntegerConfigValue("transitclock.core.cacheSnapshot.replayMarginMinutes",
+					60,
+					"Arrivals/departures can be generated well after the time "
+					+ "they occurred, such as when a vehicle is matched again "
+					+ "after not reporting for a while. So that these are not "
+					+ "missed at startup the arrivals/departures are read "
+					+ "starting this many minutes before the oldest snapshot.");
+
+	// For identifying the snapshot files and their format. Needs to be
+	// changed if the format or the classes written change.
+	private static final int MAGIC = 0x54435331; // "TCS1"
+	private static final int VERSION = 2;
+
+	private static final String SUFFIX = ".snapshot";
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(CacheSnapshotManager.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @return the singleton CacheSnapshotManager
+	 */
+	public static CacheSnapshotManager getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * @return true if cache snapshots are to be used
+	 */
+	public static boolean isEnabled() {
+		return useCacheSnapshots.getValue();
+	}
+
+	private CacheSnapshotManager() {
+	}
+
+	/**
+	 * @return the caches being used that can be snapshot
+	 */
+	private static List<SnapshotableCache> getCaches() {
+		List<SnapshotableCache> caches = new ArrayList<SnapshotableCache>();
+		addIfSnapshotable(caches, TripDataHistoryCacheFactory.getInstance());
+		addIfSnapshotable(caches, StopArrivalDepartureCacheFactory.getInstance());
+		addIfSnapshotable(caches, ErrorCacheFactory.getInstance());
+		addIfSnapshotable(caches, ScheduleBasedHistoricalAverageCache.getInstance());
+		addIfSnapshotable(caches, FrequencyBasedHistoricalAverageCache.getInstance());
+		return caches;
+	}
+
+	private static void addIfSnapshotable(List<SnapshotableCache> caches,
+			Object cache) {
+		if (cache instanceof SnapshotableCache)
+			caches.add((SnapshotableCache) cache);
+	}
+
+	/**
+	 * Kryo isn't thread safe so a new one is created for each snapshot. The
+	 * classes are registered so that class names don't need to be written
+	 * out for every object. Since the registration IDs are determined by the
+	 * order of registration VERSION needs to be changed if this changes.
+	 */
+	private static Kryo createKryo() {
+		Kryo kryo = new Kryo();
+		// Some of the classes don't have a no-arg constructor
+		Kryo.DefaultInstantiatorStrategy instantiatorStrategy =
+				new Kryo.DefaultInstantiatorStrategy();
+		instantiatorStrategy.setFallbackInstantiatorStrategy(
+				new StdInstantiatorStrategy());
+		kryo.setInstantiatorStrategy(instantiatorStrategy);
+
+		// Same as for the ehcache serializers
+		FieldSerializer<IpcArrivalDeparture> serializer =
+				new FieldSerializer<IpcArrivalDeparture>(kryo, IpcArrivalDeparture.class);
+		serializer.setCopyTransient(false);
+		kryo.register(IpcArrivalDeparture.class, serializer);
+
+		kryo.register(ArrayList.class);
+		kryo.register(Date.class);
+		kryo.register(TripKey.class);
+		kryo.register(TripEvents.class);
+		kryo.register(StopArrivalDepartureCacheKey.class);
+		kryo.register(StopEvents.class);
+		kryo.register(KalmanErrorCacheKey.class);
+		kryo.register(KalmanError.class);
+		kryo.register(StopPathCacheKey.class);
+		kryo.register(HistoricalAverage.class);
+		return kryo;
+	}
+
+	private static File getFile(SnapshotableCache cache) {
+		return new File(snapshotDirectory.getValue(),
+				cache.getSnapshotName() + SUFFIX);
+	}
+
+	/**
+	 * Writes a snapshot of each of the caches. Synchronized so that the
+	 * periodic snapshot and the one at shutdown can't be written at the same
+	 * time.
+	 *
+	 * @param configRev
+	 *            the configuration revision the caches are for
+	 * @return true if successful
+	 */
+	public synchronized boolean writeSnapshots(int configRev) {
+		IntervalTimer timer = new IntervalTimer();
+
+		File directory = new File(snapshotDirectory.getValue());
+		if (!directory.exists() && !directory.mkdirs()) {
+			logger.error("Could not create cache snapshot directory {}",
+					directory);
+			return false;
+		}
+
+		Kryo kryo = createKryo();
+		for (SnapshotableCache cache : getCaches()) {
+			File file = getFile(cache);
+			File tmpFile = new File(file.getPath() + ".tmp");
+			try {
+				Output output =
+						new Output(new FileOutputStream(tmpFile), 64 * 1024);
+				int numEntries;
+				try {
+					// The cache keeps being updated so the snapshot time is
+					// when writing this particular cache started
+					long snapshotTime = System.currentTimeMillis();
+					output.writeInt(MAGIC);
+					output.writeInt(VERSION);
+					output.writeLong(snapshotTime);
+					output.writeInt(configRev);
+					numEntries = cache.writeSnapshot(kryo, output);
+				} finally {
+					output.close();
+				}
+				Files.move(tmpFile.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				logger.info("Wrote {} entries for {} to cache snapshot {}",
+						numEntries, cache.getSnapshotName(), file);
+			} catch (Exception e) {
+				logger.error("Exception writing cache snapshot for {} to {}",
+						cache.getSnapshotName(), file, e);
+				tmpFile.delete();
+				return false;
+			}
+		}
+
+		logger.info("Wrote cache snapshots in {} msec.", timer.elapsedMsec());
+		return true;
+	}
+
+	/**
+	 * Reads the header of the snapshot file.
+	 *
+	 * @return the snapshot time, or null if the file can't be used
+	 */
+	private static Long readHeader(Input input, File file, int configRev) {
+		if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+			logger.info("Cache snapshot {} is not of the current format.", file);
+			return null;
+		}
+		long snapshotTime = input.readLong();
+		int fileConfigRev = input.readInt();
+		if (fileConfigRev != configRev) {
+			logger.info("Cache snapshot {} is for configRev={} but current "
+					+ "configRev={}.", file, fileConfigRev, configRev);
+			return null;
+		}
+		return snapshotTime;
+	}
+
+	/**
+	 * Memory maps the snapshot file. Mapped copy on write instead of read
+	 * only since Kryo's ByteBufferInput modifies the buffer when reading
+	 * some strings. The file itself is never modified.
+	 */
+	private static MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			return randomAccessFile.getChannel().map(
+					FileChannel.MapMode.PRIVATE, 0, randomAccessFile.length());
+		} finally {
+			// The mapping remains valid after the file is closed
+			randomAccessFile.close();
+		}
+	}
+
+	/**
+	 * Reads in the cache snapshots. First makes sure that there is a usable
+	 * snapshot for every cache so that either all of the caches are read in
+	 * or none of them are.
+	 *
+	 * @param configRev
+	 *            the current configuration revision
+	 * @param oldestSnapshotTime
+	 *            snapshots older than this are not used since the caches
+	 *            would end up with older data than if populated from the
+	 *            database
+	 * @return the snapshot time of each cache, keyed by snapshot name, or
+	 *         null if the snapshots could not be used and the caches
+	 *         therefore need to be populated from the database
+	 */
+	public Map<String, Date> readSnapshots(int configRev,
+			Date oldestSnapshotTime) {
+		IntervalTimer timer = new IntervalTimer();
+		List<SnapshotableCache> caches = getCaches();
+
+		// Make sure all the snapshots are usable
+		Map<String, Date> snapshotTimes = new HashMap<String, Date>();
+		for (SnapshotableCache cache : caches) {
+			File file = getFile(cache);
+			if (!file.exists()) {
+				logger.info("No cache snapshot {} so not using cache "
+						+ "snapshots.", file);
+				return null;
+			}
+			Long fileTime;
+			try {
+				Input input = new ByteBufferInput(map(file));
+				fileTime = readHeader(input, file, configRev);
+			} catch (Exception e) {
+				logger.error("Exception reading cache snapshot {}", file, e);
+				return null;
+			}
+			if (fileTime == null)
+				return null;
+			if (fileTime < oldestSnapshotTime.getTime()) {
+				logger.info("Cache snapshot {} is from {} which is before {} "
+						+ "so not using cache snapshots.", file,
+						new Date(fileTime), oldestSnapshotTime);
+				return null;
+			}
+			snapshotTimes.put(cache.getSnapshotName(), new Date(fileTime));
+		}
+		if (snapshotTimes.isEmpty())
+			return null;
+
+		// Read in the caches
+		Kryo kryo = createKryo();
+		for (SnapshotableCache cache : caches) {
+			File file = getFile(cache);
+			try {
+				Input input = new ByteBufferInput(map(file));
+				readHeader(input, file, configRev);
+				int numEntries = cache.readSnapshot(kryo, input);
+				logger.info("Read {} entries for {} from cache snapshot {}",
+						numEntries, cache.getSnapshotName(), file);
+			} catch (Exception e) {
+				// The caches already read in can't be emptied so populating
+				// them from the database will add to what was read from the
+				// snapshots. Not ideal but this should be very rare since
+				// the files were just checked.
+				logger.error("Exception reading cache snapshot {}", file, e);
+				return null;
+			}
+		}
+
+		logger.info("Read cache snapshots from {} in {} msec.",
+				snapshotTimes, timer.elapsedMsec());
+		return snapshotTimes;
+	}
+
+	/**
+	 * Returns when to start reading the arrivals/departures from the database
+	 * after the snapshots have been read in. This is the oldest snapshot time
+	 * less the replay margin.
+	 *
+	 * @param snapshotTimes
+	 *            as returned by readSnapshots()
+	 * @return the start of the period to read
+	 */
+	public static Date getReplayStartTime(Map<String, Date> snapshotTimes) {
+		long oldest = Long.MAX_VALUE;
+		for (Date snapshotTime : snapshotTimes.values())
+			oldest = Math.min(oldest, snapshotTime.getTime());
+		return new Date(oldest
+				- replayMarginMinutes.getValue() * Time.MS_PER_MIN);
+	}
+
+	/**
+	 * Starts writing the snapshots periodically, if configured to do so.
+	 *
+	 * @param configRev
+	 *            the configuration revision the caches are for
+	 */
+	public synchronized void start(final int configRev) {
+		int intervalMinutes = snapshotIntervalMinutes.getValue();
+		if (executor != null || intervalMinutes <= 0)
+			return;
+
+		executor = Executors.newSingleThreadScheduledExecutor(
+				new NamedThreadFactory("cacheSnapshot"));
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					writeSnapshots(configRev);
+				} catch (Exception e) {
+					logger.error("Exception writing cache snapshots", e);
+				}
+			}
+		}, intervalMinutes * Time.MS_PER_MIN, intervalMinutes * Time.MS_PER_MIN,
+				TimeUnit.MILLISECONDS);
+		logger.info("Writing cache snapshots every {} minutes to {}",
+				intervalMinutes, snapshotDirectory.getValue());
+	}
+
+	/**
+	 * Stops writing the snapshots periodically. Called at shutdown before
+	 * the final snapshot is written.
+	 */
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Writes the entries of an ehcache cache. Each entry is preceded by a
+	 * true boolean and the end is marked by a false one.
+	 *
+	 * @param cache
+	 * @param kryo
+	 * @param output
+	 * @return number of entries written
+	 */
+	public static <K, V> int writeEntries(Cache<K, V> cache, Kryo kryo,
+			Output output) {
+		int numEntries = 0;
+		for (Cache.Entry<K, V> entry : cache) {
+			output.writeBoolean(true);
+			kryo.writeObject(output, entry.getKey());
+			kryo.writeObject(output, entry.getValue());
+			++numEntries;
+		}
+		output.writeBoolean(false);
+		return numEntries;
+	}
+
+	/**
+	 * Reads entries written by writeEntries() and puts them into the cache.
+	 *
+	 * @param cache
+	 * @param keyClass
+	 * @param valueClass
+	 * @param kryo
+	 * @param input
+	 * @return number of entries read
+	 */
+	public static <K, V> int readEntries(Cache<K, V> cache, Class<K> keyClass,
+			Class<V> valueClass, Kryo kryo, Input input) {
+		int numEntries = 0;
+		while (input.readBoolean()) {
+			K key = kryo.readObject(input, keyClass);
+			V value = kryo.readObject(input, valueClass);
+			cache.put(key, value);
+			++numEntries;
+		}
+		return numEntries;
+	}
+}
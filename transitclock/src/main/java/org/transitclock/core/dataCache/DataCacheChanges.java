@@ -0,0 +1,244 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.core.dataCache;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.transitclock.config.IntegerConfigValue;
+
+/**
+ * Records which vehicles and which route/stops have changed in the
+ * VehicleDataCache and the PredictionDataCache. Each change is given a
+ * sequence number so that a client, such as the API server pushing updates
+ * to its clients, can ask for just what has changed since the last time it
+ * asked instead of having to read in all the vehicles and predictions.
+ * <p>
+ * The changes are kept in a fixed size ring buffer. If a client asks for
+ * changes that are so old that they are no longer in the buffer then it is
+ * told so and needs to read in everything.
+ * <p>
+ * Recording a change is on the AVL processing path so it doesn't lock. A
+ * sequence number is claimed with an atomic increment and the change is then
+ * published to its slot along with the sequence number. A reader only
+ * returns changes up to the first one that hasn't been published yet, so
+ * the rest are returned the next time.
+ */
+public class DataCacheChanges {
+
+	// The ring buffer. The change with sequence number n is at index
+	// n % capacity. For a vehicle change the vehicle ID is stored, for a
+	// predictions change a RouteStop. sequenceNumbers holds the sequence
+	// number of the change in each slot and is set after the change so that
+	// a reader can tell whether the slot has been published.
+	private final AtomicReferenceArray<Object> changes;
+	private final AtomicLongArray sequenceNumbers;
+
+	// Sequence number of the most recently claimed change. 0 means no changes
+	// yet.
+	private final AtomicLong latestSequenceNumber = new AtomicLong(0);
+
+	private static IntegerConfigValue capacity = new IntegerConfigValue(
+			"transitclock.core.dataCacheChanges.capacity",
+			100000,
+			"Number of vehicle and prediction changes that are remembered "
+			+ "so that clients can ask for what has changed since they "
+			+ "last asked. If a client asks less often than it takes for "
+			+ "this many changes to happen it has to read in all the data.");
+
+	// Created after the config values since the constructor uses them
+	private static final DataCacheChanges singleton = new DataCacheChanges();
+
+	/**
+	 * What has changed since a sequence number. The vehicle IDs and
+	 * route/stops are in the order they first changed, each listed only
+	 * once.
+	 */
+	public static class Changes {
+		private final long sequenceNumber;
+		private final Set<String> vehicleIds = new LinkedHashSet<String>();
+		private final Set<RouteStop> routeStops = new LinkedHashSet<RouteStop>();
+
+		private Changes(long sequenceNumber) {
+			this.sequenceNumber = sequenceNumber;
+		}
+
+		/**
+		 * @return sequence number of the latest change included, to be
+		 *         passed in next time
+		 */
+		public long getSequenceNumber() {
+			return sequenceNumber;
+		}
+
+		public Set<String> getVehicleIds() {
+			return vehicleIds;
+		}
+
+		public Set<RouteStop> getRouteStops() {
+			return routeStops;
+		}
+	}
+
+	/**
+	 * Identifies the predictions for a route/stop, all destinations.
+	 */
+	public static class RouteStop {
+		private final String routeShortName;
+		private final String stopId;
+
+		private RouteStop(String routeShortName, String stopId) {
+			this.routeShortName = routeShortName;
+			this.stopId = stopId;
+		}
+
+		public String getRouteShortName() {
+			return routeShortName;
+		}
+
+		public String getStopId() {
+			return stopId;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = 31 + (routeShortName == null ? 0 : routeShortName.hashCode());
+			return 31 * result + (stopId == null ? 0 : stopId.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof RouteStop))
+				return false;
+			RouteStop other = (RouteStop) obj;
+			return (routeShortName == null ? other.routeShortName == null
+					: routeShortName.equals(other.routeShortName))
+					&& (stopId == null ? other.stopId == null
+							: stopId.equals(other.stopId));
+		}
+
+		@Override
+		public String toString() {
+			return "RouteStop [routeShortName=" + routeShortName + ", stopId="
+					+ stopId + "]";
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @return the singleton DataCacheChanges
+	 */
+	public static DataCacheChanges getInstance() {
+		return singleton;
+	}
+
+	private DataCacheChanges() {
+		this(capacity.getValue());
+	}
+
+	/**
+	 * For testing with a specific capacity.
+	 *
+	 * @param capacity
+	 */
+	DataCacheChanges(int capacity) {
+		int size = Math.max(1, capacity);
+		changes = new AtomicReferenceArray<Object>(size);
+		sequenceNumbers = new AtomicLongArray(size);
+	}
+
+	/**
+	 * Records that the vehicle was updated or removed in the
+	 * VehicleDataCache.
+	 *
+	 * @param vehicleId
+	 */
+	public void vehicleChanged(String vehicleId) {
+		add(vehicleId);
+	}
+
+	/**
+	 * Records that the predictions for the route/stop were changed in the
+	 * PredictionDataCache.
+	 *
+	 * @param routeShortName
+	 * @param stopId
+	 */
+	public void predictionsChanged(String routeShortName, String stopId) {
+		add(new RouteStop(routeShortName, stopId));
+	}
+
+	private void add(Object change) {
+		long sequenceNumber = latestSequenceNumber.incrementAndGet();
+		int index = (int) (sequenceNumber % changes.length());
+		changes.set(index, change);
+		sequenceNumbers.set(index, sequenceNumber);
+	}
+
+	/**
+	 * @return sequence number of the latest change
+	 */
+	public long getLatestSequenceNumber() {
+		return latestSequenceNumber.get();
+	}
+
+	/**
+	 * Returns what has changed after the specified sequence number.
+	 *
+	 * @param sequenceNumber
+	 *            the sequence number returned by the previous call
+	 * @return the changes, or null if the changes are no longer all
+	 *         available so everything needs to be read in
+	 */
+	public Changes getChangesSince(long sequenceNumber) {
+		long latest = latestSequenceNumber.get();
+		int size = changes.length();
+		if (sequenceNumber > latest || latest - sequenceNumber > size)
+			return null;
+
+		Set<String> vehicleIds = new LinkedHashSet<String>();
+		Set<RouteStop> routeStops = new LinkedHashSet<RouteStop>();
+		long seq = sequenceNumber + 1;
+		for (; seq <= latest; ++seq) {
+			int index = (int) (seq % size);
+			long publishedSeq = sequenceNumbers.get(index);
+			// Not published yet, so stop here and return the rest next time
+			if (publishedSeq < seq)
+				break;
+			Object change = changes.get(index);
+			// Overwritten by a newer change so the changes are no longer all
+			// available
+			if (publishedSeq > seq || sequenceNumbers.get(index) != seq)
+				return null;
+			if (change instanceof RouteStop)
+				routeStops.add((RouteStop) change);
+			else
+				vehicleIds.add((String) change);
+		}
+
+		Changes result = new Changes(seq - 1);
+		result.vehicleIds.addAll(vehicleIds);
+		result.routeStops.addAll(routeStops);
+		return result;
+	}
+}
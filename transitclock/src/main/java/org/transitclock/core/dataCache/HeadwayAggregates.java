@@ -0,0 +1,378 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.transitclock.db.structs.Headway;
+import org.transitclock.db.structs.HoldingTime;
+
+/**
+ * Keeps aggregate information on the current headways of the vehicles of
+ * each route and on the current holding times at each control stop. It is
+ * updated whenever the headway or holding time of a vehicle changes, via
+ * VehicleState, so that the headway generators and the holding time
+ * generator don't need to look at the state of every vehicle in the system
+ * each time they are called.
+ * <p>
+ * For each route the running mean and variance of the headways are kept
+ * using Welford's method, along with the headway of each vehicle, which
+ * also tells which vehicle is ahead of it. Since a vehicle's headway
+ * replaces its previous one the old value is removed from the running
+ * values when the new one is added. When a vehicle becomes unpredictable,
+ * changes route, or is removed its headway and holding time are removed so
+ * that the aggregates only cover the predictable vehicles of the route.
+ */
+public class HeadwayAggregates {
+
+	private static final HeadwayAggregates singleton = new HeadwayAggregates();
+
+	// Keyed on route ID
+	private final ConcurrentHashMap<String, RouteHeadways> headwaysByRoute =
+			new ConcurrentHashMap<String, RouteHeadways>();
+
+	// Route ID of each predictable vehicle that is on a route. Keyed on
+	// vehicle ID.
+	private final ConcurrentHashMap<String, String> routeByVehicle =
+			new ConcurrentHashMap<String, String>();
+
+	// Keyed on stop ID. Submap keyed on vehicle ID.
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, HoldingTime>> holdingTimesByStop =
+			new ConcurrentHashMap<String, ConcurrentHashMap<String, HoldingTime>>();
+
+	/**
+	 * Running statistics and current headways for a route. Access is
+	 * synchronized on the object.
+	 */
+	private static class RouteHeadways {
+		// Keyed on vehicle ID
+		private final Map<String, Headway> headwaysByVehicle =
+				new HashMap<String, Headway>();
+
+		// The predictable vehicles on the route, whether or not they have a
+		// headway yet
+		private final Set<String> vehicles = new HashSet<String>();
+
+		// For Welford's method
+		private int count = 0;
+		private double mean = 0.0;
+		private double sumSquaredDiffs = 0.0;
+
+		private void add(double value) {
+			++count;
+			double delta = value - mean;
+			mean += delta / count;
+			sumSquaredDiffs += delta * (value - mean);
+		}
+
+		private void remove(double value) {
+			if (count <= 1) {
+				count = 0;
+				mean = 0.0;
+				sumSquaredDiffs = 0.0;
+				return;
+			}
+			double meanWithoutValue = (count * mean - value) / (count - 1);
+			sumSquaredDiffs -= (value - mean) * (value - meanWithoutValue);
+			if (sumSquaredDiffs < 0.0)
+				sumSquaredDiffs = 0.0;
+			mean = meanWithoutValue;
+			--count;
+		}
+	}
+
+	/**
+	 * Immutable snapshot of the headway statistics for a route.
+	 */
+	public static class HeadwayStatistics {
+		private final int numVehicles;
+		private final double average;
+		private final double variance;
+
+		private HeadwayStatistics(int numVehicles, double average,
+				double variance) {
+			this.numVehicles = numVehicles;
+			this.average = average;
+			this.variance = variance;
+		}
+
+		/**
+		 * @return number of vehicles on the route that have a headway
+		 */
+		public int getNumVehicles() {
+			return numVehicles;
+		}
+
+		public double getAverage() {
+			return average;
+		}
+
+		/**
+		 * @return the population variance of the headways
+		 */
+		public double getVariance() {
+			return variance;
+		}
+
+		public double getCoefficientOfVariation() {
+			return variance / (average * average);
+		}
+
+		@Override
+		public String toString() {
+			return "HeadwayStatistics [numVehicles=" + numVehicles
+					+ ", average=" + average + ", variance=" + variance + "]";
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @return the singleton HeadwayAggregates
+	 */
+	public static HeadwayAggregates getInstance() {
+		return singleton;
+	}
+
+	private HeadwayAggregates() {
+	}
+
+	private RouteHeadways getRouteHeadways(String routeId) {
+		RouteHeadways routeHeadways = headwaysByRoute.get(routeId);
+		if (routeHeadways == null) {
+			RouteHeadways newRouteHeadways = new RouteHeadways();
+			routeHeadways = headwaysByRoute.putIfAbsent(routeId, newRouteHeadways);
+			if (routeHeadways == null)
+				routeHeadways = newRouteHeadways;
+		}
+		return routeHeadways;
+	}
+
+	/**
+	 * Updates the aggregates when the headway for a vehicle changes.
+	 *
+	 * @param vehicleId
+	 * @param oldHeadway
+	 *            the previous headway for the vehicle, or null if none
+	 * @param newHeadway
+	 *            the new headway for the vehicle, or null if it no longer has
+	 *            one
+	 */
+	public void updateHeadway(String vehicleId, Headway oldHeadway,
+			Headway newHeadway) {
+		if (oldHeadway == newHeadway)
+			return;
+
+		if (oldHeadway != null && oldHeadway.getRouteId() != null) {
+			RouteHeadways routeHeadways = getRouteHeadways(oldHeadway.getRouteId());
+			synchronized (routeHeadways) {
+				// Only remove it if it is actually the one that was added
+				if (routeHeadways.headwaysByVehicle.get(vehicleId) == oldHeadway) {
+					routeHeadways.headwaysByVehicle.remove(vehicleId);
+					routeHeadways.remove(oldHeadway.getHeadway());
+				}
+			}
+		}
+
+		if (newHeadway != null && newHeadway.getRouteId() != null) {
+			RouteHeadways routeHeadways = getRouteHeadways(newHeadway.getRouteId());
+			synchronized (routeHeadways) {
+				Headway replaced =
+						routeHeadways.headwaysByVehicle.put(vehicleId, newHeadway);
+				if (replaced != null)
+					routeHeadways.remove(replaced.getHeadway());
+				routeHeadways.add(newHeadway.getHeadway());
+			}
+		}
+	}
+
+	/**
+	 * Returns the statistics for the current headways of the vehicles on the
+	 * route.
+	 *
+	 * @param routeId
+	 * @return the statistics. If no vehicles on the route have a headway
+	 *         then the number of vehicles is 0.
+	 */
+	public HeadwayStatistics getHeadwayStatistics(String routeId) {
+		RouteHeadways routeHeadways = headwaysByRoute.get(routeId);
+		if (routeHeadways == null)
+			return new HeadwayStatistics(0, 0.0, 0.0);
+
+		synchronized (routeHeadways) {
+			int count = routeHeadways.count;
+			return new HeadwayStatistics(count, routeHeadways.mean,
+					count > 0 ? routeHeadways.sumSquaredDiffs / count : 0.0);
+		}
+	}
+
+	/**
+	 * Records which route the vehicle is a predictable vehicle of. To be
+	 * called whenever the assignment, match, or predictability of the vehicle
+	 * changes.
+	 *
+	 * @param vehicleId
+	 * @param routeId
+	 *            the route of the vehicle's trip, or null if the vehicle is
+	 *            not predictable or has no trip
+	 */
+	public void updateVehicleRoute(String vehicleId, String routeId) {
+		String oldRouteId = routeId != null
+				? routeByVehicle.put(vehicleId, routeId)
+				: routeByVehicle.remove(vehicleId);
+		if (routeId != null && routeId.equals(oldRouteId))
+			return;
+
+		if (oldRouteId != null) {
+			RouteHeadways routeHeadways = getRouteHeadways(oldRouteId);
+			synchronized (routeHeadways) {
+				routeHeadways.vehicles.remove(vehicleId);
+			}
+		}
+
+		if (routeId != null) {
+			RouteHeadways routeHeadways = getRouteHeadways(routeId);
+			synchronized (routeHeadways) {
+				routeHeadways.vehicles.add(vehicleId);
+			}
+		}
+	}
+
+	/**
+	 * Returns the vehicles of the route ordered by following the headways,
+	 * each vehicle followed by the vehicle ahead of it. Only possible if
+	 * every predictable vehicle on the route has a headway and the headways
+	 * form a ring, where following them from the first vehicle comes back to
+	 * it after visiting all of them. As with the list it replaces the first
+	 * vehicle is repeated at the end of the list.
+	 *
+	 * @param routeId
+	 * @return the ordered list of vehicle IDs, or null if a vehicle on the
+	 *         route doesn't have a headway or the headways don't form a
+	 *         ring. Empty if there are no predictable vehicles on the route.
+	 */
+	public List<String> getOrderedListOfVehicles(String routeId) {
+		RouteHeadways routeHeadways = headwaysByRoute.get(routeId);
+		if (routeHeadways == null)
+			return new ArrayList<String>();
+
+		synchronized (routeHeadways) {
+			Set<String> vehicles = routeHeadways.vehicles;
+			if (vehicles.isEmpty())
+				return new ArrayList<String>();
+
+			Map<String, Headway> headways = routeHeadways.headwaysByVehicle;
+			if (!headways.keySet().containsAll(vehicles))
+				return null;
+
+			String first = vehicles.iterator().next();
+			List<String> ordered = new ArrayList<String>(vehicles.size() + 1);
+			Set<String> visited = new HashSet<String>();
+			String current = first;
+			while (current != null && vehicles.contains(current)
+					&& visited.add(current)) {
+				ordered.add(current);
+				current = headways.get(current).getOtherVehicleId();
+			}
+
+			// Only a ring if got back to the first vehicle after visiting
+			// all of the vehicles on the route
+			if (!first.equals(current) || visited.size() != vehicles.size())
+				return null;
+			ordered.add(first);
+			return ordered;
+		}
+	}
+
+	/**
+	 * Removes the headway and holding time of the vehicle. To be called when
+	 * the vehicle becomes unpredictable, changes route, or is removed.
+	 *
+	 * @param vehicleId
+	 */
+	public void removeVehicle(String vehicleId) {
+		updateVehicleRoute(vehicleId, null);
+
+		for (RouteHeadways routeHeadways : headwaysByRoute.values()) {
+			synchronized (routeHeadways) {
+				Headway headway =
+						routeHeadways.headwaysByVehicle.remove(vehicleId);
+				if (headway != null)
+					routeHeadways.remove(headway.getHeadway());
+			}
+		}
+
+		for (ConcurrentHashMap<String, HoldingTime> holdingTimesForStop :
+				holdingTimesByStop.values())
+			holdingTimesForStop.remove(vehicleId);
+	}
+
+	/**
+	 * Updates the holding times by stop when the holding time for a vehicle
+	 * changes.
+	 *
+	 * @param vehicleId
+	 * @param oldHoldingTime
+	 *            the previous holding time for the vehicle, or null if none
+	 * @param newHoldingTime
+	 *            the new holding time for the vehicle, or null if it no
+	 *            longer has one
+	 */
+	public void updateHoldingTime(String vehicleId, HoldingTime oldHoldingTime,
+			HoldingTime newHoldingTime) {
+		if (oldHoldingTime != null && oldHoldingTime.getStopId() != null) {
+			ConcurrentHashMap<String, HoldingTime> holdingTimesForStop =
+					holdingTimesByStop.get(oldHoldingTime.getStopId());
+			if (holdingTimesForStop != null)
+				holdingTimesForStop.remove(vehicleId, oldHoldingTime);
+		}
+
+		if (newHoldingTime != null && newHoldingTime.getStopId() != null) {
+			ConcurrentHashMap<String, HoldingTime> holdingTimesForStop =
+					holdingTimesByStop.get(newHoldingTime.getStopId());
+			if (holdingTimesForStop == null) {
+				ConcurrentHashMap<String, HoldingTime> newMap =
+						new ConcurrentHashMap<String, HoldingTime>();
+				holdingTimesForStop = holdingTimesByStop.putIfAbsent(
+						newHoldingTime.getStopId(), newMap);
+				if (holdingTimesForStop == null)
+					holdingTimesForStop = newMap;
+			}
+			holdingTimesForStop.put(vehicleId, newHoldingTime);
+		}
+	}
+
+	/**
+	 * Returns the current holding times of the vehicles for the stop.
+	 *
+	 * @param stopId
+	 * @return list of holding times. Can be empty but not null.
+	 */
+	public ArrayList<HoldingTime> getHoldingTimesForStop(String stopId) {
+		ConcurrentHashMap<String, HoldingTime> holdingTimesForStop =
+				holdingTimesByStop.get(stopId);
+		if (holdingTimesForStop == null)
+			return new ArrayList<HoldingTime>();
+		return new ArrayList<HoldingTime>(holdingTimesForStop.values());
+	}
+}
@@ -0,0 +1,498 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.core.dataCache;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.time.DateUtils;
+import org.hibernate.CacheMode;
+import org.hibernate.Criteria;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.config.BooleanConfigValue;
+import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.core.dataCache.frequency.FrequencyBasedHistoricalAverageCache;
+import org.transitclock.core.dataCache.scheduled.ScheduleBasedHistoricalAverageCache;
+import org.transitclock.db.hibernate.HibernateUtils;
+import org.transitclock.db.structs.ArrivalDeparture;
+import org.transitclock.gtfs.GtfsData;
+import org.transitclock.utils.IntervalTimer;
+import org.transitclock.utils.threading.BoundedExecutor;
+import org.transitclock.utils.threading.NamedThreadFactory;
+
+/**
+ * For populating the historical caches at startup. Reads the arrivals/
+ * departures for each day just once, using a scrollable cursor so that the
+ * whole day doesn't need to be read into memory before it can be used, and
+ * hands each batch of rows to all of the caches. Several days are read at
+ * the same time, each with its own session.
+ * <p>
+ * Each cache is fed by its own single thread "lane" so that the caches are
+ * populated in parallel while each one still gets the rows in the order they
+ * were read. The lanes have bounded queues so that reading the database
+ * can't get too far ahead of the slowest cache.
+ * <p>
+ * FrequencyBasedHistoricalAverageCache and
+ * ScheduleBasedHistoricalAverageCache determine travel and dwell times by
+ * looking up the previous arrival/departure of the trip in the trip history
+ * cache, which can be in a different day than the one being read. Therefore
+ * they are only given rows once the trip history cache has been populated
+ * for the whole period. Instead of holding on to the rows of each day until
+ * then the period is read a second time, most recent first like their
+ * populateCacheFromDb() methods use, and streamed to them in batches so
+ * that memory use doesn't depend on the number of rows in a day.
+ * <p>
+ * When the caches were read in from snapshots the historical average caches
+ * are only given the arrivals/departures generated from AVL reports after
+ * their own snapshot time so that they are not added to the averages twice.
+ */
+public class HistoricalCacheLoader {
+
+	private final Date startDate;
+	private final Date endDate;
+
+	// Snapshot time of each cache keyed by snapshot name. Null if the caches
+	// were not read in from snapshots.
+	private final Map<String, Date> snapshotTimes;
+
+	// Number of days, or partial days, to be read
+	private int numDays = 0;
+
+	private final AtomicLong rowsRead = new AtomicLong(0);
+	// Days read during the current pass
+	private final AtomicInteger daysRead = new AtomicInteger(0);
+
+	private static BooleanConfigValue useHistoricalCacheLoader =
+			new BooleanConfigValue("transitclock.core.cacheLoader.enabled",
+					true,
+					"If true then at startup the historical caches are "
+					+ "populated by reading each day of arrivals/departures "
+					+ "once and handing the rows to all the caches in "
+					+ "parallel. If false then the data is read separately "
+					+ "for each cache.");
+
+	private static IntegerConfigValue numDaysInParallel =
+			new IntegerConfigValue("transitclock.core.cacheLoader.numDaysInParallel",
+					3,
+					"How many days of arrivals/departures are read from the "
+					+ "database at the same time when populating the "
+					+ "historical caches at startup.");
+
+	private static IntegerConfigValue fetchSize =
+			new IntegerConfigValue("transitclock.core.cacheLoader.fetchSize",
+					1000,
+					"JDBC fetch size used when reading the arrivals/departures "
+					+ "for populating the historical caches.");
+
+	// Number of rows handed to a lane at a time
+	private static final int BATCH_SIZE = 500;
+
+	// Number of batches that can be queued up for a lane before reading
+	// blocks
+	private static final int MAX_BATCHES_QUEUED = 20;
+
+	// How frequently progress is logged
+	private static final int PROGRESS_INTERVAL_SECS = 10;
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(HistoricalCacheLoader.class);
+
+	/**
+	 * A single thread, with a bounded queue, for feeding a cache.
+	 */
+	private static class Lane {
+		private final ExecutorService executor;
+		private final BoundedExecutor boundedExecutor;
+
+		private Lane(String name) {
+			executor = Executors.newSingleThreadExecutor(
+					new NamedThreadFactory("cacheLoader-" + name));
+			boundedExecutor = new BoundedExecutor(executor, MAX_BATCHES_QUEUED);
+		}
+
+		private void execute(Runnable runnable) throws InterruptedException {
+			boundedExecutor.execute(runnable);
+		}
+
+		private void finish() throws InterruptedException {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// The lanes. Null if the corresponding cache is not being used.
+	private final Lane tripHistoryLane;
+	private final Lane stopArrivalDepartureLane;
+	private final Lane frequencyLane;
+	private final Lane scheduleLane;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @return true if the caches should be populated using this class
+	 */
+	public static boolean isEnabled() {
+		return useHistoricalCacheLoader.getValue();
+	}
+
+	/**
+	 * @param numDays
+	 *            how many days before now to populate the caches with
+	 */
+	public HistoricalCacheLoader(int numDays) {
+		this(DateUtils.addDays(new Date(), -numDays), new Date());
+	}
+
+	/**
+	 * @param startDate
+	 *            start of the period to populate the caches with
+	 * @param endDate
+	 *            end of the period to populate the caches with
+	 */
+	public HistoricalCacheLoader(Date startDate, Date endDate) {
+		this(startDate, endDate, null);
+	}
+
+	/**
+	 * For when the caches have been read in from snapshots.
+	 *
+	 * @param startDate
+	 *            start of the period to populate the caches with
+	 * @param endDate
+	 *            end of the period to populate the caches with
+	 * @param snapshotTimes
+	 *            snapshot time of each cache keyed by snapshot name, as
+	 *            returned by CacheSnapshotManager.readSnapshots()
+	 */
+	public HistoricalCacheLoader(Date startDate, Date endDate,
+			Map<String, Date> snapshotTimes) {
+		this.startDate = startDate;
+		this.endDate = endDate;
+		this.snapshotTimes = snapshotTimes;
+
+		tripHistoryLane = TripDataHistoryCacheFactory.getInstance() != null ?
+				new Lane("tripHistory") : null;
+		stopArrivalDepartureLane = StopArrivalDepartureCacheFactory.getInstance() != null ?
+				new Lane("stopArrivalDeparture") : null;
+		frequencyLane = FrequencyBasedHistoricalAverageCache.getInstance() != null ?
+				new Lane("frequency") : null;
+		scheduleLane = ScheduleBasedHistoricalAverageCache.getInstance() != null ?
+				new Lane("schedule") : null;
+	}
+
+	/**
+	 * Populates the caches for the specified period. Same as the caches'
+	 * populateCacheFromDb() methods each day is the 24 hours before the
+	 * previous one, starting with the 24 hours before the end of the period.
+	 * Returns once all the caches have been populated.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void load() throws InterruptedException {
+		IntervalTimer timer = new IntervalTimer();
+		logger.info("Populating historical caches for period {} to {} reading "
+				+ "{} days at a time.", startDate, endDate,
+				numDaysInParallel.getValue());
+
+		// First the trip history and stop arrival/departure caches
+		if (tripHistoryLane != null || stopArrivalDepartureLane != null)
+			loadDays(false, timer);
+
+		// The trip history cache needs to have the whole period before the
+		// historical average caches can be populated
+		finish(tripHistoryLane);
+
+		if (frequencyLane != null || scheduleLane != null)
+			loadDays(true, timer);
+
+		finish(stopArrivalDepartureLane);
+		finish(frequencyLane);
+		finish(scheduleLane);
+
+		logger.info("Done populating historical caches. Read {} "
+				+ "arrivals/departures for {} days in {} msec, {} rows/sec.",
+				rowsRead.get(), numDays, timer.elapsedMsec(),
+				rowsPerSec(timer));
+	}
+
+	/**
+	 * Reads each day of the period, several days at a time, and returns once
+	 * all the days have been read and handed to the lanes.
+	 *
+	 * @param forAverages
+	 *            true if the rows are for the historical average caches,
+	 *            false if they are for the trip history and stop
+	 *            arrival/departure caches
+	 * @param timer
+	 *            for logging progress
+	 * @throws InterruptedException
+	 */
+	private void loadDays(final boolean forAverages, IntervalTimer timer)
+			throws InterruptedException {
+		ExecutorService dayExecutor = Executors.newFixedThreadPool(
+				Math.max(1, numDaysInParallel.getValue()),
+				new NamedThreadFactory("cacheLoader-day"));
+
+		numDays = 0;
+		daysRead.set(0);
+		Date dayEndDate = endDate;
+		while (dayEndDate.after(startDate)) {
+			Date dayStartDate = DateUtils.addDays(dayEndDate, -1);
+			if (dayStartDate.before(startDate))
+				dayStartDate = startDate;
+			final Date periodStartDate = dayStartDate;
+			final Date periodEndDate = dayEndDate;
+			dayExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						loadDay(periodStartDate, periodEndDate, forAverages);
+					} catch (Exception e) {
+						logger.error("Exception populating historical caches "
+								+ "for period {} to {}", periodStartDate,
+								periodEndDate, e);
+					}
+				}
+			});
+			++numDays;
+			dayEndDate = dayStartDate;
+		}
+		dayExecutor.shutdown();
+
+		// Log progress while waiting for the days to be read
+		while (!dayExecutor.awaitTermination(PROGRESS_INTERVAL_SECS,
+				TimeUnit.SECONDS)) {
+			logProgress(timer, forAverages);
+		}
+	}
+
+	/**
+	 * Returns the snapshot time of the cache. Arrivals/departures generated
+	 * from AVL reports at or before this time were already added to the
+	 * cache before it was written to the snapshot.
+	 *
+	 * @param cache
+	 * @return the snapshot time, or Long.MIN_VALUE if the cache wasn't read
+	 *         in from a snapshot
+	 */
+	private long getSnapshotTime(Object cache) {
+		if (snapshotTimes == null || !(cache instanceof SnapshotableCache))
+			return Long.MIN_VALUE;
+		Date snapshotTime =
+				snapshotTimes.get(((SnapshotableCache) cache).getSnapshotName());
+		return snapshotTime != null ? snapshotTime.getTime() : Long.MIN_VALUE;
+	}
+
+	private static boolean inSnapshot(ArrivalDeparture arrivalDeparture,
+			long snapshotTime) {
+		return arrivalDeparture.getAvlTime() != null
+				&& arrivalDeparture.getAvlTime().getTime() <= snapshotTime;
+	}
+
+	private static void finish(Lane lane) throws InterruptedException {
+		if (lane != null)
+			lane.finish();
+	}
+
+	private long rowsPerSec(IntervalTimer timer) {
+		return rowsRead.get() * 1000 / Math.max(1, timer.elapsedMsec());
+	}
+
+	private void logProgress(IntervalTimer timer, boolean forAverages) {
+		logger.info("Populating {} caches. Read {} of {} days and {} "
+				+ "arrivals/departures so far, {} rows/sec.",
+				forAverages ? "historical average" : "historical",
+				daysRead.get(), numDays, rowsRead.get(), rowsPerSec(timer));
+	}
+
+	/**
+	 * Reads the arrivals/departures for the time period using a scrollable
+	 * cursor and hands them to the lanes in batches.
+	 *
+	 * @param startDate
+	 * @param endDate
+	 * @param forAverages
+	 *            true if the rows are for the historical average caches, in
+	 *            which case they are read most recent first
+	 * @throws InterruptedException
+	 */
+	private void loadDay(Date startDate, Date endDate, boolean forAverages)
+			throws InterruptedException {
+		IntervalTimer timer = new IntervalTimer();
+		logger.debug("Populating historical caches for period {} to {}",
+				startDate, endDate);
+
+		int numRows = 0;
+		Session session = HibernateUtils.getSession();
+		try {
+			Criteria criteria = session.createCriteria(ArrivalDeparture.class)
+					.add(Restrictions.between("time", startDate, endDate))
+					.addOrder(forAverages ? Order.desc("time") : Order.asc("time"))
+					.setFetchSize(fetchSize.getValue())
+					.setReadOnly(true)
+					.setCacheMode(CacheMode.IGNORE);
+			ScrollableResults results = criteria.scroll(ScrollMode.FORWARD_ONLY);
+			try {
+				List<ArrivalDeparture> batch =
+						new ArrayList<ArrivalDeparture>(BATCH_SIZE);
+				while (results.next()) {
+					ArrivalDeparture arrivalDeparture =
+							(ArrivalDeparture) results.get(0);
+					// Don't need the session to keep track of it
+					session.evict(arrivalDeparture);
+
+					batch.add(arrivalDeparture);
+					++numRows;
+
+					if (batch.size() == BATCH_SIZE) {
+						dispatchBatch(batch, forAverages);
+						batch = new ArrayList<ArrivalDeparture>(BATCH_SIZE);
+					}
+				}
+				if (!batch.isEmpty())
+					dispatchBatch(batch, forAverages);
+			} finally {
+				results.close();
+			}
+		} finally {
+			session.close();
+		}
+
+		daysRead.incrementAndGet();
+		logger.info("Read {} arrivals/departures for period {} to {} in {} "
+				+ "msec.", numRows, startDate, endDate, timer.elapsedMsec());
+	}
+
+	private void dispatchBatch(List<ArrivalDeparture> batch,
+			boolean forAverages) throws InterruptedException {
+		rowsRead.addAndGet(batch.size());
+		if (forAverages)
+			dispatchAverageBatch(batch);
+		else
+			dispatchHistoryBatch(batch);
+	}
+
+	/**
+	 * Hands a batch of rows to the trip history and stop arrival/departure
+	 * lanes.
+	 */
+	private void dispatchHistoryBatch(final List<ArrivalDeparture> batch)
+			throws InterruptedException {
+		if (tripHistoryLane != null) {
+			tripHistoryLane.execute(new Runnable() {
+				@Override
+				public void run() {
+					TripDataHistoryCacheInterface cache =
+							TripDataHistoryCacheFactory.getInstance();
+					for (ArrivalDeparture arrivalDeparture : batch) {
+						if (GtfsData.routeNotFiltered(arrivalDeparture.getRouteId()))
+							cache.putArrivalDeparture(arrivalDeparture);
+					}
+				}
+			});
+		}
+
+		if (stopArrivalDepartureLane != null) {
+			stopArrivalDepartureLane.execute(new Runnable() {
+				@Override
+				public void run() {
+					StopArrivalDepartureCacheInterface cache =
+							StopArrivalDepartureCacheFactory.getInstance();
+					DwellTimeModelCacheInterface dwellTimeModelCache =
+							DwellTimeModelCacheFactory.getInstance();
+					for (ArrivalDeparture arrivalDeparture : batch) {
+						cache.putArrivalDeparture(arrivalDeparture);
+						if (dwellTimeModelCache != null) {
+							try {
+								dwellTimeModelCache.addSample(arrivalDeparture);
+							} catch (Exception e) {
+								logger.error("Exception adding {} to dwell time "
+										+ "model cache.", arrivalDeparture, e);
+							}
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Hands a batch of rows, most recent first, to the frequency and schedule
+	 * lanes. Only called once the trip history cache has been populated for
+	 * the whole period.
+	 */
+	private void dispatchAverageBatch(final List<ArrivalDeparture> batch)
+			throws InterruptedException {
+		if (frequencyLane != null) {
+			frequencyLane.execute(new Runnable() {
+				@Override
+				public void run() {
+					FrequencyBasedHistoricalAverageCache cache =
+							FrequencyBasedHistoricalAverageCache.getInstance();
+					long snapshotTime = getSnapshotTime(cache);
+					for (ArrivalDeparture arrivalDeparture : batch) {
+						if (!GtfsData.routeNotFiltered(arrivalDeparture.getRouteId())
+								|| inSnapshot(arrivalDeparture, snapshotTime))
+							continue;
+						try {
+							cache.putArrivalDeparture(arrivalDeparture);
+						} catch (Exception e) {
+							logger.error("Exception adding {} to "
+									+ "FrequencyBasedHistoricalAverageCache.",
+									arrivalDeparture, e);
+						}
+					}
+				}
+			});
+		}
+
+		if (scheduleLane != null) {
+			scheduleLane.execute(new Runnable() {
+				@Override
+				public void run() {
+					ScheduleBasedHistoricalAverageCache cache =
+							ScheduleBasedHistoricalAverageCache.getInstance();
+					long snapshotTime = getSnapshotTime(cache);
+					for (ArrivalDeparture arrivalDeparture : batch) {
+						if (inSnapshot(arrivalDeparture, snapshotTime))
+							continue;
+						try {
+							cache.putArrivalDeparture(arrivalDeparture);
+						} catch (Exception e) {
+							logger.error("Exception adding {} to "
+									+ "ScheduleBasedHistoricalAverageCache.",
+									arrivalDeparture, e);
+						}
+					}
+				}
+			});
+		}
+	}
+}
@@ -19,9 +19,11 @@ package org.transitclock.core.dataCache;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
@@ -535,6 +537,24 @@ public class PredictionDataCache {
 				}
 			}
 		}
+
+		// So clients can find out which route/stops have changed predictions.
+		// Clients are told about the route/stop, not each destination.
+		List<IpcPrediction> changedPredictions = 
+				new ArrayList<IpcPrediction>(newPredictionsForVehicle);
+		if (oldPredictionsForVehicle != null)
+			changedPredictions.addAll(oldPredictionsForVehicle);
+		Set<MapKey> changedRouteStops = new HashSet<MapKey>();
+		for (IpcPrediction prediction : changedPredictions) {
+			if (changedRouteStops.add(new MapKey(prediction.getRouteShortName(),
+					prediction.getStopId())))
+				DataCacheChanges.getInstance().predictionsChanged(
+						prediction.getRouteShortName(), prediction.getStopId());
+		}
+
+		// Keep the GTFS-realtime TripUpdates feed up to date
+		TripUpdatesDataCache.getInstance().updatePredictions(
+				oldPredictionsForVehicle, newPredictionsForVehicle);
 	}
 	
 	/**
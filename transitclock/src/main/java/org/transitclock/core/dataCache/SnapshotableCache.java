@@ -0,0 +1,54 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.core.dataCache;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * For a cache that can be written to and read from a snapshot file by
+ * CacheSnapshotManager so that it doesn't need to be rebuilt from the
+ * database when the core is restarted.
+ */
+public interface SnapshotableCache {
+
+	/**
+	 * @return name of the cache, used for the name of the snapshot file
+	 */
+	String getSnapshotName();
+
+	/**
+	 * Writes the contents of the cache. Can be called while the cache is
+	 * being updated so needs to lock the cache if cached values are modified
+	 * in place.
+	 *
+	 * @param kryo
+	 * @param output
+	 * @return number of entries written
+	 */
+	int writeSnapshot(Kryo kryo, Output output);
+
+	/**
+	 * Adds the contents written by writeSnapshot() to the cache.
+	 *
+	 * @param kryo
+	 * @param input
+	 * @return number of entries read
+	 */
+	int readSnapshot(Kryo kryo, Input input);
+}
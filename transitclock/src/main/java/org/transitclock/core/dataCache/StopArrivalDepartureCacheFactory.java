@@ -11,7 +11,9 @@ public class StopArrivalDepartureCacheFactory {
 	private static StringConfigValue className = 
 			new StringConfigValue("transitclock.core.cache.stopArrivalDepartureCache", 
 					"org.transitclock.core.dataCache.ehcache.StopArrivalDepartureCache",
-					"Specifies the class used to cache the arrival and departures for a stop.");
+					"Specifies the class used to cache the arrival and departures for a stop. "
+					+ "The classes in org.transitclock.core.dataCache.columnar "
+					+ "share one compact store of the events with the trip cache.");
 	
 	private static StopArrivalDepartureCacheInterface singleton = null;
 	
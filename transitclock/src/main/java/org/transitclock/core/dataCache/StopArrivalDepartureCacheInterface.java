@@ -1,5 +1,6 @@
 package org.transitclock.core.dataCache;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -16,6 +17,23 @@ public abstract class StopArrivalDepartureCacheInterface {
 
 	abstract  public StopArrivalDepartureCacheKey putArrivalDeparture(ArrivalDeparture arrivalDeparture);
 
+	/**
+	 * Returns the events for the stop for the day, indexed so that the last
+	 * vehicle departure and the corresponding arrival at the next stop can be
+	 * looked up efficiently. Implementations that cache StopEvents directly
+	 * should override this so that the indexes are reused instead of being
+	 * rebuilt for each call.
+	 *
+	 * @param key
+	 * @return the events, or null if there are none for the stop for the day
+	 */
+	public StopEvents getStopEvents(StopArrivalDepartureCacheKey key) {
+		List<IpcArrivalDeparture> events = getStopHistory(key);
+		if (events == null)
+			return null;
+		return new StopEvents(new ArrayList<IpcArrivalDeparture>(events));
+	}
+
 	public void populateCacheFromDb(Session session, Date startDate, Date endDate) {
 		Criteria criteria = session.createCriteria(ArrivalDeparture.class);
 
@@ -1,32 +1,282 @@
 package org.transitclock.core.dataCache;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.transitclock.ipc.data.IpcArrivalDeparture;
-public class StopEvents implements Serializable {
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * The arrivals and departures for a stop for a day, sorted by time with the
+ * most recent first. Also indexes the departures by time and the arrivals by
+ * trip and vehicle so that the last vehicle departure before a time, and the
+ * corresponding arrival at the next stop, can be found without scanning the
+ * whole day of events.
+ * <p>
+ * The events, the departures, and the arrivals are each kept in an array
+ * sorted by time, oldest first. A copy shares the arrays of the original but
+ * only sees the number of events that the original had when it was copied.
+ * Adding an event that is more recent than all the others, which is nearly
+ * always the case, stores it in the next free slot of the shared array. So
+ * adding an event doesn't depend on how many events there are for the day.
+ * Only when an event is added out of order, or when the free slot was
+ * already used by another copy, are the events copied to a new array.
+ * <p>
+ * Once a StopEvents has been put into a cache it should be treated as
+ * immutable so that it can be read by multiple threads without locking. To
+ * add an event create a copy using the copy constructor, add the event to the
+ * copy, and then replace the cached object with the copy.
+ */
+public class StopEvents implements Serializable, KryoSerializable {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -2377452296567466283L;
+
+	// All of the events
+	private transient SortedEvents events;
+
+	// Just the departures
+	private transient SortedEvents departures;
+
+	// Just the arrivals, indexed by trip and vehicle
+	private transient SortedEvents arrivals;
+
+	private static final IpcArrivalDepartureComparator comparator =
+			new IpcArrivalDepartureComparator();
+
+	/**
+	 * An array of events sorted by time, oldest first, that can be shared by
+	 * the copies of a StopEvents. Only the slots before used have been
+	 * filled in, and once filled in they are not changed.
+	 */
+	private static class Slots {
+		private final IpcArrivalDeparture[] events;
+		private final AtomicInteger used;
+		// Positions of the events in the array, ascending, keyed by trip and
+		// vehicle. Null if the events are not indexed.
+		private final ConcurrentHashMap<String, int[]> positionsByTripAndVehicle;
+
+		private Slots(IpcArrivalDeparture[] events, int used, boolean indexed) {
+			this.events = events;
+			this.used = new AtomicInteger(used);
+			this.positionsByTripAndVehicle = indexed ?
+					new ConcurrentHashMap<String, int[]>() : null;
+			for (int i = 0; i < used; ++i)
+				index(i);
+		}
+
+		/**
+		 * Adds the position of the event to the index, if indexing
+		 */
+		private void index(int position) {
+			if (positionsByTripAndVehicle == null)
+				return;
+
+			IpcArrivalDeparture event = events[position];
+			String key = tripAndVehicleKey(event.getTripId(), event.getVehicleId());
+			while (true) {
+				int[] positions = positionsByTripAndVehicle.get(key);
+				if (positions == null) {
+					if (positionsByTripAndVehicle.putIfAbsent(key,
+							new int[] {position}) == null)
+						return;
+				} else {
+					int[] newPositions =
+							Arrays.copyOf(positions, positions.length + 1);
+					newPositions[positions.length] = position;
+					if (positionsByTripAndVehicle.replace(key, positions,
+							newPositions))
+						return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Immutable view of the first size events of a Slots array.
+	 */
+	private static class SortedEvents {
+		private final Slots slots;
+		private final int size;
+
+		private SortedEvents(Slots slots, int size) {
+			this.slots = slots;
+			this.size = size;
+		}
+
+		/**
+		 * @param oldestFirst
+		 *            events sorted by time, oldest first
+		 * @param indexed
+		 *            whether to index the events by trip and vehicle
+		 */
+		private static SortedEvents create(List<IpcArrivalDeparture> oldestFirst,
+				boolean indexed) {
+			IpcArrivalDeparture[] array = oldestFirst.toArray(
+					new IpcArrivalDeparture[newCapacity(oldestFirst.size())]);
+			return new SortedEvents(new Slots(array, oldestFirst.size(), indexed),
+					oldestFirst.size());
+		}
+
+		private static int newCapacity(int size) {
+			return Math.max(8, size + (size >> 1) + 1);
+		}
+
+		private static long time(IpcArrivalDeparture event) {
+			return event.getTime().getTime();
+		}
+
+		/**
+		 * @param time
+		 * @return the number of events at or before the time
+		 */
+		private int countAtOrBefore(long time) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (time(slots.events[mid]) <= time)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
+
+		private boolean contains(IpcArrivalDeparture event) {
+			long time = time(event);
+			for (int i = countAtOrBefore(time) - 1;
+					i >= 0 && time(slots.events[i]) == time; --i) {
+				if (slots.events[i].equals(event))
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Returns a view with the event added after all of the events with
+		 * the same or an earlier time.
+		 *
+		 * @param event
+		 * @return the new view
+		 */
+		private SortedEvents add(IpcArrivalDeparture event) {
+			int position = countAtOrBefore(time(event));
+
+			// Usually can just use the next slot of the shared array
+			if (position == size && size < slots.events.length
+					&& slots.used.compareAndSet(size, size + 1)) {
+				slots.events[size] = event;
+				slots.index(size);
+				return new SortedEvents(slots, size + 1);
+			}
+
+			// Need a new array
+			IpcArrivalDeparture[] array =
+					new IpcArrivalDeparture[newCapacity(size + 1)];
+			System.arraycopy(slots.events, 0, array, 0, position);
+			array[position] = event;
+			System.arraycopy(slots.events, position, array, position + 1,
+					size - position);
+			return new SortedEvents(new Slots(array, size + 1,
+					slots.positionsByTripAndVehicle != null), size + 1);
+		}
+
+		/**
+		 * @param count
+		 *            how many of the oldest events to include
+		 * @return the events, most recent first
+		 */
+		private List<IpcArrivalDeparture> mostRecentFirst(int count) {
+			return new EventList(slots.events, count);
+		}
+
+		/**
+		 * @return the most recent event for the trip and vehicle, or null if
+		 *         there is none. The events must be indexed.
+		 */
+		private IpcArrivalDeparture mostRecent(String tripId, String vehicleId) {
+			int[] positions = slots.positionsByTripAndVehicle.get(
+					tripAndVehicleKey(tripId, vehicleId));
+			if (positions == null)
+				return null;
+			// The array can contain events added to other copies so only
+			// look at the ones that are part of this view
+			for (int i = positions.length - 1; i >= 0; --i) {
+				if (positions[i] < size)
+					return slots.events[positions[i]];
+			}
+			return null;
+		}
+	}
+
 	/**
-	 * 
+	 * Read only List view of the first events of an array that is sorted
+	 * oldest first, but listed most recent first. Replaced by an ArrayList
+	 * when serialized, such as when returned via RMI.
 	 */
-	private static final long serialVersionUID = 7968075904267156083L;
-	public List <IpcArrivalDeparture> events;
+	private static class EventList extends AbstractList<IpcArrivalDeparture>
+			implements RandomAccess, Serializable {
+		private static final long serialVersionUID = 4218930586722314915L;
+
+		private final transient IpcArrivalDeparture[] events;
+		private final int size;
+
+		private EventList(IpcArrivalDeparture[] events, int size) {
+			this.events = events;
+			this.size = size;
+		}
+
+		@Override
+		public IpcArrivalDeparture get(int index) {
+			if (index < 0 || index >= size)
+				throw new IndexOutOfBoundsException("Index: " + index
+						+ ", Size: " + size);
+			return events[size - 1 - index];
+		}
 
+		@Override
+		public int size() {
+			return size;
+		}
+
+		private Object writeReplace() {
+			return new ArrayList<IpcArrivalDeparture>(this);
+		}
+	}
+
+	/**
+	 * @return the events, most recent first. A read only view that doesn't
+	 *         change when events are added to a copy.
+	 */
 	public List<IpcArrivalDeparture> getEvents() {
-		return events;
+		return events.mostRecentFirst(events.size);
 	}
 
 	public void setEvents(List<IpcArrivalDeparture> events) {
-		this.events = events;
-		Collections.sort(this.events, new IpcArrivalDepartureComparator());
+		List<IpcArrivalDeparture> sortedEvents =
+				new ArrayList<IpcArrivalDeparture>(events);
+		Collections.sort(sortedEvents, comparator);
+		setSortedEvents(sortedEvents);
 	}
 
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + ((events == null) ? 0 : events.hashCode());
-		return result;
+		return getEvents().hashCode();
 	}
 
 	@Override
@@ -38,34 +288,142 @@ public class StopEvents implements Serializable {
 		if (getClass() != obj.getClass())
 			return false;
 		StopEvents other = (StopEvents) obj;
-		if (events == null) {
-			if (other.events != null)
-				return false;
-		} else if (!events.equals(other.events))
-			return false;
-		return true;
+		return getEvents().equals(other.getEvents());
 	}
 
 	public StopEvents() {
-		super();		
+		super();
+		setSortedEvents(Collections.<IpcArrivalDeparture> emptyList());
+	}
+
+	/**
+	 * Copy constructor. The copy can be modified without affecting the events
+	 * or the indexes of the original. Doesn't copy any of the events so is
+	 * cheap.
+	 *
+	 * @param other
+	 */
+	public StopEvents(StopEvents other) {
+		super();
+		this.events = other.events;
+		this.departures = other.departures;
+		this.arrivals = other.arrivals;
 	}
 
 	public StopEvents(List<IpcArrivalDeparture> events) {
 		super();
-		this.events = events;
-		
-		Collections.sort(this.events, new IpcArrivalDepartureComparator());
-		
+		setEvents(events);
+	}
+
+	/**
+	 * Replaces the events and indexes.
+	 *
+	 * @param sortedEvents
+	 *            already sorted with the most recent first
+	 */
+	private void setSortedEvents(List<IpcArrivalDeparture> sortedEvents) {
+		List<IpcArrivalDeparture> oldestFirst =
+				new ArrayList<IpcArrivalDeparture>(sortedEvents.size());
+		List<IpcArrivalDeparture> newDepartures =
+				new ArrayList<IpcArrivalDeparture>();
+		List<IpcArrivalDeparture> newArrivals =
+				new ArrayList<IpcArrivalDeparture>();
+		for (int i = sortedEvents.size() - 1; i >= 0; --i) {
+			IpcArrivalDeparture event = sortedEvents.get(i);
+			oldestFirst.add(event);
+			if (event.isDeparture())
+				newDepartures.add(event);
+			else
+				newArrivals.add(event);
+		}
+		events = SortedEvents.create(oldestFirst, false);
+		departures = SortedEvents.create(newDepartures, false);
+		arrivals = SortedEvents.create(newArrivals, true);
 	}
-	
+
+	/**
+	 * Adds the event in its sorted position. An event with the same time as
+	 * existing ones is put after them. An event that is already there, such
+	 * as when the arrivals/departures since a cache snapshot are read in at
+	 * startup, is not added again.
+	 *
+	 * @param event
+	 */
 	public void addEvent(IpcArrivalDeparture event)
 	{
-		if(this.events==null)
-		{
-			events=new ArrayList<IpcArrivalDeparture>();
-		}
-		events.add(event);
-		Collections.sort(this.events, new IpcArrivalDepartureComparator());		
+		if (events.contains(event))
+			return;
+		events = events.add(event);
+
+		if (event.isDeparture())
+			departures = departures.add(event);
+		else
+			arrivals = arrivals.add(event);
+	}
+
+	/**
+	 * Returns the departures that occurred at or before the specified time,
+	 * most recent first.
+	 *
+	 * @param time
+	 *            epoch time in msec
+	 * @return non-null possibly empty list. Is a read only view.
+	 */
+	public List<IpcArrivalDeparture> getDeparturesAtOrBefore(long time) {
+		return departures.mostRecentFirst(departures.countAtOrBefore(time));
+	}
+
+	/**
+	 * Returns the most recent arrival for the trip and vehicle.
+	 *
+	 * @param tripId
+	 * @param vehicleId
+	 * @return the arrival, or null if there is none
+	 */
+	public IpcArrivalDeparture getArrival(String tripId, String vehicleId) {
+		return arrivals.mostRecent(tripId, vehicleId);
+	}
+
+	private static String tripAndVehicleKey(String tripId, String vehicleId) {
+		return tripId + "_" + vehicleId;
+	}
+
+	/**
+	 * Only the events are serialized. The indexes are rebuilt when read.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeObject(new ArrayList<IpcArrivalDeparture>(getEvents()));
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in)
+			throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		setSortedEvents((List<IpcArrivalDeparture>) in.readObject());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.esotericsoftware.kryo.KryoSerializable#write(com.esotericsoftware.kryo.Kryo, com.esotericsoftware.kryo.io.Output)
+	 */
+	@Override
+	public void write(Kryo kryo, Output output) {
+		List<IpcArrivalDeparture> sortedEvents = getEvents();
+		output.writeInt(sortedEvents.size(), true);
+		for (IpcArrivalDeparture event : sortedEvents)
+			kryo.writeObject(output, event);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.esotericsoftware.kryo.KryoSerializable#read(com.esotericsoftware.kryo.Kryo, com.esotericsoftware.kryo.io.Input)
+	 */
+	@Override
+	public void read(Kryo kryo, Input input) {
+		int size = input.readInt(true);
+		List<IpcArrivalDeparture> sortedEvents =
+				new ArrayList<IpcArrivalDeparture>(size);
+		for (int i = 0; i < size; ++i)
+			sortedEvents.add(kryo.readObject(input, IpcArrivalDeparture.class));
+		setSortedEvents(sortedEvents);
 	}
-	
 }
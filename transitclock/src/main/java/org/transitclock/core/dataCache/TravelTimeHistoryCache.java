@@ -0,0 +1,389 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.core.dataCache;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.config.BooleanConfigValue;
+import org.transitclock.core.TravelTimeDetails;
+import org.transitclock.core.predictiongenerator.datafilter.TravelTimeFilterFactory;
+import org.transitclock.ipc.data.IpcArrivalDeparture;
+import org.transitclock.utils.MapKey;
+
+/**
+ * Keeps for each trip/stop path the travel times of the most recent days so
+ * that the Kalman prediction generator doesn't need to look up the trip
+ * history for each of the days in its look back window every time it makes
+ * a prediction. Without this a prediction could mean up to
+ * transitclock.prediction.data.kalman.maxdaystoseach trip history lookups,
+ * each one creating a key and searching through the events of the trip, just
+ * to find a few travel times that rarely change.
+ * <p>
+ * For each key the travel times of the days in the look back window are
+ * kept in a ring indexed by day number. Days in the look back window that
+ * have not yet been checked, such as after startup, are looked up in the
+ * trip history cache once and remembered, even if no travel time was found
+ * for the day. When an arrival is generated the travel time for that day is
+ * added for keys that are already being used so that in the steady state no
+ * trip history lookups are needed at all. Keys that haven't been used for the
+ * whole look back window are evicted once a day.
+ */
+public class TravelTimeHistoryCache {
+
+	private static final TravelTimeHistoryCache singleton =
+			new TravelTimeHistoryCache();
+
+	// Keyed on tripId, trip start time, and stop path index
+	private final ConcurrentHashMap<MapKey, TravelTimeHistory> historyMap =
+			new ConcurrentHashMap<MapKey, TravelTimeHistory>();
+
+	// Day number of when unused histories were last evicted
+	private final AtomicLong lastEvictionDayNumber = new AtomicLong(NO_DAY);
+
+	private static final long NO_DAY = Long.MIN_VALUE;
+
+	private static BooleanConfigValue cacheTravelTimeHistory =
+			new BooleanConfigValue("transitclock.core.cacheTravelTimeHistory",
+					false,
+					"If true the travel times for previous days used by the "
+					+ "Kalman prediction generator are kept per trip and "
+					+ "stop path instead of being looked up in the trip "
+					+ "history cache for each day every time a prediction is "
+					+ "made.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(TravelTimeHistoryCache.class);
+
+	/**
+	 * The travel times for a trip/stop path for the most recent days. The
+	 * days are kept in a ring indexed by day number so that finding the
+	 * travel time for a day doesn't depend on how many days there are, and
+	 * a day that is no longer in the look back window is simply replaced.
+	 * Access is synchronized on the object.
+	 */
+	private static class TravelTimeHistory {
+		// The day number, as returned by getDayNumber(), that each slot is
+		// for. NO_DAY if the slot hasn't been used yet. A slot for a day
+		// means the day has been checked even if no travel time was found.
+		private long[] dayNumbers;
+		// The travel time for the day of the slot. Null if there isn't one.
+		private TravelTimeDetails[] travelTimes;
+
+		// Most recent day the travel times were asked for, for evicting
+		// histories that are no longer used
+		private volatile long lastUsedDayNumber;
+
+		private TravelTimeHistory(int numDays) {
+			dayNumbers = new long[numDays + 1];
+			Arrays.fill(dayNumbers, NO_DAY);
+			travelTimes = new TravelTimeDetails[numDays + 1];
+		}
+
+		private int slot(long dayNumber) {
+			return (int) Math.floorMod(dayNumber, (long) dayNumbers.length);
+		}
+
+		private boolean isChecked(long dayNumber) {
+			return dayNumbers[slot(dayNumber)] == dayNumber;
+		}
+
+		/**
+		 * @return the travel time for the day. Only valid if
+		 *         isChecked(dayNumber).
+		 */
+		private TravelTimeDetails get(long dayNumber) {
+			return travelTimes[slot(dayNumber)];
+		}
+
+		/**
+		 * Records the travel time for the day, which can be null if there
+		 * isn't one. Replaces whatever was there for an older day. Ignored if
+		 * the slot is already being used for a more recent day.
+		 */
+		private void put(long dayNumber, TravelTimeDetails travelTime) {
+			int slot = slot(dayNumber);
+			if (dayNumbers[slot] > dayNumber)
+				return;
+			dayNumbers[slot] = dayNumber;
+			travelTimes[slot] = travelTime;
+		}
+
+		/**
+		 * Makes sure there is room for the number of days plus one for the
+		 * current day, which isn't part of the look back window.
+		 */
+		private void ensureCapacity(int numDays) {
+			if (dayNumbers.length >= numDays + 1)
+				return;
+			long[] oldDayNumbers = dayNumbers;
+			TravelTimeDetails[] oldTravelTimes = travelTimes;
+			dayNumbers = new long[numDays + 1];
+			Arrays.fill(dayNumbers, NO_DAY);
+			travelTimes = new TravelTimeDetails[numDays + 1];
+			for (int i = 0; i < oldDayNumbers.length; ++i) {
+				if (oldDayNumbers[i] != NO_DAY)
+					put(oldDayNumbers[i], oldTravelTimes[i]);
+			}
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @return the singleton TravelTimeHistoryCache
+	 */
+	public static TravelTimeHistoryCache getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * @return true if the travel times for the previous days should be
+	 *         obtained via this cache
+	 */
+	public static boolean isEnabled() {
+		return cacheTravelTimeHistory.getValue();
+	}
+
+	private TravelTimeHistoryCache() {
+	}
+
+	/**
+	 * @return the number of days since the epoch, in the default timezone,
+	 *         of the date. The same day that DateUtils.truncate() uses.
+	 */
+	private static long getDayNumber(Date date) {
+		return Instant.ofEpochMilli(date.getTime())
+				.atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+	}
+
+	/**
+	 * @return the start of the day, like DateUtils.truncate() returns, for
+	 *         using as part of a TripKey
+	 */
+	private static Date getStartOfDay(long dayNumber) {
+		return Date.from(LocalDate.ofEpochDay(dayNumber)
+				.atStartOfDay(ZoneId.systemDefault()).toInstant());
+	}
+
+	private static MapKey getKey(String tripId, Integer startTime,
+			int stopPathIndex) {
+		return new MapKey(tripId, startTime, stopPathIndex);
+	}
+
+	/**
+	 * Returns the travel time to the stop path from the arrival/departures of
+	 * a trip. Finds the arrival for the stop path and the departure of the
+	 * previous stop. The travel time is only returned if it is valid and
+	 * passes the travel time filter.
+	 *
+	 * @param tripHistoryCache
+	 *            for finding the departure of the previous stop
+	 * @param arrivalDepartures
+	 *            for the trip. Can be null.
+	 * @param stopPathIndex
+	 * @return the travel time, or null if there isn't a valid one
+	 */
+	public static TravelTimeDetails getTravelTime(
+			TripDataHistoryCacheInterface tripHistoryCache,
+			List<IpcArrivalDeparture> arrivalDepartures, int stopPathIndex) {
+		if (arrivalDepartures == null)
+			return null;
+
+		IpcArrivalDeparture arrival = null;
+		for (IpcArrivalDeparture arrivalDeparture : arrivalDepartures) {
+			if (arrivalDeparture.isArrival()
+					&& arrivalDeparture.getStopPathIndex() == stopPathIndex) {
+				arrival = arrivalDeparture;
+				break;
+			}
+		}
+		if (arrival == null)
+			return null;
+
+		IpcArrivalDeparture departure = tripHistoryCache
+				.findPreviousDepartureEvent(arrivalDepartures, arrival);
+		if (departure == null)
+			return null;
+
+		TravelTimeDetails travelTimeDetails =
+				new TravelTimeDetails(departure, arrival);
+		if (travelTimeDetails.getTravelTime() == -1)
+			return null;
+		if (TravelTimeFilterFactory.getInstance().filter(
+				travelTimeDetails.getDeparture(),
+				travelTimeDetails.getArrival()))
+			return null;
+
+		return travelTimeDetails;
+	}
+
+	/**
+	 * Returns the travel times for the stop path for the days before the
+	 * start date, most recent first. Same results as looking up the trip
+	 * history for each of the days but days that have already been looked at
+	 * are not looked up again.
+	 *
+	 * @param tripHistoryCache
+	 *            for looking up days that haven't been checked yet
+	 * @param tripId
+	 * @param stopPathIndex
+	 * @param startDate
+	 *            the day the trip is for
+	 * @param startTime
+	 *            trip start time as used for the trip history cache key. For
+	 *            frequency based trips this must be the start time rounded
+	 *            to the historical average bucket, not the actual start time,
+	 *            so that there is a bounded number of keys per trip.
+	 * @param numDaysLookBack
+	 *            how many days before startDate to look at
+	 * @param numDays
+	 *            the maximum number of travel times to return
+	 * @return list of travel times, most recent first
+	 */
+	public List<TravelTimeDetails> getLastDaysTimes(
+			TripDataHistoryCacheInterface tripHistoryCache, String tripId,
+			int stopPathIndex, Date startDate, Integer startTime,
+			int numDaysLookBack, int numDays) {
+		List<TravelTimeDetails> times = new ArrayList<TravelTimeDetails>(numDays);
+
+		long startDayNumber = getDayNumber(startDate);
+		evictUnused(startDayNumber, numDaysLookBack);
+
+		MapKey key = getKey(tripId, startTime, stopPathIndex);
+		TravelTimeHistory history = historyMap.get(key);
+		if (history == null) {
+			TravelTimeHistory newHistory = new TravelTimeHistory(numDaysLookBack);
+			history = historyMap.putIfAbsent(key, newHistory);
+			if (history == null)
+				history = newHistory;
+		}
+		history.lastUsedDayNumber = startDayNumber;
+
+		synchronized (history) {
+			history.ensureCapacity(numDaysLookBack);
+
+			for (int i = 1; i <= numDaysLookBack && times.size() < numDays; i++) {
+				long dayNumber = startDayNumber - i;
+
+				TravelTimeDetails travelTime;
+				if (history.isChecked(dayNumber)) {
+					travelTime = history.get(dayNumber);
+				} else {
+					TripKey tripKey = new TripKey(tripId,
+							getStartOfDay(dayNumber), startTime);
+					travelTime = getTravelTime(tripHistoryCache,
+							tripHistoryCache.getTripHistory(tripKey),
+							stopPathIndex);
+					history.put(dayNumber, travelTime);
+				}
+
+				if (travelTime != null)
+					times.add(travelTime);
+			}
+		}
+
+		return times;
+	}
+
+	/**
+	 * Called when an arrival/departure has been added to the trip history
+	 * cache. If it is an arrival then the resulting travel time is added for
+	 * the day so that it doesn't need to be looked up later. Only done for
+	 * trip/stop paths that are already in use so that memory is not used for
+	 * ones that the Kalman prediction generator never asks about.
+	 *
+	 * @param tripHistoryCache
+	 * @param tripKey
+	 *            the key returned when the arrival/departure was put into
+	 *            the trip history cache
+	 * @param stopPathIndex
+	 *            of the arrival/departure
+	 */
+	public void arrivalDepartureAdded(
+			TripDataHistoryCacheInterface tripHistoryCache, TripKey tripKey,
+			int stopPathIndex) {
+		if (tripKey == null || tripKey.getTripStartDate() == null)
+			return;
+
+		TravelTimeHistory history = historyMap.get(
+				getKey(tripKey.getTripId(), tripKey.getStartTime(), stopPathIndex));
+		if (history == null)
+			return;
+
+		TravelTimeDetails travelTime = getTravelTime(tripHistoryCache,
+				tripHistoryCache.getTripHistory(tripKey), stopPathIndex);
+		if (travelTime == null)
+			return;
+
+		long dayNumber = getDayNumber(tripKey.getTripStartDate());
+		synchronized (history) {
+			history.put(dayNumber, travelTime);
+		}
+
+		logger.debug("Added travel time for {} stopPathIndex={} to "
+				+ "TravelTimeHistoryCache. {}", tripKey, stopPathIndex,
+				travelTime);
+	}
+
+	/**
+	 * Once a day removes the histories that haven't been used within the
+	 * look back window, since all of their days are then too old to be used.
+	 * Otherwise histories for trips that are no longer run would be kept
+	 * forever.
+	 *
+	 * @param todayDayNumber
+	 * @param numDaysLookBack
+	 */
+	private void evictUnused(long todayDayNumber, int numDaysLookBack) {
+		long lastEviction = lastEvictionDayNumber.get();
+		if (todayDayNumber <= lastEviction
+				|| !lastEvictionDayNumber.compareAndSet(lastEviction,
+						todayDayNumber))
+			return;
+
+		int numEvicted = 0;
+		Iterator<TravelTimeHistory> iterator = historyMap.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().lastUsedDayNumber
+					< todayDayNumber - numDaysLookBack) {
+				iterator.remove();
+				++numEvicted;
+			}
+		}
+		logger.info("Evicted {} unused trip/stop paths from "
+				+ "TravelTimeHistoryCache. {} remain.", numEvicted,
+				historyMap.size());
+	}
+
+	/**
+	 * @return number of trip/stop paths that travel times are kept for
+	 */
+	public int size() {
+		return historyMap.size();
+	}
+}
@@ -11,7 +11,9 @@ public class TripDataHistoryCacheFactory {
 	private static StringConfigValue className = 
 			new StringConfigValue("transitclock.core.cache.tripDataHistoryCache", 
 					"org.transitclock.core.dataCache.ehcache.frequency.TripDataHistoryCache",
-					"Specifies the class used to cache the arrival and departures for a trip.");
+					"Specifies the class used to cache the arrival and departures for a trip. "
+					+ "The classes in org.transitclock.core.dataCache.columnar "
+					+ "share one compact store of the events with the stop cache.");
 	
 	public static TripDataHistoryCacheInterface singleton = null;
 	
@@ -58,12 +58,20 @@ public class TripEvents implements Serializable {
 		Collections.sort(this.events, new IpcArrivalDepartureComparator());
 	}
 	
+	/**
+	 * Adds the event unless it is already there, such as when the
+	 * arrivals/departures since a cache snapshot are read in at startup.
+	 *
+	 * @param event
+	 */
 	public void addEvent(IpcArrivalDeparture event)
 	{
 		if(this.events==null)
 		{
 			events=new ArrayList<IpcArrivalDeparture>();
 		}
+		if(events.contains(event))
+			return;
 		events.add(event);
 		Collections.sort(this.events, new IpcArrivalDepartureComparator());
 	}
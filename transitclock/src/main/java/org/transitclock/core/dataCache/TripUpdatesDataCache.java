@@ -0,0 +1,612 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.core.dataCache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.applications.Core;
+import org.transitclock.config.BooleanConfigValue;
+import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.feed.gtfsRt.GtfsRtTripUpdateBuilder;
+import org.transitclock.ipc.data.IpcGtfsRtFeed;
+import org.transitclock.ipc.data.IpcPrediction;
+import org.transitclock.utils.Time;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * Maintains the GTFS-realtime TripUpdates feed as predictions are generated
+ * instead of the API having to get all of the predictions via RMI and
+ * creating the whole feed for each request. Each time the predictions for a
+ * vehicle are updated the feed entities for the vehicle's trips are
+ * recreated and serialized. The feed is then simply the serialized header
+ * followed by the serialized entities, which works because protobuf messages
+ * can be concatenated. The resulting feed is cached until an entity changes.
+ * <p>
+ * Same as when the API creates the feed from all of the predictions, only
+ * predictions that have not yet expired and that are within the max future
+ * time requested by the API are included. Since this changes as time passes
+ * even if the predictions don't, each entity remembers until when its
+ * serialized form is valid and is recreated when that time is reached.
+ * <p>
+ * Also keeps track of when each entity was last modified and when entities
+ * were deleted so that a DIFFERENTIAL feed can be provided containing only
+ * what changed since the client's last request.
+ */
+public class TripUpdatesDataCache {
+
+	// This is a singleton class
+	private static TripUpdatesDataCache singleton = new TripUpdatesDataCache();
+
+	private static BooleanConfigValue maintainGtfsRtTripUpdates =
+			new BooleanConfigValue(
+					"transitclock.core.maintainGtfsRtTripUpdates",
+					false,
+					"If true then the core maintains the GTFS-realtime "
+					+ "TripUpdates feed as predictions are generated so that "
+					+ "the API can provide it without having to get all of "
+					+ "the predictions via RMI and recreating the whole feed "
+					+ "for each request. Also enables DIFFERENTIAL feeds.");
+
+	private static IntegerConfigValue deletedEntityRetentionSecs =
+			new IntegerConfigValue(
+					"transitclock.core.gtfsRtDeletedEntityRetentionSecs",
+					5 * Time.SEC_PER_MIN,
+					"How long a deleted TripUpdate entity is remembered so "
+					+ "that it can be included in a DIFFERENTIAL feed. If a "
+					+ "client asks for changes since a time older than this "
+					+ "then it is provided the FULL_DATASET feed instead.");
+
+	// The entities, keyed on entity ID
+	private final ConcurrentHashMap<String, EntityData> entities =
+			new ConcurrentHashMap<String, EntityData>();
+
+	// The entity IDs for each vehicle so that entities that are no longer
+	// valid for a vehicle can be removed. Keyed on vehicle ID.
+	private final ConcurrentHashMap<String, Set<String>> entityIdsByVehicle =
+			new ConcurrentHashMap<String, Set<String>>();
+
+	// When entities were deleted, keyed on entity ID. For DIFFERENTIAL feeds.
+	private final ConcurrentHashMap<String, Long> deletedEntities =
+			new ConcurrentHashMap<String, Long>();
+
+	// Identifies this run of the core. Part of the feed version so that a
+	// version, which is used as an ETag, is not reused after a restart.
+	// Set when the feed is first requested, since the system time of the
+	// Core is not available when this singleton is created.
+	private String bootId = null;
+
+	// Incremented every time the feed changes
+	private final AtomicLong version = new AtomicLong();
+
+	// Core system time of the last change. 0 until the first change or
+	// request.
+	private volatile long lastModified = 0;
+
+	// Max future time of the predictions in the feed, as last requested by
+	// the API. New entities are created using it.
+	private volatile long maxFutureMsec = Time.MS_PER_HOUR;
+
+	// System time when an entity in the feed changes because a prediction
+	// expires or comes within the max future time. Determined when a feed is
+	// created. When reached the version is incremented.
+	private long versionValidUntil = Long.MAX_VALUE;
+
+	// The entities of the most recently created full feed. Only valid if
+	// its version matches the current version.
+	private byte[] cachedFullFeedEntities = null;
+	private long cachedFullFeedVersion = -1;
+
+	// Created lazily since need the agency time zone
+	private volatile GtfsRtTripUpdateBuilder tripUpdateBuilder = null;
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(TripUpdatesDataCache.class);
+
+	/**
+	 * The feed entities for an entity ID. Usually just a single entity but
+	 * can be more if a vehicle has predictions for multiple frequency based
+	 * trips, since those use the vehicle ID as the entity ID.
+	 */
+	private static class EntityData {
+		private final String vehicleId;
+		// All of the predictions for the entity, grouped by trip, so that
+		// the entity can be recreated as predictions expire or come within
+		// the max future time
+		private final List<List<IpcPrediction>> predsByTrip;
+		// When the predictions were last updated
+		private final long lastModified;
+		// The max future time the bytes were created for
+		private final long maxFutureMsec;
+		// Serialized as the entity field of a FeedMessage. Empty if none of
+		// the predictions are within the time window.
+		private final byte[] bytes;
+		// System time until when bytes is valid
+		private final long validUntil;
+
+		private EntityData(String vehicleId,
+				List<List<IpcPrediction>> predsByTrip, long lastModified,
+				long maxFutureMsec, byte[] bytes, long validUntil) {
+			this.vehicleId = vehicleId;
+			this.predsByTrip = predsByTrip;
+			this.lastModified = lastModified;
+			this.maxFutureMsec = maxFutureMsec;
+			this.bytes = bytes;
+			this.validUntil = validUntil;
+		}
+
+		private boolean isValid(long systemTime, long maxFutureMsec) {
+			return systemTime < validUntil
+					&& this.maxFutureMsec == maxFutureMsec;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor declared private because singleton class
+	 */
+	private TripUpdatesDataCache() {
+	}
+
+	/**
+	 * Returns the singleton TripUpdatesDataCache
+	 *
+	 * @return
+	 */
+	public static TripUpdatesDataCache getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * @return true if the core is configured to maintain the TripUpdates feed
+	 */
+	public static boolean isEnabled() {
+		return maintainGtfsRtTripUpdates.getValue();
+	}
+
+	private GtfsRtTripUpdateBuilder getTripUpdateBuilder() {
+		if (tripUpdateBuilder == null) {
+			tripUpdateBuilder = new GtfsRtTripUpdateBuilder(Core.getInstance()
+					.getDbConfig().getFirstAgency().getTimeZone());
+		}
+		return tripUpdateBuilder;
+	}
+
+	/**
+	 * Returns true if a prediction is part of the feed at the specified time,
+	 * meaning that it has not expired and is within the max future time.
+	 *
+	 * @param predictionTime
+	 * @param systemTime
+	 * @param maxFutureMsec
+	 * @return
+	 */
+	private static boolean isInTimeWindow(long predictionTime,
+			long systemTime, long maxFutureMsec) {
+		return predictionTime >= systemTime
+				&& predictionTime <= systemTime + maxFutureMsec;
+	}
+
+	/**
+	 * Creates the EntityData for the predictions, serializing only the
+	 * predictions that are in the time window as of the specified system
+	 * time. Also determines when the predictions in the time window will
+	 * change so that the entity can be recreated then.
+	 *
+	 * @param vehicleId
+	 * @param predsByTrip
+	 * @param lastModified
+	 * @param systemTime
+	 * @param maxFutureMsec
+	 * @return
+	 */
+	private EntityData createEntityData(String vehicleId,
+			List<List<IpcPrediction>> predsByTrip, long lastModified,
+			long systemTime, long maxFutureMsec) {
+		List<FeedEntity> feedEntities = new ArrayList<FeedEntity>(1);
+		long validUntil = Long.MAX_VALUE;
+		for (List<IpcPrediction> predsForTrip : predsByTrip) {
+			List<IpcPrediction> predsInTimeWindow =
+					new ArrayList<IpcPrediction>(predsForTrip.size());
+			for (IpcPrediction pred : predsForTrip) {
+				long predTime = pred.getPredictionTime();
+				if (isInTimeWindow(predTime, systemTime, maxFutureMsec)) {
+					predsInTimeWindow.add(pred);
+					// Expires right after the prediction time
+					validUntil = Math.min(validUntil, predTime + 1);
+				} else if (predTime > systemTime) {
+					// Will come within the max future time
+					validUntil = Math.min(validUntil, predTime - maxFutureMsec);
+				}
+			}
+
+			if (!predsInTimeWindow.isEmpty())
+				feedEntities.addAll(getTripUpdateBuilder()
+						.createFeedEntities(predsInTimeWindow));
+		}
+
+		return new EntityData(vehicleId, predsByTrip, lastModified,
+				maxFutureMsec, serializeEntities(feedEntities), validUntil);
+	}
+
+	/**
+	 * Returns the entity data valid for the system time and max future time,
+	 * recreating it if necessary.
+	 *
+	 * @param entityId
+	 * @param entityData
+	 * @param systemTime
+	 * @param maxFutureMsec
+	 * @return
+	 */
+	private EntityData getValidEntityData(String entityId,
+			EntityData entityData, long systemTime, long maxFutureMsec) {
+		if (entityData.isValid(systemTime, maxFutureMsec))
+			return entityData;
+
+		EntityData newEntityData = createEntityData(entityData.vehicleId,
+				entityData.predsByTrip, entityData.lastModified, systemTime,
+				maxFutureMsec);
+		// Only store it if the predictions haven't been updated in the
+		// meantime
+		entities.replace(entityId, entityData, newEntityData);
+		return newEntityData;
+	}
+
+	/**
+	 * Updates the feed entities for a vehicle. To be called when the
+	 * predictions for the vehicle are updated. Entities that the vehicle had
+	 * but that are not part of the new predictions are deleted.
+	 *
+	 * @param oldPredictionsForVehicle
+	 * @param newPredictionsForVehicle
+	 *            the new predictions. Can be null or empty if the vehicle no
+	 *            longer has predictions.
+	 */
+	public void updatePredictions(List<IpcPrediction> oldPredictionsForVehicle,
+			List<IpcPrediction> newPredictionsForVehicle) {
+		if (!isEnabled())
+			return;
+
+		// Determine the vehicle
+		String vehicleId;
+		if (newPredictionsForVehicle != null
+				&& !newPredictionsForVehicle.isEmpty())
+			vehicleId = newPredictionsForVehicle.get(0).getVehicleId();
+		else if (oldPredictionsForVehicle != null
+				&& !oldPredictionsForVehicle.isEmpty())
+			vehicleId = oldPredictionsForVehicle.get(0).getVehicleId();
+		else
+			return;
+
+		// Group the new predictions by trip
+		Map<String, List<IpcPrediction>> predsByTrip =
+				new LinkedHashMap<String, List<IpcPrediction>>();
+		if (newPredictionsForVehicle != null) {
+			for (IpcPrediction pred : newPredictionsForVehicle) {
+				List<IpcPrediction> predsForTrip = predsByTrip.get(pred.getTripId());
+				if (predsForTrip == null) {
+					predsForTrip = new ArrayList<IpcPrediction>();
+					predsByTrip.put(pred.getTripId(), predsForTrip);
+				}
+				predsForTrip.add(pred);
+			}
+		}
+
+		// Group the trips by entity ID since trips with the same entity ID
+		// are serialized together
+		Map<String, List<List<IpcPrediction>>> predsByEntityId =
+				new LinkedHashMap<String, List<List<IpcPrediction>>>();
+		for (List<IpcPrediction> predsForTrip : predsByTrip.values()) {
+			String entityId = getTripUpdateBuilder().getEntityId(predsForTrip);
+			List<List<IpcPrediction>> predsForEntity =
+					predsByEntityId.get(entityId);
+			if (predsForEntity == null) {
+				predsForEntity = new ArrayList<List<IpcPrediction>>(1);
+				predsByEntityId.put(entityId, predsForEntity);
+			}
+			predsForEntity.add(predsForTrip);
+		}
+
+		long systemTime = Core.getInstance().getSystemTime();
+		long maxFutureMsec = this.maxFutureMsec;
+		Map<String, EntityData> newEntityData =
+				new HashMap<String, EntityData>();
+		for (Map.Entry<String, List<List<IpcPrediction>>> mapEntry :
+				predsByEntityId.entrySet()) {
+			newEntityData.put(mapEntry.getKey(), createEntityData(vehicleId,
+					mapEntry.getValue(), systemTime, systemTime, maxFutureMsec));
+		}
+
+		// Store the new entities and remove the old ones that are no longer
+		// valid for the vehicle
+		Set<String> newEntityIds = Collections.newSetFromMap(
+				new ConcurrentHashMap<String, Boolean>());
+		newEntityIds.addAll(newEntityData.keySet());
+		Set<String> oldEntityIds = newEntityIds.isEmpty() ?
+				entityIdsByVehicle.remove(vehicleId)
+				: entityIdsByVehicle.put(vehicleId, newEntityIds);
+
+		for (Map.Entry<String, EntityData> mapEntry : newEntityData.entrySet()) {
+			entities.put(mapEntry.getKey(), mapEntry.getValue());
+			deletedEntities.remove(mapEntry.getKey());
+		}
+
+		if (oldEntityIds != null) {
+			for (String oldEntityId : oldEntityIds) {
+				if (newEntityIds.contains(oldEntityId))
+					continue;
+
+				// Only remove the entity if it still belongs to this vehicle.
+				// Another vehicle might have taken over the trip.
+				EntityData existing = entities.get(oldEntityId);
+				if (existing != null && existing.vehicleId.equals(vehicleId)
+						&& entities.remove(oldEntityId, existing)) {
+					deletedEntities.put(oldEntityId, systemTime);
+				}
+			}
+		}
+
+		lastModified = systemTime;
+		version.incrementAndGet();
+	}
+
+	/**
+	 * Serializes the entities as the entity field of a FeedMessage so that
+	 * they can simply be concatenated with the serialized header to create
+	 * the feed.
+	 *
+	 * @param entitiesForId
+	 * @return the serialized entities
+	 */
+	private static byte[] serializeEntities(List<FeedEntity> entitiesForId) {
+		int size = 0;
+		for (FeedEntity entity : entitiesForId)
+			size += CodedOutputStream.computeMessageSize(
+					FeedMessage.ENTITY_FIELD_NUMBER, entity);
+
+		byte[] bytes = new byte[size];
+		CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+		try {
+			for (FeedEntity entity : entitiesForId)
+				output.writeMessage(FeedMessage.ENTITY_FIELD_NUMBER, entity);
+			output.checkNoSpaceLeft();
+		} catch (IOException e) {
+			// Can't happen when writing to a byte array of the right size
+			throw new IllegalStateException(e);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Concatenates the serialized entities.
+	 *
+	 * @param entityBytes
+	 * @param size
+	 *            total size of the entity bytes
+	 * @return
+	 */
+	private static byte[] concatenate(List<byte[]> entityBytes, int size) {
+		byte[] result = new byte[size];
+		int offset = 0;
+		for (byte[] bytes : entityBytes) {
+			System.arraycopy(bytes, 0, result, offset, bytes.length);
+			offset += bytes.length;
+		}
+		return result;
+	}
+
+	/**
+	 * Removes deleted entities that are older than the retention time.
+	 */
+	private void pruneDeletedEntities(long systemTime) {
+		long cutoff = systemTime
+				- deletedEntityRetentionSecs.getValue() * Time.MS_PER_SEC;
+		Iterator<Long> iterator = deletedEntities.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next() < cutoff)
+				iterator.remove();
+		}
+	}
+
+	/**
+	 * Returns the entities of the FULL_DATASET feed. Uses the cached entities
+	 * if nothing has changed since they were created.
+	 *
+	 * @param currentVersion
+	 * @param systemTime
+	 * @param maxFutureMsec
+	 * @return the serialized entities
+	 */
+	private byte[] getFullFeedEntities(long currentVersion, long systemTime,
+			long maxFutureMsec) {
+		if (cachedFullFeedEntities != null
+				&& cachedFullFeedVersion == currentVersion)
+			return cachedFullFeedEntities;
+
+		List<byte[]> entityBytes = new ArrayList<byte[]>(entities.size());
+		int size = 0;
+		long validUntil = Long.MAX_VALUE;
+		for (Map.Entry<String, EntityData> mapEntry : entities.entrySet()) {
+			EntityData entityData = getValidEntityData(mapEntry.getKey(),
+					mapEntry.getValue(), systemTime, maxFutureMsec);
+			validUntil = Math.min(validUntil, entityData.validUntil);
+			if (entityData.bytes.length > 0) {
+				entityBytes.add(entityData.bytes);
+				size += entityData.bytes.length;
+			}
+		}
+		versionValidUntil = validUntil;
+		cachedFullFeedEntities = concatenate(entityBytes, size);
+		cachedFullFeedVersion = currentVersion;
+
+		logger.debug("Created GTFS-realtime TripUpdates feed with {} "
+				+ "entities and {} bytes for version {}",
+				entityBytes.size(), size, currentVersion);
+		return cachedFullFeedEntities;
+	}
+
+	/**
+	 * Returns true if the entity included different predictions at the
+	 * specified time than it does at the current system time, because
+	 * predictions expired or came within the max future time.
+	 *
+	 * @param entityData
+	 * @param sinceMsec
+	 * @param systemTime
+	 * @param maxFutureMsec
+	 * @return
+	 */
+	private static boolean timeWindowChangedSince(EntityData entityData,
+			long sinceMsec, long systemTime, long maxFutureMsec) {
+		for (List<IpcPrediction> predsForTrip : entityData.predsByTrip) {
+			for (IpcPrediction pred : predsForTrip) {
+				long predTime = pred.getPredictionTime();
+				if (isInTimeWindow(predTime, sinceMsec, maxFutureMsec)
+						!= isInTimeWindow(predTime, systemTime, maxFutureMsec))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the entities of the DIFFERENTIAL feed containing the entities
+	 * that were modified or deleted since the specified time. Entities whose
+	 * predictions all expired are included as deleted.
+	 *
+	 * @param sinceMsec
+	 * @param systemTime
+	 * @param maxFutureMsec
+	 * @return the serialized entities
+	 */
+	private byte[] getDifferentialFeedEntities(long sinceMsec, long systemTime,
+			long maxFutureMsec) {
+		List<byte[]> entityBytes = new ArrayList<byte[]>();
+		int size = 0;
+		List<String> deletedEntityIds = new ArrayList<String>();
+		long validUntil = Long.MAX_VALUE;
+		for (Map.Entry<String, EntityData> mapEntry : entities.entrySet()) {
+			EntityData entityData = getValidEntityData(mapEntry.getKey(),
+					mapEntry.getValue(), systemTime, maxFutureMsec);
+			validUntil = Math.min(validUntil, entityData.validUntil);
+			if (entityData.lastModified >= sinceMsec
+					|| timeWindowChangedSince(entityData, sinceMsec,
+							systemTime, maxFutureMsec)) {
+				if (entityData.bytes.length > 0) {
+					entityBytes.add(entityData.bytes);
+					size += entityData.bytes.length;
+				} else {
+					deletedEntityIds.add(mapEntry.getKey());
+				}
+			}
+		}
+		versionValidUntil = validUntil;
+
+		for (Map.Entry<String, Long> deleted : deletedEntities.entrySet()) {
+			if (deleted.getValue() >= sinceMsec)
+				deletedEntityIds.add(deleted.getKey());
+		}
+		for (String entityId : deletedEntityIds) {
+			FeedEntity entity = FeedEntity.newBuilder()
+					.setId(entityId).setIsDeleted(true).build();
+			byte[] bytes = serializeEntities(Collections.singletonList(entity));
+			entityBytes.add(bytes);
+			size += bytes.length;
+		}
+
+		return concatenate(entityBytes, size);
+	}
+
+	/**
+	 * Returns the TripUpdates feed.
+	 *
+	 * @param knownVersion
+	 *            The version the client already has, or null. If the feed
+	 *            has not changed then the returned object won't contain the
+	 *            feed itself.
+	 * @param differentialSinceMsec
+	 *            If greater than 0 then a DIFFERENTIAL feed containing the
+	 *            changes since this time is returned. But if the time is older
+	 *            than the deleted entity retention time then the FULL_DATASET
+	 *            feed is returned since the deleted entities would be
+	 *            incomplete.
+	 * @param predictionMaxFutureSecs
+	 *            Only predictions that are at most this far into the future
+	 *            are included
+	 * @return the feed, or null if the core is not configured to maintain it
+	 */
+	public synchronized IpcGtfsRtFeed getFeed(String knownVersion,
+			long differentialSinceMsec, int predictionMaxFutureSecs) {
+		if (!isEnabled())
+			return null;
+
+		// If entities changed because time passed, or the API asks for a
+		// different max future time, then the feed has a new version
+		long systemTime = Core.getInstance().getSystemTime();
+		if (bootId == null)
+			bootId = Long.toString(systemTime, Character.MAX_RADIX);
+		if (lastModified == 0)
+			lastModified = systemTime;
+
+		pruneDeletedEntities(systemTime);
+
+		long requestedMaxFutureMsec =
+				predictionMaxFutureSecs * Time.MS_PER_SEC;
+		if (systemTime >= versionValidUntil
+				|| requestedMaxFutureMsec != maxFutureMsec) {
+			maxFutureMsec = requestedMaxFutureMsec;
+			versionValidUntil = Long.MAX_VALUE;
+			lastModified = systemTime;
+			version.incrementAndGet();
+		}
+
+		long currentVersion = version.get();
+		String currentVersionStr = bootId + "-" + currentVersion;
+		boolean differential = differentialSinceMsec > 0
+				&& differentialSinceMsec >= systemTime
+						- deletedEntityRetentionSecs.getValue()
+								* Time.MS_PER_SEC;
+		if (currentVersionStr.equals(knownVersion))
+			return new IpcGtfsRtFeed(null, currentVersionStr, lastModified,
+					systemTime, differential);
+
+		byte[] entityBytes = differential ?
+				getDifferentialFeedEntities(differentialSinceMsec, systemTime,
+						requestedMaxFutureMsec)
+				: getFullFeedEntities(currentVersion, systemTime,
+						requestedMaxFutureMsec);
+		return new IpcGtfsRtFeed(entityBytes, currentVersionStr, lastModified,
+				systemTime, differential);
+	}
+
+}
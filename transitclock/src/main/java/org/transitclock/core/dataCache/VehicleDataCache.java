@@ -348,6 +348,20 @@ public class VehicleDataCache {
 		}
 		return vehicles;
 	}
+
+	/**
+	 * Returns the number of vehicles associated with the route. Unlike
+	 * getVehiclesForRoute() no filtering is done so that no collection needs
+	 * to be created.
+	 * 
+	 * @param routeShortName
+	 * @return number of vehicles for the route
+	 */
+	public int getNumberOfVehiclesForRoute(String routeShortName) {
+		Map<String, IpcVehicleComplete> vehicleMapForRoute =
+				vehiclesByRouteMap.get(routeShortName);
+		return vehicleMapForRoute != null ? vehicleMapForRoute.size() : 0;
+	}
       
 	/**
 	 * Returns collection of vehicles whose vehicleIds were specified using the
@@ -538,6 +552,9 @@ public class VehicleDataCache {
 		updateVehiclesByRouteMap(originalVehicle, vehicle);
 		updateVehicleIdsByBlockMap(originalVehicle, vehicle);
 		updateVehiclesMap(vehicle);
+
+		// So clients can find out that the vehicle changed
+		DataCacheChanges.getInstance().vehicleChanged(vehicle.getId());
 	}
 
 	/**
@@ -549,5 +566,7 @@ public class VehicleDataCache {
 	public void removeVehicle(String vehicleId) {
 		logger.debug("Removing from VehicleDataCache vehiclesMap vehicleId={}", vehicleId);
 		vehiclesMap.remove(vehicleId);
+		HeadwayAggregates.getInstance().removeVehicle(vehicleId);
+		DataCacheChanges.getInstance().vehicleChanged(vehicleId);
 	}
 }
@@ -0,0 +1,134 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.core.dataCache.columnar;
+
+import java.util.Arrays;
+
+/**
+ * The indexes into the ArrivalDepartureStore of the events for a key of one
+ * of the columnar caches. The indexes are kept in chunks that double in size
+ * so adding an index never copies the ones already there, and a key with
+ * only a few events only uses a small chunk.
+ * <p>
+ * Adding is synchronized on the object, so there is a single writer at a
+ * time for a key, while reading doesn't lock. The size is published after
+ * the index is written so a reader sees every index below the size it read.
+ * <p>
+ * Once all of the events have been dropped from the store the object is
+ * discarded and can no longer be added to. The cache then creates a new one
+ * for the key, so that an add can't be lost when the key is removed.
+ */
+public class EventIndexes {
+
+	// Chunk n holds FIRST_CHUNK_SIZE << n indexes
+	private volatile long[][] chunks = new long[0][];
+	private volatile int size = 0;
+	private boolean discarded = false;
+
+	private static final int FIRST_CHUNK_SIZE_BITS = 2;
+	private static final int FIRST_CHUNK_SIZE = 1 << FIRST_CHUNK_SIZE_BITS;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @return the chunk that the i'th index is in
+	 */
+	private static int chunkNumber(int i) {
+		return 31 - Integer.numberOfLeadingZeros(
+				(i >> FIRST_CHUNK_SIZE_BITS) + 1);
+	}
+
+	/**
+	 * @return the position in its chunk of the i'th index
+	 */
+	private static int offsetInChunk(int i, int chunkNumber) {
+		return i - ((FIRST_CHUNK_SIZE << chunkNumber) - FIRST_CHUNK_SIZE);
+	}
+
+	/**
+	 * Adds an index.
+	 *
+	 * @param index
+	 *            as returned by ArrivalDepartureStore.add()
+	 * @return false if this has been discarded, in which case the cache needs
+	 *         to create a new one for the key
+	 */
+	public synchronized boolean add(long index) {
+		if (discarded)
+			return false;
+
+		int i = size;
+		int chunkNumber = chunkNumber(i);
+		long[][] currentChunks = chunks;
+		if (chunkNumber == currentChunks.length) {
+			currentChunks = Arrays.copyOf(currentChunks, chunkNumber + 1);
+			currentChunks[chunkNumber] = new long[FIRST_CHUNK_SIZE << chunkNumber];
+			chunks = currentChunks;
+		}
+		currentChunks[chunkNumber][offsetInChunk(i, chunkNumber)] = index;
+		size = i + 1;
+		return true;
+	}
+
+	/**
+	 * Discards this if all of the events have been dropped from the store.
+	 *
+	 * @param firstIndex
+	 *            ArrivalDepartureStore.getFirstIndex()
+	 * @return true if discarded
+	 */
+	public synchronized boolean discardIfDropped(long firstIndex) {
+		if (size > 0 && get(size - 1) >= firstIndex)
+			return false;
+		discarded = true;
+		return true;
+	}
+
+	/**
+	 * @return the number of indexes
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param i
+	 *            must be less than a value returned by size()
+	 * @return the i'th index
+	 */
+	public long get(int i) {
+		int chunkNumber = chunkNumber(i);
+		return chunks[chunkNumber][offsetInChunk(i, chunkNumber)];
+	}
+
+	/**
+	 * @return a copy of the indexes, in the order they were added, for
+	 *         ArrivalDepartureStore.get()
+	 */
+	public long[] toArray() {
+		int count = size;
+		long[][] currentChunks = chunks;
+		long[] result = new long[count];
+		int copied = 0;
+		for (int n = 0; copied < count; ++n) {
+			int length = Math.min(FIRST_CHUNK_SIZE << n, count - copied);
+			System.arraycopy(currentChunks[n], 0, result, copied, length);
+			copied += length;
+		}
+		return result;
+	}
+}
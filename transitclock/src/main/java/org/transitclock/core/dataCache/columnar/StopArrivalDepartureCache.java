@@ -0,0 +1,212 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.core.dataCache.columnar;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.core.dataCache.ArrivalDepartureStore;
+import org.transitclock.core.dataCache.StopArrivalDepartureCacheInterface;
+import org.transitclock.core.dataCache.StopArrivalDepartureCacheKey;
+import org.transitclock.core.dataCache.StopEvents;
+import org.transitclock.db.structs.ArrivalDeparture;
+import org.transitclock.ipc.data.IpcArrivalDeparture;
+import org.transitclock.utils.Time;
+
+/**
+ * Cache of the arrivals/departures for each stop for each day that is a view
+ * of the shared ArrivalDepartureStore. Only the indexes of the events in the
+ * store are kept here so the events take far less memory than when each
+ * cache holds its own IpcArrivalDeparture objects, and no deserialization is
+ * needed when the events are read.
+ * <p>
+ * The events for a stop for a day are only created from the store the first
+ * time they are read. After that they are kept up to date as events are
+ * added so that reads for busy stops don't need to create them again.
+ * <p>
+ * Adding an event doesn't copy the events already there. The indexes are
+ * appended to an EventIndexes and the event to the shared arrays of the
+ * StopEvents. Adds for a stop/day are synchronized on its EventIndexes and
+ * reads don't lock.
+ * <p>
+ * To use set transitclock.core.cache.stopArrivalDepartureCache to
+ * org.transitclock.core.dataCache.columnar.StopArrivalDepartureCache
+ */
+public class StopArrivalDepartureCache extends
+		StopArrivalDepartureCacheInterface {
+
+	private final ArrivalDepartureStore store =
+			ArrivalDepartureStore.getInstance();
+
+	// The events for each stop for each day
+	private final Map<StopArrivalDepartureCacheKey, StopIndexes> indexesByKey =
+			new ConcurrentHashMap<StopArrivalDepartureCacheKey, StopIndexes>();
+
+	// The first index of the store when the keys were last checked for
+	// events that were all dropped from the store
+	private final AtomicLong firstIndexWhenLastCleaned = new AtomicLong(0);
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(StopArrivalDepartureCache.class);
+
+	/**
+	 * The indexes into the store of the events for a stop for a day, plus the
+	 * events created from the store once they have been read.
+	 */
+	private static class StopIndexes {
+		private final EventIndexes indexes = new EventIndexes();
+
+		// Null until the events are read. Volatile since set by readers.
+		// Replaced when an event is added so that readers keep the events
+		// they got.
+		private volatile StopEvents events;
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param stopId
+	 * @param date
+	 * @return key for the stop with the date being the start of the day
+	 */
+	private static StopArrivalDepartureCacheKey keyForDay(String stopId,
+			Date date) {
+		return new StopArrivalDepartureCacheKey(stopId,
+				new Date(Time.getStartOfDay(date)));
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.core.dataCache.StopArrivalDepartureCacheInterface#getStopHistory(org.transitclock.core.dataCache.StopArrivalDepartureCacheKey)
+	 */
+	@Override
+	public List<IpcArrivalDeparture> getStopHistory(
+			StopArrivalDepartureCacheKey key) {
+		StopEvents events = getStopEvents(key);
+		if (events == null)
+			return null;
+
+		return events.getEvents();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.core.dataCache.StopArrivalDepartureCacheInterface#getStopEvents(org.transitclock.core.dataCache.StopArrivalDepartureCacheKey)
+	 */
+	@Override
+	public StopEvents getStopEvents(StopArrivalDepartureCacheKey key) {
+		StopIndexes stopIndexes =
+				indexesByKey.get(keyForDay(key.getStopid(), key.getDate()));
+		if (stopIndexes == null)
+			return null;
+
+		// The events are put into a StopEvents so that they are sorted
+		// the same way as the other stop caches, most recent first. Multiple
+		// readers could create them at the same time, which is fine since
+		// they would all create the same thing.
+		StopEvents events = stopIndexes.events;
+		if (events == null) {
+			long[] indexes = stopIndexes.indexes.toArray();
+			events = new StopEvents(store.get(indexes, indexes.length));
+			stopIndexes.events = events;
+		}
+		return events;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.core.dataCache.StopArrivalDepartureCacheInterface#putArrivalDeparture(org.transitclock.db.structs.ArrivalDeparture)
+	 */
+	@Override
+	public StopArrivalDepartureCacheKey putArrivalDeparture(
+			ArrivalDeparture arrivalDeparture) {
+		if (arrivalDeparture.getStopId() == null)
+			return null;
+
+		StopArrivalDepartureCacheKey key = keyForDay(
+				arrivalDeparture.getStopId(), arrivalDeparture.getDate());
+		long index = store.add(arrivalDeparture);
+		while (true) {
+			StopIndexes stopIndexes = indexesByKey.get(key);
+			if (stopIndexes == null) {
+				StopIndexes newStopIndexes = new StopIndexes();
+				stopIndexes = indexesByKey.putIfAbsent(key, newStopIndexes);
+				if (stopIndexes == null)
+					stopIndexes = newStopIndexes;
+			}
+
+			synchronized (stopIndexes.indexes) {
+				if (stopIndexes.indexes.add(index)) {
+					// If the events have already been read then add the new
+					// one instead of making readers create them all again.
+					// The copy shares the arrays of events so this doesn't
+					// copy them.
+					StopEvents events = stopIndexes.events;
+					IpcArrivalDeparture event = store.get(index);
+					if (events != null && event != null) {
+						StopEvents newEvents = new StopEvents(events);
+						newEvents.addEvent(event);
+						stopIndexes.events = newEvents;
+					}
+					break;
+				}
+			}
+
+			// Discarded because its events were dropped from the store
+			indexesByKey.remove(key, stopIndexes);
+		}
+
+		removeDroppedKeys();
+		return key;
+	}
+
+	/**
+	 * Once the store has dropped old events removes the keys whose events
+	 * were all dropped. For keys where only some of the events were dropped
+	 * the events that were read are cleared so that they are created again
+	 * without the dropped ones.
+	 */
+	private void removeDroppedKeys() {
+		long firstIndex = store.getFirstIndex();
+		long lastCleaned = firstIndexWhenLastCleaned.get();
+		if (firstIndex == lastCleaned || !firstIndexWhenLastCleaned
+				.compareAndSet(lastCleaned, firstIndex))
+			return;
+
+		// Discarding the indexes makes any add that is under way for the key
+		// use new ones instead of being lost
+		int numRemoved = 0;
+		for (Map.Entry<StopArrivalDepartureCacheKey, StopIndexes> entry : 
+				indexesByKey.entrySet()) {
+			StopIndexes stopIndexes = entry.getValue();
+			if (stopIndexes.indexes.discardIfDropped(firstIndex)) {
+				if (indexesByKey.remove(entry.getKey(), stopIndexes))
+					++numRemoved;
+			} else if (stopIndexes.indexes.get(0) < firstIndex) {
+				// So that an add doesn't put back the events read earlier
+				synchronized (stopIndexes.indexes) {
+					stopIndexes.events = null;
+				}
+			}
+		}
+		logger.info("Removed {} stop/days whose arrivals/departures were "
+				+ "dropped from the store. {} remain.", numRemoved,
+				indexesByKey.size());
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.core.dataCache.columnar.frequency;
+
+import java.util.Date;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.core.dataCache.TripKey;
+import org.transitclock.core.dataCache.frequency.FrequencyBasedHistoricalAverageCache;
+import org.transitclock.db.structs.ArrivalDeparture;
+import org.transitclock.db.structs.Trip;
+import org.transitclock.ipc.data.IpcArrivalDeparture;
+import org.transitclock.utils.Time;
+
+/**
+ * Same as the scheduled columnar TripDataHistoryCache, a view of the shared
+ * ArrivalDepartureStore, but for frequency based trips. The start time of
+ * the key is the frequency start time of the arrival/departure rounded to
+ * the cache increment instead of the start time of the trip.
+ * <p>
+ * To use set transitclock.core.cache.tripDataHistoryCache to
+ * org.transitclock.core.dataCache.columnar.frequency.TripDataHistoryCache
+ */
+public class TripDataHistoryCache extends
+		org.transitclock.core.dataCache.columnar.scheduled.TripDataHistoryCache {
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(TripDataHistoryCache.class);
+
+	/********************** Member Functions **************************/
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.core.dataCache.columnar.scheduled.TripDataHistoryCache#createTripKey(org.transitclock.db.structs.ArrivalDeparture, org.transitclock.db.structs.Trip)
+	 */
+	@Override
+	protected TripKey createTripKey(ArrivalDeparture arrivalDeparture,
+			Trip trip) {
+		if (arrivalDeparture.getFreqStartTime() == null) {
+			logger.error("Cannot add event to TripDataHistoryCache as it has "
+					+ "no freqStartTime set. {}", arrivalDeparture);
+			return null;
+		}
+
+		int time = FrequencyBasedHistoricalAverageCache.secondsFromMidnight(
+				arrivalDeparture.getFreqStartTime(), 2);
+		time = FrequencyBasedHistoricalAverageCache.round(time,
+				FrequencyBasedHistoricalAverageCache
+						.getCacheIncrementsForFrequencyService());
+		return new TripKey(arrivalDeparture.getTripId(),
+				new Date(Time.getStartOfDay(arrivalDeparture.getDate())), time);
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.core.dataCache.columnar.scheduled.TripDataHistoryCache#isPreviousDeparture(org.transitclock.ipc.data.IpcArrivalDeparture, org.transitclock.ipc.data.IpcArrivalDeparture)
+	 */
+	@Override
+	protected boolean isPreviousDeparture(IpcArrivalDeparture tocheck,
+			IpcArrivalDeparture current) {
+		return super.isPreviousDeparture(tocheck, current)
+				&& current.getFreqStartTime() != null
+				&& current.getFreqStartTime().equals(tocheck.getFreqStartTime());
+	}
+}
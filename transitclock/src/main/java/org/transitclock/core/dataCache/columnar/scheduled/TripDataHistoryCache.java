@@ -0,0 +1,240 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.core.dataCache.columnar.scheduled;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hibernate.Criteria;
+import org.hibernate.Session;
+import org.hibernate.criterion.Restrictions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.applications.Core;
+import org.transitclock.core.dataCache.ArrivalDepartureStore;
+import org.transitclock.core.dataCache.IpcArrivalDepartureComparator;
+import org.transitclock.core.dataCache.TripDataHistoryCacheFactory;
+import org.transitclock.core.dataCache.TripDataHistoryCacheInterface;
+import org.transitclock.core.dataCache.TripKey;
+import org.transitclock.core.dataCache.columnar.EventIndexes;
+import org.transitclock.db.structs.ArrivalDeparture;
+import org.transitclock.db.structs.Trip;
+import org.transitclock.gtfs.GtfsData;
+import org.transitclock.ipc.data.IpcArrivalDeparture;
+import org.transitclock.utils.Time;
+
+/**
+ * Cache of the arrivals/departures for each trip for each day that is a view
+ * of the shared ArrivalDepartureStore. Only the indexes of the events in the
+ * store are kept here, so the events put into both this cache and the stop
+ * cache are only stored once, and no deserialization is needed when the
+ * events are read. Adding an event appends its index to the EventIndexes of
+ * the trip without copying the others. Adds for a trip are synchronized on
+ * its EventIndexes and reads don't lock.
+ * <p>
+ * To use set transitclock.core.cache.tripDataHistoryCache to
+ * org.transitclock.core.dataCache.columnar.scheduled.TripDataHistoryCache
+ */
+public class TripDataHistoryCache implements TripDataHistoryCacheInterface {
+
+	private final ArrivalDepartureStore store =
+			ArrivalDepartureStore.getInstance();
+
+	// The indexes into the store of the events for each trip
+	private final Map<TripKey, EventIndexes> indexesByKey =
+			new ConcurrentHashMap<TripKey, EventIndexes>();
+
+	// The first index of the store when the keys were last checked for
+	// events that were all dropped from the store
+	private final AtomicLong firstIndexWhenLastCleaned = new AtomicLong(0);
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(TripDataHistoryCache.class);
+
+	/********************** Member Functions **************************/
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.core.dataCache.TripDataHistoryCacheInterface#getTripHistory(org.transitclock.core.dataCache.TripKey)
+	 */
+	@Override
+	public List<IpcArrivalDeparture> getTripHistory(TripKey tripKey) {
+		EventIndexes eventIndexes = indexesByKey.get(tripKey);
+		if (eventIndexes == null)
+			return null;
+
+		long[] indexes = eventIndexes.toArray();
+		List<IpcArrivalDeparture> events = store.get(indexes, indexes.length);
+		Collections.sort(events, new IpcArrivalDepartureComparator());
+		return events;
+	}
+
+	/**
+	 * Returns the key for the trip that the arrival/departure is for.
+	 *
+	 * @param arrivalDeparture
+	 * @param trip
+	 * @return the key, or null if the arrival/departure can't be cached
+	 */
+	protected TripKey createTripKey(ArrivalDeparture arrivalDeparture,
+			Trip trip) {
+		return new TripKey(arrivalDeparture.getTripId(),
+				new Date(Time.getStartOfDay(arrivalDeparture.getDate())),
+				trip.getStartTime());
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.core.dataCache.TripDataHistoryCacheInterface#putArrivalDeparture(org.transitclock.db.structs.ArrivalDeparture)
+	 */
+	@Override
+	public TripKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
+		Trip trip = Core.getInstance().getDbConfig()
+				.getTrip(arrivalDeparture.getTripId());
+		if (trip == null)
+			return null;
+
+		TripKey tripKey = createTripKey(arrivalDeparture, trip);
+		if (tripKey == null)
+			return null;
+
+		logger.debug("Putting :{} in TripDataHistoryCache cache using key {}.",
+				arrivalDeparture, tripKey);
+
+		long index = store.add(arrivalDeparture);
+		while (true) {
+			EventIndexes indexes = indexesByKey.get(tripKey);
+			if (indexes == null) {
+				EventIndexes newIndexes = new EventIndexes();
+				indexes = indexesByKey.putIfAbsent(tripKey, newIndexes);
+				if (indexes == null)
+					indexes = newIndexes;
+			}
+			if (indexes.add(index))
+				break;
+
+			// Discarded because its events were dropped from the store
+			indexesByKey.remove(tripKey, indexes);
+		}
+
+		removeDroppedKeys();
+		return tripKey;
+	}
+
+	/**
+	 * Once the store has dropped old events removes the keys whose events
+	 * were all dropped. Discarding the indexes makes any add that is under
+	 * way for the key use new ones instead of being lost.
+	 */
+	private void removeDroppedKeys() {
+		long firstIndex = store.getFirstIndex();
+		long lastCleaned = firstIndexWhenLastCleaned.get();
+		if (firstIndex == lastCleaned || !firstIndexWhenLastCleaned
+				.compareAndSet(lastCleaned, firstIndex))
+			return;
+
+		int numRemoved = 0;
+		for (Map.Entry<TripKey, EventIndexes> entry : indexesByKey.entrySet()) {
+			if (entry.getValue().discardIfDropped(firstIndex)
+					&& indexesByKey.remove(entry.getKey(), entry.getValue()))
+				++numRemoved;
+		}
+		logger.info("Removed {} trips whose arrivals/departures were dropped "
+				+ "from the store. {} remain.", numRemoved, indexesByKey.size());
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.core.dataCache.TripDataHistoryCacheInterface#populateCacheFromDb(org.hibernate.Session, java.util.Date, java.util.Date)
+	 */
+	@Override
+	public void populateCacheFromDb(Session session, Date startDate,
+			Date endDate) {
+		Criteria criteria = session.createCriteria(ArrivalDeparture.class);
+
+		@SuppressWarnings("unchecked")
+		List<ArrivalDeparture> results = criteria
+				.add(Restrictions.between("time", startDate, endDate)).list();
+
+		for (ArrivalDeparture result : results) {
+			if (GtfsData.routeNotFiltered(result.getRouteId())) {
+				TripDataHistoryCacheFactory.getInstance()
+						.putArrivalDeparture(result);
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.core.dataCache.TripDataHistoryCacheInterface#findPreviousArrivalEvent(java.util.List, org.transitclock.ipc.data.IpcArrivalDeparture)
+	 */
+	@Override
+	public IpcArrivalDeparture findPreviousArrivalEvent(
+			List<IpcArrivalDeparture> arrivalDepartures,
+			IpcArrivalDeparture current) {
+		if (arrivalDepartures == null)
+			return null;
+
+		Collections.sort(arrivalDepartures, new IpcArrivalDepartureComparator());
+		for (IpcArrivalDeparture tocheck : arrivalDepartures) {
+			if (tocheck.getStopId().equals(current.getStopId())
+					&& current.isDeparture() && tocheck.isArrival())
+				return tocheck;
+		}
+		return null;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.core.dataCache.TripDataHistoryCacheInterface#findPreviousDepartureEvent(java.util.List, org.transitclock.ipc.data.IpcArrivalDeparture)
+	 */
+	@Override
+	public IpcArrivalDeparture findPreviousDepartureEvent(
+			List<IpcArrivalDeparture> arrivalDepartures,
+			IpcArrivalDeparture current) {
+		if (arrivalDepartures == null)
+			return null;
+
+		Collections.sort(arrivalDepartures, new IpcArrivalDepartureComparator());
+		for (IpcArrivalDeparture tocheck : arrivalDepartures) {
+			if (isPreviousDeparture(tocheck, current))
+				return tocheck;
+		}
+		return null;
+	}
+
+	/**
+	 * @param tocheck
+	 * @param current
+	 *            an arrival
+	 * @return true if tocheck is the departure from the stop before the
+	 *         current arrival
+	 */
+	protected boolean isPreviousDeparture(IpcArrivalDeparture tocheck,
+			IpcArrivalDeparture current) {
+		return tocheck.getStopPathIndex() == current.getStopPathIndex() - 1
+				&& current.isArrival() && tocheck.isDeparture();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.core.dataCache.TripDataHistoryCacheInterface#getKeys()
+	 */
+	@Override
+	public List<TripKey> getKeys() {
+		return new ArrayList<TripKey>(indexesByKey.keySet());
+	}
+}
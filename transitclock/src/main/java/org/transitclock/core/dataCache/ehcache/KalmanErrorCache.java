@@ -14,14 +14,20 @@ import org.ehcache.xml.XmlConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.core.Indices;
+import org.transitclock.core.dataCache.CacheSnapshotManager;
 import org.transitclock.core.dataCache.ErrorCache;
 import org.transitclock.core.dataCache.KalmanError;
 import org.transitclock.core.dataCache.KalmanErrorCacheKey;
+import org.transitclock.core.dataCache.SnapshotableCache;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
 /**
  * @author Sean Óg Crudden
  * 
  */
-public class KalmanErrorCache implements ErrorCache {
+public class KalmanErrorCache implements ErrorCache, SnapshotableCache {
 	final private static String cacheName = "KalmanErrorCache";
 	
 	final URL xmlConfigUrl = getClass().getResource("/ehcache.xml");
@@ -112,5 +118,21 @@ public class KalmanErrorCache implements ErrorCache {
 		return null;
 	}
 
+	@Override
+	public String getSnapshotName() {
+		return cacheName;
+	}
+
+	@Override
+	synchronized public int writeSnapshot(Kryo kryo, Output output) {
+		return CacheSnapshotManager.writeEntries(cache, kryo, output);
+	}
+
+	@Override
+	public int readSnapshot(Kryo kryo, Input input) {
+		return CacheSnapshotManager.readEntries(cache, KalmanErrorCacheKey.class,
+				KalmanError.class, kryo, input);
+	}
+
 	
 }
@@ -23,12 +23,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.core.dataCache.ArrivalDepartureComparator;
+import org.transitclock.core.dataCache.CacheSnapshotManager;
 import org.transitclock.core.dataCache.DwellTimeModelCacheFactory;
 import org.transitclock.core.dataCache.IpcArrivalDepartureComparator;
 import org.transitclock.core.dataCache.KalmanErrorCacheKey;
 import org.transitclock.core.dataCache.StopArrivalDepartureCacheFactory;
 import org.transitclock.core.dataCache.StopArrivalDepartureCacheInterface;
 import org.transitclock.core.dataCache.StopArrivalDepartureCacheKey;
+import org.transitclock.core.dataCache.SnapshotableCache;
 import org.transitclock.core.dataCache.StopEvents;
 import org.transitclock.core.dataCache.TripEvents;
 import org.transitclock.core.dataCache.TripKey;
@@ -36,6 +38,10 @@ import org.transitclock.db.structs.ArrivalDeparture;
 import org.transitclock.ipc.data.IpcArrivalDeparture;
 import org.transitclock.utils.Time;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
 /**
  * @author Sean Og Crudden This is a Cache to hold a sorted list of all arrival departure events
  *         for each stop in a cache. We can use this to look up all event for a
@@ -45,7 +51,8 @@ import org.transitclock.utils.Time;
  *         TODO this could do with an interface, factory class, and alternative
  *         implementations, perhaps using Infinispan.
  */
-public class StopArrivalDepartureCache extends StopArrivalDepartureCacheInterface {
+public class StopArrivalDepartureCache extends StopArrivalDepartureCacheInterface
+		implements SnapshotableCache {
 
 
 	private static boolean debug = false;
@@ -64,10 +71,37 @@ public class StopArrivalDepartureCache extends StopArrivalDepartureCacheInterfac
 			"How old an arrivaldeparture has to be before it is removed from the cache ");
 
 
+	/**
+	 * Number of locks used for putting events into the cache. Puts for
+	 * different stops only contend if the stops hash to the same lock.
+	 */
+	private static final int DEFAULT_NUMBER_LOCK_STRIPES = 64;
+	
+	// Locks for the read-modify-write of putting an event. Readers don't lock
+	// since the cached StopEvents are copied on write and never modified once
+	// in the cache.
+	private final Object[] lockStripes;
+
 	public StopArrivalDepartureCache() {		
 		CacheManager cm = CacheManagerFactory.getInstance();
 									
 		cache = cm.getCache(cacheByStop, StopArrivalDepartureCacheKey.class, StopEvents.class);	
+		
+		lockStripes = new Object[DEFAULT_NUMBER_LOCK_STRIPES];
+		for (int i = 0; i < DEFAULT_NUMBER_LOCK_STRIPES; ++i)
+			lockStripes[i] = new Object();
+	}
+	
+	/**
+	 * Returns the lock to use when modifying the events for the key
+	 * 
+	 * @param key
+	 * @return the lock
+	 */
+	private Object getLock(StopArrivalDepartureCacheKey key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return lockStripes[(h & 0x7fffffff) % lockStripes.length];
 	}
 	
 	public void logCache(Logger logger) {
@@ -78,8 +112,22 @@ public class StopArrivalDepartureCache extends StopArrivalDepartureCacheInterfac
 	 * @see org.transitime.core.dataCache.ehcache.StopArrivalDepartureCacheInterface#getStopHistory(org.transitime.core.dataCache.StopArrivalDepartureCacheKey)
 	 */
 	
-	@SuppressWarnings("unchecked")
-	synchronized public List<IpcArrivalDeparture> getStopHistory(StopArrivalDepartureCacheKey key) {
+	public List<IpcArrivalDeparture> getStopHistory(StopArrivalDepartureCacheKey key) {
+
+		StopEvents result = getStopEvents(key);
+		
+		if (result != null) {
+			return (List<IpcArrivalDeparture>) result.getEvents();
+		} else {
+			return null;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.core.dataCache.StopArrivalDepartureCacheInterface#getStopEvents(org.transitclock.core.dataCache.StopArrivalDepartureCacheKey)
+	 */
+	@Override
+	public StopEvents getStopEvents(StopArrivalDepartureCacheKey key) {
 
 		//logger.debug(cache.toString());
 		Calendar date = Calendar.getInstance();
@@ -90,21 +138,14 @@ public class StopArrivalDepartureCache extends StopArrivalDepartureCacheInterfac
 		date.set(Calendar.SECOND, 0);
 		date.set(Calendar.MILLISECOND, 0);
 		key.setDate(date.getTime());
-		StopEvents result = cache.get(key);
-		
-		if (result != null) {
-			return (List<IpcArrivalDeparture>) result.getEvents();
-		} else {
-			return null;
-		}
+		return cache.get(key);
 	}
 
 	/* (non-Javadoc)
 	 * @see org.transitime.core.dataCache.ehcache.StopArrivalDepartureCacheInterface#putArrivalDeparture(org.transitime.db.structs.ArrivalDeparture)
 	 */
 	
-	@SuppressWarnings("unchecked")
-	synchronized public StopArrivalDepartureCacheKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
+	public StopArrivalDepartureCacheKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
 
 		logger.debug("Putting :" + arrivalDeparture.toString() + " in StopArrivalDepartureCache cache.");
 	
@@ -120,19 +161,11 @@ public class StopArrivalDepartureCache extends StopArrivalDepartureCacheInterfac
 			StopArrivalDepartureCacheKey key = new StopArrivalDepartureCacheKey(arrivalDeparture.getStop().getId(),
 					date.getTime());
 					
-			StopEvents element = cache.get(key);
-	
-			if (element == null) {														
-				element=new StopEvents();	
-			}
-			
 			try {
-				element.addEvent(new IpcArrivalDeparture(arrivalDeparture));
+				addEvent(key, new IpcArrivalDeparture(arrivalDeparture));
 			} catch (Exception e) {				
 				logger.error("Error adding "+arrivalDeparture.toString()+" event to StopArrivalDepartureCache.", e);				
 			}			
-									
-			cache.put(key,element);
 	
 			return key;
 		}else
@@ -141,6 +174,30 @@ public class StopArrivalDepartureCache extends StopArrivalDepartureCacheInterfac
 		}
 	}
 
+	/**
+	 * Atomically adds the event to the events for the key. A copy of the
+	 * cached StopEvents is modified and then put into the cache so that
+	 * readers never see a partially modified object and don't need to lock.
+	 * The copy shares the events of the cached StopEvents so this doesn't
+	 * depend on how many events there already are for the stop. Only puts
+	 * for keys that share a lock stripe contend with each other.
+	 * 
+	 * @param key
+	 *            key whose date is already the start of the day
+	 * @param event
+	 */
+	private void addEvent(StopArrivalDepartureCacheKey key, IpcArrivalDeparture event) {
+		synchronized (getLock(key)) {
+			StopEvents element = cache.get(key);
+			
+			StopEvents newElement = 
+					element == null ? new StopEvents() : new StopEvents(element);
+			newElement.addEvent(event);
+			
+			cache.put(key, newElement);
+		}
+	}
+	
 	private static <T> Iterable<T> emptyIfNull(Iterable<T> iterable) {
 		return iterable == null ? Collections.<T> emptyList() : iterable;
 	}
@@ -166,4 +223,19 @@ public class StopArrivalDepartureCache extends StopArrivalDepartureCacheInterfac
 	}
 
 
+	@Override
+	public String getSnapshotName() {
+		return cacheByStop;
+	}
+
+	@Override
+	public int writeSnapshot(Kryo kryo, Output output) {
+		return CacheSnapshotManager.writeEntries(cache, kryo, output);
+	}
+
+	@Override
+	public int readSnapshot(Kryo kryo, Input input) {
+		return CacheSnapshotManager.readEntries(cache, StopArrivalDepartureCacheKey.class,
+				StopEvents.class, kryo, input);
+	}
 }
@@ -25,7 +25,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.applications.Core;
 import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.core.dataCache.CacheSnapshotManager;
 import org.transitclock.core.dataCache.IpcArrivalDepartureComparator;
+import org.transitclock.core.dataCache.SnapshotableCache;
 import org.transitclock.core.dataCache.TripDataHistoryCacheFactory;
 import org.transitclock.core.dataCache.TripDataHistoryCacheInterface;
 import org.transitclock.core.dataCache.TripEvents;
@@ -38,6 +40,10 @@ import org.transitclock.gtfs.GtfsData;
 import org.transitclock.ipc.data.IpcArrivalDeparture;
 import org.transitclock.utils.Time;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
 /**
  * @author Sean Og Crudden 
  * 		   This is a Cache to hold historical arrival departure data for frequency based trips. It
@@ -46,7 +52,7 @@ import org.transitclock.utils.Time;
  *         filter. 
  *         
  */
-public class TripDataHistoryCache implements TripDataHistoryCacheInterface{
+public class TripDataHistoryCache implements TripDataHistoryCacheInterface, SnapshotableCache{
 	private static TripDataHistoryCacheInterface singleton = new TripDataHistoryCache();
 	
 	private static boolean debug = false;
@@ -224,4 +230,20 @@ public class TripDataHistoryCache implements TripDataHistoryCacheInterface{
 		return null;
 	}
 
+	@Override
+	public String getSnapshotName() {
+		return cacheByTrip;
+	}
+
+	@Override
+	synchronized public int writeSnapshot(Kryo kryo, Output output) {
+		return CacheSnapshotManager.writeEntries(cache, kryo, output);
+	}
+
+	@Override
+	public int readSnapshot(Kryo kryo, Input input) {
+		return CacheSnapshotManager.readEntries(cache, TripKey.class,
+				TripEvents.class, kryo, input);
+	}
+
 }
@@ -33,12 +33,16 @@ import org.transitclock.db.structs.Trip;
 import org.transitclock.gtfs.DbConfig;
 import org.transitclock.gtfs.GtfsData;
 import org.transitclock.ipc.data.IpcArrivalDeparture;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
 /**
  * @author Sean Óg Crudden
  * This class is to hold the historical average for frequency based services. It puts them in buckets that represent increments of time. The start time of the trip is used to decide which 
  * bucket to apply the data to or which average to retrieve.  
  */
-public class FrequencyBasedHistoricalAverageCache {	
+public class FrequencyBasedHistoricalAverageCache implements SnapshotableCache {	
 	
 	private static FrequencyBasedHistoricalAverageCache singleton = new FrequencyBasedHistoricalAverageCache();
 	
@@ -305,6 +309,49 @@ public class FrequencyBasedHistoricalAverageCache {
 			}
 		}		
 	}
+	@Override
+	public String getSnapshotName() {
+		return "FrequencyBasedHistoricalAverageCache";
+	}
+
+	/**
+	 * StopPathKey is an inner class so its fields are written instead of
+	 * letting Kryo serialize it.
+	 */
+	@Override
+	synchronized public int writeSnapshot(Kryo kryo, Output output) {
+		int numEntries = 0;
+		for (StopPathKey key : m.keySet()) {
+			TreeMap<Long, HistoricalAverage> averages = m.get(key);
+			for (Long time : averages.keySet()) {
+				output.writeBoolean(true);
+				output.writeString(key.tripId);
+				kryo.writeObjectOrNull(output, key.stopPathIndex, Integer.class);
+				output.writeBoolean(key.travelTime);
+				kryo.writeObjectOrNull(output, time, Long.class);
+				kryo.writeObject(output, averages.get(time));
+				++numEntries;
+			}
+		}
+		output.writeBoolean(false);
+		return numEntries;
+	}
+
+	@Override
+	synchronized public int readSnapshot(Kryo kryo, Input input) {
+		int numEntries = 0;
+		while (input.readBoolean()) {
+			String tripId = input.readString();
+			Integer stopPathIndex = kryo.readObjectOrNull(input, Integer.class);
+			boolean travelTime = input.readBoolean();
+			Long time = kryo.readObjectOrNull(input, Long.class);
+			HistoricalAverage average = kryo.readObject(input, HistoricalAverage.class);
+			putAverage(new StopPathCacheKey(tripId, stopPathIndex, travelTime, time),
+					average);
+			++numEntries;
+		}
+		return numEntries;
+	}
 	public static int round(double i, int v){
 	    return (int) (Math.floor(i/v) * v);
 	}
@@ -21,8 +21,10 @@ import org.transitclock.applications.Core;
 import org.transitclock.core.DwellTimeDetails;
 import org.transitclock.core.TravelTimeDetails;
 import org.transitclock.core.dataCache.ArrivalDepartureComparator;
+import org.transitclock.core.dataCache.CacheSnapshotManager;
 import org.transitclock.core.dataCache.HistoricalAverage;
 import org.transitclock.core.dataCache.KalmanErrorCacheKey;
+import org.transitclock.core.dataCache.SnapshotableCache;
 import org.transitclock.core.dataCache.StopPathCacheKey;
 import org.transitclock.core.dataCache.TripDataHistoryCacheFactory;
 import org.transitclock.core.dataCache.TripKey;
@@ -33,11 +35,15 @@ import org.transitclock.db.structs.ArrivalDeparture;
 import org.transitclock.db.structs.Trip;
 import org.transitclock.gtfs.DbConfig;
 import org.transitclock.ipc.data.IpcArrivalDeparture;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
 /**
  * @author Sean Óg Crudden
  * 
  */
-public class ScheduleBasedHistoricalAverageCache {
+public class ScheduleBasedHistoricalAverageCache implements SnapshotableCache {
 	final private static String cacheName = "HistoricalAverageCache";
 	private static ScheduleBasedHistoricalAverageCache singleton = new ScheduleBasedHistoricalAverageCache();
 	private static final Logger logger = LoggerFactory
@@ -189,4 +195,20 @@ public class ScheduleBasedHistoricalAverageCache {
 		// TODO Auto-generated method stub
 		return null;
 	}
+
+	@Override
+	public String getSnapshotName() {
+		return cacheName;
+	}
+
+	@Override
+	synchronized public int writeSnapshot(Kryo kryo, Output output) {
+		return CacheSnapshotManager.writeEntries(cache, kryo, output);
+	}
+
+	@Override
+	public int readSnapshot(Kryo kryo, Input input) {
+		return CacheSnapshotManager.readEntries(cache, StopPathCacheKey.class,
+				HistoricalAverage.class, kryo, input);
+	}
 }
@@ -1,21 +1,20 @@
 package org.transitclock.core.headwaygenerator;
 
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
 import org.transitclock.applications.Core;
 import org.transitclock.core.HeadwayGenerator;
 import org.transitclock.core.VehicleState;
+import org.transitclock.core.dataCache.HeadwayAggregates;
+import org.transitclock.core.dataCache.HeadwayAggregates.HeadwayStatistics;
 import org.transitclock.core.dataCache.StopArrivalDepartureCacheFactory;
 import org.transitclock.core.dataCache.StopArrivalDepartureCacheKey;
 import org.transitclock.core.dataCache.VehicleDataCache;
-import org.transitclock.core.dataCache.VehicleStateManager;
 import org.transitclock.core.dataCache.ehcache.StopArrivalDepartureCache;
 import org.transitclock.db.structs.ArrivalDeparture;
 import org.transitclock.db.structs.Headway;
 import org.transitclock.ipc.data.IpcArrivalDeparture;
-import org.transitclock.ipc.data.IpcVehicleComplete;
 
 /**
  *
@@ -72,7 +71,7 @@ public class LastArrivalsHeadwayGenerator implements HeadwayGenerator {
 
 					Headway headway=new Headway(headwayTime, new Date(date), vehicleId, stopList.get(previousVehicleArrivalIndex).getVehicleId(), stopId, vehicleState.getTrip().getId(), vehicleState.getTrip().getRouteId(), new Date(stopList.get(lastStopArrivalIndex).getTime().getTime()), new Date(stopList.get(previousVehicleArrivalIndex).getTime().getTime()));
 					// TODO Core.getInstance().getDbLogger().add(headway);
-					setSystemVariance(headway);
+					setSystemVariance(headway, vehicleState);
 					return headway;
 				}
 			}
@@ -82,50 +81,21 @@ public class LastArrivalsHeadwayGenerator implements HeadwayGenerator {
 		}
 		return null;
 	}
-	private void setSystemVariance(Headway headway)
+	private void setSystemVariance(Headway headway, VehicleState vehicleState)
 	{
-		ArrayList<Headway> headways=new ArrayList<Headway>();
-		for(IpcVehicleComplete currentVehicle:VehicleDataCache.getInstance().getVehicles())
-		{
-			VehicleState vehicleState = VehicleStateManager.getInstance().getVehicleState(currentVehicle.getId());
-			if(vehicleState.getHeadway()!=null)
-			{
-				headways.add(vehicleState.getHeadway());
-			}
-		}
+		// Running values for the route are kept up to date as headways
+		// change so don't need to look at every vehicle
+		HeadwayStatistics statistics = HeadwayAggregates.getInstance().getHeadwayStatistics(headway.getRouteId());
+
+		int numVehiclesOnRoute = VehicleDataCache.getInstance().getNumberOfVehiclesForRoute(vehicleState.getTrip().getRouteShortName());
+
 		// ONLY SET IF HAVE VALES FOR ALL VEHICLES ON ROUTE.
-		if(VehicleDataCache.getInstance().getVehicles().size()==headways.size())
+		if(statistics.getNumVehicles()>0 && statistics.getNumVehicles()==numVehiclesOnRoute)
 		{
-			headway.setAverage(average(headways));
-			headway.setVariance(variance(headways));
-			headway.setCoefficientOfVariation(coefficientOfVariance(headways));
-			headway.setNumVehicles(headways.size());
+			headway.setAverage(statistics.getAverage());
+			headway.setVariance(statistics.getVariance());
+			headway.setCoefficientOfVariation(statistics.getCoefficientOfVariation());
+			headway.setNumVehicles(statistics.getNumVehicles());
 		}
 	}
-	private double average(List<Headway> headways)
-	{
-		double total=0;
-		for(Headway headway:headways)
-		{
-			total=total+headway.getHeadway();
-		}
-		return total/headways.size();
-	}
-	private double variance(List<Headway> headways)
-	{
-		double topline=0;
-		double average = average(headways);
-		for(Headway headway:headways)
-		{
-			topline=topline+((headway.getHeadway()-average)*(headway.getHeadway()-average));
-		}
-		return topline/headways.size();
-	}
-	private double coefficientOfVariance(List<Headway> headways)
-	{
-		double variance = variance(headways);;
-		double average = average(headways);
-
-		return variance/(average*average);
-	}
 }
@@ -1,22 +1,21 @@
 package org.transitclock.core.headwaygenerator;
 
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
 import org.transitclock.applications.Core;
 import org.transitclock.core.HeadwayGenerator;
 import org.transitclock.core.VehicleState;
+import org.transitclock.core.dataCache.HeadwayAggregates;
+import org.transitclock.core.dataCache.HeadwayAggregates.HeadwayStatistics;
 import org.transitclock.core.dataCache.PredictionDataCache;
 import org.transitclock.core.dataCache.StopArrivalDepartureCacheFactory;
 import org.transitclock.core.dataCache.StopArrivalDepartureCacheKey;
 import org.transitclock.core.dataCache.VehicleDataCache;
-import org.transitclock.core.dataCache.VehicleStateManager;
 import org.transitclock.core.dataCache.ehcache.StopArrivalDepartureCache;
 import org.transitclock.db.structs.ArrivalDeparture;
 import org.transitclock.db.structs.Headway;
 import org.transitclock.ipc.data.IpcArrivalDeparture;
-import org.transitclock.ipc.data.IpcVehicleComplete;
 
 /**
  *
@@ -83,7 +82,7 @@ public class LastDepartureHeadwayGenerator implements HeadwayGenerator {
 						if(vehicleState.getHeadway()==null||!vehicleState.getHeadway().equals(headway))
 						{
 							vehicleState.setHeadway(headway);
-							setSystemVariance(headway);
+							setSystemVariance(headway, vehicleState);
 							return headway;
 						}else
 						{
@@ -99,63 +98,27 @@ public class LastDepartureHeadwayGenerator implements HeadwayGenerator {
 		}
 		return null;
 	}
-	private void setSystemVariance(Headway headway)
+	private void setSystemVariance(Headway headway, VehicleState vehicleState)
 	{
-		ArrayList<Headway> headways=new ArrayList<Headway>();
+		// Running values for the route are kept up to date as headways
+		// change so don't need to look at every vehicle
+		HeadwayStatistics statistics = HeadwayAggregates.getInstance().getHeadwayStatistics(headway.getRouteId());
+
+		int numVehiclesOnRoute = VehicleDataCache.getInstance().getNumberOfVehiclesForRoute(vehicleState.getTrip().getRouteShortName());
 
-		int total_with_headway=0;
-		int total_vehicles=0;
-		boolean error=false;
-		for(IpcVehicleComplete currentVehicle:VehicleDataCache.getInstance().getVehicles())
-		{
-			VehicleState vehicleState = VehicleStateManager.getInstance().getVehicleState(currentVehicle.getId());
-			if(vehicleState.getHeadway()!=null)
-			{
-				headways.add(vehicleState.getHeadway());
-				total_with_headway++;
-			}
-			total_vehicles++;
-		}
 		// ONLY SET IF HAVE VALES FOR ALL VEHICLES ON ROUTE.
-		if(VehicleDataCache.getInstance().getVehicles().size()==headways.size()&&total_vehicles==total_with_headway)
+		if(statistics.getNumVehicles()>0 && statistics.getNumVehicles()==numVehiclesOnRoute)
 		{
-			headway.setAverage(average(headways));
-			headway.setVariance(variance(headways));
-			headway.setCoefficientOfVariation(coefficientOfVariance(headways));
-			headway.setNumVehicles(headways.size());
+			headway.setAverage(statistics.getAverage());
+			headway.setVariance(statistics.getVariance());
+			headway.setCoefficientOfVariation(statistics.getCoefficientOfVariation());
+			headway.setNumVehicles(statistics.getNumVehicles());
 		}else
 		{
 			headway.setAverage(-1);
 			headway.setVariance(-1);
 			headway.setCoefficientOfVariation(-1);
-			headway.setNumVehicles(total_with_headway);
-		}
-	}
-	private double average(List<Headway> headways)
-	{
-		double total=0;
-		for(Headway headway:headways)
-		{
-			total=total+headway.getHeadway();
+			headway.setNumVehicles(statistics.getNumVehicles());
 		}
-		return total/headways.size();
 	}
-	private double variance(List<Headway> headways)
-	{
-		double topline=0;
-		double average = average(headways);
-		for(Headway headway:headways)
-		{
-			topline=topline+((headway.getHeadway()-average)*(headway.getHeadway()-average));
-		}
-		return topline/headways.size();
-	}
-	private double coefficientOfVariance(List<Headway> headways)
-	{
-		double variance = variance(headways);;
-		double average = average(headways);
-
-		return variance/(average*average);
-	}
-
 }
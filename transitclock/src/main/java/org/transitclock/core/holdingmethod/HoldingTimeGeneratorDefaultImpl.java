@@ -15,6 +15,7 @@ import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.config.StringListConfigValue;
 import org.transitclock.core.VehicleState;
 import org.transitclock.core.dataCache.ArrivalDepartureComparator;
+import org.transitclock.core.dataCache.HeadwayAggregates;
 import org.transitclock.core.dataCache.HoldingTimeCache;
 import org.transitclock.core.dataCache.IpcArrivalDepartureComparator;
 import org.transitclock.core.dataCache.PredictionDataCache;
@@ -226,74 +227,25 @@ public class HoldingTimeGeneratorDefaultImpl implements HoldingTimeGenerator {
 		// Return null so has no effect.
 		return null;
 	}
+	/**
+	 * Returns the vehicles of the route ordered by their headways. Uses the
+	 * headways that are kept up to date for each route as they change.
+	 * 
+	 * @param routeId
+	 * @return ordered list of vehicle IDs, with the first one repeated at the
+	 *         end, or null if the headways of the vehicles on the route don't
+	 *         link them together into a ring. Empty if no vehicles on the
+	 *         route have a headway.
+	 */
 	public static List<String> getOrderedListOfVehicles(String routeId)
 	{
-		int count=0;
-		boolean canorder=true;
-		List<VehicleState> unordered=new ArrayList<VehicleState>();
-		List<String> ordered=null;
-		for(VehicleState currentVehicleState:VehicleStateManager.getInstance().getVehiclesState())
-		{
-			if(currentVehicleState.getTrip()!=null&&currentVehicleState.getTrip().getRoute().getId().equals(routeId)&&currentVehicleState.isPredictable())
-			{
-				count++;
-				unordered.add(currentVehicleState);
-				if(currentVehicleState.getHeadway()==null)
-				{
-					canorder=false;
-					
-				}
-			}
-		}
-		if(canorder)
-		{
-			ordered=new ArrayList<String>();
-			
-			while(((count+1) > 0)&&unordered.size() > 0)			
-			{
-				if(ordered.size()==0)
-				{
-					String first=unordered.get(0).getVehicleId();
-					String second=unordered.get(0).getHeadway().getOtherVehicleId();
-				
-					ordered.add(first);
-					count--;
-					ordered.add(second);
-					count--;
-				}else
-				{
-					ordered.add(VehicleStateManager.getInstance().getVehicleState(ordered.get(ordered.size()-1)).getHeadway().getOtherVehicleId());
-					count--;
-				}
-				
-			}
-			// check first vehicle equals last vehicle
-			if(ordered.size()>1)
-			{
-				if(!ordered.get(ordered.size()-1).equals(ordered.get(0)))
-				{
-					return null;
-				}
-			}
-		}
-		return ordered;
+		return HeadwayAggregates.getInstance().getOrderedListOfVehicles(routeId);
 	}
 	protected ArrayList<HoldingTime> getCurrentHoldingTimesForStop(String stopId)
 	{
-		ArrayList<HoldingTime> currentHoldingTimes=new ArrayList<HoldingTime>();
-
-		for(IpcVehicleComplete currentVehicle:VehicleDataCache.getInstance().getVehicles())
-		{
-			VehicleState vehicleState = VehicleStateManager.getInstance().getVehicleState(currentVehicle.getId());
-			if(vehicleState.getHoldingTime()!=null)
-			{
-				if(vehicleState.getHoldingTime().getStopId().equals(stopId))
-				{
-					currentHoldingTimes.add(vehicleState.getHoldingTime());
-				}
-			}
-		}
-		return currentHoldingTimes;
+		// Holding times are kept by stop as they change so don't need to look
+		// at every vehicle
+		return HeadwayAggregates.getInstance().getHoldingTimesForStop(stopId);
 	}
 	protected HoldingTime getNextDepartureByHoldingTime(String currentVehicleId, List<HoldingTime> holdingTimes)
 	{
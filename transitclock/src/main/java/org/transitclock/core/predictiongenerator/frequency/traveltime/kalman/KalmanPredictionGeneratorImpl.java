@@ -28,9 +28,6 @@ import org.transitclock.core.predictiongenerator.PredictionComponentElementsGene
 import org.transitclock.core.predictiongenerator.frequency.traveltime.average.HistoricalAveragePredictionGeneratorImpl;
 import org.transitclock.core.predictiongenerator.kalman.KalmanPrediction;
 import org.transitclock.core.predictiongenerator.kalman.KalmanPredictionResult;
-import org.transitclock.core.predictiongenerator.kalman.TripSegment;
-import org.transitclock.core.predictiongenerator.kalman.Vehicle;
-import org.transitclock.core.predictiongenerator.kalman.VehicleStopDetail;
 import org.transitclock.db.structs.AvlReport;
 import org.transitclock.db.structs.PredictionForStopPath;
 import org.transitclock.db.structs.VehicleEvent;
@@ -74,8 +71,11 @@ public class KalmanPredictionGeneratorImpl extends HistoricalAveragePredictionGe
 			"transitclock.prediction.data.kalman.percentagePredictionMethodDifferencene", new Integer(50),
 			"If the difference in prediction method estimates is greater than this percentage log a Vehicle Event");
 
+
 	private static final Logger logger = LoggerFactory.getLogger(KalmanPredictionGeneratorImpl.class);
 
+	private final KalmanPrediction kalmanPrediction = new KalmanPrediction();
+
 	/*
 	 * (non-Javadoc)
 	 *
@@ -86,9 +86,11 @@ public class KalmanPredictionGeneratorImpl extends HistoricalAveragePredictionGe
 	@Override
 	public long getTravelTimeForPath(Indices indices, AvlReport avlReport, VehicleState vehicleState) {
 
-		logger.debug("Calling frequency based Kalman prediction algorithm for : "+indices.toString());
+		logger.debug("Calling frequency based Kalman prediction algorithm for : {}", indices);
 		
-		long alternatePrediction = super.getTravelTimeForPath(indices, avlReport, vehicleState);
+		// Only determined if actually needed since it can be expensive
+		long alternatePrediction = 0;
+		boolean haveAlternatePrediction = false;
 		
 		Integer time=FrequencyBasedHistoricalAverageCache.secondsFromMidnight(avlReport.getDate(),2);
 		
@@ -113,7 +115,7 @@ public class KalmanPredictionGeneratorImpl extends HistoricalAveragePredictionGe
 			 */
 			if (travelTimeDetails!=null) {
 
-				logger.debug("Kalman has last vehicle info for : " +indices.toString()+ " : "+travelTimeDetails);
+				logger.debug("Kalman has last vehicle info for : {} : {}", indices, travelTimeDetails);
 
 				Date nearestDay = DateUtils.truncate(avlReport.getDate(), Calendar.DAY_OF_MONTH);
 				
@@ -121,9 +123,9 @@ public class KalmanPredictionGeneratorImpl extends HistoricalAveragePredictionGe
 						indices.getStopPathIndex(), nearestDay, time,
 						maxKalmanDaysToSearch.getValue(), maxKalmanDays.getValue());
 
-				if(lastDaysTimes!=null&&lastDaysTimes.size()>0)
+				if(lastDaysTimes!=null&&lastDaysTimes.size()>0&&logger.isDebugEnabled())
 				{
-					logger.debug("Kalman has " +lastDaysTimes.size()+ " historical values for : " +indices.toString());
+					logger.debug("Kalman has {} historical values for : {}", lastDaysTimes.size(), indices);
 				}
 				/*
 				 * if we have enough data start using Kalman filter otherwise revert
@@ -131,63 +133,66 @@ public class KalmanPredictionGeneratorImpl extends HistoricalAveragePredictionGe
 				 */
 				if (lastDaysTimes != null && lastDaysTimes.size() >= minKalmanDays.getValue().intValue()) {
 
-					logger.debug("Generating Kalman prediction for : "+indices.toString());
+					logger.debug("Generating Kalman prediction for : {}", indices);
 
 					try {
+						int numberHistorical = Math.min(lastDaysTimes.size(), maxKalmanDays.getValue());
+						long[] historicalDurations = KalmanPrediction.getHistoricalDurations(numberHistorical);
+						for (int i = 0; i < numberHistorical; i++) {
 
-						KalmanPrediction kalmanPrediction = new KalmanPrediction();
-
-						KalmanPredictionResult kalmanPredictionResult;
-
-						Vehicle vehicle = new Vehicle(avlReport.getVehicleId());
+							logger.debug("Kalman is using historical value : {} for : {}", lastDaysTimes.get(i), indices);
 
-						VehicleStopDetail originDetail = new VehicleStopDetail(null, 0, vehicle);
-						TripSegment[] historical_segments_k = new TripSegment[lastDaysTimes.size()];
-						for (int i = 0; i < lastDaysTimes.size() && i < maxKalmanDays.getValue(); i++) {
-
-							logger.debug("Kalman is using historical value : "+lastDaysTimes.get(i) +" for : " + indices.toString());
-
-							VehicleStopDetail destinationDetail = new VehicleStopDetail(null, lastDaysTimes.get(i).getTravelTime(),
-									vehicle);
-							historical_segments_k[i] = new TripSegment(originDetail, destinationDetail);
+							historicalDurations[i] = lastDaysTimes.get(i).getTravelTime();
 						}
 
-						VehicleStopDetail destinationDetail_0_k_1 = new VehicleStopDetail(null, travelTimeDetails.getTravelTime(), vehicle);
-
-						TripSegment ts_day_0_k_1 = new TripSegment(originDetail, destinationDetail_0_k_1);
-
-						TripSegment last_vehicle_segment = ts_day_0_k_1;
+						KalmanErrorCacheKey previousVehicleKey = KalmanPrediction.getErrorCacheKeyForLookup(
+								travelTimeDetails.getArrival().getTripId(), travelTimeDetails.getArrival().getStopPathIndex());
 
-						Indices previousVehicleIndices = new Indices(travelTimeDetails.getArrival());
+						KalmanError last_prediction_error = lastVehiclePredictionError(kalmanErrorCache, previousVehicleKey);
 
-						KalmanError last_prediction_error = lastVehiclePredictionError(kalmanErrorCache, previousVehicleIndices);
-
-						logger.debug("Using error value: " + last_prediction_error +" found with vehicle id "+travelTimeDetails.getArrival().getVehicleId()+ " from: "+new KalmanErrorCacheKey(previousVehicleIndices).toString());											
+						if (logger.isDebugEnabled()) {
+							logger.debug("Using error value: {} found with vehicle id {} from: {}", last_prediction_error, 
+									travelTimeDetails.getArrival().getVehicleId(), previousVehicleKey);
+						}
 
-						kalmanPredictionResult = kalmanPrediction.predict(last_vehicle_segment, historical_segments_k,
-								last_prediction_error.getError());
+						KalmanPredictionResult kalmanPredictionResult = KalmanPrediction.getResultForThread();
+						
+						kalmanPrediction.predict(travelTimeDetails.getTravelTime(), historicalDurations, numberHistorical,
+								last_prediction_error.getError(), kalmanPredictionResult);
 
 						long predictionTime = (long) kalmanPredictionResult.getResult();
 
-						logger.debug("Setting Kalman error value: " + kalmanPredictionResult.getFilterError() + " for : "+ new KalmanErrorCacheKey(indices).toString());
+						if (logger.isDebugEnabled()) {
+							logger.debug("Setting Kalman error value: {} for : {}", kalmanPredictionResult.getFilterError(), new KalmanErrorCacheKey(indices));
+						}
 
 						kalmanErrorCache.putErrorValue(indices, kalmanPredictionResult.getFilterError());
 												
+						// The alternative prediction is only needed if comparing it to the 
+						// Kalman one or if it is to be stored
+						if (KalmanPrediction.logPredictionMethodDifference.getValue() || storeTravelTimeStopPathPredictions.getValue()) {
+							alternatePrediction = super.getTravelTimeForPath(indices, avlReport, vehicleState);
+							haveAlternatePrediction = true;
+						}
 						
-						logger.debug("Using Kalman prediction: " + predictionTime + " instead of "+alternative+" prediction: "
-								+ alternatePrediction +" for : " + indices.toString());
-						
-						double percentageDifferecence = 100 * ((predictionTime - alternatePrediction) / (double)alternatePrediction);
+						if (logger.isDebugEnabled()) {
+							logger.debug("Using Kalman prediction: {} instead of {} prediction: {} for : {}", predictionTime, alternative,
+									haveAlternatePrediction ? alternatePrediction : "(not generated)", indices);
+						}
 						
-						if(Math.abs(percentageDifferecence)>percentagePredictionMethodDifferenceneEventLog.getValue())
-						{
-							String description="Predictions for "+ indices.toString()+ " have more that a "+percentagePredictionMethodDifferenceneEventLog.getValue() + " difference. Kalman predicts : "+predictionTime+" Super predicts : "+alternatePrediction;
-							VehicleEvent.create(vehicleState.getAvlReport(), vehicleState.getMatch(),
-									VehicleEvent.PREDICTION_VARIATION,
-									description,
-									true,  // predictable
-									false, // becameUnpredictable
-									null); // supervisor
+						if (haveAlternatePrediction && KalmanPrediction.logPredictionMethodDifference.getValue()) {
+							double percentageDifferecence = 100 * ((predictionTime - alternatePrediction) / (double)alternatePrediction);
+							
+							if(Math.abs(percentageDifferecence)>percentagePredictionMethodDifferenceneEventLog.getValue())
+							{
+								String description="Predictions for "+ indices.toString()+ " have more that a "+percentagePredictionMethodDifferenceneEventLog.getValue() + " difference. Kalman predicts : "+predictionTime+" Super predicts : "+alternatePrediction;
+								VehicleEvent.create(vehicleState.getAvlReport(), vehicleState.getMatch(),
+										VehicleEvent.PREDICTION_VARIATION,
+										description,
+										true,  // predictable
+										false, // becameUnpredictable
+										null); // supervisor
+							}
 						}
 
 						if(storeTravelTimeStopPathPredictions.getValue())
@@ -207,7 +212,9 @@ public class KalmanPredictionGeneratorImpl extends HistoricalAveragePredictionGe
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
-		return alternatePrediction;
+		if (haveAlternatePrediction)
+			return alternatePrediction;
+		return super.getTravelTimeForPath(indices, avlReport, vehicleState);
 	}
 
 	@Override
@@ -239,12 +246,13 @@ public class KalmanPredictionGeneratorImpl extends HistoricalAveragePredictionGe
 
 	
 	
-	private KalmanError lastVehiclePredictionError(ErrorCache cache, Indices indices) {
+	private KalmanError lastVehiclePredictionError(ErrorCache cache, KalmanErrorCacheKey key) {
 
-		KalmanError result = cache.getErrorValue(indices);
+		KalmanError result = cache.getErrorValue(key);
 		if(result==null)
 		{
-			logger.debug("Kalman Error value set to default: "+initialErrorValue.getValue() +" for key: "+new KalmanErrorCacheKey(indices).toString());
+			if (logger.isDebugEnabled())
+				logger.debug("Kalman Error value set to default: {} for key: {}", initialErrorValue.getValue(), key);
 			result=new KalmanError(initialErrorValue.getValue());
 		}
 		return result;
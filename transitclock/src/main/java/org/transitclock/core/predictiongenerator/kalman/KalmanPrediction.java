@@ -1,6 +1,7 @@
 package org.transitclock.core.predictiongenerator.kalman;
 
 import org.transitclock.config.BooleanConfigValue;
+import org.transitclock.core.dataCache.KalmanErrorCacheKey;
 
 /**
  * @author Sean Óg Crudden
@@ -20,53 +21,146 @@ public class KalmanPrediction
 			"transitclock.prediction.kalman.useaverage", new Boolean(true), 
 			"Will use average travel time as opposed to last historical vehicle in Kalman prediction calculation."
 	);
+	
+	/**
+	 * Shared by the scheduled and frequency based Kalman prediction generators.
+	 */
+	public static final BooleanConfigValue logPredictionMethodDifference = new BooleanConfigValue (
+			"transitclock.prediction.data.kalman.logPredictionMethodDifference", new Boolean(true), 
+			"If true the Kalman prediction is compared to the prediction of the alternative method and a Prediction Event is logged if they differ by too much. "
+			+ "If false, and transitclock.core.storeTravelTimeStopPathPredictions is also false, the alternative prediction isn't generated when Kalman is used."
+	);
+	
+	// Reused by each thread so that objects don't need to be created for
+	// every Kalman prediction
+	private static final ThreadLocal<long[]> historicalDurationsForThread = new ThreadLocal<long[]>();
+	private static final ThreadLocal<KalmanPredictionResult> resultForThread = new ThreadLocal<KalmanPredictionResult>() {
+		@Override
+		protected KalmanPredictionResult initialValue() {
+			return new KalmanPredictionResult(0, 0);
+		}
+	};
+	private static final ThreadLocal<KalmanErrorCacheKey> errorCacheKeyForThread = new ThreadLocal<KalmanErrorCacheKey>() {
+		@Override
+		protected KalmanErrorCacheKey initialValue() {
+			return new KalmanErrorCacheKey((String) null, null);
+		}
+	};
+	
+	/**
+	 * Returns array for the historical durations for the current thread,
+	 * making it larger if needed.
+	 * 
+	 * @param size number of historical durations needed
+	 * @return array that is at least size long
+	 */
+	public static long[] getHistoricalDurations(int size)
+	{
+		long[] historicalDurations = historicalDurationsForThread.get();
+		if (historicalDurations == null || historicalDurations.length < size) {
+			historicalDurations = new long[size];
+			historicalDurationsForThread.set(historicalDurations);
+		}
+		return historicalDurations;
+	}
+	
+	/**
+	 * @return result object for the current thread, to be passed to
+	 *         predict(long, long[], int, double, KalmanPredictionResult)
+	 */
+	public static KalmanPredictionResult getResultForThread()
+	{
+		return resultForThread.get();
+	}
+	
+	/**
+	 * Returns the key for the current thread set to the trip and stop path.
+	 * Only to be used for looking up a value, such as with
+	 * ErrorCache.getErrorValue(KalmanErrorCacheKey), since the key is
+	 * changed by the next call on the same thread.
+	 * 
+	 * @param tripId
+	 * @param stopPathIndex
+	 * @return key for looking up the Kalman error
+	 */
+	public static KalmanErrorCacheKey getErrorCacheKeyForLookup(String tripId, int stopPathIndex)
+	{
+		KalmanErrorCacheKey key = errorCacheKeyForThread.get();
+		key.setTripId(tripId);
+		key.setStopPathIndex(stopPathIndex);
+		return key;
+	}
+	
 	public KalmanPredictionResult predict(TripSegment last_vehicle_segment,TripSegment historical_segments[], double last_prediction_error) throws Exception
 	{
-		KalmanPredictionResult result=null; 								
+		long historical_durations[]=new long[historical_segments.length];
+		for(int i=0;i<historical_segments.length;i++)
+		{
+			historical_durations[i]=historical_segments[i].getDestination().getTime()-historical_segments[i].getOrigin().getTime();
+		}
+		long last_vehicle_duration=last_vehicle_segment.getDestination().getTime()-last_vehicle_segment.getOrigin().getTime();
+		
+		KalmanPredictionResult result=new KalmanPredictionResult(0, 0);
+		
+		predict(last_vehicle_duration, historical_durations, historical_durations.length, last_prediction_error, result);
 						
-		double average=historicalAverage(historical_segments);
+		return result;				
+	}
+	
+	/**
+	 * Same calculation as predict(TripSegment, TripSegment[], double) but
+	 * using just the durations. Doesn't allocate any objects so that it can
+	 * be called for every stop path of every prediction without creating
+	 * garbage.
+	 * 
+	 * @param last_vehicle_duration The time the last vehicle took to cover the segment
+	 * @param historical_durations The time taken to cover the segment on previous days, oldest first. Can be a reused array that is larger than needed.
+	 * @param number_historical How many of the historical_durations to use 
+	 * @param last_prediction_error From the previous segments calculation result.
+	 * @param result Set to the predicted duration and the filter error to be used in the next prediction calculation. Can be reused.
+	 * @throws Exception if there are no historical durations
+	 */
+	public void predict(long last_vehicle_duration, long historical_durations[], int number_historical, double last_prediction_error, KalmanPredictionResult result) throws Exception
+	{
+		double average=historicalAverage(historical_durations, number_historical);
 		
-		double variance = historicalVariance(historical_segments, average);
+		double variance = historicalVariance(historical_durations, number_historical, average);
 						
 		double gain=gain(average, variance, last_prediction_error );	
 		
 		double loop_gain=1-gain;
 		
-		result=new KalmanPredictionResult(prediction(gain, loop_gain, historical_segments, last_vehicle_segment, average),filterError( variance, gain));
-						
-		return result;				
+		result.setResult(prediction(gain, loop_gain, historical_durations, number_historical, last_vehicle_duration, average));
+		result.setFilterError(filterError( variance, gain));
 	}
-	private double historicalAverage(TripSegment historical_segments[]) throws Exception	
+	private double historicalAverage(long historical_durations[], int number_historical) throws Exception	
 	{
-		if(historical_segments.length>0)
+		if(number_historical>0)
 		{
 			long total=0;
-			for(int i=0;i<historical_segments.length;i++)
+			for(int i=0;i<number_historical;i++)
 			{
-				long duration=historical_segments[i].getDestination().getTime()-historical_segments[i].getOrigin().getTime();
-				total=total+duration;
+				total=total+historical_durations[i];
 			}
-			return (double) (total/historical_segments.length);
+			return (double) (total/number_historical);
 		}else
 		{
 			throw new Exception("Cannot average nothing");
 		}				
 	}
-	private double historicalVariance(TripSegment historical_segments[], double average)		
+	private double historicalVariance(long historical_durations[], int number_historical, double average)		
 	{			
 		double total=0;
 		
-		for(int i=0;i<historical_segments.length;i++)
+		for(int i=0;i<number_historical;i++)
 		{
-			long duration=historical_segments[i].getDestination().getTime()-historical_segments[i].getOrigin().getTime();
-			
-			double diff=duration-average;
+			double diff=historical_durations[i]-average;
 			
 			double long_diff_squared=diff*diff;
 			
 			total=total+long_diff_squared;
 		}		
-		return total/historical_segments.length;		
+		return total/number_historical;		
 	}
 	private double filterError(double variance, double loop_gain)
 	{
@@ -79,7 +173,7 @@ public class KalmanPrediction
 		return gain;				
 	}
 	
-	private double prediction(double gain, double loop_gain, TripSegment historical_segments[],  TripSegment last_vechicle_segment, double average_duration)	
+	private double prediction(double gain, double loop_gain, long historical_durations[], int number_historical, long last_vehicle_duration, double average_duration)	
 	{
 				
 		double historical_duration=average_duration;
@@ -87,15 +181,92 @@ public class KalmanPrediction
 		/* This may be better use the historical average rather than just the vehicle on previous day. This would damping issues with last days value being dramatically different. */
 		if(useaverage.getValue()==false)
 		{
-			historical_duration=historical_segments[historical_segments.length-1].getDestination().getTime()-historical_segments[historical_segments.length-1].getOrigin().getTime();
+			historical_duration=historical_durations[number_historical-1];
 		}
 							
-		long last_vehicle_duration=last_vechicle_segment.getDestination().getTime()-last_vechicle_segment.getOrigin().getTime();
-				
 		double prediction=(loop_gain*last_vehicle_duration)+(gain*historical_duration);
 		
 		return prediction;	
 	}	
+	
+	/**
+	 * Compares how much memory is allocated per prediction by the
+	 * TripSegment based predict() and the duration based one.
+	 */
+	private static void benchmark()
+	{
+		KalmanPrediction kalmanPrediction=new KalmanPrediction();
+		int iterations=1000000;
+		long historical[]={380, 420, 400};
+		
+		java.lang.management.ThreadMXBean threadBean=java.lang.management.ManagementFactory.getThreadMXBean();
+		if(!(threadBean instanceof com.sun.management.ThreadMXBean))
+		{
+			System.out.println("Allocation measurement not supported by this JVM.");
+			return;
+		}
+		com.sun.management.ThreadMXBean allocationBean=(com.sun.management.ThreadMXBean) threadBean;
+		long threadId=Thread.currentThread().getId();
+		
+		try {
+			double checksum=0;
+			
+			// Warm up both paths so that the JIT has compiled them
+			Vehicle vehicle=new Vehicle("benchmark");
+			for(int i=0;i<iterations;i++)
+			{
+				checksum+=predictUsingSegments(kalmanPrediction, vehicle, historical, 300+i%100);
+			}
+			KalmanPredictionResult result=new KalmanPredictionResult(0, 0);
+			for(int i=0;i<iterations;i++)
+			{
+				kalmanPrediction.predict(300+i%100, historical, historical.length, 72.40, result);
+				checksum+=result.getResult();
+			}
+			
+			long startBytes=allocationBean.getThreadAllocatedBytes(threadId);
+			long startNanos=System.nanoTime();
+			for(int i=0;i<iterations;i++)
+			{
+				checksum+=predictUsingSegments(kalmanPrediction, vehicle, historical, 300+i%100);
+			}
+			long segmentNanos=System.nanoTime()-startNanos;
+			long segmentBytes=allocationBean.getThreadAllocatedBytes(threadId)-startBytes;
+			
+			startBytes=allocationBean.getThreadAllocatedBytes(threadId);
+			startNanos=System.nanoTime();
+			for(int i=0;i<iterations;i++)
+			{
+				kalmanPrediction.predict(300+i%100, historical, historical.length, 72.40, result);
+				checksum+=result.getResult();
+			}
+			long durationNanos=System.nanoTime()-startNanos;
+			long durationBytes=allocationBean.getThreadAllocatedBytes(threadId)-startBytes;
+			
+			System.out.println("TripSegment predict: "+(double)segmentBytes/iterations+" bytes and "+(double)segmentNanos/iterations+" nsec per prediction");
+			System.out.println("Duration predict: "+(double)durationBytes/iterations+" bytes and "+(double)durationNanos/iterations+" nsec per prediction");
+			System.out.println("(checksum "+checksum+")");
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Creates the objects the way KalmanPredictionGeneratorImpl used to in
+	 * order to call the TripSegment based predict(). For benchmark().
+	 */
+	private static double predictUsingSegments(KalmanPrediction kalmanPrediction, Vehicle vehicle, long historical[], long last) throws Exception
+	{
+		VehicleStopDetail originDetail=new VehicleStopDetail(null, 0, vehicle);
+		TripSegment historical_segments[]=new TripSegment[historical.length];
+		for(int i=0;i<historical.length;i++)
+		{
+			historical_segments[i]=new TripSegment(originDetail, new VehicleStopDetail(null, historical[i], vehicle));
+		}
+		TripSegment last_vehicle_segment=new TripSegment(originDetail, new VehicleStopDetail(null, last, vehicle));
+		return kalmanPrediction.predict(last_vehicle_segment, historical_segments, 72.40).getResult();
+	}
+	
 	public static void main(String [ ] args)
 	{
 		KalmanPrediction kalmanPrediction=new KalmanPrediction();
@@ -140,5 +311,7 @@ public class KalmanPrediction
 			System.out.println("Whoops");
 			e.printStackTrace();
 		}		
+		
+		benchmark();
 	}
 }
@@ -32,9 +32,6 @@ import org.transitclock.core.dataCache.jcs.KalmanErrorCache;
 import org.transitclock.core.predictiongenerator.PredictionComponentElementsGenerator;
 import org.transitclock.core.predictiongenerator.kalman.KalmanPrediction;
 import org.transitclock.core.predictiongenerator.kalman.KalmanPredictionResult;
-import org.transitclock.core.predictiongenerator.kalman.TripSegment;
-import org.transitclock.core.predictiongenerator.kalman.Vehicle;
-import org.transitclock.core.predictiongenerator.kalman.VehicleStopDetail;
 import org.transitclock.core.predictiongenerator.scheduled.average.HistoricalAveragePredictionGeneratorImpl;
 import org.transitclock.db.structs.AvlReport;
 import org.transitclock.db.structs.PredictionEvent;
@@ -85,8 +82,11 @@ public class KalmanPredictionGeneratorImpl extends PredictionGeneratorDefaultImp
 			"transitclock.prediction.data.kalman.tresholdForDifferenceEventLog", new Integer(60000),
 			"This is the threshold in milliseconds that the difference has to be over before it will consider the percentage difference.");
 				
+				
 	private static final Logger logger = LoggerFactory.getLogger(KalmanPredictionGeneratorImpl.class);
 
+	private final KalmanPrediction kalmanPrediction = new KalmanPrediction();
+
 	/*
 	 * (non-Javadoc)
 	 *
@@ -97,10 +97,11 @@ public class KalmanPredictionGeneratorImpl extends PredictionGeneratorDefaultImp
 	@Override
 	public long getTravelTimeForPath(Indices indices, AvlReport avlReport, VehicleState vehicleState) {
 
-		logger.debug("Calling Kalman prediction algorithm for : "+indices.toString());
+		logger.debug("Calling Kalman prediction algorithm for : {}", indices);
 
-		long alternatePrediction = super.getTravelTimeForPath(indices, avlReport, vehicleState);
-		
+		// Only determined if actually needed since it can be expensive
+		long alternatePrediction = 0;
+		boolean haveAlternatePrediction = false;
 		
 		TripDataHistoryCacheInterface tripCache = TripDataHistoryCacheFactory.getInstance();
 
@@ -121,7 +122,7 @@ public class KalmanPredictionGeneratorImpl extends PredictionGeneratorDefaultImp
 			 */
 			if (travelTimeDetails!=null) {
 
-				logger.debug("Kalman has last vehicle info for : " +indices.toString()+ " : "+travelTimeDetails);
+				logger.debug("Kalman has last vehicle info for : {} : {}", indices, travelTimeDetails);
 
 				Date nearestDay = DateUtils.truncate(avlReport.getDate(), Calendar.DAY_OF_MONTH);
 
@@ -129,9 +130,9 @@ public class KalmanPredictionGeneratorImpl extends PredictionGeneratorDefaultImp
 						indices.getStopPathIndex(), nearestDay, currentVehicleState.getTrip().getStartTime(),
 						maxKalmanDaysToSearch.getValue(), maxKalmanDays.getValue());
 
-				if(lastDaysTimes!=null)
+				if(lastDaysTimes!=null && logger.isDebugEnabled())
 				{
-					logger.debug("Kalman has " +lastDaysTimes.size()+ " historical values for : " +indices.toString());
+					logger.debug("Kalman has {} historical values for : {}", lastDaysTimes.size(), indices);
 				}
 				/*
 				 * if we have enough data start using Kalman filter otherwise revert
@@ -139,72 +140,77 @@ public class KalmanPredictionGeneratorImpl extends PredictionGeneratorDefaultImp
 				 */
 				if (lastDaysTimes != null && lastDaysTimes.size() >= minKalmanDays.getValue().intValue()) {
 
-					logger.debug("Generating Kalman prediction for : "+indices.toString());
+					logger.debug("Generating Kalman prediction for : {}", indices);
 
 					try {
+						// Oldest historical duration first
+						int numberHistorical = Math.min(lastDaysTimes.size(), maxKalmanDays.getValue());
+						long[] historicalDurations = KalmanPrediction.getHistoricalDurations(numberHistorical);
+						for (int i = 0; i < numberHistorical; i++) {
 
-						KalmanPrediction kalmanPrediction = new KalmanPrediction();
-
-						KalmanPredictionResult kalmanPredictionResult;
+							logger.debug("Kalman is using historical value : {} for : {}", lastDaysTimes.get(i), indices);
 
-						Vehicle vehicle = new Vehicle(avlReport.getVehicleId());
-
-						VehicleStopDetail originDetail = new VehicleStopDetail(null, 0, vehicle);
-						TripSegment[] historical_segments_k = new TripSegment[lastDaysTimes.size()];
-						for (int i = 0; i < lastDaysTimes.size() && i < maxKalmanDays.getValue(); i++) {
-
-							logger.debug("Kalman is using historical value : "+lastDaysTimes.get(i) +" for : " + indices.toString());
-
-							VehicleStopDetail destinationDetail = new VehicleStopDetail(null, lastDaysTimes.get(i).getTravelTime(),
-									vehicle);
-							historical_segments_k[lastDaysTimes.size()-i-1] = new TripSegment(originDetail, destinationDetail);
+							historicalDurations[numberHistorical-i-1] = lastDaysTimes.get(i).getTravelTime();
 						}
 
-						VehicleStopDetail destinationDetail_0_k_1 = new VehicleStopDetail(null, travelTimeDetails.getTravelTime(), vehicle);
-
-						TripSegment ts_day_0_k_1 = new TripSegment(originDetail, destinationDetail_0_k_1);
+						KalmanErrorCacheKey previousVehicleKey = KalmanPrediction.getErrorCacheKeyForLookup(
+								travelTimeDetails.getArrival().getTripId(), travelTimeDetails.getArrival().getStopPathIndex());
 
-						TripSegment last_vehicle_segment = ts_day_0_k_1;
+						KalmanError last_prediction_error = lastVehiclePredictionError(kalmanErrorCache, previousVehicleKey);
 
-						Indices previousVehicleIndices = new Indices(travelTimeDetails.getArrival());
+						if (logger.isDebugEnabled()) {
+							logger.debug("Using error value: {} found with vehicle id {} from: {}", last_prediction_error, 
+									travelTimeDetails.getArrival().getVehicleId(), previousVehicleKey);
 
-						KalmanError last_prediction_error = lastVehiclePredictionError(kalmanErrorCache, previousVehicleIndices);
-
-						logger.debug("Using error value: " + last_prediction_error +" found with vehicle id "+travelTimeDetails.getArrival().getVehicleId()+ " from: "+new KalmanErrorCacheKey(previousVehicleIndices).toString());
-
-						//TODO this should also display the detail of which vehicle it choose as the last one.
-						logger.debug("Using last vehicle value: " + travelTimeDetails + " for : "+ indices.toString());
+							//TODO this should also display the detail of which vehicle it choose as the last one.
+							logger.debug("Using last vehicle value: {} for : {}", travelTimeDetails, indices);
+						}
 
-						kalmanPredictionResult = kalmanPrediction.predict(last_vehicle_segment, historical_segments_k,
-								last_prediction_error.getError());
+						KalmanPredictionResult kalmanPredictionResult = KalmanPrediction.getResultForThread();
+						
+						kalmanPrediction.predict(travelTimeDetails.getTravelTime(), historicalDurations, numberHistorical,
+								last_prediction_error.getError(), kalmanPredictionResult);
 
 						long predictionTime = (long) kalmanPredictionResult.getResult();
 
-						logger.debug("Setting Kalman error value: " + kalmanPredictionResult.getFilterError() + " for : "+ new KalmanErrorCacheKey(indices).toString());
+						if (logger.isDebugEnabled()) {
+							logger.debug("Setting Kalman error value: {} for : {}", kalmanPredictionResult.getFilterError(), new KalmanErrorCacheKey(indices));
+						}
 
 						kalmanErrorCache.putErrorValue(indices, kalmanPredictionResult.getFilterError());
 						
-						double percentageDifferecence = Math.abs(100 * ((predictionTime - alternatePrediction) / (double)alternatePrediction));
+						// The alternative prediction is only needed if comparing it to the 
+						// Kalman one or if it is to be stored
+						if (KalmanPrediction.logPredictionMethodDifference.getValue() || storeTravelTimeStopPathPredictions.getValue()) {
+							alternatePrediction = super.getTravelTimeForPath(indices, avlReport, vehicleState);
+							haveAlternatePrediction = true;
+						}
 						
-						if(((percentageDifferecence *  alternatePrediction)/100) > tresholdForDifferenceEventLog.getValue())
-						{						
-							if(percentageDifferecence > percentagePredictionMethodDifferenceneEventLog.getValue())
-							{
-								String description="Kalman predicts : "+predictionTime+" Super predicts : "+alternatePrediction;
-
-								logger.warn(description);
-								
-								PredictionEvent.create(avlReport, vehicleState.getMatch(), PredictionEvent.PREDICTION_VARIATION, description, 
-										travelTimeDetails.getArrival().getStopId(), 
-										travelTimeDetails.getDeparture().getStopId(),
-										travelTimeDetails.getArrival().getVehicleId(),
-										travelTimeDetails.getArrival().getTime(),
-										travelTimeDetails.getDeparture().getTime());
+						if (haveAlternatePrediction && KalmanPrediction.logPredictionMethodDifference.getValue()) {
+							double percentageDifferecence = Math.abs(100 * ((predictionTime - alternatePrediction) / (double)alternatePrediction));
+							
+							if(((percentageDifferecence *  alternatePrediction)/100) > tresholdForDifferenceEventLog.getValue())
+							{						
+								if(percentageDifferecence > percentagePredictionMethodDifferenceneEventLog.getValue())
+								{
+									String description="Kalman predicts : "+predictionTime+" Super predicts : "+alternatePrediction;
+	
+									logger.warn(description);
+									
+									PredictionEvent.create(avlReport, vehicleState.getMatch(), PredictionEvent.PREDICTION_VARIATION, description, 
+											travelTimeDetails.getArrival().getStopId(), 
+											travelTimeDetails.getDeparture().getStopId(),
+											travelTimeDetails.getArrival().getVehicleId(),
+											travelTimeDetails.getArrival().getTime(),
+											travelTimeDetails.getDeparture().getTime());
+								}
 							}
 						}
 
-						logger.debug("Using Kalman prediction: " + predictionTime + " instead of "+alternative+" prediction: "
-								+ alternatePrediction +" for : " + indices.toString());
+						if (logger.isDebugEnabled()) {
+							logger.debug("Using Kalman prediction: {} instead of {} prediction: {} for : {}", predictionTime, alternative,
+									haveAlternatePrediction ? alternatePrediction : "(not generated)", indices);
+						}
 
 						if(storeTravelTimeStopPathPredictions.getValue())
 						{
@@ -223,7 +229,9 @@ public class KalmanPredictionGeneratorImpl extends PredictionGeneratorDefaultImp
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
-		return alternatePrediction;
+		if (haveAlternatePrediction)
+			return alternatePrediction;
+		return super.getTravelTimeForPath(indices, avlReport, vehicleState);
 	}
 
 	@Override
@@ -253,14 +261,15 @@ public class KalmanPredictionGeneratorImpl extends PredictionGeneratorDefaultImp
 		}
 	}
 
-	private KalmanError lastVehiclePredictionError(ErrorCache cache, Indices indices) {
+	private KalmanError lastVehiclePredictionError(ErrorCache cache, KalmanErrorCacheKey key) {
 
 		KalmanError result;
 		try {
-			result = cache.getErrorValue(indices);
+			result = cache.getErrorValue(key);
 			if(result==null)
 			{		
-				logger.debug("Kalman Error value set to default: "+initialErrorValue.getValue() +" for key: "+new KalmanErrorCacheKey(indices).toString());
+				if (logger.isDebugEnabled())
+					logger.debug("Kalman Error value set to default: {} for key: {}", initialErrorValue.getValue(), key);
 				result=new KalmanError(initialErrorValue.getValue());
 			}
 			return result;
@@ -31,6 +31,7 @@ import java.util.Properties;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.db.webstructs.WebAgency;
 import org.transitclock.utils.IntervalTimer;
 import org.transitclock.utils.Time;
@@ -47,8 +48,17 @@ public class GenericQuery {
 	// Number of rows read in
 	private int rows;
 	
-	// For caching db connection
-	private static Connection connection;
+	// The db connection for the query
+	private final Connection connection;
+
+	private static IntegerConfigValue fetchSize = new IntegerConfigValue(
+			"transitclock.db.genericQueryFetchSize",
+			1000,
+			"Number of rows the JDBC driver reads from the database at a "
+			+ "time for a generic query. Rows are handed to the subclass as "
+			+ "they are read so that large results don't need to be held "
+			+ "in memory all at once. Set to 0 to use the driver default, "
+			+ "which for PostgreSQL reads in the entire result.");
 
 	protected static final Logger logger = LoggerFactory
 			.getLogger(GenericQuery.class);
@@ -127,6 +137,50 @@ public class GenericQuery {
 		return conn;
 	}
 
+	/**
+	 * Prepares a read only, forward only statement that reads the rows in
+	 * batches of transitclock.db.genericQueryFetchSize. For PostgreSQL the
+	 * fetch size is only used if auto commit is off, so it is turned off for
+	 * the connection. The statement therefore needs to be closed using
+	 * closeStreamingStatement().
+	 * 
+	 * @param connection
+	 * @param sql
+	 * @return the prepared statement
+	 * @throws SQLException
+	 */
+	public static PreparedStatement prepareStreamingStatement(
+			Connection connection, String sql) throws SQLException {
+		if (fetchSize.getValue() > 0 && connection.getAutoCommit())
+			connection.setAutoCommit(false);
+
+		PreparedStatement statement = connection.prepareStatement(sql,
+				ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		if (fetchSize.getValue() > 0)
+			statement.setFetchSize(fetchSize.getValue());
+		return statement;
+	}
+
+	/**
+	 * Closes a statement created by prepareStreamingStatement() and turns
+	 * auto commit back on for the connection.
+	 * 
+	 * @param connection
+	 * @param statement
+	 *            the statement to close. Can be null.
+	 * @throws SQLException
+	 */
+	public static void closeStreamingStatement(Connection connection,
+			Statement statement) throws SQLException {
+		try {
+			if (statement != null)
+				statement.close();
+		} finally {
+			if (!connection.getAutoCommit())
+				connection.setAutoCommit(true);
+		}
+	}
+
 	/**
 	 * Performs the specified generic query. A List of GenericResult objects is
 	 * returned. All number columns (integer or float) are placed in
@@ -146,7 +200,7 @@ public class GenericQuery {
 
 		try {			
 			
-			statement = connection.prepareStatement(sql);
+			statement = prepareStreamingStatement(connection, sql);
 			
 			// TODO Deal with dates for the moment
 			for (int i=0;i<parameters.length;i++)
@@ -185,8 +239,7 @@ public class GenericQuery {
 		} catch (SQLException e) {
 			throw e;
 		} finally {
-			if (statement != null)
-				statement.close();
+			closeStreamingStatement(connection, statement);
 		}
 
 	}
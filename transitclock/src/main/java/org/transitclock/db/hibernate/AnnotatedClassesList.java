@@ -25,6 +25,7 @@ import org.transitclock.db.structs.Block;
 import org.transitclock.db.structs.Calendar;
 import org.transitclock.db.structs.CalendarDate;
 import org.transitclock.db.structs.ConfigRevision;
+import org.transitclock.db.structs.ContentHash;
 import org.transitclock.db.structs.DbTest;
 import org.transitclock.db.structs.Departure;
 import org.transitclock.db.structs.FareAttribute;
@@ -82,6 +83,7 @@ public class AnnotatedClassesList {
 		Calendar.class,
 		CalendarDate.class,
 		ConfigRevision.class,
+		ContentHash.class,
 		DbTest.class,
 		Prediction.class,
 		Departure.class,
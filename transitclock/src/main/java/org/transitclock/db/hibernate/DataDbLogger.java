@@ -16,7 +16,9 @@
  */
 package org.transitclock.db.hibernate;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -263,6 +265,27 @@ public class DataDbLogger {
 	  return predictionQueue.queueSize();
 	}
 	
+	/**
+	 * Returns all of the queues so that the throughput and write latency for
+	 * each type of data can be monitored.
+	 * 
+	 * @return list of the queues
+	 */
+	public List<DbQueue<?>> getQueues() {
+	  List<DbQueue<?>> queues = new ArrayList<DbQueue<?>>();
+	  queues.add(arrivalDepartureQueue);
+	  queues.add(avlReportQueue);
+	  queues.add(vehicleConfigQueue);
+	  queues.add(predictionQueue);
+	  queues.add(matchQueue);
+	  queues.add(predictionAccuracyQueue);
+	  queues.add(monitoringEventQueue);
+	  queues.add(vehicleEventQueue);
+	  queues.add(vehicleStateQueue);
+	  queues.add(genericQueue);
+	  return queues;
+	}
+	
 	/**
 	 * Just for doing some testing
 	 * 
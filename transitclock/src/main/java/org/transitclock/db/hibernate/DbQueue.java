@@ -2,13 +2,19 @@ package org.transitclock.db.hibernate;
 
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
@@ -17,10 +23,12 @@ import org.hibernate.Transaction;
 import org.hibernate.exception.GenericJDBCException;
 import org.hibernate.exception.JDBCConnectionException;
 import org.hibernate.exception.SQLGrammarException;
+import org.hibernate.jdbc.Work;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.configData.DbSetupConfig;
 import org.transitclock.logging.Markers;
+import org.transitclock.monitoring.LatencyMetrics;
 import org.transitclock.utils.IntervalTimer;
 import org.transitclock.utils.Time;
 import org.transitclock.utils.threading.NamedThreadFactory;
@@ -28,6 +36,12 @@ import org.transitclock.utils.threading.NamedThreadFactory;
 /**
  * Encapsulate the queuing operations of the database.  Make generic so
  * db-side batching is more effective.
+ * <p>
+ * By default the objects are written through a Hibernate session. If
+ * transitclock.db.useJdbcBatchWriter is set then objects that implement
+ * JdbcBatchInsertable are instead written using JDBC batches of prepared
+ * statements, bypassing the session. The number of threads writing the data
+ * for the queue is set by transitclock.db.numWriterThreadsPerQueue .
  */
 public class DbQueue<T> {
 
@@ -61,12 +75,15 @@ public class DbQueue<T> {
   
   // For keeping track of index into levels, which level of capacity of
   // queue being used. When level changes then an e-mail is sent out warning
-  // the operators.
-  private double indexOfLevelWhenMessageLogged = 0;
+  // the operators. Atomic since updated by the threads adding to the queue
+  // and the writer threads.
+  private final AtomicInteger indexOfLevelWhenMessageLogged = new AtomicInteger();
   
   // For keeping track of maximum capacity of queue that was used. 
-  // Used for logging when queue use is going down.
-  private double maxQueueLevel = 0.0;
+  // Used for logging when queue use is going down. Holds the bits of the
+  // double level so that it can be updated atomically.
+  private final AtomicLong maxQueueLevelBits =
+      new AtomicLong(Double.doubleToLongBits(0.0));
   
   
   // So can access projectId for logging messages
@@ -76,9 +93,15 @@ public class DbQueue<T> {
   private SessionFactory sessionFactory;
   
   // collect some statistics on how the db is performing
-  private long throughputCount = 0;
+  private final AtomicLong throughputCount = new AtomicLong();
   private long throughputTimestamp = System.currentTimeMillis();
   private String shortType;
+  
+  // Totals since startup so that monitoring can determine write throughput
+  // and latency
+  private final AtomicLong totalObjectsWritten = new AtomicLong();
+  private final AtomicLong totalBatchesWritten = new AtomicLong();
+  private final AtomicLong totalWriteNanos = new AtomicLong();
 
   public DbQueue(String projectId, boolean shouldStoreToDb, 
       boolean shouldPauseToReduceQueue, String shortType) {
@@ -91,15 +114,18 @@ public class DbQueue<T> {
     // Create the reusable heavy weight session factory
     sessionFactory = HibernateUtils.getSessionFactory(projectId);
     
-    // Start up separate thread that reads from the queue and
-    // actually stores the data
+    // Start up separate threads that read from the queue and
+    // actually store the data
+    int numThreads = Math.max(1, DbSetupConfig.getNumWriterThreadsPerQueue());
     NamedThreadFactory threadFactory = new NamedThreadFactory(getClass().getSimpleName());
-    ExecutorService executor = Executors.newSingleThreadExecutor(threadFactory);
-    executor.execute(new Runnable() {
-      public void run() {
-        processData();
-        }
-      });
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads, threadFactory);
+    for (int i=0; i<numThreads; ++i) {
+      executor.execute(new Runnable() {
+        public void run() {
+          processData();
+          }
+        });
+    }
     ThroughputMonitor tm = new ThroughputMonitor();
     new Thread(tm).start();
 
@@ -112,14 +138,29 @@ public class DbQueue<T> {
     if (!shouldStoreToDb)
       return true;
     
+    long startNanos = System.nanoTime();
+    try {
+      return enqueue(t);
+    } finally {
+      LatencyMetrics.getInstance().record(LatencyMetrics.DB_QUEUE_ENQUEUE,
+          startNanos);
+    }
+  }
+  
+  /**
+   * Does the work for add().
+   */
+  private boolean enqueue(T t) {
     // Add the object to the queue
     boolean success = queue.offer(t);
 
     double level = queueLevel();
     int levelIndex = indexOfLevel(level);
     // If reached a new level then output message e-mail to warn users
-    if (levelIndex > indexOfLevelWhenMessageLogged) {
-      indexOfLevelWhenMessageLogged = levelIndex;
+    // Only the thread that changes the level logs the message
+    int indexWhenLogged = indexOfLevelWhenMessageLogged.get();
+    if (levelIndex > indexWhenLogged
+        && indexOfLevelWhenMessageLogged.compareAndSet(indexWhenLogged, levelIndex)) {
       String message = success ?
           "DataDbLogger queue filling up " +
           " for projectId=" + projectId +" and type " + shortType + ". It is now at " + 
@@ -140,8 +181,10 @@ public class DbQueue<T> {
     
     // Keep track of max queue level so can log it when queue level 
     // is decreasing again.
-    if (level > maxQueueLevel)
-      maxQueueLevel = level;
+    long maxBits = maxQueueLevelBits.get();
+    while (level > Double.longBitsToDouble(maxBits)
+        && !maxQueueLevelBits.compareAndSet(maxBits, Double.doubleToLongBits(level)))
+      maxBits = maxQueueLevelBits.get();
     
     // If shouldPauseToReduceQueue (because in batch mode or such) and
     // if queue is starting to get more full then pause the calling
@@ -166,7 +209,7 @@ public class DbQueue<T> {
     do {
         buff.clear();
         count = queue.drainTo(buff, DbSetupConfig.getBatchSize());
-        throughputCount += count;
+        throughputCount.addAndGet(count);
         if (count == 0)
           try {
             Thread.sleep(TIME_BETWEEN_RETRIES);
@@ -180,16 +223,18 @@ public class DbQueue<T> {
     // oscillating around a level.
     double level = queueLevel();
     int levelIndexIncludingMargin = indexOfLevel(level + 0.10);
-    if (levelIndexIncludingMargin < indexOfLevelWhenMessageLogged) {
+    int indexWhenLogged = indexOfLevelWhenMessageLogged.get();
+    if (levelIndexIncludingMargin < indexWhenLogged
+        && indexOfLevelWhenMessageLogged.compareAndSet(indexWhenLogged,
+            levelIndexIncludingMargin)) {
+      // Reset the max queue level so can determine what next peak is
+      double maxQueueLevel = Double.longBitsToDouble(
+          maxQueueLevelBits.getAndSet(Double.doubleToLongBits(level)));
       logger.error(Markers.email(), "DataDbLogger queue emptying out somewhat " +
           " for projectId=" + projectId + " and type " + shortType + ". It is now at " + 
           String.format("%.1f", level*100) + "% capacity with " + queue.size() + 
           " elements already in the queue. The maximum capacity was " +
           String.format("%.1f", maxQueueLevel*100) + "%.");
-      indexOfLevelWhenMessageLogged = levelIndexIncludingMargin;
-      
-      // Reset the maxQueueLevel so can determine what next peak is
-      maxQueueLevel = level;
     }
 
     // Return the result
@@ -224,6 +269,29 @@ public class DbQueue<T> {
 		// an exception occurs while batching data.
 		List<Object> objectsForThisBatch = new ArrayList<Object>(DbSetupConfig.getBatchSize());
 		
+		// Get the objects to be stored from the queue
+		objectsForThisBatch.addAll(drain());
+		
+		IntervalTimer batchTimer = new IntervalTimer();
+		
+		// If possible bypass the Hibernate session and use JDBC batch
+		if (DbSetupConfig.getUseJdbcBatchWriter() 
+				&& allJdbcBatchInsertable(objectsForThisBatch)) {
+			try {
+				processBatchOfDataUsingJdbc(objectsForThisBatch);
+			} catch (HibernateException e) {
+				Throwable cause = HibernateUtils.getRootCause(e);
+				logger.error("{} for database for project={} when JDBC batch "
+						+ "writing {} objects: {}. Will try to write each object "
+						+ "from batch individually.", 
+						e.getClass().getSimpleName(), projectId, shortType,
+						cause.getMessage());
+				processObjectsIndividually(objectsForThisBatch);
+			}
+			recordBatchWritten(objectsForThisBatch.size(), batchTimer);
+			return;
+		}
+		
 		Transaction tx = null;
 		Session session = null;
 		
@@ -231,10 +299,6 @@ public class DbQueue<T> {
 			session = sessionFactory.openSession();
 			tx = session.beginTransaction();			
 
-      // Get the objects to be stored from the queue
-      List<T> objectsToBeStored = drain();
-      
-      objectsForThisBatch.addAll(objectsToBeStored);
 			for (Object objectToBeStored : objectsForThisBatch) {				
 				// Write the data to the session. This doesn't yet
 				// actually write the data to the db though. That is only
@@ -318,40 +382,161 @@ public class DbQueue<T> {
 			
 			// Write each object individually so that the valid ones will be
 			// successfully written.
-			for (Object o : objectsForThisBatch) {
-				boolean shouldKeepTrying = false;
-				do {
-					try {
-						processSingleObject(o);
-						shouldKeepTrying = false;
-					} catch (HibernateException e2) {
-						// Need to know if it is a problem with the database not
-						// being accessible or if there is a problem with the SQL/data.
-						// If there is a problem accessibility of the database then
-						// want to keep trying writing the old data. But if it is
-						// a problem with the SQL/data then only want to try to write
-						// the good data from the batch a single time to make sure 
-						// all good data is written.
-						if (shouldKeepTryingBecauseConnectionException(e2)) {
-							shouldKeepTrying = true;
-							logger.error("Encountered database connection " +
-									"exception so will sleep for {} msec and " +
-									"will then try again.", TIME_BETWEEN_RETRIES);
-							Time.sleep(TIME_BETWEEN_RETRIES);
+			processObjectsIndividually(objectsForThisBatch);
+		}
+		
+		recordBatchWritten(objectsForThisBatch.size(), batchTimer);
+	}
+	
+	/**
+	 * Writes each object using its own Hibernate session and transaction. For
+	 * when writing a batch failed. If there is a problem connecting to the
+	 * database then will keep trying to write the object. If there is a
+	 * problem with the data itself then the object is skipped so that the
+	 * rest of the good data is still written.
+	 * 
+	 * @param objectsForThisBatch
+	 */
+	private void processObjectsIndividually(List<Object> objectsForThisBatch) {
+		for (Object o : objectsForThisBatch) {
+			boolean shouldKeepTrying = false;
+			do {
+				try {
+					processSingleObject(o);
+					shouldKeepTrying = false;
+				} catch (HibernateException e2) {
+					// Need to know if it is a problem with the database not
+					// being accessible or if there is a problem with the SQL/data.
+					// If there is a problem accessibility of the database then
+					// want to keep trying writing the old data. But if it is
+					// a problem with the SQL/data then only want to try to write
+					// the good data from the batch a single time to make sure 
+					// all good data is written.
+					if (shouldKeepTryingBecauseConnectionException(e2)) {
+						shouldKeepTrying = true;
+						logger.error("Encountered database connection " +
+								"exception so will sleep for {} msec and " +
+								"will then try again.", TIME_BETWEEN_RETRIES);
+						Time.sleep(TIME_BETWEEN_RETRIES);
+					}
+					
+					// Output message on what is going on
+					Throwable cause2 = HibernateUtils.getRootCause(e2);
+					logger.error(e2.getClass().getSimpleName() + " when individually writing object " +
+							o + ". " + 
+							(shouldKeepTrying?"Will keep trying. " : "") +
+							"msg=" + cause2.getMessage()); 
+				}
+			} while (shouldKeepTrying);
+		}
+	}
+	
+	/**
+	 * Returns true if all of the objects can be written using a JDBC batch.
+	 * 
+	 * @param objects
+	 * @return true if all objects implement JdbcBatchInsertable
+	 */
+	private static boolean allJdbcBatchInsertable(List<Object> objects) {
+		for (Object o : objects) {
+			if (!(o instanceof JdbcBatchInsertable))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes the objects using JDBC batches of prepared statements instead of
+	 * saving them through the Hibernate session. Only the connection and
+	 * transaction of the session are used. Objects are grouped by their
+	 * insert SQL so that a single prepared statement is used for each group.
+	 * 
+	 * @param objectsForThisBatch
+	 *            objects that all implement JdbcBatchInsertable
+	 * @throws HibernateException
+	 *             if there is a problem writing the batch. The transaction
+	 *             will have been rolled back.
+	 */
+	private void processBatchOfDataUsingJdbc(List<Object> objectsForThisBatch) 
+			throws HibernateException {
+		// Group the objects by SQL. Usually there is only a single group but
+		// arrivals and departures share a table with different subclasses.
+		final Map<String, List<JdbcBatchInsertable>> objectsBySql = 
+				new LinkedHashMap<String, List<JdbcBatchInsertable>>();
+		for (Object o : objectsForThisBatch) {
+			JdbcBatchInsertable insertable = (JdbcBatchInsertable) o;
+			List<JdbcBatchInsertable> objectsForSql = 
+					objectsBySql.get(insertable.getInsertSql());
+			if (objectsForSql == null) {
+				objectsForSql = new ArrayList<JdbcBatchInsertable>();
+				objectsBySql.put(insertable.getInsertSql(), objectsForSql);
+			}
+			objectsForSql.add(insertable);
+		}
+		
+		Session session = null;
+		Transaction tx = null;
+		try {
+			session = sessionFactory.openSession();
+			tx = session.beginTransaction();
+			session.doWork(new Work() {
+				@Override
+				public void execute(Connection connection) throws SQLException {
+					for (Map.Entry<String, List<JdbcBatchInsertable>> entry : 
+							objectsBySql.entrySet()) {
+						PreparedStatement statement = 
+								connection.prepareStatement(entry.getKey());
+						try {
+							for (JdbcBatchInsertable insertable : entry.getValue()) {
+								insertable.bindInsertParameters(statement);
+								statement.addBatch();
+							}
+							statement.executeBatch();
+						} finally {
+							statement.close();
 						}
-						
-						// Output message on what is going on
-						Throwable cause2 = HibernateUtils.getRootCause(e2);
-						logger.error(e2.getClass().getSimpleName() + " when individually writing object " +
-								o + ". " + 
-								(shouldKeepTrying?"Will keep trying. " : "") +
-								"msg=" + cause2.getMessage()); 
 					}
-				} while (shouldKeepTrying);
+				}
+			});
+			
+			logger.debug("Committing {} {} objects written using JDBC batch. "
+					+ "{} objects still in queue.", 
+					objectsForThisBatch.size(), shortType, queueSize());
+			tx.commit();
+		} catch (HibernateException e) {
+			try {
+				if (tx != null)
+					tx.rollback();
+			} catch (HibernateException e2) {
+				logger.error("Error rolling back transaction after JDBC batch "
+						+ "writing data via DataDbLogger.", e2);
+			}
+			throw e;
+		} finally {
+			try {
+				if (session != null)
+					session.close();
+			} catch (HibernateException e2) {
+				logger.error("Error closing session after JDBC batch writing "
+						+ "data via DataDbLogger.", e2);
 			}
 		}
 	}
 	
+	/**
+	 * Updates the totals used for determining throughput and latency of
+	 * writing to the database.
+	 * 
+	 * @param numberObjects
+	 * @param batchTimer
+	 *            timer created before the batch was written
+	 */
+	private void recordBatchWritten(int numberObjects, IntervalTimer batchTimer) {
+		totalObjectsWritten.addAndGet(numberObjects);
+		totalBatchesWritten.incrementAndGet();
+		totalWriteNanos.addAndGet(batchTimer.elapsedNanoSec());
+	}
+	
   
   /**
    * This is the main method for processing data. It simply keeps on calling
@@ -400,6 +585,34 @@ public class DbQueue<T> {
     return queue.size();
   }
   
+  /**
+   * Returns the short name of the type of objects stored by this queue
+   * @return the type
+   */
+  public String getShortType() {
+    return shortType;
+  }
+  
+  /**
+   * Returns total number of objects written to the database since startup
+   * @return number of objects written
+   */
+  public long getTotalObjectsWritten() {
+    return totalObjectsWritten.get();
+  }
+  
+  /**
+   * Returns the average time in msec it took to write a batch of objects to
+   * the database, including retrying individual objects if the batch failed.
+   * @return average batch write latency in msec
+   */
+  public double getAverageBatchWriteMsec() {
+    long batches = totalBatchesWritten.get();
+    if (batches == 0)
+      return 0.0;
+    return (double) totalWriteNanos.get() / batches / Time.NSEC_PER_MSEC;
+  }
+  
   /**
    * Returns the index into levels that the queue capacity is at.
    * For determining if should send e-mail warning message.
@@ -507,13 +720,12 @@ public class DbQueue<T> {
     
     private void processThroughput() {
       long delta = (System.currentTimeMillis() - throughputTimestamp)/1000;
-      if (throughputCount == 0) {
+      if (throughputCount.get() == 0) {
         logger.debug("wrote nothing");
         return;
       }
       
-      long throughput = throughputCount;
-      throughputCount = 0;
+      long throughput = throughputCount.getAndSet(0);
       throughputTimestamp = System.currentTimeMillis();
       double rate = throughput / delta;
       logger.info("wrote {} {} messages in {}s, ({}/s) ", throughput, shortType, (long)delta/1000, (long)rate);
@@ -0,0 +1,51 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.db.hibernate;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * For append only objects that can be written to the database by DbQueue
+ * using a JDBC batch of prepared statements instead of going through a
+ * Hibernate session. Bypassing the session means that the objects don't
+ * need to be tracked in the session's persistence context, which makes
+ * writing large volumes of data much more efficient.
+ * <p>
+ * The SQL and bound parameters must match the columns that Hibernate maps
+ * for the class.
+ */
+public interface JdbcBatchInsertable {
+
+	/**
+	 * Returns the SQL for inserting the object. Objects that return the same
+	 * SQL are written together in a single JDBC batch.
+	 *
+	 * @return the insert SQL with a ? for each parameter
+	 */
+	public String getInsertSql();
+
+	/**
+	 * Sets the parameters of the prepared statement, whose SQL was returned
+	 * by getInsertSql(), to the values of this object.
+	 *
+	 * @param statement
+	 * @throws SQLException
+	 */
+	public void bindInsertParameters(PreparedStatement statement)
+			throws SQLException;
+}
@@ -17,6 +17,10 @@
 package org.transitclock.db.structs;
 
 import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
@@ -47,6 +51,7 @@ import org.transitclock.configData.AgencyConfig;
 import org.transitclock.configData.DbSetupConfig;
 import org.transitclock.core.TemporalDifference;
 import org.transitclock.db.hibernate.HibernateUtils;
+import org.transitclock.db.hibernate.JdbcBatchInsertable;
 import org.transitclock.logging.Markers;
 import org.transitclock.utils.Geo;
 import org.transitclock.utils.IntervalTimer;
@@ -73,7 +78,8 @@ import org.transitclock.utils.Time;
                       columnList="time" ),
                    @Index(name="ArrivalsDeparturesRouteTimeIndex", 
                       columnList="routeShortName, time" )} )
-public class ArrivalDeparture implements Lifecycle, Serializable  {
+public class ArrivalDeparture implements Lifecycle, Serializable,
+		JdbcBatchInsertable {
 	
 	@Id 
 	@Column(length=HibernateUtils.DEFAULT_ID_SIZE)
@@ -379,6 +385,58 @@ public class ArrivalDeparture implements Lifecycle, Serializable  {
 	public boolean onDelete(Session s) throws CallbackException {
 		return Lifecycle.NO_VETO;
 	}
+
+	/**
+	 * SQL for writing to the database using a JDBC batch. The DTYPE column is
+	 * the discriminator that Hibernate uses to distinguish between the Arrival
+	 * and Departure subclasses.
+	 */
+	private static final String INSERT_SQL = "INSERT INTO ArrivalsDepartures "
+			+ "(DTYPE, vehicleId, tripId, time, stopId, isArrival, gtfsStopSeq, "
+			+ "avlTime, blockId, configRev, directionId, freqStartTime, "
+			+ "routeId, routeShortName, scheduledTime, serviceId, stopOrder, "
+			+ "stopPathIndex, stopPathLength, tripIndex) "
+			+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.db.hibernate.JdbcBatchInsertable#getInsertSql()
+	 */
+	@Override
+	public String getInsertSql() {
+		return INSERT_SQL;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.db.hibernate.JdbcBatchInsertable#bindInsertParameters(java.sql.PreparedStatement)
+	 */
+	@Override
+	public void bindInsertParameters(PreparedStatement statement)
+			throws SQLException {
+		int i = 0;
+		statement.setString(++i, getClass().getSimpleName());
+		statement.setString(++i, vehicleId);
+		statement.setString(++i, tripId);
+		statement.setTimestamp(++i, new Timestamp(time.getTime()));
+		statement.setString(++i, stopId);
+		statement.setBoolean(++i, isArrival);
+		statement.setInt(++i, gtfsStopSeq);
+		statement.setTimestamp(++i, 
+				avlTime == null ? null : new Timestamp(avlTime.getTime()));
+		statement.setString(++i, blockId);
+		statement.setInt(++i, configRev);
+		statement.setString(++i, directionId);
+		statement.setTimestamp(++i, freqStartTime == null ? 
+				null : new Timestamp(freqStartTime.getTime()));
+		statement.setString(++i, routeId);
+		statement.setString(++i, routeShortName);
+		statement.setTimestamp(++i, scheduledTime == null ? 
+				null : new Timestamp(scheduledTime.getTime()));
+		statement.setString(++i, serviceId);
+		statement.setObject(++i, stopOrder, Types.INTEGER);
+		statement.setInt(++i, stopPathIndex);
+		statement.setFloat(++i, stopPathLength);
+		statement.setInt(++i, tripIndex);
+	}
 	
 	/**
 	 * For logging each creation of an ArrivalDeparture to the separate
@@ -17,6 +17,10 @@
 package org.transitclock.db.structs;
 
 import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.Date;
 import java.util.List;
 import java.util.regex.Pattern;
@@ -42,6 +46,7 @@ import org.slf4j.LoggerFactory;
 import org.transitclock.applications.Core;
 import org.transitclock.configData.AvlConfig;
 import org.transitclock.db.hibernate.HibernateUtils;
+import org.transitclock.db.hibernate.JdbcBatchInsertable;
 import org.transitclock.ipc.data.IpcAvl;
 import org.transitclock.utils.Geo;
 import org.transitclock.utils.Time;
@@ -62,7 +67,7 @@ import net.jcip.annotations.Immutable;
 @Table(name="AvlReports",  
        indexes = { @Index(name="AvlReportsTimeIndex", 
                           columnList="time" ) })
-public class AvlReport implements Serializable {
+public class AvlReport implements Serializable, JdbcBatchInsertable {
 	// vehicleId is an @Id since might get multiple AVL reports
 	// for different vehicles with the same time but need a unique
 	// primary key.
@@ -614,6 +619,51 @@ public class AvlReport implements Serializable {
 			return null;
 	}
 	
+	/**
+	 * SQL for writing to the database using a JDBC batch
+	 */
+	private static final String INSERT_SQL = "INSERT INTO AvlReports "
+			+ "(vehicleId, time, assignmentId, assignmentType, driverId, "
+			+ "field1Name, field1Value, heading, licensePlate, lat, lon, "
+			+ "passengerCount, passengerFullness, source, speed, "
+			+ "timeProcessed) "
+			+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.db.hibernate.JdbcBatchInsertable#getInsertSql()
+	 */
+	@Override
+	public String getInsertSql() {
+		return INSERT_SQL;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.db.hibernate.JdbcBatchInsertable#bindInsertParameters(java.sql.PreparedStatement)
+	 */
+	@Override
+	public void bindInsertParameters(PreparedStatement statement)
+			throws SQLException {
+		int i = 0;
+		statement.setString(++i, vehicleId);
+		statement.setTimestamp(++i, new Timestamp(time.getTime()));
+		statement.setString(++i, assignmentId);
+		statement.setString(++i, 
+				assignmentType == null ? null : assignmentType.name());
+		statement.setString(++i, driverId);
+		statement.setString(++i, field1Name);
+		statement.setString(++i, field1Value);
+		statement.setObject(++i, heading, Types.FLOAT);
+		statement.setString(++i, licensePlate);
+		statement.setDouble(++i, location.getLat());
+		statement.setDouble(++i, location.getLon());
+		statement.setObject(++i, passengerCount, Types.INTEGER);
+		statement.setObject(++i, passengerFullness, Types.FLOAT);
+		statement.setString(++i, source);
+		statement.setObject(++i, speed, Types.FLOAT);
+		statement.setTimestamp(++i, timeProcessed == null ? 
+				null : new Timestamp(timeProcessed.getTime()));
+	}
+	
 	@Override
 	public int hashCode() {
 		final int prime = 31;
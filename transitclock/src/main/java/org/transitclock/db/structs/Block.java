@@ -61,6 +61,7 @@ import org.transitclock.configData.CoreConfig;
 import org.transitclock.core.SpatialMatch;
 import org.transitclock.db.hibernate.HibernateUtils;
 import org.transitclock.gtfs.DbConfig;
+import org.transitclock.gtfs.ScheduleSnapshot;
 import org.transitclock.logging.Markers;
 import org.transitclock.utils.IntervalTimer;
 import org.transitclock.utils.Time;
@@ -299,6 +300,81 @@ public final class Block implements Serializable {
 		return totalRowsUpdated;
 	}
 	
+	/**
+	 * Copies the blocks of a rev, along with their Block_to_Trip_joinTable
+	 * rows, to another rev. Uses INSERT ... SELECT so that the data is copied
+	 * by the database instead of having to be read in. The trips must
+	 * already have been copied because of the foreign keys. For when only the
+	 * blocks that changed are to be written to a new rev.
+	 * 
+	 * @param session
+	 * @param fromConfigRev
+	 * @param toConfigRev
+	 *            must not contain any blocks yet
+	 * @return Number of rows copied
+	 * @throws HibernateException
+	 */
+	public static int copyFromRev(Session session, int fromConfigRev,
+			int toConfigRev) throws HibernateException {
+		int rowsUpdated = 0;
+		rowsUpdated += session.
+				createSQLQuery("INSERT INTO Blocks (serviceId, configRev, "
+						+ "blockId, endTime, routeIds, startTime) "
+						+ "SELECT serviceId, " + toConfigRev + ", blockId, "
+						+ "endTime, routeIds, startTime FROM Blocks "
+						+ "WHERE configRev=" + fromConfigRev).
+				executeUpdate();
+		rowsUpdated += session.
+				createSQLQuery("INSERT INTO Block_to_Trip_joinTable "
+						+ "(Blocks_serviceId, Blocks_configRev, Blocks_blockId, "
+						+ "trips_tripId, trips_startTime, trips_configRev, "
+						+ "listIndex) "
+						+ "SELECT Blocks_serviceId, " + toConfigRev + ", "
+						+ "Blocks_blockId, trips_tripId, trips_startTime, "
+						+ toConfigRev + ", listIndex "
+						+ "FROM Block_to_Trip_joinTable "
+						+ "WHERE Blocks_configRev=" + fromConfigRev).
+				executeUpdate();
+		logger.info("Copied {} rows of blocks from configRev={} to "
+				+ "configRev={}", rowsUpdated, fromConfigRev, toConfigRev);
+		return rowsUpdated;
+	}
+	
+	/**
+	 * Deletes a single block of the rev from the Blocks and
+	 * Block_to_Trip_joinTable. Unlike deleteFromRev(Session, int) the trips
+	 * are not deleted since they might still be used by other blocks. For
+	 * when only the blocks that changed are being updated.
+	 * 
+	 * @param session
+	 * @param configRev
+	 * @param blockId
+	 * @param serviceId
+	 * @return Number of rows deleted
+	 * @throws HibernateException
+	 */
+	public static int deleteFromRev(Session session, int configRev,
+			String blockId, String serviceId) throws HibernateException {
+		int rowsUpdated = 0;
+		rowsUpdated += session.
+				createSQLQuery("DELETE FROM Block_to_Trip_joinTable "
+						+ "WHERE Blocks_configRev=:configRev "
+						+ "AND Blocks_blockId=:blockId "
+						+ "AND Blocks_serviceId=:serviceId").
+				setInteger("configRev", configRev).
+				setString("blockId", blockId).
+				setString("serviceId", serviceId).
+				executeUpdate();
+		rowsUpdated += session.
+				createSQLQuery("DELETE FROM Blocks WHERE configRev=:configRev "
+						+ "AND blockId=:blockId AND serviceId=:serviceId").
+				setInteger("configRev", configRev).
+				setString("blockId", blockId).
+				setString("serviceId", serviceId).
+				executeUpdate();
+		return rowsUpdated;
+	}
+	
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
@@ -803,6 +879,15 @@ public final class Block implements Serializable {
 	 * @return the trips as an unmodifiable collection
 	 */
 	public List<Trip> getTrips() {
+		// If the schedule snapshot has been created then use it since it
+		// doesn't require any locking or a live session
+		ScheduleSnapshot scheduleSnapshot = ScheduleSnapshot.getCurrent();
+		if (scheduleSnapshot != null) {
+			List<Trip> snapshotTrips = scheduleSnapshot.getTrips(this);
+			if (snapshotTrips != null)
+				return snapshotTrips;
+		}
+		
 		// If trips already lazy loaded then simply return them
 		if (Hibernate.isInitialized(trips))
 			return Collections.unmodifiableList(trips);
@@ -0,0 +1,269 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.db.structs;
+
+import java.io.Serializable;
+import java.util.List;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.transitclock.db.hibernate.HibernateUtils;
+import org.transitclock.utils.MapKey;
+
+/**
+ * A hash of the content of a configuration object, such as a Block, Trip,
+ * or TripPattern, as it was written for a configuration revision. When GTFS
+ * data is processed again the hashes of the new objects can be compared to
+ * these so that only the objects that actually changed need to be written
+ * to the database.
+ * <p>
+ * An object is identified by its type, its ID, and a sub ID for objects
+ * whose primary key has a second part, such as the service ID of a Block or
+ * the start time of a Trip.
+ */
+@Entity
+@Table(name="ContentHashes")
+public class ContentHash implements Serializable {
+
+	@Column
+	@Id
+	private final int configRev;
+
+	@Column(length=20)
+	@Id
+	private final String entityType;
+
+	@Column(length=2*HibernateUtils.DEFAULT_ID_SIZE)
+	@Id
+	private final String entityId;
+
+	@Column(length=HibernateUtils.DEFAULT_ID_SIZE)
+	@Id
+	private final String subId;
+
+	// Hex string of the MD5 hash of the content
+	@Column(length=32)
+	private final String hash;
+
+	// Hibernate requires class to be serializable because has composite Id
+	private static final long serialVersionUID = -4511916378853962218L;
+
+	// The subId for objects whose key doesn't have a second part. Not an
+	// empty string because Oracle stores that as null, and subId is part of
+	// the primary key.
+	public static final String NO_SUB_ID = "-";
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param configRev
+	 * @param entityType
+	 *            such as "Block"
+	 * @param entityId
+	 * @param subId
+	 *            second part of the key. NO_SUB_ID if there isn't one.
+	 * @param hash
+	 */
+	public ContentHash(int configRev, String entityType, String entityId,
+			String subId, String hash) {
+		this.configRev = configRev;
+		this.entityType = entityType;
+		this.entityId = entityId;
+		this.subId = subId;
+		this.hash = hash;
+	}
+
+	/**
+	 * Needed because Hibernate requires no-arg constructor
+	 */
+	@SuppressWarnings("unused")
+	private ContentHash() {
+		this.configRev = -1;
+		this.entityType = null;
+		this.entityId = null;
+		this.subId = null;
+		this.hash = null;
+	}
+
+	/**
+	 * Reads in all the content hashes for the configuration revision.
+	 *
+	 * @param session
+	 * @param configRev
+	 * @return the content hashes
+	 * @throws HibernateException
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<ContentHash> getContentHashes(Session session,
+			int configRev) throws HibernateException {
+		String hql = "FROM ContentHash WHERE configRev = :configRev";
+		Query query = session.createQuery(hql);
+		query.setInteger("configRev", configRev);
+		return query.list();
+	}
+
+	/**
+	 * Deletes all the content hashes for the configuration revision.
+	 *
+	 * @param session
+	 * @param configRev
+	 * @return number of rows deleted
+	 * @throws HibernateException
+	 */
+	public static int deleteFromRev(Session session, int configRev)
+			throws HibernateException {
+		return session.createSQLQuery("DELETE FROM ContentHashes "
+				+ "WHERE configRev=" + configRev).executeUpdate();
+	}
+
+	/**
+	 * Copies the content hashes of a rev to another rev, for when the
+	 * unchanged objects are copied to a new rev.
+	 *
+	 * @param session
+	 * @param fromConfigRev
+	 * @param toConfigRev
+	 * @return number of rows copied
+	 * @throws HibernateException
+	 */
+	public static int copyFromRev(Session session, int fromConfigRev,
+			int toConfigRev) throws HibernateException {
+		return session.createSQLQuery("INSERT INTO ContentHashes "
+				+ "(configRev, entityType, entityId, subId, hash) "
+				+ "SELECT " + toConfigRev + ", entityType, entityId, subId, "
+				+ "hash FROM ContentHashes WHERE configRev=" + fromConfigRev)
+				.executeUpdate();
+	}
+
+	/**
+	 * Deletes the content hash for a single object.
+	 *
+	 * @param session
+	 * @param configRev
+	 * @param entityType
+	 * @param entityId
+	 * @param subId
+	 * @return number of rows deleted
+	 * @throws HibernateException
+	 */
+	public static int delete(Session session, int configRev,
+			String entityType, String entityId, String subId)
+			throws HibernateException {
+		return session.createSQLQuery("DELETE FROM ContentHashes "
+				+ "WHERE configRev=:configRev AND entityType=:entityType "
+				+ "AND entityId=:entityId AND subId=:subId")
+				.setInteger("configRev", configRev)
+				.setString("entityType", entityType)
+				.setString("entityId", entityId)
+				.setString("subId", subId)
+				.executeUpdate();
+	}
+
+	/**
+	 * @return key identifying the object, for putting into maps
+	 */
+	public MapKey getKey() {
+		return new MapKey(entityType, entityId, subId);
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + configRev;
+		result = prime * result
+				+ ((entityType == null) ? 0 : entityType.hashCode());
+		result = prime * result
+				+ ((entityId == null) ? 0 : entityId.hashCode());
+		result = prime * result + ((subId == null) ? 0 : subId.hashCode());
+		result = prime * result + ((hash == null) ? 0 : hash.hashCode());
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		ContentHash other = (ContentHash) obj;
+		if (configRev != other.configRev)
+			return false;
+		if (entityType == null) {
+			if (other.entityType != null)
+				return false;
+		} else if (!entityType.equals(other.entityType))
+			return false;
+		if (entityId == null) {
+			if (other.entityId != null)
+				return false;
+		} else if (!entityId.equals(other.entityId))
+			return false;
+		if (subId == null) {
+			if (other.subId != null)
+				return false;
+		} else if (!subId.equals(other.subId))
+			return false;
+		if (hash == null) {
+			if (other.hash != null)
+				return false;
+		} else if (!hash.equals(other.hash))
+			return false;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "ContentHash ["
+				+ "configRev=" + configRev
+				+ ", entityType=" + entityType
+				+ ", entityId=" + entityId
+				+ ", subId=" + subId
+				+ ", hash=" + hash
+				+ "]";
+	}
+
+	/*********************** Getters *********************/
+
+	public int getConfigRev() {
+		return configRev;
+	}
+
+	public String getEntityType() {
+		return entityType;
+	}
+
+	public String getEntityId() {
+		return entityId;
+	}
+
+	public String getSubId() {
+		return subId;
+	}
+
+	public String getHash() {
+		return hash;
+	}
+}
@@ -18,6 +18,9 @@
 package org.transitclock.db.structs;
 
 import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.Date;
 import java.util.List;
 
@@ -42,6 +45,7 @@ import org.transitclock.applications.Core;
 import org.transitclock.core.TemporalMatch;
 import org.transitclock.core.VehicleState;
 import org.transitclock.db.hibernate.HibernateUtils;
+import org.transitclock.db.hibernate.JdbcBatchInsertable;
 import org.transitclock.utils.Geo;
 import org.transitclock.utils.IntervalTimer;
 
@@ -67,7 +71,7 @@ import org.transitclock.utils.IntervalTimer;
 @Table(name="Matches",
        indexes = { @Index(name="AvlTimeIndex", 
                           columnList="avlTime" ) } )
-public class Match implements Lifecycle, Serializable {
+public class Match implements Lifecycle, Serializable, JdbcBatchInsertable {
 
 	// vehicleId is an @Id since might get multiple AVL reports
 	// for different vehicles with the same avlTime but need a unique
@@ -479,5 +483,42 @@ public class Match implements Lifecycle, Serializable {
 	public boolean onDelete(Session s) throws CallbackException {
 		return Lifecycle.NO_VETO;
 	}
+
+	/**
+	 * SQL for writing to the database using a JDBC batch
+	 */
+	private static final String INSERT_SQL = "INSERT INTO Matches "
+			+ "(vehicleId, avlTime, atStop, blockId, configRev, "
+			+ "distanceAlongSegment, distanceAlongStopPath, segmentIndex, "
+			+ "serviceId, stopPathIndex, tripId) "
+			+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.db.hibernate.JdbcBatchInsertable#getInsertSql()
+	 */
+	@Override
+	public String getInsertSql() {
+		return INSERT_SQL;
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.db.hibernate.JdbcBatchInsertable#bindInsertParameters(java.sql.PreparedStatement)
+	 */
+	@Override
+	public void bindInsertParameters(PreparedStatement statement)
+			throws SQLException {
+		int i = 0;
+		statement.setString(++i, vehicleId);
+		statement.setTimestamp(++i, new Timestamp(avlTime.getTime()));
+		statement.setBoolean(++i, atStop);
+		statement.setString(++i, blockId);
+		statement.setInt(++i, configRev);
+		statement.setFloat(++i, distanceAlongSegment);
+		statement.setFloat(++i, distanceAlongStopPath);
+		statement.setInt(++i, segmentIndex);
+		statement.setString(++i, serviceId);
+		statement.setInt(++i, stopPathIndex);
+		statement.setString(++i, tripId);
+	}
 	
 }
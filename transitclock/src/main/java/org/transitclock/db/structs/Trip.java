@@ -543,7 +543,8 @@ public class Trip implements Lifecycle, Serializable {
 	}
 	
 	/**
-	 * Deletes rev from the Trips table
+	 * Deletes rev from the Trips table, along with the schedule times of the
+	 * trips
 	 * 
 	 * @param session
 	 * @param configRev
@@ -553,6 +554,10 @@ public class Trip implements Lifecycle, Serializable {
 	public static int deleteFromRev(Session session, int configRev) 
 			throws HibernateException {
 		int rowsUpdated = 0;
+		rowsUpdated += session.
+				createSQLQuery("DELETE FROM Trip_scheduledTimesList "
+						+ "WHERE Trip_configRev=" + configRev).
+				executeUpdate();
 		rowsUpdated += session.
 				createSQLQuery("DELETE FROM Trips WHERE configRev=" 
 						+ configRev).
@@ -560,6 +565,82 @@ public class Trip implements Lifecycle, Serializable {
 		return rowsUpdated;
 	}
 	
+	/**
+	 * Copies the trips of a rev, along with their schedule times, to another
+	 * rev. Uses INSERT ... SELECT so that the data is copied by the database
+	 * instead of having to be read in. The trips keep referring to the same
+	 * travel times. The trip patterns must already have been copied because
+	 * of the foreign keys.
+	 * 
+	 * @param session
+	 * @param fromConfigRev
+	 * @param toConfigRev
+	 *            must not contain any trips yet
+	 * @return Number of rows copied
+	 * @throws HibernateException
+	 */
+	public static int copyFromRev(Session session, int fromConfigRev,
+			int toConfigRev) throws HibernateException {
+		int rowsUpdated = 0;
+		rowsUpdated += session.
+				createSQLQuery("INSERT INTO Trips (tripId, startTime, "
+						+ "configRev, blockId, directionId, endTime, "
+						+ "exactTimesHeadway, headsign, noSchedule, routeId, "
+						+ "routeShortName, serviceId, shapeId, tripShortName, "
+						+ "travelTimes_id, tripPattern_id, tripPattern_configRev) "
+						+ "SELECT tripId, startTime, " + toConfigRev + ", "
+						+ "blockId, directionId, endTime, exactTimesHeadway, "
+						+ "headsign, noSchedule, routeId, routeShortName, "
+						+ "serviceId, shapeId, tripShortName, travelTimes_id, "
+						+ "tripPattern_id, " + toConfigRev + " FROM Trips "
+						+ "WHERE configRev=" + fromConfigRev).
+				executeUpdate();
+		rowsUpdated += session.
+				createSQLQuery("INSERT INTO Trip_scheduledTimesList "
+						+ "(Trip_tripId, Trip_startTime, Trip_configRev, "
+						+ "arrivalTime, departureTime, scheduledTimesList_ORDER) "
+						+ "SELECT Trip_tripId, Trip_startTime, " + toConfigRev
+						+ ", arrivalTime, departureTime, scheduledTimesList_ORDER "
+						+ "FROM Trip_scheduledTimesList "
+						+ "WHERE Trip_configRev=" + fromConfigRev).
+				executeUpdate();
+		return rowsUpdated;
+	}
+	
+	/**
+	 * Deletes a single trip of the rev from the Trips table, along with its
+	 * schedule times. The trip must already have been removed from its
+	 * blocks.
+	 * 
+	 * @param session
+	 * @param configRev
+	 * @param tripId
+	 * @param startTime
+	 * @return Number of rows deleted
+	 * @throws HibernateException
+	 */
+	public static int deleteFromRev(Session session, int configRev,
+			String tripId, int startTime) throws HibernateException {
+		int rowsUpdated = 0;
+		rowsUpdated += session.
+				createSQLQuery("DELETE FROM Trip_scheduledTimesList "
+						+ "WHERE Trip_configRev=:configRev "
+						+ "AND Trip_tripId=:tripId "
+						+ "AND Trip_startTime=:startTime").
+				setInteger("configRev", configRev).
+				setString("tripId", tripId).
+				setInteger("startTime", startTime).
+				executeUpdate();
+		rowsUpdated += session.
+				createSQLQuery("DELETE FROM Trips WHERE configRev=:configRev "
+						+ "AND tripId=:tripId AND startTime=:startTime").
+				setInteger("configRev", configRev).
+				setString("tripId", tripId).
+				setInteger("startTime", startTime).
+				executeUpdate();
+		return rowsUpdated;
+	}
+	
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
@@ -273,6 +273,10 @@ public class TripPattern implements Serializable, Lifecycle {
 				createSQLQuery("DELETE FROM TripPattern_to_Path_joinTable "
 						+ "WHERE TripPatterns_configRev=" + configRev).
 				executeUpdate();
+		rowsUpdated += session.
+				createSQLQuery("DELETE FROM StopPath_locations "
+						+ "WHERE StopPath_configRev=" + configRev).
+				executeUpdate();
 		rowsUpdated += session.
 				createSQLQuery("DELETE FROM StopPaths WHERE configRev=" 
 						+ configRev).
@@ -316,6 +320,108 @@ public class TripPattern implements Serializable, Lifecycle {
 //		return numUpdates;
 	}
 	
+	/**
+	 * Copies the trip patterns of a rev, along with their stop paths, to
+	 * another rev. Uses INSERT ... SELECT so that the data is copied by the
+	 * database instead of having to be read in. Is done before the trips are
+	 * copied because of the foreign keys.
+	 * 
+	 * @param session
+	 * @param fromConfigRev
+	 * @param toConfigRev
+	 *            must not contain any trip patterns yet
+	 * @return Number of rows copied
+	 * @throws HibernateException
+	 */
+	public static int copyFromRev(Session session, int fromConfigRev,
+			int toConfigRev) throws HibernateException {
+		int rowsUpdated = 0;
+		rowsUpdated += session.
+				createSQLQuery("INSERT INTO TripPatterns (id, configRev, "
+						+ "directionId, maxLat, maxLon, minLat, minLon, "
+						+ "headsign, routeId, routeShortName, shapeId) "
+						+ "SELECT id, " + toConfigRev + ", directionId, "
+						+ "maxLat, maxLon, minLat, minLon, headsign, routeId, "
+						+ "routeShortName, shapeId FROM TripPatterns "
+						+ "WHERE configRev=" + fromConfigRev).
+				executeUpdate();
+		rowsUpdated += session.
+				createSQLQuery("INSERT INTO StopPaths (tripPatternId, "
+						+ "stopPathId, configRev, breakTime, gtfsStopSeq, "
+						+ "lastStopInTrip, layoverStop, maxDistance, maxSpeed, "
+						+ "pathLength, routeId, scheduleAdherenceStop, stopId, "
+						+ "waitStop) "
+						+ "SELECT tripPatternId, stopPathId, " + toConfigRev
+						+ ", breakTime, gtfsStopSeq, lastStopInTrip, "
+						+ "layoverStop, maxDistance, maxSpeed, pathLength, "
+						+ "routeId, scheduleAdherenceStop, stopId, waitStop "
+						+ "FROM StopPaths WHERE configRev=" + fromConfigRev).
+				executeUpdate();
+		rowsUpdated += session.
+				createSQLQuery("INSERT INTO StopPath_locations "
+						+ "(StopPath_tripPatternId, StopPath_stopPathId, "
+						+ "StopPath_configRev, lat, lon, locations_ORDER) "
+						+ "SELECT StopPath_tripPatternId, StopPath_stopPathId, "
+						+ toConfigRev + ", lat, lon, locations_ORDER "
+						+ "FROM StopPath_locations "
+						+ "WHERE StopPath_configRev=" + fromConfigRev).
+				executeUpdate();
+		rowsUpdated += session.
+				createSQLQuery("INSERT INTO TripPattern_to_Path_joinTable "
+						+ "(TripPatterns_id, TripPatterns_configRev, "
+						+ "stopPaths_tripPatternId, stopPaths_stopPathId, "
+						+ "stopPaths_configRev, listIndex) "
+						+ "SELECT TripPatterns_id, " + toConfigRev + ", "
+						+ "stopPaths_tripPatternId, stopPaths_stopPathId, "
+						+ toConfigRev + ", listIndex "
+						+ "FROM TripPattern_to_Path_joinTable "
+						+ "WHERE TripPatterns_configRev=" + fromConfigRev).
+				executeUpdate();
+		return rowsUpdated;
+	}
+	
+	/**
+	 * Deletes a single trip pattern of the rev, along with its stop paths.
+	 * The trips that use the trip pattern must already have been deleted.
+	 * 
+	 * @param session
+	 * @param configRev
+	 * @param tripPatternId
+	 * @return Number of rows deleted
+	 * @throws HibernateException
+	 */
+	public static int deleteFromRev(Session session, int configRev,
+			String tripPatternId) throws HibernateException {
+		int rowsUpdated = 0;
+		rowsUpdated += session.
+				createSQLQuery("DELETE FROM TripPattern_to_Path_joinTable "
+						+ "WHERE TripPatterns_configRev=:configRev "
+						+ "AND TripPatterns_id=:tripPatternId").
+				setInteger("configRev", configRev).
+				setString("tripPatternId", tripPatternId).
+				executeUpdate();
+		rowsUpdated += session.
+				createSQLQuery("DELETE FROM StopPath_locations "
+						+ "WHERE StopPath_configRev=:configRev "
+						+ "AND StopPath_tripPatternId=:tripPatternId").
+				setInteger("configRev", configRev).
+				setString("tripPatternId", tripPatternId).
+				executeUpdate();
+		rowsUpdated += session.
+				createSQLQuery("DELETE FROM StopPaths WHERE configRev=:configRev "
+						+ "AND tripPatternId=:tripPatternId").
+				setInteger("configRev", configRev).
+				setString("tripPatternId", tripPatternId).
+				executeUpdate();
+		rowsUpdated += session.
+				createSQLQuery("DELETE FROM TripPatterns WHERE configRev=:configRev "
+						+ "AND id=:tripPatternId").
+				setInteger("configRev", configRev).
+				setString("tripPatternId", tripPatternId).
+				executeUpdate();
+		return rowsUpdated;
+	}
+	
 	/**
 	 * Returns list of TripPattern objects for the specified configRev
 	 * 
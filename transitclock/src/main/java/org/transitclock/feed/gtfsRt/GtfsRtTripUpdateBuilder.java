@@ -0,0 +1,311 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.feed.gtfsRt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.commons.lang3.time.FastDateFormat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.config.BooleanConfigValue;
+import org.transitclock.core.holdingmethod.PredictionTimeComparator;
+import org.transitclock.ipc.data.IpcPrediction;
+import org.transitclock.utils.Time;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
+import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship;
+import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
+
+/**
+ * Creates the GTFS-realtime TripUpdate feed entities for the predictions of
+ * a trip. Used both by the API, which creates the whole feed from all of the
+ * predictions, and by TripUpdatesDataCache in the core, which keeps the
+ * entities up to date as predictions are generated.
+ * <p>
+ * Note: for the trip feed predictions that are schedule based instead of GPS
+ * based the StopTimeEvent uncertainty is set to
+ * SCHED_BASED_PRED_UNCERTAINTY_VALUE so that the client can treat the
+ * prediction differently. If a vehicle is delayed and not moving then
+ * uncertainty is set to DELAYED_UNCERTAINTY_VALUE. And if a vehicle is late and
+ * the prediction is for a subsequent trip then uncertainty is set to
+ * LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE.
+ * <p>
+ * Is threadsafe since the date formatters are immutable.
+ */
+public class GtfsRtTripUpdateBuilder {
+
+	// For outputting date in GTFS-realtime format
+	private final FastDateFormat gtfsRealtimeDateFormatter;
+
+	private final FastDateFormat gtfsRealtimeTimeFormatter =
+			FastDateFormat.getInstance("HH:mm:ss");
+
+	private static BooleanConfigValue includeTripUpdateDelay = new BooleanConfigValue(
+			"transitclock.api.includeTripUpdateDelay", false,
+			"Whether or not to include delay in the TripUpdate message");
+
+	// For when creating StopTimeEvent for schedule based prediction
+	// 5 minutes (300 seconds)
+	private static final int SCHED_BASED_PRED_UNCERTAINTY_VALUE = 5 * 60;
+
+	// For when creating StopTimeEvent and the vehicle is delayed
+	private static final int DELAYED_UNCERTAINTY_VALUE =
+			SCHED_BASED_PRED_UNCERTAINTY_VALUE + 1;
+
+	// If vehicle is late and prediction is for a subsequent trip then
+	// the predictions are not as certain because it is reasonably likely
+	// that another vehicle will take over the subsequent trip. Takes
+	// precedence over SCHED_BASED_PRED_UNCERTAINTY_VALUE.
+	private static final int LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE =
+			DELAYED_UNCERTAINTY_VALUE + 1;
+
+	// For sorting the predictions for a trip by stop sequence
+	private static final Comparator<IpcPrediction> stopSequenceComparator =
+			new Comparator<IpcPrediction>() {
+				@Override
+				public int compare(IpcPrediction p1, IpcPrediction p2) {
+					return p1.getGtfsStopSeq() - p2.getGtfsStopSeq();
+				}
+			};
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(GtfsRtTripUpdateBuilder.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param agencyTimeZone
+	 *            For determining the trip start date
+	 */
+	public GtfsRtTripUpdateBuilder(TimeZone agencyTimeZone) {
+		this.gtfsRealtimeDateFormatter =
+				FastDateFormat.getInstance("yyyyMMdd", agencyTimeZone);
+	}
+
+	/**
+	 * Create TripUpdate for the trip.
+	 *
+	 * @param predsForTrip
+	 * @return
+	 */
+	public TripUpdate createTripUpdate(List<IpcPrediction> predsForTrip) {
+		// Create the parent TripUpdate object that is returned.
+		TripUpdate.Builder tripUpdate = TripUpdate.newBuilder();
+
+		// Add the trip descriptor information
+		IpcPrediction firstPred = predsForTrip.get(0);
+		TripDescriptor.Builder tripDescriptor = TripDescriptor.newBuilder();
+		if (firstPred.getRouteId() != null)
+			tripDescriptor.setRouteId(firstPred.getRouteId());
+		if (firstPred.getTripId() != null) {
+			tripDescriptor.setTripId(firstPred.getTripId());
+
+			try {
+				if(firstPred.getFreqStartTime()>0)
+				{
+					String tripStartTimeStr=gtfsRealtimeTimeFormatter.format(new Date(firstPred.getFreqStartTime()));
+					tripDescriptor.setStartTime(tripStartTimeStr);
+				}
+			} catch (Exception e) {
+
+			}
+
+			long tripStartEpochTime = firstPred.getTripStartEpochTime();
+			String tripStartDateStr =
+					gtfsRealtimeDateFormatter.format(new Date(
+							tripStartEpochTime));
+			tripDescriptor.setStartDate(tripStartDateStr);
+
+			// Set the relation between this trip and the static schedule. ADDED and CANCELED not supported.
+			if (firstPred.isTripUnscheduled()) {
+				// A trip that is running with no schedule associated to it -
+				// this value is used to identify trips defined in GTFS frequencies.txt with exact_times = 0
+				tripDescriptor.setScheduleRelationship(TripDescriptor.ScheduleRelationship.UNSCHEDULED);
+			} else {
+				// Trip that is running in accordance with its GTFS schedule,
+				// or is close enough to the scheduled trip to be associated with it.
+				tripDescriptor.setScheduleRelationship(TripDescriptor.ScheduleRelationship.SCHEDULED);
+			}
+		}
+
+		//Set trip as canceled if it is mark as that from schedBasePreds
+		if(firstPred.isCanceled())
+			tripDescriptor.setScheduleRelationship(TripDescriptor.ScheduleRelationship.CANCELED);
+
+		tripUpdate.setTrip(tripDescriptor);
+		if (firstPred.getDelay() != null && includeTripUpdateDelay.getValue())
+		  tripUpdate.setDelay(firstPred.getDelay()); // set schedule deviation
+
+		// Add the VehicleDescriptor information
+		VehicleDescriptor.Builder vehicleDescriptor =
+				VehicleDescriptor.newBuilder().setId(firstPred.getVehicleId());
+		tripUpdate.setVehicle(vehicleDescriptor);
+
+		// Add the StopTimeUpdate information for each prediction
+		if(!firstPred.isCanceled())
+		{
+			for (IpcPrediction pred : predsForTrip ) {
+				StopTimeUpdate.Builder stopTimeUpdate =	StopTimeUpdate.newBuilder()
+						.setStopSequence(pred.getGtfsStopSeq())
+						.setStopId(pred.getStopId());
+
+				StopTimeEvent.Builder stopTimeEvent = StopTimeEvent.newBuilder();
+				stopTimeEvent.setTime(pred.getPredictionTime() / Time.MS_PER_SEC);
+
+				// If schedule based prediction then set the uncertainty to special
+				// value so that client can tell
+				if (pred.isSchedBasedPred())
+					stopTimeEvent.setUncertainty(SCHED_BASED_PRED_UNCERTAINTY_VALUE);
+
+				// If vehicle is late and prediction is for a subsequent trip then
+				// the predictions are not as certain because it is reasonably likely
+				// that another vehicle will take over the subsequent trip. Takes
+				// precedence over SCHED_BASED_PRED_UNCERTAINTY_VALUE.
+				if (pred.isLateAndSubsequentTripSoMarkAsUncertain())
+					stopTimeEvent.setUncertainty(LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE);
+
+				// If vehicle not making forward progress then set uncertainty to
+				// special value so that client can tell. Takes precedence over
+				// LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE.
+				if (pred.isDelayed())
+					stopTimeEvent.setUncertainty(DELAYED_UNCERTAINTY_VALUE);
+
+				if (pred.isArrival())
+					stopTimeUpdate.setArrival(stopTimeEvent);
+				else
+					stopTimeUpdate.setDeparture(stopTimeEvent);
+
+				//The relationship should always be SCHEDULED if departure or arrival time is given.
+				stopTimeUpdate.setScheduleRelationship(ScheduleRelationship.SCHEDULED);
+
+				tripUpdate.addStopTimeUpdate(stopTimeUpdate);
+			}
+		}
+		// Add timestamp
+		tripUpdate.setTimestamp(firstPred.getAvlTime() / Time.MS_PER_SEC);
+
+		// Return the results
+		return tripUpdate.build();
+	}
+
+	/**
+	 * Creates the feed entities for the predictions of a single trip. For a
+	 * schedule based trip there is a single entity, with the trip ID as the
+	 * entity ID. For a frequency based trip there is an entity for each
+	 * frequency start time, with the vehicle ID as the entity ID.
+	 *
+	 * @param predsForTrip
+	 *            The predictions for the trip. Will be sorted by stop
+	 *            sequence.
+	 * @return the entities. Empty if could not create them.
+	 */
+	public List<FeedEntity> createFeedEntities(List<IpcPrediction> predsForTrip) {
+		List<FeedEntity> entities = new ArrayList<FeedEntity>(1);
+
+		//Sort trip data according to sequence
+		Collections.sort(predsForTrip, stopSequenceComparator);
+		//  Need to check if predictions for frequency based trip and group by start time if they are.
+		if(isFrequencyBasedTrip(predsForTrip))
+		{
+			try {
+				Map<Long, List<IpcPrediction>> map = createFreqStartTimePredictionMap(predsForTrip);
+
+				for(List<IpcPrediction> predsForStartTime : map.values())
+				{
+					if(!predsForStartTime.isEmpty())
+					{
+						FeedEntity.Builder feedEntity = FeedEntity.newBuilder()
+								.setId(predsForStartTime.get(0).getVehicleId());
+						TripUpdate tripUpdate = createTripUpdate(predsForStartTime);
+						feedEntity.setTripUpdate(tripUpdate);
+						entities.add(feedEntity.build());
+					}
+				}
+			} catch (Exception e) {
+				logger.error("Error parsing frequency based trip update data. {}",
+						predsForTrip, e);
+			}
+		}else
+		{
+			// Create feed entity for each schedule trip
+			FeedEntity.Builder feedEntity = FeedEntity.newBuilder()
+					.setId(predsForTrip.get(0).getTripId());
+			try {
+				TripUpdate tripUpdate = createTripUpdate(predsForTrip);
+				feedEntity.setTripUpdate(tripUpdate);
+				entities.add(feedEntity.build());
+			} catch (Exception e) {
+				logger.error("Error parsing trip update data. {}",
+						predsForTrip, e);
+			}
+		}
+
+		return entities;
+	}
+
+	/**
+	 * Returns the ID of the feed entities that createFeedEntities() creates
+	 * for the predictions of a trip, without having to create them.
+	 *
+	 * @param predsForTrip
+	 * @return the vehicle ID for a frequency based trip, otherwise the trip ID
+	 */
+	public String getEntityId(List<IpcPrediction> predsForTrip) {
+		return isFrequencyBasedTrip(predsForTrip) ?
+				predsForTrip.get(0).getVehicleId()
+				: predsForTrip.get(0).getTripId();
+	}
+
+	private boolean isFrequencyBasedTrip(List<IpcPrediction> predsForTrip)
+	{
+		for(IpcPrediction prediction:predsForTrip)
+		{
+				if(prediction.getFreqStartTime() > 0)
+					return true;
+		}
+		return false;
+	}
+
+	private Map<Long, List<IpcPrediction>> createFreqStartTimePredictionMap(List<IpcPrediction> predsForTrip)
+	{
+		Map<Long, List<IpcPrediction>> map=new LinkedHashMap<>();
+		for(IpcPrediction prediction:predsForTrip)
+		{
+			if(map.get(prediction.getFreqStartTime())==null)
+			{
+				List<IpcPrediction> list=new ArrayList<IpcPrediction>();
+				map.put(prediction.getFreqStartTime(), list);
+
+			}
+			map.get(prediction.getFreqStartTime()).add(prediction);
+		}
+		for (List<IpcPrediction> list : map.values())
+			Collections.sort(list, new PredictionTimeComparator());
+		return map;
+	}
+}
@@ -0,0 +1,293 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.gtfs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.db.structs.Block;
+import org.transitclock.utils.IntervalTimer;
+
+/**
+ * An index of the start and end times of the blocks for each service ID, and
+ * for each service ID and route, so that the blocks that are active at a
+ * time of day can be determined without looking at every block. Created when
+ * the configuration is read in.
+ * <p>
+ * For each service ID, and each service ID/route, the blocks are sorted by
+ * start time and kept in an implicit balanced interval tree. Each node of
+ * the tree is the middle block of a range of the sorted blocks and holds the
+ * maximum end time of that range. A subtree can therefore be skipped if all
+ * its blocks end before the time of interest or all start after it. Finding
+ * the active blocks takes logarithmic time plus the time for the blocks
+ * found, and doesn't allocate any objects.
+ * <p>
+ * Just like Block.isActive() the times are seconds into the day and a block
+ * is considered active when the time is strictly between the start time
+ * minus the allowable before time and the end time.
+ */
+public class BlockTimeIndex {
+
+	// Keyed on service ID
+	private final Map<String, BlockIntervals> intervalsByServiceId =
+			new HashMap<String, BlockIntervals>();
+
+	// Keyed on service ID. Submap keyed on route ID.
+	private final Map<String, Map<String, BlockIntervals>> intervalsByServiceIdAndRoute =
+			new HashMap<String, Map<String, BlockIntervals>>();
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(BlockTimeIndex.class);
+
+	/**
+	 * The blocks for a service ID, or service ID/route, sorted by start time
+	 * and arranged as an implicit interval tree.
+	 */
+	private static class BlockIntervals {
+		private final Block[] blocks;
+		private final int[] startTimes;
+		private final int[] endTimes;
+
+		// Max end time for the range of blocks of a node of the tree. The
+		// root is node 0 and covers all the blocks. Node n has children
+		// 2n+1 and 2n+2 covering the lower and upper half of its range.
+		private final int[] maxEndTimes;
+
+		private BlockIntervals(List<Block> blocksList) {
+			List<Block> sortedBlocks = new ArrayList<Block>(blocksList);
+			Collections.sort(sortedBlocks, new Comparator<Block>() {
+				@Override
+				public int compare(Block b1, Block b2) {
+					return Integer.compare(b1.getStartTime(), b2.getStartTime());
+				}
+			});
+
+			int size = sortedBlocks.size();
+			blocks = sortedBlocks.toArray(new Block[size]);
+			startTimes = new int[size];
+			endTimes = new int[size];
+			for (int i = 0; i < size; ++i) {
+				startTimes[i] = blocks[i].getStartTime();
+				endTimes[i] = blocks[i].getEndTime();
+			}
+
+			maxEndTimes = new int[Math.max(1, 4 * size)];
+			if (size > 0)
+				buildTree(0, 0, size - 1);
+		}
+
+		private int buildTree(int node, int low, int high) {
+			int mid = (low + high) >>> 1;
+			int maxEndTime = endTimes[mid];
+			if (low < mid)
+				maxEndTime = Math.max(maxEndTime, buildTree(2 * node + 1, low, mid - 1));
+			if (mid < high)
+				maxEndTime = Math.max(maxEndTime, buildTree(2 * node + 2, mid + 1, high));
+			maxEndTimes[node] = maxEndTime;
+			return maxEndTime;
+		}
+
+		/**
+		 * Adds the blocks whose start time is less than maxStartTime and
+		 * whose end time is greater than minEndTime. Both exclusive.
+		 */
+		private void addBlocksOverlapping(int node, int low, int high,
+				int maxStartTime, int minEndTime, Collection<Block> results) {
+			if (low > high || maxEndTimes[node] <= minEndTime
+					|| startTimes[low] >= maxStartTime)
+				return;
+
+			int mid = (low + high) >>> 1;
+			addBlocksOverlapping(2 * node + 1, low, mid - 1, maxStartTime,
+					minEndTime, results);
+
+			// Blocks are sorted by start time so if this block starts too late
+			// then so do all the ones in the upper half
+			if (startTimes[mid] >= maxStartTime)
+				return;
+			if (endTimes[mid] > minEndTime)
+				results.add(blocks[mid]);
+
+			addBlocksOverlapping(2 * node + 2, mid + 1, high, maxStartTime,
+					minEndTime, results);
+		}
+
+		/**
+		 * Adds the blocks whose start time is greater than minStartTime and
+		 * less than maxStartTime. Uses binary search since only the start
+		 * time matters.
+		 */
+		private void addBlocksStartingBetween(int minStartTime,
+				int maxStartTime, Collection<Block> results) {
+			// Find first block with start time > minStartTime
+			int low = 0;
+			int high = startTimes.length;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (startTimes[mid] <= minStartTime)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+
+			for (int i = low; i < startTimes.length && startTimes[i] < maxStartTime; ++i)
+				results.add(blocks[i]);
+		}
+
+		/**
+		 * Adds the blocks that are active at the time of day.
+		 */
+		private void addActiveBlocks(int secsInDay, int allowableBeforeTimeSecs,
+				int allowableAfterStartTimeSecs, Collection<Block> results) {
+			if (blocks.length == 0)
+				return;
+
+			// Active if startTime - allowableBeforeTimeSecs < secsInDay, i.e.
+			// startTime < secsInDay + allowableBeforeTimeSecs
+			int maxStartTime = secsInDay + allowableBeforeTimeSecs;
+			if (allowableAfterStartTimeSecs < 0) {
+				// Active up to the end time
+				addBlocksOverlapping(0, 0, blocks.length - 1, maxStartTime,
+						secsInDay, results);
+			} else {
+				// Active only up to allowableAfterStartTimeSecs after the
+				// start time, so secsInDay < startTime + allowableAfterStartTimeSecs
+				addBlocksStartingBetween(secsInDay - allowableAfterStartTimeSecs,
+						maxStartTime, results);
+			}
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	private BlockTimeIndex() {
+	}
+
+	/**
+	 * Creates the index for the blocks.
+	 *
+	 * @param blocks
+	 *            all the blocks of the configuration
+	 * @return the new index
+	 */
+	public static BlockTimeIndex create(Collection<Block> blocks) {
+		IntervalTimer timer = new IntervalTimer();
+
+		Map<String, List<Block>> blocksByServiceId =
+				new HashMap<String, List<Block>>();
+		Map<String, Map<String, List<Block>>> blocksByServiceIdAndRoute =
+				new HashMap<String, Map<String, List<Block>>>();
+		for (Block block : blocks) {
+			List<Block> blocksForServiceId =
+					blocksByServiceId.get(block.getServiceId());
+			if (blocksForServiceId == null) {
+				blocksForServiceId = new ArrayList<Block>();
+				blocksByServiceId.put(block.getServiceId(), blocksForServiceId);
+				blocksByServiceIdAndRoute.put(block.getServiceId(),
+						new HashMap<String, List<Block>>());
+			}
+			blocksForServiceId.add(block);
+
+			Map<String, List<Block>> blocksByRoute =
+					blocksByServiceIdAndRoute.get(block.getServiceId());
+			for (String routeId : block.getRouteIds()) {
+				List<Block> blocksForRoute = blocksByRoute.get(routeId);
+				if (blocksForRoute == null) {
+					blocksForRoute = new ArrayList<Block>();
+					blocksByRoute.put(routeId, blocksForRoute);
+				}
+				blocksForRoute.add(block);
+			}
+		}
+
+		BlockTimeIndex index = new BlockTimeIndex();
+		for (Map.Entry<String, List<Block>> entry : blocksByServiceId.entrySet()) {
+			String serviceId = entry.getKey();
+			index.intervalsByServiceId.put(serviceId,
+					new BlockIntervals(entry.getValue()));
+
+			Map<String, BlockIntervals> intervalsByRoute =
+					new HashMap<String, BlockIntervals>();
+			for (Map.Entry<String, List<Block>> routeEntry :
+					blocksByServiceIdAndRoute.get(serviceId).entrySet()) {
+				intervalsByRoute.put(routeEntry.getKey(),
+						new BlockIntervals(routeEntry.getValue()));
+			}
+			index.intervalsByServiceIdAndRoute.put(serviceId, intervalsByRoute);
+		}
+
+		logger.info("Created BlockTimeIndex of {} blocks for {} service IDs. "
+				+ "Took {} msec.", blocks.size(), blocksByServiceId.size(),
+				timer.elapsedMsec());
+
+		return index;
+	}
+
+	/**
+	 * Adds to results the blocks for the service ID that are active at the
+	 * specified time of day. The time of day can be negative or greater than
+	 * a day so that blocks for the previous or next service day can be
+	 * handled. A block that is for more than one of the specified routes is
+	 * added once for each of them.
+	 *
+	 * @param serviceId
+	 * @param routeIds
+	 *            Only blocks for these routes are added. Use null or empty
+	 *            collection to indicate all routes.
+	 * @param secsInDay
+	 *            The time of day, relative to the service day
+	 * @param allowableBeforeTimeSecs
+	 *            How much before the block start time the block is considered
+	 *            to be active
+	 * @param allowableAfterStartTimeSecs
+	 *            If set to value greater than or equal to zero then block
+	 *            considered active only if within this number of seconds
+	 *            after the start time. If less then zero then block
+	 *            considered active up to the block end time.
+	 * @param results
+	 *            where the active blocks are added
+	 */
+	public void addActiveBlocks(String serviceId, Collection<String> routeIds,
+			int secsInDay, int allowableBeforeTimeSecs,
+			int allowableAfterStartTimeSecs, Collection<Block> results) {
+		if (routeIds == null || routeIds.isEmpty()) {
+			BlockIntervals intervals = intervalsByServiceId.get(serviceId);
+			if (intervals != null)
+				intervals.addActiveBlocks(secsInDay, allowableBeforeTimeSecs,
+						allowableAfterStartTimeSecs, results);
+			return;
+		}
+
+		Map<String, BlockIntervals> intervalsByRoute =
+				intervalsByServiceIdAndRoute.get(serviceId);
+		if (intervalsByRoute == null)
+			return;
+		for (String routeId : routeIds) {
+			BlockIntervals intervals = intervalsByRoute.get(routeId);
+			if (intervals != null)
+				intervals.addActiveBlocks(secsInDay, allowableBeforeTimeSecs,
+						allowableAfterStartTimeSecs, results);
+		}
+	}
+}
@@ -32,6 +32,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.applications.Core;
 import org.transitclock.config.StringConfigValue;
+import org.transitclock.configData.CoreConfig;
+import org.transitclock.core.SegmentSpatialIndex;
 import org.transitclock.core.ServiceUtils;
 import org.transitclock.db.hibernate.HibernateUtils;
 import org.transitclock.db.structs.ActiveRevisions;
@@ -53,6 +55,7 @@ import org.transitclock.db.structs.TripPattern;
 import org.transitclock.utils.IntervalTimer;
 import org.transitclock.utils.MapKey;
 import org.transitclock.utils.Time;
+import org.transitclock.utils.threading.NamedThread;
 
 /**
  * Reads all the configuration data from the database. The data is based on GTFS
@@ -74,6 +77,10 @@ public class DbConfig {
 	// Keeps track of which revision of config data was read in
 	private int configRev;
 
+	// When the config data was read in. A diff update modifies the active
+	// config rev in place so the config rev alone doesn't identify the data.
+	private long readTime;
+
 	// Following is for all the data read from the database
 	private List<Block> blocks;
 
@@ -84,6 +91,9 @@ public class DbConfig {
 	// So can access blocks by service ID and route ID easily
 	private Map<RouteServiceMapKey, List<Block>> blocksByRouteMap = null;
 
+	// So can quickly determine which blocks are active at a time of day
+	private BlockTimeIndex blockTimeIndex = null;
+
 	// Ordered list of routes
 	private List<Route> routes;
 	// Keyed on routeId
@@ -95,6 +105,11 @@ public class DbConfig {
 	
 	// Keyed on routeId
 	private Map<String, List<TripPattern>> tripPatternsByRouteMap;
+	// Spatial index of all stop path segments. Only created if
+	// CoreConfig.getUseSegmentSpatialIndex() is true.
+	private SegmentSpatialIndex segmentSpatialIndex;
+	// Spatial index of the stops of all trip patterns. For StopsByLoc.
+	private StopSpatialIndex stopSpatialIndex;
 	// For when reading in all trips from db. Keyed on tripId
 	private Map<String, Trip> tripsMap;
 	// For trips that have been read in individually. Keyed on tripId.
@@ -190,6 +205,10 @@ public class DbConfig {
 		// Remember which revision of data is being used
 		this.configRev = configRev;
 
+		// The blocks are about to be replaced so the schedule snapshot is
+		// no longer valid
+		Object snapshotToken = ScheduleSnapshot.invalidate();
+
 		// Do the low-level processing
 		try {
 			actuallyReadData(configRev);
@@ -208,9 +227,50 @@ public class DbConfig {
 			// session.close();
 		}
 
+		readTime = System.currentTimeMillis();
+
 		// Let user know what is going on
 		logger.info("Finished reading configuration data from database . "
 				+ "Took {} msec.", timer.elapsedMsec());
+		
+		if (CoreConfig.getUseScheduleSnapshot())
+			startCreatingScheduleSnapshot(snapshotToken, configRev, blocks);
+	}
+
+	/**
+	 * Starts a background thread that creates the ScheduleSnapshot for the
+	 * blocks that were just read in. Once it has been created it is made the
+	 * current one, unless the configuration was read in again in the
+	 * meantime. Until then the trips are lazy loaded as usual.
+	 * 
+	 * @param snapshotToken
+	 *            returned by ScheduleSnapshot.invalidate() before the blocks
+	 *            were read in
+	 * @param snapshotConfigRev
+	 * @param snapshotBlocks
+	 *            the blocks that were read in. Passed in so that the
+	 *            background thread doesn't access the blocks member.
+	 */
+	private void startCreatingScheduleSnapshot(final Object snapshotToken,
+			final int snapshotConfigRev, final List<Block> snapshotBlocks) {
+		Runnable runnable = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ScheduleSnapshot snapshot = ScheduleSnapshot.create(
+							snapshotConfigRev, snapshotBlocks);
+					if (!ScheduleSnapshot.publish(snapshotToken, snapshot))
+						logger.info("Not using schedule snapshot for "
+								+ "configRev={} since the configuration was "
+								+ "read in again.", snapshotConfigRev);
+				} catch (Exception e) {
+					logger.error("Exception when creating schedule snapshot "
+							+ "for configRev={}. Trips will continue to be "
+							+ "lazy loaded.", snapshotConfigRev, e);
+				}
+			}
+		};
+		new NamedThread(runnable, "scheduleSnapshot").start();
 	}
 
 	/**
@@ -477,6 +537,38 @@ public class DbConfig {
 		return tripPatternsByRouteMap.get(routeId);
 	}
 
+	/**
+	 * Returns the spatial index of all of the stop path segments so that can
+	 * quickly determine which trip patterns are near a location.
+	 * 
+	 * @return the index, or null if transitclock.core.useSegmentSpatialIndex
+	 *         is not set
+	 */
+	public SegmentSpatialIndex getSegmentSpatialIndex() {
+		return segmentSpatialIndex;
+	}
+
+	/**
+	 * Returns the index of the start and end times of the blocks so that can
+	 * quickly determine which blocks are active.
+	 * 
+	 * @return the index
+	 */
+	public BlockTimeIndex getBlockTimeIndex() {
+		return blockTimeIndex;
+	}
+
+	/**
+	 * Returns the spatial index of the stops of all of the trip patterns so
+	 * that can quickly determine which trip patterns have a stop near a
+	 * location.
+	 * 
+	 * @return the index
+	 */
+	public StopSpatialIndex getStopSpatialIndex() {
+		return stopSpatialIndex;
+	}
+
 	/**
 	 * Returns cached map of all Trips. Can be slow first time accessed because
 	 * it can take a while to read in all trips including all sub-data.
@@ -484,6 +576,11 @@ public class DbConfig {
 	 * @return
 	 */
 	public Map<String, Trip> getTrips() {
+		// If have schedule snapshot then all the trips are already read in
+		ScheduleSnapshot scheduleSnapshot = ScheduleSnapshot.getCurrent();
+		if (scheduleSnapshot != null)
+			return scheduleSnapshot.getTripsMap();
+		
 		if (tripsMap == null) {
 			IntervalTimer timer = new IntervalTimer();
 
@@ -516,6 +613,21 @@ public class DbConfig {
 	 * @return The trip, or null if no such trip
 	 */
 	public Trip getTrip(String tripIdOrShortName) {
+		// If have schedule snapshot then can get the trip from it without
+		// any locking
+		ScheduleSnapshot scheduleSnapshot = ScheduleSnapshot.getCurrent();
+		if (scheduleSnapshot != null) {
+			Trip trip = scheduleSnapshot.getTrip(tripIdOrShortName);
+			if (trip == null) {
+				List<Trip> trips = 
+						scheduleSnapshot.getTripsByShortName(tripIdOrShortName);
+				if (trips != null)
+					trip = getTripForCurrentService(trips);
+			}
+			if (trip != null)
+				return trip;
+		}
+		
 		Trip trip = individualTripsMap.get(tripIdOrShortName);
 
 		// If trip not read in yet, do so now
@@ -584,6 +696,16 @@ public class DbConfig {
 	 * @return
 	 */
 	public Trip getTripUsingTripShortName(String tripShortName) {
+		// If have schedule snapshot then use it since it doesn't require
+		// any locking
+		ScheduleSnapshot scheduleSnapshot = ScheduleSnapshot.getCurrent();
+		if (scheduleSnapshot != null) {
+			List<Trip> snapshotTrips = 
+					scheduleSnapshot.getTripsByShortName(tripShortName);
+			if (snapshotTrips != null)
+				return getTripForCurrentService(snapshotTrips);
+		}
+		
 		// Find trip with the tripShortName with a currently active service ID
 		// from the map. If found, return it.
 		List<Trip> trips = individualTripsByShortNameMap.get(tripShortName);
@@ -701,6 +823,8 @@ public class DbConfig {
 		blocksByRouteMap = putBlocksIntoMapByRoute(blocks);
 		logger.debug("Reading blocks took {} msec", timer.elapsedMsec());
 
+		blockTimeIndex = BlockTimeIndex.create(blocks);
+
 		timer = new IntervalTimer();
 		routes = Route.getRoutes(globalSession, configRev);
 		routesByRouteIdMap = putRoutesIntoMapByRouteId(routes);
@@ -709,6 +833,15 @@ public class DbConfig {
 
 		tripPatternsByRouteMap = putTripPatternsInfoRouteMap();
 		
+		if (CoreConfig.getUseSegmentSpatialIndex()) {
+			List<TripPattern> allTripPatterns = new ArrayList<TripPattern>();
+			for (List<TripPattern> tripPatternsForRoute : 
+					tripPatternsByRouteMap.values())
+				allTripPatterns.addAll(tripPatternsForRoute);
+			segmentSpatialIndex = SegmentSpatialIndex.create(allTripPatterns,
+					CoreConfig.getSegmentSpatialIndexCellSize());
+		}
+		
 		timer = new IntervalTimer();
 		List<Stop> stopsList = Stop.getStops(globalSession, configRev);
 		stopsMap = putStopsIntoMap(stopsList);
@@ -716,6 +849,13 @@ public class DbConfig {
 		routesListByStopIdMap = putRoutesIntoMapByStopId(routes);
 		logger.debug("Reading stops took {} msec", timer.elapsedMsec());
 
+		List<TripPattern> tripPatternsForStopIndex = new ArrayList<TripPattern>();
+		for (List<TripPattern> tripPatternsForRoute : 
+				tripPatternsByRouteMap.values())
+			tripPatternsForStopIndex.addAll(tripPatternsForRoute);
+		stopSpatialIndex = 
+				StopSpatialIndex.create(tripPatternsForStopIndex, stopsMap);
+
 		timer = new IntervalTimer();
 		agencies = Agency.getAgencies(globalSession, configRev);
 		calendars = Calendar.getCalendars(globalSession, configRev);
@@ -1018,6 +1158,16 @@ public class DbConfig {
 		return configRev;
 	}
 
+	/**
+	 * Returns when the configuration data was read in. Changes each time the
+	 * data is read in, even if the config rev stays the same.
+	 * 
+	 * @return epoch time in msec
+	 */
+	public long getReadTime() {
+		return readTime;
+	}
+
 	/**
 	 * Output contents of collection to stdout. For debugging.
 	 * 
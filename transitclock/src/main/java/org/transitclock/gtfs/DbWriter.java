@@ -17,6 +17,8 @@
  */
 package org.transitclock.gtfs;
 
+import java.util.List;
+
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.hibernate.Transaction;
@@ -28,6 +30,7 @@ import org.transitclock.db.structs.Agency;
 import org.transitclock.db.structs.Block;
 import org.transitclock.db.structs.Calendar;
 import org.transitclock.db.structs.CalendarDate;
+import org.transitclock.db.structs.ContentHash;
 import org.transitclock.db.structs.FareAttribute;
 import org.transitclock.db.structs.FareRule;
 import org.transitclock.db.structs.Frequency;
@@ -48,6 +51,9 @@ import org.transitclock.utils.IntervalTimer;
 public class DbWriter {
 
 	private final GtfsData gtfsData;
+	// For when the previous rev is to be copied and only the changed blocks
+	// written. Null if not doing a diff update.
+	private final GtfsDiff gtfsDiff;
 	private int counter = 0;
 	private static final Logger logger = LoggerFactory
 			.getLogger(DbWriter.class);
@@ -55,7 +61,19 @@ public class DbWriter {
 	/********************** Member Functions **************************/
 
 	public DbWriter(GtfsData gtfsData) {
+		this(gtfsData, null);
+	}
+	
+	/**
+	 * @param gtfsData
+	 * @param gtfsDiff
+	 *            which blocks changed since the previous rev, for copying
+	 *            it and only writing those. Null if everything is to be
+	 *            written.
+	 */
+	public DbWriter(GtfsData gtfsData, GtfsDiff gtfsDiff) {
 		this.gtfsData = gtfsData;
+		this.gtfsDiff = gtfsDiff;
 	}
 	
 	/**
@@ -92,7 +110,10 @@ public class DbWriter {
 	 * @param configRev
 	 */
 	private void actuallyWriteData(Session session, int configRev, boolean cleanupRevs) {
-		if (cleanupRevs) {
+		boolean incremental = gtfsDiff != null && gtfsDiff.isIncremental();
+		if (cleanupRevs || incremental) {
+			// Note: when incremental the rev always needs to be cleaned up
+			// since the previous rev is copied into it.
 			// Get rid of old data. Getting rid of trips, trip patterns, and blocks
 			// is a bit complicated. Need to delete them in proper order because
 			// of the foreign keys. Because appear to need to use plain SQL
@@ -112,24 +133,55 @@ public class DbWriter {
 			TripPattern.deleteFromRev(session, configRev);
 			
 			// Get rid of travel times that are associated with the rev being 
-			// deleted
-			logger.info("Deleting old travel times from rev {} of database...", 
-					configRev);
-			TravelTimesForTrip.deleteFromRev(session, configRev);
+			// deleted. But not for a diff update since then the travel times
+			// rev is not changed and the existing travel times are reused.
+			if (gtfsDiff == null) {
+				logger.info("Deleting old travel times from rev {} of database...", 
+						configRev);
+				TravelTimesForTrip.deleteFromRev(session, configRev);
+			}
+			
+			logger.info("Deleting old content hashes from rev {} of "
+					+ "database...", configRev);
+			ContentHash.deleteFromRev(session, configRev);
+		}
+		
+		// For a diff update copy the blocks, trips, and trip patterns of the
+		// previous rev within the database and then delete the ones that were
+		// removed or changed. The previous rev, which the core might be
+		// using, is not modified. Since the ActiveRevisions are updated in
+		// this same transaction the new rev only becomes active once it has
+		// been completely written.
+		if (incremental) {
+			int previousConfigRev = gtfsDiff.getPreviousConfigRev();
+			logger.info("Copying trip patterns, trips and blocks from rev {} "
+					+ "to rev {} of database...", previousConfigRev, configRev);
+			TripPattern.copyFromRev(session, previousConfigRev, configRev);
+			Trip.copyFromRev(session, previousConfigRev, configRev);
+			Block.copyFromRev(session, previousConfigRev, configRev);
+			ContentHash.copyFromRev(session, previousConfigRev, configRev);
+			
+			logger.info("Deleting changed blocks, trips and trip patterns "
+					+ "from rev {} of database...", configRev);
+			gtfsDiff.deleteChangedObjects(session, configRev);
 		}
 		
 		// Now write the data to the database.
 		// First write the Blocks. This will also write the Trips, TripPatterns,
 		// Paths, and TravelTimes since those all have been configured to be
 		// cascade=CascadeType.SAVE_UPDATE .
+		// When incremental the unchanged trips and trip patterns of the 
+		// changed blocks were copied so need to check for update.
+		List<Block> blocks = incremental ? 
+				gtfsDiff.getBlocksToWrite() : gtfsData.getBlocks();
 		logger.info("Saving {} blocks (plus associated trips) to database...", 
-				gtfsData.getBlocks().size());
+				blocks.size());
 		int c = 0;
 		long startTime = System.currentTimeMillis();
-		for (Block block : gtfsData.getBlocks()) {
+		for (Block block : blocks) {
 			logger.info("Saving block #{} with blockId={} serviceId={} blockId={}",
 					++c, block.getId(), block.getServiceId(), block.getId());
-			writeObject(session, block, false);
+			writeObject(session, block, incremental);
 			if (c % 1000 == 0) {
 				logger.info("wrote " + c + " blocks in " + (System.currentTimeMillis()-startTime)/1000 + "s");
 			}
@@ -189,6 +241,16 @@ public class DbWriter {
 			writeObject(session, transfer);
 		}
 		
+		// Write out the content hashes so that next time can determine
+		// what changed
+		if (gtfsDiff != null) {
+			logger.info("Saving {} content hashes to database...",
+					gtfsDiff.getHashesToWrite().size());
+			for (ContentHash contentHash : gtfsDiff.getHashesToWrite()) {
+				writeObject(session, contentHash, false);
+			}
+		}
+		
 		// Write out the ConfigRevision data
 		writeObject(session, gtfsData.getConfigRevision());
 	}
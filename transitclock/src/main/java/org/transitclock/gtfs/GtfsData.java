@@ -25,11 +25,14 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Pattern;
 
 import org.hibernate.HibernateException;
@@ -38,6 +41,7 @@ import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.transitclock.config.BooleanConfigValue;
 import org.transitclock.config.DoubleConfigValue;
 import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.config.StringConfigValue;
@@ -94,8 +98,12 @@ import org.transitclock.monitoring.CloudwatchService;
 import org.transitclock.utils.Geo;
 import org.transitclock.utils.IntervalTimer;
 import org.transitclock.utils.MapKey;
+import org.transitclock.utils.StageReport;
 import org.transitclock.utils.StringUtils;
 import org.transitclock.utils.Time;
+import org.transitclock.utils.csv.CsvBaseReader;
+import org.transitclock.utils.threading.NamedThreadFactory;
+import org.transitclock.utils.threading.ParallelProcessor;
 
 /**
  * Contains all the GTFS data processed into Java lists and such. Also combines
@@ -122,6 +130,7 @@ public class GtfsData {
 	// For when zip file used. Null otherwise
 	private final Date zipFileLastModifiedTime;
 	private final int originalTravelTimesRev;
+	private final int originalConfigRev;
 	private final String agencyId;
 	private final double pathOffsetDistance;
 	private final double maxStopToPathDistance;
@@ -135,6 +144,10 @@ public class GtfsData {
 	// So can make the titles more readable
 	private final TitleFormatter titleFormatter;
 	
+	// For processing trips and trip patterns in parallel. Only exists
+	// while processData() is processing them.
+	private ExecutorService executor;
+	
 	// Where the data is stored.
 	// From main and supplement routes.txt files. Key is route_id.
 	private Map<String, GtfsRoute> gtfsRoutesMap;
@@ -265,6 +278,27 @@ public class GtfsData {
 			+ "and pasting it in to http://www.gpsvisualizer.com/map_input"
 			+ "Separate multiple route ids with commas");
 	
+	private static IntegerConfigValue numThreads = 
+			new IntegerConfigValue("transitclock.gtfs.numThreads", 
+					Runtime.getRuntime().availableProcessors(),
+					"Number of threads used for processing the stop times, "
+					+ "trips, and stop paths. Each trip and trip pattern "
+					+ "is independent so they can be processed in parallel. "
+					+ "Default is the number of processors.");
+	
+	private static BooleanConfigValue diffUpdate = 
+			new BooleanConfigValue("transitclock.gtfs.diffUpdate", 
+					false,
+					"If true then the new configuration revision is created "
+					+ "by copying the blocks, trips, and trip patterns of "
+					+ "the current revision within the db and then writing "
+					+ "only the ones that actually changed. Content hashes "
+					+ "of those objects are stored in the db so the changes "
+					+ "can be determined. The current revision is not "
+					+ "modified so a running core is not affected. The "
+					+ "travel times rev is not changed since the travel "
+					+ "times of the unchanged trips remain valid.");
+	
 	// Logging
 	public static final Logger logger = 
 			LoggerFactory.getLogger(GtfsData.class);
@@ -334,6 +368,7 @@ public class GtfsData {
 		// rev since need it to read in old travel time data. 		
 		ActiveRevisions originalRevs = ActiveRevisions.get(session); 
 		originalTravelTimesRev = originalRevs.getTravelTimesRev();
+		originalConfigRev = originalRevs.getConfigRev();
 		
 		// If should store the new revs in database (make them active)
 		// then use the originalRevs read from db since they will be
@@ -357,8 +392,10 @@ public class GtfsData {
 			revs.setConfigRev(revs.getConfigRev() + 1);
 		}
 					
-		// Increment the travel times rev
-		revs.setTravelTimesRev(originalTravelTimesRev + 1);
+		// Increment the travel times rev, unless doing a diff update in
+		// which case the travel times for the unchanged trips remain valid
+		if (!diffUpdate.getValue())
+			revs.setTravelTimesRev(originalTravelTimesRev + 1);
 		
 		// Log which revisions are being used
 		logger.info("Will be writing data to revisions {}", revs);
@@ -993,6 +1030,25 @@ public class GtfsData {
 		return processedGtfsStopTimesForTrip;
 	}
 	
+	/**
+	 * Adds the GtfsStopTime to the list of stop times for its trip.
+	 * 
+	 * @param stopTimesForTripMap
+	 *            keyed on trip ID
+	 * @param gtfsStopTime
+	 */
+	private static void addToStopTimesForTripMap(
+			Map<String, List<GtfsStopTime>> stopTimesForTripMap,
+			GtfsStopTime gtfsStopTime) {
+		String tripId = gtfsStopTime.getTripId();
+		List<GtfsStopTime> gtfsStopTimesForTrip = stopTimesForTripMap.get(tripId);
+		if (gtfsStopTimesForTrip == null) {
+			gtfsStopTimesForTrip = new ArrayList<GtfsStopTime>();
+			stopTimesForTripMap.put(tripId, gtfsStopTimesForTrip);
+		}
+		gtfsStopTimesForTrip.add(gtfsStopTime);
+	}
+	
 	/**
 	 * Reads the data from stop_times.txt and puts it into
 	 * gtfsStopTimesForTripMap map. Also processes the data to determine Trips
@@ -1029,14 +1085,20 @@ public class GtfsData {
 		// Let user know what is going on
 		logger.info("Processing stop_times.txt data...");
 		
-		// Read in the stop_times.txt GTFS data from file. Use a large initial
-		// array size so when reading in data won't have to constantly increase
-		// array size and do array copying. SFMTA for example has 1,100,000
-		// stop times so starting with a value of 500,000 certainly should be 
-		// reasonable.
+		// Read in the stop_times.txt GTFS data from file. The GtfsStopTimes
+		// are grouped by trip as they are read in instead of first being
+		// read into one big list since for large regional feeds there can be
+		// many millions of them. The grouped GtfsStopTimes are then used to
+		// create Trips and TripPatterns. Keyed by tripId
+		gtfsStopTimesForTripMap = new HashMap<String, List<GtfsStopTime>>();
 		GtfsStopTimesReader stopTimesReader = 
 				new GtfsStopTimesReader(gtfsDirectoryName);
-		Collection<GtfsStopTime> gtfsStopTimes = stopTimesReader.get(500000);
+		stopTimesReader.process(new CsvBaseReader.ObjectHandler<GtfsStopTime>() {
+			@Override
+			public void handle(GtfsStopTime gtfsStopTime) {
+				addToStopTimesForTripMap(gtfsStopTimesForTripMap, gtfsStopTime);
+			}
+		});
 
 		// Handle possible supplemental stop_times.txt file.
 		// Match the supplemental data to the main data using both
@@ -1048,85 +1110,90 @@ public class GtfsData {
 					stopTimesSupplementReader.get();
 			
 			if (stopTimesSupplement.size() > 0) {
-				// Put original shapes into map for quick searching
-				Map<MapKey, GtfsStopTime> map =
-						new HashMap<MapKey, GtfsStopTime>();
-				for (GtfsStopTime gtfsStopTime : gtfsStopTimes) {
-					MapKey key =
-							new MapKey(gtfsStopTime.getTripId(),
-									gtfsStopTime.getStopId());
-					map.put(key, gtfsStopTime);
-				}
+				// Group the supplemental data by trip so that only need to
+				// deal with the trips that are actually being modified
+				Map<String, List<GtfsStopTime>> supplementForTripMap =
+						new HashMap<String, List<GtfsStopTime>>();
+				for (GtfsStopTime stopTimeSupplement : stopTimesSupplement)
+					addToStopTimesForTripMap(supplementForTripMap,
+							stopTimeSupplement);
+				
+				for (String tripId : supplementForTripMap.keySet()) {
+					// Put original stop times for the trip into map for quick
+					// searching. Keyed on stop_id.
+					Map<String, GtfsStopTime> map =
+							new LinkedHashMap<String, GtfsStopTime>();
+					List<GtfsStopTime> originalStopTimesForTrip =
+							gtfsStopTimesForTripMap.get(tripId);
+					if (originalStopTimesForTrip != null) {
+						for (GtfsStopTime gtfsStopTime : originalStopTimesForTrip)
+							map.put(gtfsStopTime.getStopId(), gtfsStopTime);
+					}
 					
-				// Modify main GtfsShape objects using supplemental data
-				for (GtfsStopTime stopTimeSupplement : stopTimesSupplement) {
-					MapKey key =
-							new MapKey(stopTimeSupplement.getTripId(),
-									stopTimeSupplement.getStopId());
-
-					// Handle depending on whether the supplemental data 
-					// indicates the point is to be deleted, added, or modified
-					if (stopTimeSupplement.shouldDelete()) {
-						// The supplemental shape indicates that the point 
-						// should be deleted
-						GtfsStopTime oldStopTime = map.remove(key);
-						if (oldStopTime == null) {
-							logger.error("Supplement stop_times.txt file for "
-									+ "trip_id={} and stop_id={} specifies "
-									+ "that the stop time should be removed "
-									+ "but it is not actually configured in "
-									+ "the regular stop_times.txt file",
-									stopTimeSupplement.getTripId(), 
-									stopTimeSupplement.getStopId());
+					// Modify main GtfsStopTime objects using supplemental data
+					for (GtfsStopTime stopTimeSupplement 
+							: supplementForTripMap.get(tripId)) {
+						String key = stopTimeSupplement.getStopId();
+
+						// Handle depending on whether the supplemental data 
+						// indicates the stop time is to be deleted, added, or
+						// modified
+						if (stopTimeSupplement.shouldDelete()) {
+							// The supplemental stop time indicates that it 
+							// should be deleted
+							GtfsStopTime oldStopTime = map.remove(key);
+							if (oldStopTime == null) {
+								logger.error("Supplement stop_times.txt file for "
+										+ "trip_id={} and stop_id={} specifies "
+										+ "that the stop time should be removed "
+										+ "but it is not actually configured in "
+										+ "the regular stop_times.txt file",
+										stopTimeSupplement.getTripId(), 
+										stopTimeSupplement.getStopId());
+							}
+						} else if (map.get(key) != null) {
+							// The stop time is already in map so modify it
+							GtfsStopTime combinedStopTime =
+									new GtfsStopTime(map.get(key),
+											stopTimeSupplement);
+							map.put(key, combinedStopTime);
+						} else {
+							// The stop time is not already in map so add it
+							map.put(key, stopTimeSupplement);
 						}
-					} else if (map.get(key) != null) {
-						// The stop time is already in map so modify it
-						GtfsStopTime combinedShape =
-								new GtfsStopTime(map.get(key),
-										stopTimeSupplement);
-						map.put(key, combinedShape);
-					} else {
-						// The stop time is not already in map so add it
-						map.put(key, stopTimeSupplement);
 					}
+					
+					// Use the new combined stop times for the trip
+					if (map.isEmpty())
+						gtfsStopTimesForTripMap.remove(tripId);
+					else
+						gtfsStopTimesForTripMap.put(tripId,
+								new ArrayList<GtfsStopTime>(map.values()));
 				}
-				
-				// Use the new combined shapes
-				gtfsStopTimes = map.values();
-			}
-		}
-		
-		// The GtfsStopTimes are put into this map and then can create Trips
-		// and TripPatterns. Keyed by tripId
-		gtfsStopTimesForTripMap = new HashMap<String, List<GtfsStopTime>>();
-
-		// Put the GtfsStopTimes into the map
-		for (GtfsStopTime gtfsStopTime : gtfsStopTimes) {
-			// Add the GtfsStopTime to the map so later can create Trips and 
-			// TripPatterns
-			String tripId = gtfsStopTime.getTripId();
-			List<GtfsStopTime> gtfsStopTimesForTrip = 
-					gtfsStopTimesForTripMap.get(tripId);
-			if (gtfsStopTimesForTrip == null) {
-				gtfsStopTimesForTrip = new ArrayList<GtfsStopTime>();
-				gtfsStopTimesForTripMap.put(tripId, gtfsStopTimesForTrip);
 			}
-			gtfsStopTimesForTrip.add(gtfsStopTime);
 		}
 		
 		// Go through the stop times for each tripId. Sort them and look for
-		// any problems with the data.
-		Set<String> tripIds = gtfsStopTimesForTripMap.keySet();
-		for (String tripId : tripIds) {
-			List<GtfsStopTime> gtfsStopTimesForTrip =
-					gtfsStopTimesForTripMap.get(tripId);			
-			List<GtfsStopTime> processedGtfsStopTimesForTrip =
-					processStopTimesForTrip(gtfsStopTimesForTrip);
-			
-			// Replace the stop times for the trip with the processed/cleaned 
-			// up version
-			gtfsStopTimesForTripMap.put(tripId, processedGtfsStopTimesForTrip);
-		}
+		// any problems with the data. The trips are independent of each other
+		// so they are processed in parallel.
+		List<String> tripIds =
+				new ArrayList<String>(gtfsStopTimesForTripMap.keySet());
+		List<List<GtfsStopTime>> processedStopTimesForTrips =
+				ParallelProcessor.process(executor, numThreads.getValue(),
+						tripIds,
+						new ParallelProcessor.ItemProcessor<String, List<GtfsStopTime>>() {
+							@Override
+							public List<GtfsStopTime> process(String tripId) {
+								return processStopTimesForTrip(
+										gtfsStopTimesForTripMap.get(tripId));
+							}
+						});
+
+		// Replace the stop times for the trips with the processed/cleaned 
+		// up versions
+		for (int i = 0; i < tripIds.size(); ++i)
+			gtfsStopTimesForTripMap.put(tripIds.get(i),
+					processedStopTimesForTrips.get(i));
 		
 		// Log if a trip is defined in the trips.txt file but not in 
 		// stop_times.txt
@@ -1155,25 +1222,43 @@ public class GtfsData {
 				timer.elapsedMsec());
 	}
 	
+	/**
+	 * The schedule times and stop paths determined for a trip by
+	 * getScheduleTimesAndStopPathsForTrip().
+	 */
+	private static class ScheduleTimesAndStopPaths {
+		private final List<ScheduleTime> scheduleTimes;
+		private final List<StopPath> stopPaths;
+		
+		private ScheduleTimesAndStopPaths(List<ScheduleTime> scheduleTimes,
+				List<StopPath> stopPaths) {
+			this.scheduleTimes = scheduleTimes;
+			this.stopPaths = stopPaths;
+		}
+	}
+	
 	/**
 	 * For the trip being created go through all the stop times from the
-	 * stop_times.txt GTFS file and determine all the stop paths for the trip.
-	 * Also update the trip patterns map when a new trip pattern encountered.
+	 * stop_times.txt GTFS file and determine the schedule times and all the
+	 * stop paths for the trip. Only reads shared data so that it can be
+	 * called for multiple trips in parallel. The trip patterns are updated
+	 * afterwards using the stop paths.
 	 * 
 	 * @param trip
 	 *            The trip being created
-	 * @return List of ScheduleTime objects for the trip
+	 * @return ScheduleTime and StopPath objects for the trip
 	 */
-	private List<ScheduleTime> getScheduleTimesForTrip(Trip trip) {
+	private ScheduleTimesAndStopPaths getScheduleTimesAndStopPathsForTrip(
+			Trip trip) {
 		// Make sure necessary data already read in
 		if (gtfsStopTimesForTripMap == null || gtfsStopTimesForTripMap.isEmpty()) {
 			logger.error("gtfsStopTimesForTripMap not filled in before " + 
-					"GtfsData.getScheduleTimesForTrip() was. Exiting.");
+					"GtfsData.getScheduleTimesAndStopPathsForTrip() was. Exiting.");
 			System.exit(-1);
 		}
 		if (gtfsRoutesMap == null) {
 			logger.error("gtfsRoutesMap not filled in before " + 
-					"GtfsData.getScheduleTimesForTrip() was. Exiting.");
+					"GtfsData.getScheduleTimesAndStopPathsForTrip() was. Exiting.");
 			System.exit(-1);			
 		}
 		
@@ -1294,11 +1379,7 @@ public class GtfsData {
 			previousStopId = stopId;
 		} // End of for each stop_time for trip
 		
-		// Now that have Paths defined for the trip, if need to, 
-		// also create new trip pattern
-		updateTripPatterns(trip, paths);			
-
-		return newScheduleTimesList;
+		return new ScheduleTimesAndStopPaths(newScheduleTimesList, paths);
 	}
 	
 	/**
@@ -1452,7 +1533,10 @@ public class GtfsData {
 		serviceIdsWithTrips = new HashSet<String>();
 		pathsMap = new HashMap<String, StopPath>();
 		
-		// For each trip in the stop_times.txt file ...
+		// Create a Trip element for each trip in the stop_times.txt file. 
+		// Done on a single thread since the TitleFormatter used for
+		// processing the headsigns is not thread safe.
+		final List<Trip> trips = new ArrayList<Trip>();
 		for (String tripId : gtfsStopTimesForTripMap.keySet()) {
 			// Create a Trip element for the trip ID. 
 			Trip trip =
@@ -1470,19 +1554,45 @@ public class GtfsData {
 						+ "has been discarded.", tripId);
 				continue;
 			}
+			trips.add(trip);
+		}
+		
+		// Determining the schedule times and stop paths is the expensive
+		// part and each trip is independent so do it in parallel
+		List<ScheduleTimesAndStopPaths> scheduleTimesAndStopPathsForTrips =
+				ParallelProcessor.process(executor, numThreads.getValue(),
+						trips,
+						new ParallelProcessor.ItemProcessor<Trip, ScheduleTimesAndStopPaths>() {
+							@Override
+							public ScheduleTimesAndStopPaths process(Trip trip) {
+								return getScheduleTimesAndStopPathsForTrip(trip);
+							}
+						});
+		
+		// Update the trip patterns and add the trips. Done on a single thread
+		// and in the same order as the trips so that the trip patterns are
+		// the same as if everything had been done sequentially.
+		for (int tripIndex = 0; tripIndex < trips.size(); ++tripIndex) {
+			Trip trip = trips.get(tripIndex);
+			String tripId = trip.getId();
 			
 			// Keep track of service IDs so can filter unneeded calendars
 			serviceIdsWithTrips.add(trip.getServiceId());
 			
-			// All the schedule times are available in gtfsStopTimesForTripMap 
-			// so add them all at once to the Trip. This also sets the startTime 
-			// and endTime for the trip. This is done after the Trip is already
-			// created since it deals with a few things including schedule
-			// times list, trip patterns, paths, etc and so it is much simpler
-			// to have getScheduleTimesForTrip() update an already existing 
-			// Trip object.
-			List<ScheduleTime> scheduleTimesList = getScheduleTimesForTrip(trip);
-			trip.addScheduleTimes(scheduleTimesList); 
+			// Now that have Paths defined for the trip, if need to, 
+			// also create new trip pattern
+			ScheduleTimesAndStopPaths scheduleTimesAndStopPaths =
+					scheduleTimesAndStopPathsForTrips.get(tripIndex);
+			updateTripPatterns(trip, scheduleTimesAndStopPaths.stopPaths);
+			
+			// All the schedule times have been determined so add them all at
+			// once to the Trip. This also sets the startTime and endTime for
+			// the trip. This is done after the Trip is already created since
+			// it deals with a few things including schedule times list, trip
+			// patterns, paths, etc and so it is much simpler to have
+			// getScheduleTimesAndStopPathsForTrip() determine them for an
+			// already existing Trip object.
+			trip.addScheduleTimes(scheduleTimesAndStopPaths.scheduleTimes); 
 						
 			if (isTripFrequencyBasedWithExactTimes(tripId)) {
 				// This is special case where for this trip ID 
@@ -1898,7 +2008,7 @@ public class GtfsData {
 						trimPathBeforeFirstStopOfTrip,
 						maxDistanceBetweenStops,
 						disableSpecialLoopBackToBeginningCase);
-		pathProcessor.processPathSegments();
+		pathProcessor.processPathSegments(executor, numThreads.getValue());
 						
 		// Let user know what is going on
 		logger.info("Finished processing shapes.txt data. Took {} msec.",
@@ -2678,32 +2788,53 @@ public class GtfsData {
 	public void processData() {
 		// For logging how long things take
 		IntervalTimer timer = new IntervalTimer();
+		StageReport stageReport = new StageReport();
 
 		// Let user know what is going on
-		logger.info("Processing GTFS data from {} ...",
-				gtfsDirectoryName);
+		logger.info("Processing GTFS data from {} using {} threads...",
+				gtfsDirectoryName, numThreads.getValue());
 
 		// Note. The order of how these are processed in important because
 		// some data sets rely on others in order to be fully processed.
 		// If the order is wrong then the methods below will log an error and
 		// exit.
 		processRouteData();
+		stageReport.stageFinished("routes.txt");
 		processStopData();		
+		stageReport.stageFinished("stops.txt");
 		processCalendarDates();
 		processCalendars();
 		processServiceIds();
+		stageReport.stageFinished("calendars");
 		processTripsData();	
+		stageReport.stageFinished("trips.txt");
 		processFrequencies();
-		processStopTimesData();		
-		processRouteMaps(); 
-		processBlocks();
-		processPaths();
+		stageReport.stageFinished("frequencies.txt");
+		
+		// The stop times, trips, trip patterns and stop paths are processed
+		// in parallel
+		executor = Executors.newFixedThreadPool(
+				Math.max(1, numThreads.getValue()),
+				new NamedThreadFactory("gtfsProcessing"));
+		try {
+			processStopTimesData();		
+			stageReport.stageFinished("stop_times.txt and trips");
+			processRouteMaps(); 
+			processBlocks();
+			stageReport.stageFinished("routes and blocks");
+			processPaths();
+			stageReport.stageFinished("shapes.txt and stop paths");
+		} finally {
+			executor.shutdown();
+			executor = null;
+		}
 		processAgencyData();
 		
 		// Following are simple objects that don't require combining tables
 		processFareAttributes();
 		processFareRules();
 		processTransfers();
+		stageReport.stageFinished("agency, fares and transfers");
 		
 		// Sometimes will be using a partial configuration. For example, for 
 		// MBTA commuter rail only want to use the trips defined for 
@@ -2718,16 +2849,31 @@ public class GtfsData {
 		// useful when processing just part of an agency config, like
 		// MBTA commuter rail.
 		trimCalendars();
+		stageReport.stageFinished("trimming");
 		
 		// Optionally output routes for debug graphing		
 		outputRoutesForGraphing();
 		
+		// If doing a diff update determine which blocks actually changed
+		// since the original rev so that only those need travel times and
+		// need to be written
+		GtfsDiff gtfsDiff = null;
+		Collection<Trip> tripsNeedingTravelTimes = getTrips();
+		if (diffUpdate.getValue()) {
+			gtfsDiff = new GtfsDiff(this, revs.getConfigRev());
+			gtfsDiff.determineChanges(session, originalConfigRev);
+			if (gtfsDiff.isIncremental())
+				tripsNeedingTravelTimes = gtfsDiff.getTripsToWrite();
+			stageReport.stageFinished("determining changes");
+		}
+		
 		// Now process travel times and update the Trip objects. 
 		TravelTimesProcessorForGtfsUpdates travelTimesProcesssor =
 				new TravelTimesProcessorForGtfsUpdates(revs,
 						originalTravelTimesRev, maxTravelTimeSegmentLength,
 						defaultWaitTimeAtStopMsec, maxSpeedKph);
-		travelTimesProcesssor.process(session, this);
+		travelTimesProcesssor.process(session, this, tripsNeedingTravelTimes);
+		stageReport.stageFinished("travel times");
 		
     // Try allowing garbage collector to free up some memory since
     // don't need the GTFS structures anymore.
@@ -2739,10 +2885,15 @@ public class GtfsData {
     int configRev = revs.getConfigRev();
     int travelTimesRev= revs.getTravelTimesRev();
 		try {
-  		DbWriter dbWriter = new DbWriter(this);
+  		DbWriter dbWriter = new DbWriter(this, gtfsDiff);
   		dbWriter.write(session, revs.getConfigRev(), cleanupRevs);	
   		// Finish things up by closing the session
   		session.close();
+  		stageReport.stageFinished("writing to db");
+  		
+  		// So can see which stages take the time and the memory
+  		logger.info("Time and heap used by each stage of processing GTFS "
+  				+ "data:\n{}", stageReport);
   		
   		// Let user know what is going on
   		logger.info("Finished processing GTFS data from {} . Took {} msec.",
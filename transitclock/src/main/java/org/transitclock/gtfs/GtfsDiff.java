@@ -0,0 +1,485 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.gtfs;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.config.DoubleConfigValue;
+import org.transitclock.db.structs.Block;
+import org.transitclock.db.structs.ContentHash;
+import org.transitclock.db.structs.StopPath;
+import org.transitclock.db.structs.Trip;
+import org.transitclock.db.structs.TripPattern;
+import org.transitclock.utils.IntervalTimer;
+import org.transitclock.utils.MapKey;
+
+/**
+ * Determines which blocks, trips, and trip patterns of newly processed GTFS
+ * data differ from what was written to the database for the previous
+ * configuration revision. A hash of the content of each object is compared
+ * to the hash stored in the ContentHashes table when the previous revision
+ * was written. If only a small part of the data changed then DbWriter can
+ * copy the previous revision to the new one within the database and then
+ * replace just the changed objects, instead of writing the whole revision.
+ * <p>
+ * The hash of a trip pattern includes its stop paths, and therefore the
+ * shape locations. The hash of a trip includes the hash of its trip
+ * pattern, and the hash of a block includes the hashes of its trips. This
+ * way a change to a trip pattern causes its trips, and the blocks of those
+ * trips, to be rewritten. That is necessary because the foreign keys
+ * between them means they need to be deleted and written together.
+ */
+public class GtfsDiff {
+
+	// The revision the new data is being written to
+	private final int configRev;
+
+	// The hashes of the new data, keyed by ContentHash.getKey()
+	private final Map<MapKey, ContentHash> newHashes =
+			new HashMap<MapKey, ContentHash>();
+
+	// The blocks of the new data, keyed by the key of their hash
+	private final Map<MapKey, Block> blocks =
+			new LinkedHashMap<MapKey, Block>();
+
+	// Set by determineChanges()
+	private boolean incremental = false;
+	private int previousConfigRev = -1;
+	private final List<MapKey> changedBlockKeys = new ArrayList<MapKey>();
+	private final List<ContentHash> hashesToWrite = new ArrayList<ContentHash>();
+	private final List<ContentHash> hashesToDelete = new ArrayList<ContentHash>();
+
+	public static final String BLOCK = "Block";
+	public static final String TRIP = "Trip";
+	public static final String TRIP_PATTERN = "TripPattern";
+
+	private static DoubleConfigValue maxFractionChanged =
+			new DoubleConfigValue(
+					"transitclock.gtfs.diffUpdateMaxFractionChanged",
+					0.5,
+					"When transitclock.gtfs.diffUpdate is set, if more than "
+					+ "this fraction of the blocks changed then the whole "
+					+ "configuration revision is written instead of copying "
+					+ "the previous revision and writing just the changed "
+					+ "blocks, since then that is faster.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(GtfsDiff.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Determines the content hashes for the trip patterns, trips, and blocks
+	 * of the GTFS data. The data must already have been fully processed.
+	 *
+	 * @param gtfsData
+	 * @param configRev
+	 *            the revision the data is being written to
+	 */
+	public GtfsDiff(GtfsData gtfsData, int configRev) {
+		this(configRev);
+
+		Map<String, String> tripPatternHashes = new HashMap<String, String>();
+		for (TripPattern tripPattern : gtfsData.getTripPatterns()) {
+			tripPatternHashes.put(tripPattern.getId(),
+					addTripPattern(tripPattern.getId(),
+							tripPatternContent(tripPattern)));
+		}
+
+		for (Block block : gtfsData.getBlocks()) {
+			StringBuilder blockContent = blockContent(block);
+			for (Trip trip : block.getTrips()) {
+				String hash = addTrip(trip.getId(), trip.getStartTime(),
+						tripContent(trip),
+						tripPatternHashes.get(trip.getTripPattern().getId()));
+				appendTrip(blockContent, trip.getId(), trip.getStartTime(),
+						hash);
+			}
+			blocks.put(addBlock(block.getId(), block.getServiceId(),
+					blockContent), block);
+		}
+	}
+
+	/**
+	 * For adding the hashes directly, without any GTFS data. Used by the
+	 * unit tests.
+	 *
+	 * @param configRev
+	 *            the revision the data is being written to
+	 */
+	GtfsDiff(int configRev) {
+		this.configRev = configRev;
+	}
+
+	/**
+	 * Adds the hash of a trip pattern.
+	 *
+	 * @return the hash, for including in the hashes of its trips
+	 */
+	String addTripPattern(String tripPatternId, CharSequence content) {
+		String hash = hash(content);
+		addHash(new ContentHash(configRev, TRIP_PATTERN, tripPatternId,
+				ContentHash.NO_SUB_ID, hash));
+		return hash;
+	}
+
+	/**
+	 * Adds the hash of a trip. The hash of its trip pattern is part of the
+	 * content so that a trip is rewritten when its trip pattern changes.
+	 *
+	 * @return the hash, for appending to the content of its block
+	 */
+	String addTrip(String tripId, int startTime, CharSequence content,
+			String tripPatternHash) {
+		String hash = hash(new StringBuilder(content)
+				.append(";tripPattern=").append(tripPatternHash));
+		addHash(new ContentHash(configRev, TRIP, tripId,
+				Integer.toString(startTime), hash));
+		return hash;
+	}
+
+	/**
+	 * Appends a trip, and its hash, to the content of its block.
+	 */
+	static void appendTrip(StringBuilder blockContent, String tripId,
+			int startTime, String tripHash) {
+		blockContent.append(";trip=").append(tripId)
+				.append('/').append(startTime)
+				.append('=').append(tripHash);
+	}
+
+	/**
+	 * Adds the hash of a block. The content must already include the hashes
+	 * of its trips.
+	 *
+	 * @return the key of the hash
+	 */
+	MapKey addBlock(String blockId, String serviceId, CharSequence content) {
+		ContentHash contentHash = new ContentHash(configRev, BLOCK, blockId,
+				serviceId, hash(content));
+		addHash(contentHash);
+		return contentHash.getKey();
+	}
+
+	private void addHash(ContentHash contentHash) {
+		newHashes.put(contentHash.getKey(), contentHash);
+	}
+
+	/**
+	 * The fields of a trip pattern that are written to the database. The
+	 * stop paths include the locations so changes to shapes are noticed.
+	 */
+	private static StringBuilder tripPatternContent(TripPattern tripPattern) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(tripPattern.getId())
+				.append(';').append(tripPattern.getHeadsign())
+				.append(';').append(tripPattern.getRouteId())
+				.append(';').append(tripPattern.getRouteShortName())
+				.append(';').append(tripPattern.getDirectionId())
+				.append(';').append(tripPattern.getShapeId());
+		for (StopPath stopPath : tripPattern.getStopPaths())
+			sb.append(';').append(stopPath);
+		return sb;
+	}
+
+	/**
+	 * The fields of a trip that are written to the database. The hash of
+	 * its trip pattern is appended by addTrip().
+	 */
+	private static StringBuilder tripContent(Trip trip) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(trip.getId())
+				.append(';').append(trip.getStartTime())
+				.append(';').append(trip.getEndTime())
+				.append(';').append(trip.getDirectionId())
+				.append(';').append(trip.getRouteId())
+				.append(';').append(trip.getRouteShortName())
+				.append(';').append(trip.getTripPattern().getId())
+				.append(';').append(trip.isNoSchedule())
+				.append(';').append(trip.isExactTimesHeadway())
+				.append(';').append(trip.getServiceId())
+				.append(';').append(trip.getHeadsign())
+				.append(';').append(trip.getBlockId())
+				.append(';').append(trip.getShapeId())
+				.append(';').append(trip.getScheduleTimes());
+		return sb;
+	}
+
+	/**
+	 * The fields of a block that are written to the database. The trips are
+	 * appended by the caller using appendTrip().
+	 */
+	private static StringBuilder blockContent(Block block) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(block.getId())
+				.append(';').append(block.getServiceId())
+				.append(';').append(block.getStartTime())
+				.append(';').append(block.getEndTime())
+				.append(';').append(new TreeSet<String>(block.getRouteIds()));
+		return sb;
+	}
+
+	/**
+	 * @param content
+	 * @return hex string of the MD5 hash of the content
+	 */
+	private static String hash(CharSequence content) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			byte[] digest = md.digest(
+					content.toString().getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(2 * digest.length);
+			for (byte b : digest)
+				sb.append(String.format("%02x", b & 0xff));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// MD5 is required to be supported by every JVM
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Reads in the hashes stored for the previous configuration revision and
+	 * determines what changed. If there are no stored hashes, or if too
+	 * much changed, then the whole revision is to be written and
+	 * isIncremental() returns false.
+	 *
+	 * @param session
+	 * @param previousConfigRev
+	 *            the currently active revision, which the unchanged objects
+	 *            are to be copied from
+	 * @throws HibernateException
+	 */
+	public void determineChanges(Session session, int previousConfigRev)
+			throws HibernateException {
+		List<ContentHash> oldHashList =
+				ContentHash.getContentHashes(session, previousConfigRev);
+
+		// Only needed for comparing so don't let the session hold on to them
+		for (ContentHash contentHash : oldHashList)
+			session.evict(contentHash);
+
+		determineChanges(oldHashList, previousConfigRev);
+	}
+
+	/**
+	 * Compares the new hashes to the ones stored for the previous revision.
+	 *
+	 * @param oldHashList
+	 *            the hashes stored for the previous revision
+	 * @param previousConfigRev
+	 */
+	void determineChanges(List<ContentHash> oldHashList,
+			int previousConfigRev) {
+		IntervalTimer timer = new IntervalTimer();
+		this.previousConfigRev = previousConfigRev;
+
+		// The unchanged objects are copied from the previous rev. If writing
+		// over it, such as when a configRev is specified, then there is
+		// nothing to copy from.
+		if (previousConfigRev == configRev) {
+			logger.info("Writing over configRev={} so the whole revision "
+					+ "will be written.", configRev);
+			useFullWrite();
+			return;
+		}
+
+		if (oldHashList.isEmpty()) {
+			logger.info("No content hashes stored for previous configRev={} "
+					+ "so the whole revision will be written.",
+					previousConfigRev);
+			useFullWrite();
+			return;
+		}
+
+		Map<MapKey, ContentHash> oldHashes = new HashMap<MapKey, ContentHash>();
+		for (ContentHash contentHash : oldHashList)
+			oldHashes.put(contentHash.getKey(), contentHash);
+
+		// Old objects that were removed or changed need to be deleted from
+		// the copy of the previous rev
+		for (ContentHash oldHash : oldHashList) {
+			ContentHash newHash = newHashes.get(oldHash.getKey());
+			if (newHash == null || !newHash.getHash().equals(oldHash.getHash()))
+				hashesToDelete.add(oldHash);
+		}
+
+		// New objects that were added or changed need to be written. Only
+		// the changed blocks need to be written since writing them writes
+		// their trips and trip patterns too.
+		int numBlocks = 0;
+		for (ContentHash newHash : newHashes.values()) {
+			ContentHash oldHash = oldHashes.get(newHash.getKey());
+			boolean changed = oldHash == null
+					|| !oldHash.getHash().equals(newHash.getHash());
+			if (changed)
+				hashesToWrite.add(newHash);
+			if (BLOCK.equals(newHash.getEntityType())) {
+				++numBlocks;
+				if (changed)
+					changedBlockKeys.add(newHash.getKey());
+			}
+		}
+
+		double fractionChanged = numBlocks == 0 ?
+				1.0 : (double) changedBlockKeys.size() / numBlocks;
+		if (fractionChanged > maxFractionChanged.getValue()) {
+			logger.info("{} of {} blocks changed since configRev={}, which is "
+					+ "more than {} of them, so the whole revision will be "
+					+ "written.", changedBlockKeys.size(), numBlocks,
+					previousConfigRev, maxFractionChanged.getValue());
+			useFullWrite();
+			return;
+		}
+
+		incremental = true;
+		logger.info("Determined that {} of {} blocks changed since "
+				+ "configRev={}. {} stored objects are to be deleted from the "
+				+ "copy of it. Took {} msec.",
+				changedBlockKeys.size(), numBlocks, previousConfigRev,
+				hashesToDelete.size(), timer.elapsedMsec());
+	}
+
+	/**
+	 * For when everything is to be written. All the new hashes are written
+	 * so that the next update can be incremental.
+	 */
+	private void useFullWrite() {
+		incremental = false;
+		changedBlockKeys.clear();
+		hashesToWrite.clear();
+		hashesToWrite.addAll(newHashes.values());
+		hashesToDelete.clear();
+	}
+
+	/**
+	 * Deletes from the copy of the previous revision the blocks, trips, and
+	 * trip patterns that were removed or changed, along with their hashes.
+	 * Blocks are deleted first, then trips, then trip patterns, because of
+	 * the foreign keys. Only for when isIncremental().
+	 *
+	 * @param session
+	 * @param configRev
+	 *            the new revision, which the previous one was copied to
+	 * @throws HibernateException
+	 */
+	public void deleteChangedObjects(Session session, int configRev)
+			throws HibernateException {
+		String[] typesInDeleteOrder = {BLOCK, TRIP, TRIP_PATTERN};
+		for (String type : typesInDeleteOrder) {
+			int numDeleted = 0;
+			for (ContentHash oldHash : hashesToDelete) {
+				if (!type.equals(oldHash.getEntityType()))
+					continue;
+
+				if (type.equals(BLOCK))
+					Block.deleteFromRev(session, configRev,
+							oldHash.getEntityId(), oldHash.getSubId());
+				else if (type.equals(TRIP))
+					Trip.deleteFromRev(session, configRev,
+							oldHash.getEntityId(),
+							Integer.parseInt(oldHash.getSubId()));
+				else
+					TripPattern.deleteFromRev(session, configRev,
+							oldHash.getEntityId());
+				ContentHash.delete(session, configRev, type,
+						oldHash.getEntityId(), oldHash.getSubId());
+				++numDeleted;
+			}
+			logger.info("Deleted {} changed or removed objects of type {}.",
+					numDeleted, type);
+		}
+	}
+
+	/*********************** Getters *********************/
+
+	/**
+	 * @return true if the previous revision is to be copied and only the
+	 *         changed objects written. False if the whole configuration
+	 *         revision is to be written.
+	 */
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * @return the revision that the unchanged objects are copied from
+	 */
+	public int getPreviousConfigRev() {
+		return previousConfigRev;
+	}
+
+	/**
+	 * @return the keys of the blocks that were added or changed. Empty if
+	 *         not incremental.
+	 */
+	List<MapKey> getChangedBlockKeys() {
+		return changedBlockKeys;
+	}
+
+	/**
+	 * @return the blocks to be written. All of them if not incremental.
+	 */
+	public List<Block> getBlocksToWrite() {
+		if (!incremental)
+			return new ArrayList<Block>(blocks.values());
+
+		List<Block> blocksToWrite = new ArrayList<Block>();
+		for (MapKey key : changedBlockKeys)
+			blocksToWrite.add(blocks.get(key));
+		return blocksToWrite;
+	}
+
+	/**
+	 * @return the trips of the blocks to be written, which are the ones that
+	 *         need travel times
+	 */
+	public List<Trip> getTripsToWrite() {
+		List<Trip> tripsToWrite = new ArrayList<Trip>();
+		for (Block block : getBlocksToWrite())
+			tripsToWrite.addAll(block.getTrips());
+		return tripsToWrite;
+	}
+
+	/**
+	 * @return the content hashes to be written. The changed ones need to
+	 *         have been deleted first.
+	 */
+	public List<ContentHash> getHashesToWrite() {
+		return hashesToWrite;
+	}
+
+	/**
+	 * @return the hashes of the previous revision for the objects that were
+	 *         removed or changed
+	 */
+	List<ContentHash> getHashesToDelete() {
+		return hashesToDelete;
+	}
+}
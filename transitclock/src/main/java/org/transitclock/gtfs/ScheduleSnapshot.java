@@ -0,0 +1,255 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.gtfs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.db.structs.Block;
+import org.transitclock.db.structs.StopPath;
+import org.transitclock.db.structs.Trip;
+import org.transitclock.db.structs.TripPattern;
+import org.transitclock.utils.IntervalTimer;
+
+/**
+ * An immutable, fully materialized snapshot of the trips of all of the
+ * blocks. Without it the trips of a block are lazy loaded by Hibernate the
+ * first time Block.getTrips() is called, which needs to be done while
+ * synchronized on Block.getLazyLoadingSyncObject() using the global session.
+ * That means that all threads that access a block that hasn't been loaded
+ * yet wait on each other, which makes processing slow for a good while after
+ * startup.
+ * <p>
+ * The snapshot is created in a background thread while the system is
+ * already running. All the lazily loaded data for the trips, including the
+ * schedule times and the stop path locations, is accessed so that it is
+ * loaded. Since the global session can only be used by one thread at a time
+ * the lazy loading lock is held only for a group of blocks at a time so
+ * that other threads are not blocked for long. Once the snapshot is complete
+ * it is published atomically and from then on readers simply use the
+ * read-only maps without any locking and without needing a live session.
+ * When the configuration is read in again the snapshot is replaced.
+ */
+public class ScheduleSnapshot {
+
+	private final int configRev;
+
+	// The trips for each block. Keyed on the Block object itself since the
+	// blocks are the shared ones from DbConfig. This way no key needs to be
+	// created when looking up the trips.
+	private final Map<Block, List<Trip>> tripsByBlock;
+
+	// Keyed on trip ID
+	private final Map<String, Trip> tripsById;
+
+	// Keyed on trip short name
+	private final Map<String, List<Trip>> tripsByShortName;
+
+	// The current snapshot. Holds the token returned by invalidate() instead
+	// while the configuration is being read in and the snapshot for it is
+	// being created, so that a snapshot created for an earlier read can't be
+	// published. Null if snapshots are not being used.
+	private static final AtomicReference<Object> current =
+			new AtomicReference<Object>(null);
+
+	// How many blocks to load each time the lazy loading lock is obtained
+	private static final int BLOCKS_PER_LOCK = 25;
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(ScheduleSnapshot.class);
+
+	/********************** Member Functions **************************/
+
+	private ScheduleSnapshot(int configRev,
+			Map<Block, List<Trip>> tripsByBlock, Map<String, Trip> tripsById,
+			Map<String, List<Trip>> tripsByShortName) {
+		this.configRev = configRev;
+		this.tripsByBlock = tripsByBlock;
+		this.tripsById = Collections.unmodifiableMap(tripsById);
+		this.tripsByShortName = tripsByShortName;
+	}
+
+	/**
+	 * Creates a snapshot of the trips of the blocks. Can take a long time
+	 * since all the trip data is read from the database.
+	 *
+	 * @param configRev
+	 * @param blocks
+	 *            the blocks from DbConfig
+	 * @return the new snapshot
+	 */
+	public static ScheduleSnapshot create(int configRev, List<Block> blocks) {
+		IntervalTimer timer = new IntervalTimer();
+		logger.info("Creating schedule snapshot of {} blocks for "
+				+ "configRev={}...", blocks.size(), configRev);
+
+		Map<Block, List<Trip>> tripsByBlock =
+				new IdentityHashMap<Block, List<Trip>>(blocks.size());
+		Map<String, Trip> tripsById = new HashMap<String, Trip>();
+		Set<TripPattern> loadedTripPatterns = Collections.newSetFromMap(
+				new IdentityHashMap<TripPattern, Boolean>());
+
+		for (int start = 0; start < blocks.size(); start += BLOCKS_PER_LOCK) {
+			int end = Math.min(start + BLOCKS_PER_LOCK, blocks.size());
+
+			// The global session can only be used by one thread at a time.
+			// Only hold the lock for a group of blocks so that threads that
+			// need to lazy load other data are not blocked for long.
+			synchronized (Block.getLazyLoadingSyncObject()) {
+				for (Block block : blocks.subList(start, end)) {
+					List<Trip> trips = new ArrayList<Trip>(block.getTrips());
+					for (Trip trip : trips) {
+						loadTrip(trip, loadedTripPatterns);
+						tripsById.put(trip.getId(), trip);
+					}
+					tripsByBlock.put(block, Collections.unmodifiableList(trips));
+				}
+			}
+		}
+
+		Map<String, List<Trip>> tripsByShortName =
+				new HashMap<String, List<Trip>>();
+		for (Trip trip : tripsById.values()) {
+			if (trip.getShortName() == null)
+				continue;
+			List<Trip> tripsForShortName = tripsByShortName.get(trip.getShortName());
+			if (tripsForShortName == null) {
+				tripsForShortName = new ArrayList<Trip>(1);
+				tripsByShortName.put(trip.getShortName(), tripsForShortName);
+			}
+			tripsForShortName.add(trip);
+		}
+		for (Map.Entry<String, List<Trip>> entry : tripsByShortName.entrySet())
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+
+		logger.info("Created schedule snapshot of {} blocks, {} trips, and "
+				+ "{} trip patterns for configRev={}. Took {} msec.",
+				tripsByBlock.size(), tripsById.size(),
+				loadedTripPatterns.size(), configRev, timer.elapsedMsec());
+
+		return new ScheduleSnapshot(configRev, tripsByBlock, tripsById,
+				tripsByShortName);
+	}
+
+	/**
+	 * Accesses the lazily loaded data of the trip so that it is read in.
+	 * Trip patterns are shared by many trips so each one is only loaded once.
+	 *
+	 * @param trip
+	 * @param loadedTripPatterns
+	 */
+	private static void loadTrip(Trip trip, Set<TripPattern> loadedTripPatterns) {
+		trip.getScheduleTimes().size();
+
+		TripPattern tripPattern = trip.getTripPattern();
+		if (tripPattern == null || !loadedTripPatterns.add(tripPattern))
+			return;
+		for (StopPath stopPath : tripPattern.getStopPaths()) {
+			if (stopPath.getLocations() != null)
+				stopPath.getLocations().size();
+		}
+	}
+
+	/**
+	 * Returns the current snapshot.
+	 *
+	 * @return the snapshot, or null if there currently isn't one
+	 */
+	public static ScheduleSnapshot getCurrent() {
+		Object snapshot = current.get();
+		return snapshot instanceof ScheduleSnapshot ?
+				(ScheduleSnapshot) snapshot : null;
+	}
+
+	/**
+	 * Removes the current snapshot since the configuration is being read in
+	 * again.
+	 *
+	 * @return token to pass to publish() once the snapshot for the new
+	 *         configuration has been created
+	 */
+	public static Object invalidate() {
+		Object token = new Object();
+		current.set(token);
+		return token;
+	}
+
+	/**
+	 * Makes the snapshot the current one, unless the configuration has been
+	 * read in again since the token was obtained. Done as a single atomic
+	 * swap so that a snapshot for old blocks can never replace a newer one.
+	 *
+	 * @param token
+	 *            as returned by invalidate() before the blocks that the
+	 *            snapshot was created for were read in
+	 * @param snapshot
+	 * @return true if the snapshot is now the current one
+	 */
+	public static boolean publish(Object token, ScheduleSnapshot snapshot) {
+		return current.compareAndSet(token, snapshot);
+	}
+
+	/**
+	 * @return the configRev that the snapshot was created for
+	 */
+	public int getConfigRev() {
+		return configRev;
+	}
+
+	/**
+	 * Returns the trips for the block.
+	 *
+	 * @param block
+	 * @return unmodifiable list of trips, or null if the block is not part of
+	 *         the snapshot
+	 */
+	public List<Trip> getTrips(Block block) {
+		return tripsByBlock.get(block);
+	}
+
+	/**
+	 * @param tripId
+	 * @return the trip, or null if no such trip
+	 */
+	public Trip getTrip(String tripId) {
+		return tripsById.get(tripId);
+	}
+
+	/**
+	 * @param tripShortName
+	 * @return unmodifiable list of the trips with the short name, or null if
+	 *         there are none
+	 */
+	public List<Trip> getTripsByShortName(String tripShortName) {
+		return tripsByShortName.get(tripShortName);
+	}
+
+	/**
+	 * @return unmodifiable map of all the trips of the blocks, keyed on trip ID
+	 */
+	public Map<String, Trip> getTripsMap() {
+		return tripsById;
+	}
+}
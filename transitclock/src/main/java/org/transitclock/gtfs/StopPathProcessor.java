@@ -22,6 +22,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +34,7 @@ import org.transitclock.db.structs.Vector;
 import org.transitclock.gtfs.gtfsStructs.GtfsShape;
 import org.transitclock.utils.Geo;
 import org.transitclock.utils.IntervalTimer;
+import org.transitclock.utils.threading.ParallelProcessor;
 
 /**
  * Part of GtfsData class. Processes the shapes.txt data and converts
@@ -622,6 +624,21 @@ public class StopPathProcessor {
 	 * adjusted.
 	 */
 	public void processPathSegments() {
+		processPathSegments(null, 1);
+	}
+	
+	/**
+	 * Same as processPathSegments() but processes the trip patterns in
+	 * parallel using the executor. Each trip pattern only modifies its own
+	 * stop paths so they can be processed independently.
+	 * 
+	 * @param executor
+	 *            for processing the trip patterns in parallel. If null then
+	 *            they are processed on the calling thread.
+	 * @param numThreads
+	 *            number of threads of the executor
+	 */
+	public void processPathSegments(ExecutorService executor, int numThreads) {
 		// For logging how long things take
 		IntervalTimer timer = new IntervalTimer();
 
@@ -629,28 +646,15 @@ public class StopPathProcessor {
 		logger.info("Processing and filtering path segment data...");
 		
 		// Need to process stopPaths for every trip pattern...
-		for (TripPattern tripPattern : tripPatterns) {
-			// Determine the GtfsShape associated with the TripPattern
-			String shapeId = tripPattern.getShapeId();
-			List<GtfsShape> gtfsShapesForTripPattern = gtfsShapesMap.get(shapeId);
-			
-			// If no shape defined then simply connect the stops
-			if (gtfsShapesForTripPattern == null) {
-				// Create stopPaths by connecting the stops
-				connectStopsSinceNoShapes(tripPattern);
-			} else {
-				// Determine list of shapes associated with the trip pattern.
-				// The stopPaths are offset to the right by the offsetDistance
-				// if needed. This is useful if the shapes.txt data is street
-				// centerline data.
-				List<Location> offsetLocations = 
-						getOffsetLocations(gtfsShapesMap.get(shapeId));
-						
-				// Create stopPaths by finding best match to shapes
-				determinePathSegmentsMatchingStopsToShapes(offsetLocations, 
-						tripPattern);
-			}
-		}
+		ParallelProcessor.process(executor, numThreads,
+				new ArrayList<TripPattern>(tripPatterns),
+				new ParallelProcessor.ItemProcessor<TripPattern, Void>() {
+					@Override
+					public Void process(TripPattern tripPattern) {
+						processPathSegments(tripPattern);
+						return null;
+					}
+				});
 		
 		// Let user know what is going on
 		logger.info("Finished processing and filtering path segment data. " +
@@ -658,4 +662,32 @@ public class StopPathProcessor {
 				timer.elapsedMsec());		
 	}
 	
+	/**
+	 * Determines the stop paths for a single trip pattern.
+	 * 
+	 * @param tripPattern
+	 */
+	private void processPathSegments(TripPattern tripPattern) {
+		// Determine the GtfsShape associated with the TripPattern
+		String shapeId = tripPattern.getShapeId();
+		List<GtfsShape> gtfsShapesForTripPattern = gtfsShapesMap.get(shapeId);
+		
+		// If no shape defined then simply connect the stops
+		if (gtfsShapesForTripPattern == null) {
+			// Create stopPaths by connecting the stops
+			connectStopsSinceNoShapes(tripPattern);
+		} else {
+			// Determine list of shapes associated with the trip pattern.
+			// The stopPaths are offset to the right by the offsetDistance
+			// if needed. This is useful if the shapes.txt data is street
+			// centerline data.
+			List<Location> offsetLocations = 
+					getOffsetLocations(gtfsShapesMap.get(shapeId));
+					
+			// Create stopPaths by finding best match to shapes
+			determinePathSegmentsMatchingStopsToShapes(offsetLocations, 
+					tripPattern);
+		}
+	}
+	
 }
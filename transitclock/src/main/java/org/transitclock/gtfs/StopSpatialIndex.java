@@ -0,0 +1,177 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.gtfs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.db.structs.Location;
+import org.transitclock.db.structs.Stop;
+import org.transitclock.db.structs.StopPath;
+import org.transitclock.db.structs.TripPattern;
+import org.transitclock.utils.GridIndex;
+import org.transitclock.utils.IntervalTimer;
+
+/**
+ * A grid based spatial index of the stops of all the trip patterns. Built
+ * when the configuration is read in so that StopsByLoc only needs to look at
+ * the trip patterns that actually have a stop near the location instead of
+ * computing the distance to every stop of every trip pattern.
+ * <p>
+ * The stop locations come from the Stop objects, which are already read in,
+ * so that creating the index doesn't cause the lazily loaded StopPath
+ * locations to be read from the database.
+ */
+public class StopSpatialIndex {
+
+	// Each cell contains the stops in the cell
+	private final GridIndex<Entry> grid;
+
+	// Stops are usually a few hundred meters apart and queries are for a
+	// few hundred meters so this is a reasonable size
+	private static final double DEFAULT_CELL_SIZE = 250.0;
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(StopSpatialIndex.class);
+
+	/**
+	 * A stop of a trip pattern
+	 */
+	private static class Entry {
+		private final TripPattern tripPattern;
+		private final Location loc;
+
+		private Entry(TripPattern tripPattern, Location loc) {
+			this.tripPattern = tripPattern;
+			this.loc = loc;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param cellSize
+	 *            Size of grid cell in meters
+	 * @param referenceLat
+	 *            Latitude used for determining size of cell in degrees
+	 *            longitude. Should be near the center of the area covered.
+	 */
+	private StopSpatialIndex(double cellSize, double referenceLat) {
+		this.grid = new GridIndex<Entry>(cellSize, referenceLat);
+	}
+
+	/**
+	 * Creates the index of the stops for all of the trip patterns.
+	 *
+	 * @param tripPatterns
+	 *            The trip patterns to index
+	 * @param stopsMap
+	 *            For getting location of stops. Keyed on stop ID.
+	 * @return the new index
+	 */
+	public static StopSpatialIndex create(Collection<TripPattern> tripPatterns,
+			Map<String, Stop> stopsMap) {
+		IntervalTimer timer = new IntervalTimer();
+
+		// Determine reference latitude so that cells are roughly square
+		double latSum = 0.0;
+		for (Stop stop : stopsMap.values())
+			latSum += stop.getLoc().getLat();
+		double referenceLat =
+				stopsMap.isEmpty() ? 0.0 : latSum / stopsMap.size();
+
+		StopSpatialIndex index =
+				new StopSpatialIndex(DEFAULT_CELL_SIZE, referenceLat);
+		for (TripPattern tripPattern : tripPatterns) {
+			for (StopPath stopPath : tripPattern.getStopPaths()) {
+				Stop stop = stopsMap.get(stopPath.getStopId());
+				if (stop == null)
+					continue;
+				index.add(tripPattern, stop.getLoc());
+			}
+		}
+
+		logger.info("Created StopSpatialIndex of {} stops for {} trip "
+				+ "patterns using {} cells. Took {} msec.",
+				index.grid.getNumberItems(), tripPatterns.size(),
+				index.grid.getNumberCells(),
+				timer.elapsedMsec());
+
+		return index;
+	}
+
+	/**
+	 * Adds a stop of the trip pattern.
+	 *
+	 * @param tripPattern
+	 * @param stopLoc
+	 */
+	private void add(TripPattern tripPattern, Location stopLoc) {
+		grid.add(new Entry(tripPattern, stopLoc), stopLoc.getLat(),
+				stopLoc.getLon());
+	}
+
+	/**
+	 * Returns the entries that are within the specified distance of the
+	 * location.
+	 *
+	 * @param loc
+	 * @param distance
+	 *            in meters
+	 * @return non-null possibly empty list of entries
+	 */
+	private List<Entry> getEntriesNear(Location loc, double distance) {
+		List<Entry> results = new ArrayList<Entry>();
+		for (Entry entry : grid.getCandidates(loc, distance)) {
+			if (loc.distance(entry.loc) <= distance)
+				results.add(entry);
+		}
+		return results;
+	}
+
+	/**
+	 * Returns the trip patterns that have at least one stop within the
+	 * specified distance of the location.
+	 *
+	 * @param loc
+	 * @param distance
+	 *            in meters
+	 * @return non-null possibly empty set of trip patterns. Uses identity
+	 *         comparison since trip patterns are shared objects.
+	 */
+	public Set<TripPattern> getTripPatternsNear(Location loc, double distance) {
+		Set<TripPattern> results =
+				Collections.newSetFromMap(new IdentityHashMap<TripPattern, Boolean>());
+		for (Entry entry : getEntriesNear(loc, distance))
+			results.add(entry.tripPattern);
+		return results;
+	}
+
+	/**
+	 * @return Number of (stop, trip pattern) pairs in the index
+	 */
+	public int getNumberEntries() {
+		return grid.getNumberItems();
+	}
+}
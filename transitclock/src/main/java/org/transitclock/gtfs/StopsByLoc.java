@@ -19,6 +19,7 @@ package org.transitclock.gtfs;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import org.transitclock.applications.Core;
 import org.transitclock.core.dataCache.PredictionDataCache;
@@ -179,6 +180,11 @@ public class StopsByLoc {
 	 * Gets list of stops that are within maxDistance of the specified location.
 	 * Looks at every trip pattern so can deal with complicated cases such as
 	 * routes with school service stops just for part of the day.
+	 * <p>
+	 * Uses the StopSpatialIndex from DbConfig to determine which trip
+	 * patterns have a stop within maxDistance. Only those trip patterns can
+	 * have a closest stop within maxDistance so the others are skipped
+	 * without having to compute the distance to each of their stops.
 	 * 
 	 * @param loc
 	 * @param maxDistance
@@ -190,6 +196,12 @@ public class StopsByLoc {
 		
 		// Find closest stops for every route...
 		DbConfig dbConfig = Core.getInstance().getDbConfig();
+		StopSpatialIndex stopSpatialIndex = dbConfig.getStopSpatialIndex();
+		Set<TripPattern> tripPatternsNearLoc = stopSpatialIndex != null ?
+				stopSpatialIndex.getTripPatternsNear(loc, maxDistance) : null;
+		if (tripPatternsNearLoc != null && tripPatternsNearLoc.isEmpty())
+			return results;
+		
 		for (Route route : dbConfig.getRoutes()) {
 			// If the specified location is not within the distance of the route
 			// then can skip this route
@@ -212,6 +224,12 @@ public class StopsByLoc {
 				List<TripPattern> tripPatternsForDirection = 
 						route.getTripPatterns(directionId);
 				for (TripPattern tripPattern : tripPatternsForDirection) {
+					// If trip pattern doesn't have any stops near the 
+					// location then it can't match
+					if (tripPatternsNearLoc != null 
+							&& !tripPatternsNearLoc.contains(tripPattern))
+						continue;
+					
 					// Determine the closest stop for the trip pattern
 					StopInfo stopInfo = 
 							determineClosestStop(tripPattern, loc, maxDistance);
@@ -17,6 +17,7 @@
 package org.transitclock.gtfs;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -628,18 +629,20 @@ public class TravelTimesProcessorForGtfsUpdates {
 	 * with trip if don't have GPS data for it.
 	 * 
 	 * @param gtfsData
+	 * @param trips
+	 *            the trips to process
 	 * @param travelTimesFromDbMap
 	 *            Map keyed by tripPatternId of Lists of TripPatterns
 	 * @return the number of distinct traveltimes referenced for the travelTimesRev            
 	 * @throws HibernateException
 	 */
-	private Integer processTrips(GtfsData gtfsData, 
+	private Integer processTrips(GtfsData gtfsData, Collection<Trip> trips,
 			Map<String, List<TravelTimesForTrip>> travelTimesFromDbMap) {
 	  // keep a set of travel times for trips for metrics
 	  Set<Integer> travelTimesForTripIds = new HashSet<Integer>();
 	  
 		// For trip read from GTFS data..
-		for (Trip trip : gtfsData.getTrips()) {
+		for (Trip trip : trips) {
 			TripPattern tripPattern = trip.getTripPattern();
 			
 			logger.debug("Processing travel times for tripId={} which " + 
@@ -729,6 +732,21 @@ public class TravelTimesProcessorForGtfsUpdates {
 	 * @param gtfsData
 	 */
 	public void process(Session session, GtfsData gtfsData) {
+		process(session, gtfsData, gtfsData.getTrips());
+	}
+	
+	/**
+	 * Same as process(Session, GtfsData) but only for the specified trips.
+	 * For when only some of the trips changed and only those are to be
+	 * written to the database.
+	 * 
+	 * @param session
+	 * @param gtfsData
+	 * @param trips
+	 *            the trips that need travel times
+	 */
+	public void process(Session session, GtfsData gtfsData,
+			Collection<Trip> trips) {
 		if (!gtfsData.isTripsReadIn()) {
 			logger.error("tripsMap not yet read in by GtfsData before " + 
 					"ScheduleBasedTravelTimesProcessor.process() called. Software " +
@@ -758,7 +776,8 @@ public class TravelTimesProcessorForGtfsUpdates {
 				numberOfTravelTimes(travelTimesFromDbMap));
 		
 		// Do the low-level processing
-		setNumberOfTravelTimes(processTrips(gtfsData, travelTimesFromDbMap));
+		setNumberOfTravelTimes(
+				processTrips(gtfsData, trips, travelTimesFromDbMap));
 							
 		// Let user know what is going on
 		logger.info("Finished processing travel time data. " + 
@@ -767,7 +786,7 @@ public class TravelTimesProcessorForGtfsUpdates {
 				"Total number of trips={}.  Took {} msec.", 
 				getOriginalNumberOfTravelTimes(),
 				numberOfTravelTimes(travelTimesFromDbMap),
-				gtfsData.getTrips().size(),
+				trips.size(),
 				timer.elapsedMsec());
 	}
 
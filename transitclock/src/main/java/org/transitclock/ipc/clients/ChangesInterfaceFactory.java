@@ -0,0 +1,54 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.ipc.clients;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.transitclock.ipc.interfaces.ChangesInterface;
+import org.transitclock.ipc.rmi.ClientFactory;
+
+/**
+ * Provides a ChangesInterface client that can be queried for the vehicles
+ * and predictions that have changed.
+ */
+public class ChangesInterfaceFactory {
+
+	// Keyed by agencyId
+	private static Map<String, ChangesInterface> changesInterfaceMap =
+			new HashMap<String, ChangesInterface>();
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Gets the singleton instance.
+	 * 
+	 * @param agencyId
+	 * @return
+	 */
+	public static synchronized ChangesInterface get(String agencyId) {
+		ChangesInterface changesInterface = changesInterfaceMap.get(agencyId);
+		if (changesInterface == null) {
+			changesInterface =
+					ClientFactory.getInstance(agencyId, ChangesInterface.class);
+			changesInterfaceMap.put(agencyId, changesInterface);
+		}
+
+		return changesInterface;
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.ipc.data;
+
+import java.io.Serializable;
+import java.util.List;
+
+import org.transitclock.ipc.interfaces.PredictionsInterface.RouteStop;
+
+/**
+ * The vehicles and predictions that have changed since a previous request,
+ * for Inter Process Communication (IPC). Allows a client to keep its own
+ * copy of the vehicles and predictions up to date without reading all of
+ * them each time.
+ */
+public class IpcChanges implements Serializable {
+
+	// Pass in to the next request to get the changes since this one
+	private final long sequenceNumber;
+
+	// If true then contains all the vehicles and predictions instead of just
+	// the changes, and the client should replace what it has
+	private final boolean complete;
+
+	private final List<IpcVehicle> vehicles;
+	private final List<String> removedVehicleIds;
+
+	// The route/stops, specified by route short name and stop ID, whose
+	// predictions changed. The client should replace the predictions it has
+	// for them with the ones in predictions, which might not contain any for
+	// a route/stop if they were all removed.
+	private final List<RouteStop> changedRouteStops;
+	private final List<IpcPredictionsForRouteStopDest> predictions;
+
+	private static final long serialVersionUID = -3047836117562738436L;
+
+	/********************** Member Functions **************************/
+
+	public IpcChanges(long sequenceNumber, boolean complete,
+			List<IpcVehicle> vehicles, List<String> removedVehicleIds,
+			List<RouteStop> changedRouteStops,
+			List<IpcPredictionsForRouteStopDest> predictions) {
+		this.sequenceNumber = sequenceNumber;
+		this.complete = complete;
+		this.vehicles = vehicles;
+		this.removedVehicleIds = removedVehicleIds;
+		this.changedRouteStops = changedRouteStops;
+		this.predictions = predictions;
+	}
+
+	@Override
+	public String toString() {
+		return "IpcChanges [" 
+				+ "sequenceNumber=" + sequenceNumber
+				+ ", complete=" + complete 
+				+ ", vehicles.size()=" + vehicles.size()
+				+ ", removedVehicleIds=" + removedVehicleIds
+				+ ", changedRouteStops.size()=" + changedRouteStops.size()
+				+ ", predictions.size()=" + predictions.size() 
+				+ "]";
+	}
+
+	public long getSequenceNumber() {
+		return sequenceNumber;
+	}
+
+	public boolean isComplete() {
+		return complete;
+	}
+
+	public List<IpcVehicle> getVehicles() {
+		return vehicles;
+	}
+
+	public List<String> getRemovedVehicleIds() {
+		return removedVehicleIds;
+	}
+
+	public List<RouteStop> getChangedRouteStops() {
+		return changedRouteStops;
+	}
+
+	public List<IpcPredictionsForRouteStopDest> getPredictions() {
+		return predictions;
+	}
+
+}
@@ -0,0 +1,155 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.ipc.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+import org.transitclock.utils.Time;
+
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+
+/**
+ * A serialized GTFS-realtime feed for IPC via RMI. Passing the already
+ * serialized entities means that the client doesn't need to create them
+ * and that they can be written out as is. The header is created when the
+ * feed is written so that its timestamp is current even if the entities
+ * were serialized a while ago.
+ */
+public class IpcGtfsRtFeed implements Serializable {
+
+	// The serialized entity fields of the FeedMessage. Null if the client
+	// already has this version.
+	private final byte[] entities;
+	// Changes every time the feed changes. For use as an ETag.
+	private final String version;
+	// Epoch time in msec of when the feed last changed
+	private final long lastModified;
+	// Epoch time in msec of when the server provided the feed. For
+	// determining the Last-Modified HTTP header.
+	private final long serverTime;
+	// True if this is a DIFFERENTIAL instead of a FULL_DATASET feed
+	private final boolean differential;
+
+	private static final long serialVersionUID = -3129405632917468262L;
+
+	/********************** Member Functions **************************/
+
+	public IpcGtfsRtFeed(byte[] entities, String version, long lastModified,
+			long serverTime, boolean differential) {
+		this.entities = entities;
+		this.version = version;
+		this.lastModified = lastModified;
+		this.serverTime = serverTime;
+		this.differential = differential;
+	}
+
+	@Override
+	public String toString() {
+		return "IpcGtfsRtFeed ["
+				+ "bytes=" + (entities == null ? "null" : entities.length)
+				+ ", version=" + version
+				+ ", lastModified=" + lastModified
+				+ ", serverTime=" + serverTime
+				+ ", differential=" + differential
+				+ "]";
+	}
+
+	/**
+	 * Returns the serialized FeedMessage with just the header, with the
+	 * timestamp set to the current time.
+	 *
+	 * @return
+	 */
+	private byte[] getHeader() {
+		FeedHeader.Builder feedheader = FeedHeader.newBuilder()
+				.setGtfsRealtimeVersion("1.0")
+				.setIncrementality(differential ? Incrementality.DIFFERENTIAL
+						: Incrementality.FULL_DATASET)
+				.setTimestamp(System.currentTimeMillis() / Time.MS_PER_SEC);
+		return FeedMessage.newBuilder().setHeader(feedheader).build()
+				.toByteArray();
+	}
+
+	/**
+	 * Writes the serialized FeedMessage. Works because protobuf messages can
+	 * be concatenated, so the header is simply followed by the entities.
+	 *
+	 * @param outputStream
+	 * @throws IOException
+	 */
+	public void writeFeed(OutputStream outputStream) throws IOException {
+		outputStream.write(getHeader());
+		outputStream.write(entities);
+	}
+
+	/**
+	 * @return the serialized FeedMessage
+	 */
+	public byte[] getFeed() {
+		byte[] header = getHeader();
+		byte[] feed = new byte[header.length + entities.length];
+		System.arraycopy(header, 0, feed, 0, header.length);
+		System.arraycopy(entities, 0, feed, header.length, entities.length);
+		return feed;
+	}
+
+	/**
+	 * @return the serialized entities, or null if the client already has
+	 *         this version of the feed
+	 */
+	public byte[] getEntities() {
+		return entities;
+	}
+
+	public String getVersion() {
+		return version;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public long getServerTime() {
+		return serverTime;
+	}
+
+	/**
+	 * Returns the time to use for the Last-Modified HTTP header. HTTP dates
+	 * only have a resolution of seconds. If the feed was last modified in
+	 * the same second that the server provided it then it could still be
+	 * modified again within that second. A client that then uses
+	 * If-Modified-Since would miss those changes, so for that case the
+	 * previous second is used.
+	 *
+	 * @return epoch time in msec, truncated to seconds
+	 */
+	public long getHttpLastModified() {
+		long lastModifiedSecs = lastModified / Time.MS_PER_SEC;
+		if (lastModifiedSecs >= serverTime / Time.MS_PER_SEC)
+			--lastModifiedSecs;
+		return lastModifiedSecs * Time.MS_PER_SEC;
+	}
+
+	public boolean isDifferential() {
+		return differential;
+	}
+
+}
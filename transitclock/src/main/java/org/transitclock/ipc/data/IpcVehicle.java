@@ -191,6 +191,23 @@ public class IpcVehicle implements Serializable {
 		}		
 	}
 
+	/**
+	 * Constructs a plain IpcVehicle from a subclass such as
+	 * IpcVehicleComplete so that only the IpcVehicle members are serialized
+	 * when it is sent to a client that doesn't need the rest.
+	 * 
+	 * @param v
+	 */
+	public IpcVehicle(IpcVehicle v) {
+		this(v.blockId, v.blockAssignmentMethod, v.avl, v.heading, v.routeId,
+				v.routeShortName, v.routeName, v.tripId, v.tripPatternId,
+				v.directionId, v.headsign, v.predictable, v.schedBasedPred,
+				v.realTimeSchedAdh, v.isDelayed, v.isLayover,
+				v.layoverDepartureTime, v.nextStopId, v.nextStopName,
+				v.vehicleType, v.freqStartTime, v.isAtStop, v.holdingTime,
+				v.predictedLatitude, v.predictedLongitude);
+	}
+
 	/**
 	 * Constructor used for when deserializing a proxy object. Declared
 	 * protected because only used internally by the proxy class but also for
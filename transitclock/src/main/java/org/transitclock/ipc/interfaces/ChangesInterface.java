@@ -0,0 +1,50 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.ipc.interfaces;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+import org.transitclock.ipc.data.IpcChanges;
+
+/**
+ * Defines the RMI interface used for obtaining the vehicles and predictions
+ * that have changed. This way a client, such as the API server pushing
+ * updates to its own clients, can make a single request every few seconds
+ * to stay up to date instead of reading in all the vehicles and predictions.
+ */
+public interface ChangesInterface extends Remote {
+
+	/**
+	 * Gets the vehicles and predictions that have changed since the
+	 * previous request.
+	 * 
+	 * @param sequenceNumber
+	 *            The sequence number returned by the previous request. Use 0
+	 *            for the first request. If the changes since then are no
+	 *            longer all available, or if the core has been restarted,
+	 *            then all vehicles and predictions are returned and
+	 *            IpcChanges.isComplete() is true.
+	 * @param maxPredictionsPerStop
+	 *            Maximum number of predictions per route/stop/destination
+	 * @return The changes
+	 * @throws RemoteException
+	 */
+	public IpcChanges getChangesSince(long sequenceNumber,
+			int maxPredictionsPerStop) throws RemoteException;
+
+}
@@ -50,6 +50,21 @@ public interface CommandsInterface extends Remote {
 	 */
 	public String pushAvl(Collection<IpcAvl> avlData) throws RemoteException;
 	
+	/**
+	 * Sends a batch of AVL data to server. Returns as soon as the data has
+	 * been queued for processing, not once it has been processed. Only as
+	 * many reports are queued as the server has room for, in the iteration
+	 * order of the collection, so that the caller can retry the rest later
+	 * instead of them being dropped.
+	 * 
+	 * @param avlData collection of data
+	 * @return number of reports queued. Less than the size of the collection
+	 *         if the server is backed up.
+	 * @throws RemoteException
+	 */
+	public int pushAvlBatch(Collection<IpcAvl> avlData) 
+			throws RemoteException;
+	
 	/*
 	 * WIP This is to give a means of manually setting a vehicle unpredictable and unassigned so it will be reassigned quickly.
 	 */
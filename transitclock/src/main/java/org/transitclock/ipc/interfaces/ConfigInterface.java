@@ -223,5 +223,27 @@ public interface ConfigInterface extends Remote {
 	 */
 	public List<String> getBlockIds(String serviceId)
 			throws RemoteException;	
+	
+	/**
+	 * Returns the revision of the configuration data that the server is
+	 * using. Since the configuration data only changes when the config rev
+	 * changes clients can use this to determine whether data they have
+	 * cached is still valid.
+	 * 
+	 * @return the config rev
+	 * @throws RemoteException
+	 */
+	public int getConfigRev() throws RemoteException;
+
+	/**
+	 * Returns when the server read in the configuration data. Since a diff
+	 * update of the GTFS data modifies the active config rev in place this
+	 * is needed in addition to the config rev to determine whether cached
+	 * data is still valid.
+	 * 
+	 * @return epoch time in msec
+	 * @throws RemoteException
+	 */
+	public long getConfigReadTime() throws RemoteException;
 
 }
@@ -22,6 +22,7 @@ import java.rmi.RemoteException;
 import java.util.List;
 
 import org.transitclock.db.structs.Location;
+import org.transitclock.ipc.data.IpcGtfsRtFeed;
 import org.transitclock.ipc.data.IpcPredictionsForRouteStopDest;
 
 /**
@@ -125,4 +126,27 @@ public interface PredictionsInterface extends Remote {
 	 */
 	public List<IpcPredictionsForRouteStopDest> getAllPredictions(
 			int predictionMaxFutureSecs) throws RemoteException;
+
+	/**
+	 * Returns the GTFS-realtime TripUpdates feed that the core maintains as
+	 * predictions are generated. Much more efficient than getting all of the
+	 * predictions and creating the feed from them.
+	 * 
+	 * @param knownVersion
+	 *            Version of the feed that the client already has, or null. If
+	 *            the feed hasn't changed then the returned object won't
+	 *            contain the feed itself.
+	 * @param differentialSinceMsec
+	 *            If greater than 0 then a DIFFERENTIAL feed with the changes
+	 *            since this time is returned, if possible.
+	 * @param predictionMaxFutureSecs
+	 *            Only predictions at most this far into the future are
+	 *            included, same as for getAllPredictions()
+	 * @return The serialized feed, or null if the core is not configured to
+	 *         maintain the feed
+	 * @throws RemoteException
+	 */
+	public IpcGtfsRtFeed getGtfsRtTripUpdates(String knownVersion,
+			long differentialSinceMsec, int predictionMaxFutureSecs)
+			throws RemoteException;
 }
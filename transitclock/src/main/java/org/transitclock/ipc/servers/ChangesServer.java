@@ -0,0 +1,143 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.ipc.servers;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.core.dataCache.DataCacheChanges;
+import org.transitclock.core.dataCache.PredictionDataCache;
+import org.transitclock.core.dataCache.VehicleDataCache;
+import org.transitclock.ipc.data.IpcChanges;
+import org.transitclock.ipc.data.IpcPredictionsForRouteStopDest;
+import org.transitclock.ipc.data.IpcVehicle;
+import org.transitclock.ipc.data.IpcVehicleComplete;
+import org.transitclock.ipc.interfaces.ChangesInterface;
+import org.transitclock.ipc.interfaces.PredictionsInterface.RouteStop;
+import org.transitclock.ipc.rmi.AbstractServer;
+
+/**
+ * Implements the ChangesInterface interface on the server side such that a
+ * client can make RMI calls in order to find out which vehicles and
+ * predictions have changed. The changes are determined using
+ * DataCacheChanges. The vehicles are sent as plain IpcVehicle objects since
+ * the extra IpcVehicleComplete information would make each change several
+ * times larger without being used by the clients.
+ */
+public class ChangesServer extends AbstractServer implements ChangesInterface {
+
+	// Should only be accessed as singleton class
+	private static ChangesServer singleton;
+
+	private static final Logger logger = 
+			LoggerFactory.getLogger(ChangesServer.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Starts up the ChangesServer so that RMI calls can query for changes.
+	 * This will automatically cause the object to continue to run and serve
+	 * requests.
+	 * 
+	 * @param agencyId
+	 * @return the singleton ChangesServer object
+	 */
+	public static ChangesServer start(String agencyId) {
+		if (singleton == null) {
+			singleton = new ChangesServer(agencyId);
+		}
+		
+		if (!singleton.getAgencyId().equals(agencyId)) {
+			logger.error("Tried calling ChangesServer.start() for " +
+					"agencyId={} but the singleton was created for agencyId={}", 
+					agencyId, singleton.getAgencyId());
+			return null;
+		}
+		
+		return singleton;
+	}
+	
+	/*
+	 * Constructor. Made private so that can only be instantiated by
+	 * start().
+	 * 
+	 * @param agencyId
+	 *            for registering this object with the rmiregistry
+	 */
+	private ChangesServer(String agencyId) {
+		super(agencyId, ChangesInterface.class.getSimpleName());
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.ipc.interfaces.ChangesInterface#getChangesSince(long, int)
+	 */
+	@Override
+	public IpcChanges getChangesSince(long sequenceNumber,
+			int maxPredictionsPerStop) throws RemoteException {
+		DataCacheChanges dataCacheChanges = DataCacheChanges.getInstance();
+		VehicleDataCache vehicleDataCache = VehicleDataCache.getInstance();
+		PredictionDataCache predictionDataCache =
+				PredictionDataCache.getInstance();
+
+		DataCacheChanges.Changes changes = sequenceNumber > 0 ?
+				dataCacheChanges.getChangesSince(sequenceNumber) : null;
+		if (changes == null) {
+			// Need to provide everything. Get the sequence number first so
+			// that any changes made while reading the caches are provided
+			// next time.
+			long latestSequenceNumber =
+					dataCacheChanges.getLatestSequenceNumber();
+			List<IpcVehicle> vehicles = new ArrayList<IpcVehicle>();
+			for (IpcVehicleComplete vehicle : vehicleDataCache.getVehicles())
+				vehicles.add(new IpcVehicle(vehicle));
+			List<IpcPredictionsForRouteStopDest> predictions =
+					predictionDataCache.getAllPredictions(
+							maxPredictionsPerStop, Long.MAX_VALUE);
+			return new IpcChanges(latestSequenceNumber, true, vehicles,
+					new ArrayList<String>(), new ArrayList<RouteStop>(),
+					predictions);
+		}
+
+		List<IpcVehicle> vehicles = new ArrayList<IpcVehicle>();
+		List<String> removedVehicleIds = new ArrayList<String>();
+		for (String vehicleId : changes.getVehicleIds()) {
+			IpcVehicleComplete vehicle = vehicleDataCache.getVehicle(vehicleId);
+			if (vehicle != null)
+				vehicles.add(new IpcVehicle(vehicle));
+			else
+				removedVehicleIds.add(vehicleId);
+		}
+
+		List<RouteStop> changedRouteStops = new ArrayList<RouteStop>();
+		List<IpcPredictionsForRouteStopDest> predictions =
+				new ArrayList<IpcPredictionsForRouteStopDest>();
+		for (DataCacheChanges.RouteStop routeStop : changes.getRouteStops()) {
+			changedRouteStops.add(new RouteStop(routeStop.getRouteShortName(),
+					routeStop.getStopId()));
+			predictions.addAll(predictionDataCache.getPredictions(
+					routeStop.getRouteShortName(), null, routeStop.getStopId(),
+					maxPredictionsPerStop));
+		}
+
+		return new IpcChanges(changes.getSequenceNumber(), false, vehicles,
+				removedVehicleIds, changedRouteStops, predictions);
+	}
+
+}
@@ -107,6 +107,38 @@ public class CommandsServer extends AbstractServer
 		return null;
 	}
 
+	/**
+	 * Called on server side via RMI when a batch of AVL data is to be
+	 * queued. Only queues as many reports as the AvlExecutor has room for
+	 * so that reports are not rejected by the AvlExecutor when its queue is
+	 * full.
+	 * 
+	 * @param avlDataCollection
+	 *            AVL data sent to server
+	 * @return number of reports queued
+	 */
+	@Override
+	public int pushAvlBatch(Collection<IpcAvl> avlDataCollection)
+			throws RemoteException {
+		AvlExecutor avlExecutor = AvlExecutor.getInstance();
+		int capacity = avlExecutor.getAvailableCapacity();
+		int numberQueued = 0;
+		for (IpcAvl avlData : avlDataCollection) {
+			if (numberQueued >= capacity)
+				break;
+			avlExecutor.processAvlReport(new AvlReport(avlData));
+			++numberQueued;
+		}
+		
+		if (numberQueued < avlDataCollection.size())
+			logger.warn("AvlExecutor is backed up so only queued {} of the "
+					+ "batch of {} AVL reports. Queue depth={}", numberQueued,
+					avlDataCollection.size(), avlExecutor.getQueueDepth());
+		else
+			logger.debug("Queued batch of {} AVL reports", numberQueued);
+		return numberQueued;
+	}
+
 	@Override
 	public void setVehicleUnpredictable(String vehicleId) throws RemoteException {
 				
@@ -436,4 +436,20 @@ public class ConfigServer extends AbstractServer implements ConfigInterface {
 		return blockIds;
 	}
 
+	/* (non-Javadoc)
+	 * @see org.transitclock.ipc.interfaces.ConfigInterface#getConfigRev()
+	 */
+	@Override
+	public int getConfigRev() throws RemoteException {
+		return Core.getInstance().getDbConfig().getConfigRev();
+	}
+
+	/* (non-Javadoc)
+	 * @see org.transitclock.ipc.interfaces.ConfigInterface#getConfigReadTime()
+	 */
+	@Override
+	public long getConfigReadTime() throws RemoteException {
+		return Core.getInstance().getDbConfig().getReadTime();
+	}
+
 }
@@ -20,6 +20,7 @@ package org.transitclock.monitoring;
 import org.transitclock.applications.Core;
 import org.transitclock.config.DoubleConfigValue;
 import org.transitclock.db.hibernate.DataDbLogger;
+import org.transitclock.db.hibernate.DbQueue;
 import org.transitclock.utils.EmailSender;
 import org.transitclock.utils.StringUtils;
 
@@ -79,7 +80,7 @@ public class DatabaseQueueMonitor extends MonitorBase {
 				+ " while max allowed fraction=" 
 				+ StringUtils.twoDigitFormat(maxQueueFraction.getValue()) 
 				+ ", and items in queue=" + dbLogger.queueSize()
-				+ ".",
+				+ "." + getQueueStats(dbLogger),
 				dbLogger.queueLevel());
 
         cloudwatchService.saveMetric("PredictionDatabaseQueuePercentageLevel", dbLogger.queueLevel(), 1, CloudwatchService.MetricType.AVERAGE, CloudwatchService.ReportingIntervalTimeUnit.MINUTE, false);
@@ -95,6 +96,35 @@ public class DatabaseQueueMonitor extends MonitorBase {
 		return dbLogger.queueLevel() > threshold; 
 	}
 
+	/**
+	 * Returns the number of objects written and the average batch write
+	 * latency for each of the queues that have written data. Also reports the
+	 * write latency as a metric for each of those queues.
+	 * 
+	 * @param dbLogger
+	 * @return the stats for each of the queues
+	 */
+	private String getQueueStats(DataDbLogger dbLogger) {
+		StringBuilder sb = new StringBuilder();
+		for (DbQueue<?> queue : dbLogger.getQueues()) {
+			if (queue.getTotalObjectsWritten() == 0)
+				continue;
+			
+			sb.append(" ").append(queue.getShortType())
+					.append(" written=").append(queue.getTotalObjectsWritten())
+					.append(" avgBatchWriteMsec=")
+					.append(StringUtils.twoDigitFormat(
+							queue.getAverageBatchWriteMsec()))
+					.append(";");
+			cloudwatchService.saveMetric(
+					"DatabaseQueueBatchWriteMsec" + queue.getShortType(),
+					queue.getAverageBatchWriteMsec(), 1,
+					CloudwatchService.MetricType.AVERAGE,
+					CloudwatchService.ReportingIntervalTimeUnit.MINUTE, false);
+		}
+		return sb.toString();
+	}
+
 	/* (non-Javadoc)
 	 * @see org.transitclock.monitoring.MonitorBase#type()
 	 */
@@ -0,0 +1,232 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.monitoring;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with buckets whose width grows with the value,
+ * like an HdrHistogram, so that percentiles such as p99 can be determined
+ * with a small relative error using a fixed amount of memory. Latencies are
+ * recorded in microseconds. Values below 32 microseconds have their own
+ * bucket and each power of two above that is split into 32 buckets, so the
+ * error is at most about 3%.
+ * <p>
+ * Recording is lock free so it can be done by any number of threads. A
+ * snapshot read while latencies are being recorded can be slightly
+ * inconsistent, which is fine for monitoring.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+	private final String name;
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	// Largest power of two handled. 2^36 usec is about 19 hours, longer
+	// values are put into the last bucket.
+	private static final int MAX_EXPONENT = 36;
+	private static final int NUMBER_BUCKETS =
+			(MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUMBER_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param name
+	 *            name of what is being measured, such as a stage of
+	 *            processing an AVL report
+	 */
+	public LatencyHistogram(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Records a latency.
+	 *
+	 * @param micros
+	 *            the latency in microseconds
+	 */
+	public void record(long micros) {
+		if (micros < 0)
+			micros = 0;
+		counts.incrementAndGet(bucketIndex(micros));
+		count.incrementAndGet();
+		totalMicros.addAndGet(micros);
+
+		long max = maxMicros.get();
+		while (micros > max && !maxMicros.compareAndSet(max, micros))
+			max = maxMicros.get();
+	}
+
+	private static int bucketIndex(long micros) {
+		if (micros < SUB_BUCKET_COUNT)
+			return (int) micros;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if (exponent > MAX_EXPONENT)
+			return NUMBER_BUCKETS - 1;
+		int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS))
+				- SUB_BUCKET_COUNT;
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+	}
+
+	/**
+	 * @param index
+	 * @return the middle of the range of values of the bucket, in
+	 *         microseconds
+	 */
+	private static double bucketValue(int index) {
+		if (index < SUB_BUCKET_COUNT)
+			return index;
+
+		int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+		int subBucket = index % SUB_BUCKET_COUNT;
+		long lowest = (long) (SUB_BUCKET_COUNT + subBucket)
+				<< (exponent - SUB_BUCKET_BITS);
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return lowest + width / 2.0;
+	}
+
+	/**
+	 * Returns the latency that the specified fraction of the recorded
+	 * latencies are at or below.
+	 *
+	 * @param fraction
+	 *            such as 0.99 for p99
+	 * @return the latency in msec, or 0 if nothing recorded
+	 */
+	public double getPercentileMsec(double fraction) {
+		long total = 0;
+		long[] snapshot = new long[NUMBER_BUCKETS];
+		for (int i = 0; i < NUMBER_BUCKETS; ++i) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0)
+			return 0.0;
+
+		long target = Math.max(1, (long) Math.ceil(fraction * total));
+		long cumulative = 0;
+		for (int i = 0; i < NUMBER_BUCKETS; ++i) {
+			cumulative += snapshot[i];
+			if (cumulative >= target)
+				return Math.min(bucketValue(i), maxMicros.get()) / 1000.0;
+		}
+		return maxMicros.get() / 1000.0;
+	}
+
+	/**
+	 * Returns the number of recorded latencies at or below each of the
+	 * upper bounds, as needed for the buckets of a Prometheus histogram.
+	 * Since a bound usually falls within one of the buckets of this
+	 * histogram that whole bucket is counted, so a count can include
+	 * latencies that are up to about 3% above its bound.
+	 *
+	 * @param upperBoundsMicros
+	 *            the upper bounds in microseconds, in increasing order
+	 * @return the cumulative count for each bound, followed by the total
+	 *         number of recorded latencies
+	 */
+	public long[] getCumulativeCounts(long[] upperBoundsMicros) {
+		long[] cumulativeCounts = new long[upperBoundsMicros.length + 1];
+		long cumulative = 0;
+		int bound = 0;
+		for (int i = 0; i < NUMBER_BUCKETS; ++i) {
+			while (bound < upperBoundsMicros.length
+					&& bucketIndex(upperBoundsMicros[bound]) < i)
+				cumulativeCounts[bound++] = cumulative;
+			cumulative += counts.get(i);
+		}
+		while (bound < upperBoundsMicros.length)
+			cumulativeCounts[bound++] = cumulative;
+		cumulativeCounts[upperBoundsMicros.length] = cumulative;
+		return cumulativeCounts;
+	}
+
+	/**
+	 * @return the sum of the recorded latencies, in microseconds
+	 */
+	public long getTotalMicros() {
+		return totalMicros.get();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getCount() {
+		return count.get();
+	}
+
+	@Override
+	public double getMeanMsec() {
+		long n = count.get();
+		return n == 0 ? 0.0 : totalMicros.get() / 1000.0 / n;
+	}
+
+	@Override
+	public double getP50Msec() {
+		return getPercentileMsec(0.5);
+	}
+
+	@Override
+	public double getP90Msec() {
+		return getPercentileMsec(0.9);
+	}
+
+	@Override
+	public double getP99Msec() {
+		return getPercentileMsec(0.99);
+	}
+
+	@Override
+	public double getP999Msec() {
+		return getPercentileMsec(0.999);
+	}
+
+	@Override
+	public double getMaxMsec() {
+		return maxMicros.get() / 1000.0;
+	}
+
+	@Override
+	public void reset() {
+		for (int i = 0; i < NUMBER_BUCKETS; ++i)
+			counts.set(i, 0);
+		count.set(0);
+		totalMicros.set(0);
+		maxMicros.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return "LatencyHistogram ["
+				+ "name=" + name
+				+ ", count=" + getCount()
+				+ ", meanMsec=" + String.format("%.3f", getMeanMsec())
+				+ ", p50Msec=" + String.format("%.3f", getP50Msec())
+				+ ", p99Msec=" + String.format("%.3f", getP99Msec())
+				+ ", maxMsec=" + String.format("%.3f", getMaxMsec())
+				+ "]";
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.monitoring;
+
+/**
+ * The JMX interface of a LatencyHistogram, so that the latencies of the
+ * stages of processing can be viewed with a tool such as jconsole.
+ */
+public interface LatencyHistogramMBean {
+
+	long getCount();
+
+	double getMeanMsec();
+
+	double getP50Msec();
+
+	double getP90Msec();
+
+	double getP99Msec();
+
+	double getP999Msec();
+
+	double getMaxMsec();
+
+	/**
+	 * Clears the histogram so that only new latencies are included.
+	 */
+	void reset();
+}
@@ -0,0 +1,226 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.monitoring;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.config.BooleanConfigValue;
+
+/**
+ * Registry of the latency histograms for the stages of processing an AVL
+ * report, such as spatial matching and generating predictions. Unlike the
+ * CloudwatchService this works without any cloud services and keeps the
+ * distribution of the latencies instead of just an average, so that tail
+ * latency such as p99 can be seen.
+ * <p>
+ * Each histogram is registered with the platform MBeanServer when it is
+ * created so it can be viewed via JMX. All of them can also be output as
+ * text by toText(), which is what LatencyMetricsHttpModule serves.
+ * <p>
+ * Usage is to get System.nanoTime() at the start of the stage and then
+ * call record() with it at the end.
+ */
+public class LatencyMetrics {
+
+	private static final LatencyMetrics singleton = new LatencyMetrics();
+
+	private final ConcurrentMap<String, LatencyHistogram> histograms =
+			new ConcurrentHashMap<String, LatencyHistogram>();
+
+	// Names of the stages
+	public static final String AVL_REPORT_PROCESSING = "avlReportProcessing";
+	public static final String AVL_REPORT_TOTAL_LATENCY = "avlReportTotalLatency";
+	public static final String SPATIAL_MATCHING = "spatialMatching";
+	public static final String TEMPORAL_MATCHING = "temporalMatching";
+	public static final String ARRIVAL_DEPARTURE_GENERATION =
+			"arrivalDepartureGeneration";
+	public static final String PREDICTION_GENERATION = "predictionGeneration";
+	public static final String PREDICTION_DATA_CACHE_UPDATE =
+			"predictionDataCacheUpdate";
+	public static final String DB_QUEUE_ENQUEUE = "dbQueueEnqueue";
+
+	// Upper bounds of the buckets of the Prometheus histograms, in seconds
+	private static final String[] BUCKET_UPPER_BOUNDS_SECS = {"0.0005",
+			"0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25",
+			"0.5", "1", "2.5", "5", "10"};
+	private static final long[] BUCKET_UPPER_BOUNDS_MICROS =
+			new long[BUCKET_UPPER_BOUNDS_SECS.length];
+	static {
+		for (int i = 0; i < BUCKET_UPPER_BOUNDS_SECS.length; ++i)
+			BUCKET_UPPER_BOUNDS_MICROS[i] =
+					Math.round(Double.parseDouble(BUCKET_UPPER_BOUNDS_SECS[i])
+							* 1000000);
+	}
+
+	private static BooleanConfigValue enabled = new BooleanConfigValue(
+			"transitclock.monitoring.latencyMetricsEnabled",
+			true,
+			"Whether the latency of each stage of processing AVL reports "
+			+ "is recorded in histograms that can be viewed via JMX and "
+			+ "LatencyMetricsHttpModule.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(LatencyMetrics.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @return the singleton LatencyMetrics
+	 */
+	public static LatencyMetrics getInstance() {
+		return singleton;
+	}
+
+	private LatencyMetrics() {
+	}
+
+	/**
+	 * Returns the histogram with the specified name, creating it and
+	 * registering it with JMX if it doesn't yet exist.
+	 *
+	 * @param name
+	 * @return the histogram
+	 */
+	public LatencyHistogram getHistogram(String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (histogram != null)
+			return histogram;
+
+		LatencyHistogram newHistogram = new LatencyHistogram(name);
+		histogram = histograms.putIfAbsent(name, newHistogram);
+		if (histogram != null)
+			return histogram;
+
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					newHistogram,
+					new ObjectName("org.transitclock:type=LatencyHistogram,name="
+							+ ObjectName.quote(name)));
+		} catch (Exception e) {
+			logger.error("Could not register latency histogram {} with JMX",
+					name, e);
+		}
+		return newHistogram;
+	}
+
+	/**
+	 * Records the latency of a stage.
+	 *
+	 * @param name
+	 *            name of the stage
+	 * @param startNanos
+	 *            System.nanoTime() when the stage started
+	 */
+	public void record(String name, long startNanos) {
+		if (!enabled.getValue())
+			return;
+		recordMicros(name, (System.nanoTime() - startNanos) / 1000);
+	}
+
+	/**
+	 * Records a latency that was determined some other way, such as from
+	 * the time of an AVL report.
+	 *
+	 * @param name
+	 *            name of the stage
+	 * @param micros
+	 *            the latency in microseconds
+	 */
+	public void recordMicros(String name, long micros) {
+		if (!enabled.getValue())
+			return;
+		getHistogram(name).record(micros);
+	}
+
+	/**
+	 * @return all the histograms, sorted by name
+	 */
+	public List<LatencyHistogram> getHistograms() {
+		List<LatencyHistogram> list =
+				new ArrayList<LatencyHistogram>(histograms.values());
+		Collections.sort(list, new Comparator<LatencyHistogram>() {
+			@Override
+			public int compare(LatencyHistogram h1, LatencyHistogram h2) {
+				return h1.getName().compareTo(h2.getName());
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * Outputs all the histograms in the Prometheus text format so that they
+	 * can be scraped by a monitoring system. The latencies are output as a
+	 * Prometheus histogram, with cumulative counts for a fixed set of
+	 * buckets, instead of as quantiles. Quantiles would cover everything
+	 * since startup, while the monitoring system can determine them for any
+	 * interval from the difference in the bucket counts, such as with
+	 * histogram_quantile() and rate(). The max latency is output as a
+	 * separate gauge since a histogram can't have one.
+	 *
+	 * @return the histograms as text
+	 */
+	public String toText() {
+		List<LatencyHistogram> histogramList = getHistograms();
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("# HELP transitclock_latency_seconds Latency of each "
+				+ "stage of processing AVL reports.\n");
+		sb.append("# TYPE transitclock_latency_seconds histogram\n");
+		for (LatencyHistogram histogram : histogramList) {
+			String stage = histogram.getName();
+			long[] cumulativeCounts =
+					histogram.getCumulativeCounts(BUCKET_UPPER_BOUNDS_MICROS);
+			for (int i = 0; i < BUCKET_UPPER_BOUNDS_SECS.length; ++i) {
+				sb.append(String.format(Locale.US,
+						"transitclock_latency_seconds_bucket{stage=\"%s\",le=\"%s\"} %d%n",
+						stage, BUCKET_UPPER_BOUNDS_SECS[i], cumulativeCounts[i]));
+			}
+			long count = cumulativeCounts[BUCKET_UPPER_BOUNDS_SECS.length];
+			sb.append(String.format(Locale.US,
+					"transitclock_latency_seconds_bucket{stage=\"%s\",le=\"+Inf\"} %d%n",
+					stage, count));
+			sb.append(String.format(Locale.US,
+					"transitclock_latency_seconds_sum{stage=\"%s\"} %.6f%n",
+					stage, histogram.getTotalMicros() / 1000000.0));
+			sb.append(String.format(Locale.US,
+					"transitclock_latency_seconds_count{stage=\"%s\"} %d%n",
+					stage, count));
+		}
+
+		sb.append("# HELP transitclock_latency_max_seconds Maximum latency "
+				+ "of each stage since startup or since the histogram was "
+				+ "reset via JMX.\n");
+		sb.append("# TYPE transitclock_latency_max_seconds gauge\n");
+		for (LatencyHistogram histogram : histogramList) {
+			sb.append(String.format(Locale.US,
+					"transitclock_latency_max_seconds{stage=\"%s\"} %.6f%n",
+					histogram.getName(), histogram.getMaxMsec() / 1000.0));
+		}
+		return sb.toString();
+	}
+}
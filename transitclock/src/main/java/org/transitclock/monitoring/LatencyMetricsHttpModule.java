@@ -0,0 +1,106 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.monitoring;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.modules.Module;
+import org.transitclock.utils.threading.NamedThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A module that serves the latency histograms of LatencyMetrics as plain
+ * text on /metrics using the HTTP server built into the JDK. This way the
+ * latencies of the core can be seen, or scraped by a monitoring system,
+ * without the API webapp or any cloud services.
+ * <p>
+ * To use with a core project use:
+ *   -Dtransitclock.modules.optionalModulesList=org.transitclock.monitoring.LatencyMetricsHttpModule
+ */
+public class LatencyMetricsHttpModule extends Module {
+
+	private static IntegerConfigValue port = new IntegerConfigValue(
+			"transitclock.monitoring.latencyMetricsPort",
+			8089,
+			"Port that LatencyMetricsHttpModule serves the latency "
+			+ "histograms on, at /metrics .");
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(LatencyMetricsHttpModule.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param agencyId
+	 */
+	public LatencyMetricsHttpModule(String agencyId) {
+		super(agencyId);
+	}
+
+	/**
+	 * Returns the text of LatencyMetrics for each request.
+	 */
+	private static class MetricsHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				byte[] body = LatencyMetrics.getInstance().toText()
+						.getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type",
+						"text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		try {
+			HttpServer server =
+					HttpServer.create(new InetSocketAddress(port.getValue()), 0);
+			server.createContext("/metrics", new MetricsHandler());
+			server.setExecutor(Executors.newSingleThreadExecutor(
+					new NamedThreadFactory(getClass().getSimpleName())));
+			server.start();
+
+			logger.info("Started module {} for agencyId={}. Serving latency "
+					+ "metrics on port {} at /metrics", getClass().getName(),
+					getAgencyId(), port.getValue());
+		} catch (IOException e) {
+			logger.error("Could not start HTTP server for latency metrics on "
+					+ "port {}", port.getValue(), e);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.transitclock.db.structs.Location;
+
+/**
+ * A grid of roughly square cells of latitude and longitude, each containing
+ * the items whose bounding box overlaps the cell. Used by the spatial
+ * indexes so that only the items near a location need to be looked at
+ * instead of all of them.
+ * <p>
+ * The grid only finds the candidates, the items in the cells near the
+ * location. The caller then checks the exact distance to each candidate
+ * since that depends on what the items are.
+ * <p>
+ * Items are added while the index is being created and the grid is only
+ * read once it has been built, so no synchronization is needed as long as
+ * the grid is safely published.
+ *
+ * @param <T>
+ *            the type of the items
+ */
+public class GridIndex<T> {
+
+	// Size of grid cell in degrees
+	private final double cellLatDegrees;
+	private final double cellLonDegrees;
+
+	// Keyed on cell key. Contains the items that overlap the cell.
+	private final Map<Long, List<T>> cells = new HashMap<Long, List<T>>();
+
+	private int numberItems = 0;
+
+	// Whether an item was added to more than one cell, in which case
+	// getCandidates() needs to make sure it is only returned once
+	private boolean itemsInMultipleCells = false;
+
+	private static final double METERS_PER_DEGREE = 110996.45;
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param cellSize
+	 *            Size of grid cell in meters
+	 * @param referenceLat
+	 *            Latitude used for determining size of cell in degrees
+	 *            longitude. Should be near the center of the area covered.
+	 */
+	public GridIndex(double cellSize, double referenceLat) {
+		this.cellLatDegrees = cellSize / METERS_PER_DEGREE;
+		this.cellLonDegrees = cellSize
+				/ (METERS_PER_DEGREE * Math.cos(Math.toRadians(referenceLat)));
+	}
+
+	/**
+	 * Adds an item that is at a single location.
+	 *
+	 * @param item
+	 * @param lat
+	 * @param lon
+	 */
+	public void add(T item, double lat, double lon) {
+		add(item, lat, lon, lat, lon);
+	}
+
+	/**
+	 * Adds an item to each cell that its bounding box overlaps.
+	 *
+	 * @param item
+	 * @param minLat
+	 * @param minLon
+	 * @param maxLat
+	 * @param maxLon
+	 */
+	public void add(T item, double minLat, double minLon, double maxLat,
+			double maxLon) {
+		int minRow = row(minLat);
+		int maxRow = row(maxLat);
+		int minCol = col(minLon);
+		int maxCol = col(maxLon);
+		if (minRow != maxRow || minCol != maxCol)
+			itemsInMultipleCells = true;
+
+		for (int row = minRow; row <= maxRow; ++row) {
+			for (int col = minCol; col <= maxCol; ++col) {
+				Long key = key(row, col);
+				List<T> items = cells.get(key);
+				if (items == null) {
+					items = new ArrayList<T>(4);
+					cells.put(key, items);
+				}
+				items.add(item);
+			}
+		}
+		++numberItems;
+	}
+
+	private int row(double lat) {
+		return (int) Math.floor(lat / cellLatDegrees);
+	}
+
+	private int col(double lon) {
+		return (int) Math.floor(lon / cellLonDegrees);
+	}
+
+	private static long key(int row, int col) {
+		return (((long) row) << 32) | (col & 0xffffffffL);
+	}
+
+	/**
+	 * Returns the items in the cells that are within the specified distance
+	 * of the location. Each item is only returned once. Since whole cells
+	 * are looked at some of the items can be further away than the
+	 * distance, so the caller needs to check the exact distance.
+	 *
+	 * @param loc
+	 * @param distance
+	 *            in meters
+	 * @return non-null possibly empty list of items
+	 */
+	public List<T> getCandidates(Location loc, double distance) {
+		List<T> results = new ArrayList<T>();
+		// Since an item can be in multiple cells need to make sure it is
+		// only returned once. Uses identity since only the same object is
+		// added to multiple cells.
+		Set<T> examined = itemsInMultipleCells
+				? Collections.newSetFromMap(new IdentityHashMap<T, Boolean>())
+				: null;
+		int minRow = row(loc.getLat() - distance / METERS_PER_DEGREE);
+		int maxRow = row(loc.getLat() + distance / METERS_PER_DEGREE);
+		double lonDelta = distance
+				/ (METERS_PER_DEGREE * Math.cos(Math.toRadians(loc.getLat())));
+		int minCol = col(loc.getLon() - lonDelta);
+		int maxCol = col(loc.getLon() + lonDelta);
+		for (int row = minRow; row <= maxRow; ++row) {
+			for (int col = minCol; col <= maxCol; ++col) {
+				List<T> items = cells.get(key(row, col));
+				if (items == null)
+					continue;
+				for (T item : items) {
+					if (examined == null || examined.add(item))
+						results.add(item);
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * @return Number of items added
+	 */
+	public int getNumberItems() {
+		return numberItems;
+	}
+
+	/**
+	 * @return Number of cells that contain at least one item
+	 */
+	public int getNumberCells() {
+		return cells.size();
+	}
+}
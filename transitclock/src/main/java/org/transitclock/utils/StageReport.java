@@ -0,0 +1,116 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.utils;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * For reporting how long each stage of a long running process, such as
+ * processing GTFS data, took and how much heap memory it needed. Call
+ * stageFinished() at the end of each stage and then log toString() at the
+ * end of the process.
+ * <p>
+ * The peak heap is the sum of the peaks of the heap memory pools during the
+ * stage. Since the pools don't necessarily peak at the same time it is an
+ * upper bound, but it is good enough to see which stages need the memory.
+ */
+public class StageReport {
+
+	private final List<Stage> stages = new ArrayList<Stage>();
+
+	private final IntervalTimer stageTimer = new IntervalTimer();
+	private final IntervalTimer totalTimer = new IntervalTimer();
+
+	private static final long BYTES_PER_MB = 1024 * 1024;
+
+	private static class Stage {
+		private final String name;
+		private final long elapsedMsec;
+		private final long usedHeapMb;
+		private final long peakHeapMb;
+
+		private Stage(String name, long elapsedMsec, long usedHeapMb,
+				long peakHeapMb) {
+			this.name = name;
+			this.elapsedMsec = elapsedMsec;
+			this.usedHeapMb = usedHeapMb;
+			this.peakHeapMb = peakHeapMb;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Starts timing the first stage.
+	 */
+	public StageReport() {
+		resetPeakHeap();
+	}
+
+	/**
+	 * Records the time and heap for the stage that just finished and starts
+	 * the next one.
+	 *
+	 * @param name
+	 *            name of the stage, for the report
+	 */
+	public void stageFinished(String name) {
+		long usedHeap = 0;
+		long peakHeap = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				usedHeap += pool.getUsage().getUsed();
+				peakHeap += pool.getPeakUsage().getUsed();
+			}
+		}
+		stages.add(new Stage(name, stageTimer.elapsedMsec(),
+				usedHeap / BYTES_PER_MB, peakHeap / BYTES_PER_MB));
+
+		resetPeakHeap();
+		stageTimer.resetTimer();
+	}
+
+	private static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+		}
+	}
+
+	/**
+	 * @return a table of the stages, one per line, with the elapsed time,
+	 *         heap used at the end of the stage, and peak heap during the
+	 *         stage
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-30s %10s %10s %10s%n", "stage", "msec",
+				"usedMB", "peakMB"));
+		for (Stage stage : stages) {
+			sb.append(String.format("%-30s %10d %10d %10d%n", stage.name,
+					stage.elapsedMsec, stage.usedHeapMb, stage.peakHeapMb));
+		}
+		sb.append(String.format("%-30s %10d", "total",
+				totalTimer.elapsedMsec()));
+		return sb.toString();
+	}
+}
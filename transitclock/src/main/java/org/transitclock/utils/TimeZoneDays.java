@@ -0,0 +1,232 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.utils;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.zone.ZoneOffsetTransition;
+import java.util.TimeZone;
+
+/**
+ * For converting between epoch times and times into the day for a timezone
+ * without any locking. Uses java.time to determine the start and end of a
+ * day, and any daylight savings time transition during it, and caches the
+ * result as an immutable Day object. Since nearly all conversions are for
+ * the current day the cached Day can almost always be used and the
+ * conversion is then just some arithmetic.
+ * <p>
+ * This replaces using a shared Calendar, which needed to be synchronized
+ * since setting its time and then reading the fields is not thread safe.
+ * That made the Calendar a point of contention for all the threads that
+ * process AVL reports.
+ * <p>
+ * Times into the day are wall clock times, the same as Calendar
+ * HOUR_OF_DAY/MINUTE/SECOND, so on a day with a daylight savings time
+ * transition they are not the same as the elapsed time since the start of
+ * the day.
+ */
+public class TimeZoneDays {
+
+	private final ZoneId zoneId;
+
+	// The most recently used days. Two are kept so that alternating between
+	// days, such as for times just before and after midnight, doesn't
+	// require recomputing them all the time.
+	private volatile Day recentDay;
+	private volatile Day otherDay;
+
+	/**
+	 * Immutable info for a single day of the timezone.
+	 */
+	private static class Day {
+		private final LocalDate date;
+
+		// Epoch times for start of the day, inclusive, and end of the day,
+		// exclusive
+		private final long startTime;
+		private final long endTime;
+
+		// Epoch time of a daylight savings time transition during the day.
+		// Long.MAX_VALUE if there is no transition during the day.
+		private final long transitionTime;
+
+		// UTC offsets in msec before and after transitionTime
+		private final int offsetBefore;
+		private final int offsetAfter;
+
+		// Epoch time of local midnight as if it were UTC, for converting a
+		// wall clock time to an epoch time
+		private final long localMidnightAsUtc;
+
+		private Day(LocalDate date, ZoneId zoneId) {
+			this.date = date;
+			ZonedDateTime start = date.atStartOfDay(zoneId);
+			this.startTime = start.toInstant().toEpochMilli();
+			this.endTime = date.plusDays(1).atStartOfDay(zoneId).toInstant()
+					.toEpochMilli();
+			this.localMidnightAsUtc = date.toEpochDay() * Time.MS_PER_DAY;
+
+			ZoneOffsetTransition transition = zoneId.getRules()
+					.nextTransition(start.toInstant().minusMillis(1));
+			if (transition != null
+					&& transition.getInstant().toEpochMilli() < endTime) {
+				this.transitionTime = transition.getInstant().toEpochMilli();
+				this.offsetBefore =
+						transition.getOffsetBefore().getTotalSeconds() * Time.MS_PER_SEC;
+				this.offsetAfter =
+						transition.getOffsetAfter().getTotalSeconds() * Time.MS_PER_SEC;
+			} else {
+				this.transitionTime = Long.MAX_VALUE;
+				this.offsetBefore = this.offsetAfter =
+						start.getOffset().getTotalSeconds() * Time.MS_PER_SEC;
+			}
+		}
+
+		private boolean contains(long epochTime) {
+			return epochTime >= startTime && epochTime < endTime;
+		}
+
+		private boolean hasTransition() {
+			return transitionTime != Long.MAX_VALUE;
+		}
+
+		private int getOffset(long epochTime) {
+			return epochTime < transitionTime ? offsetBefore : offsetAfter;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @param timeZone
+	 *            The timezone. If null then the default timezone is used.
+	 */
+	public TimeZoneDays(TimeZone timeZone) {
+		this.zoneId = timeZone != null ? timeZone.toZoneId()
+				: ZoneId.systemDefault();
+	}
+
+	/**
+	 * @return the timezone
+	 */
+	public ZoneId getZoneId() {
+		return zoneId;
+	}
+
+	/**
+	 * Returns the Day that contains the epoch time. Uses one of the cached
+	 * days if possible. Since the days are immutable there is no locking.
+	 * If two threads happen to create the same day at the same time then
+	 * one of them is simply discarded.
+	 */
+	private Day getDay(long epochTime) {
+		Day day = recentDay;
+		if (day != null && day.contains(epochTime))
+			return day;
+
+		Day other = otherDay;
+		if (other != null && other.contains(epochTime)) {
+			otherDay = day;
+			recentDay = other;
+			return other;
+		}
+
+		Day newDay = new Day(Instant.ofEpochMilli(epochTime).atZone(zoneId)
+				.toLocalDate(), zoneId);
+		otherDay = day;
+		recentDay = newDay;
+		return newDay;
+	}
+
+	/**
+	 * Returns the wall clock time into the day, in msec, for the epoch time.
+	 *
+	 * @param epochTime
+	 * @return msec into the day
+	 */
+	public int getMsecsIntoDay(long epochTime) {
+		Day day = getDay(epochTime);
+		return (int) Math.floorMod(epochTime + day.getOffset(epochTime),
+				Time.MS_PER_DAY);
+	}
+
+	/**
+	 * Returns the wall clock time into the day, in seconds, for the epoch
+	 * time.
+	 *
+	 * @param epochTime
+	 * @return seconds into the day
+	 */
+	public int getSecondsIntoDay(long epochTime) {
+		return getMsecsIntoDay(epochTime) / Time.MS_PER_SEC;
+	}
+
+	/**
+	 * @param epochTime
+	 * @return day of the year, starting at 1
+	 */
+	public int getDayOfYear(long epochTime) {
+		return getDay(epochTime).date.getDayOfYear();
+	}
+
+	/**
+	 * @param epochTime
+	 * @return epoch time of the start of the day containing epochTime
+	 */
+	public long getStartOfDay(long epochTime) {
+		return getDay(epochTime).startTime;
+	}
+
+	/**
+	 * Returns the epoch time for the wall clock time on the same day as the
+	 * reference time. For the rare times that are skipped or repeated due to
+	 * a daylight savings time transition the result is the same as for a
+	 * lenient Calendar: a skipped time is moved forward by the length of the
+	 * gap and a repeated time is treated as standard time.
+	 *
+	 * @param msecsIntoDay
+	 *            wall clock time, less than a day. If negative then it is
+	 *            for the previous day, like for a lenient Calendar.
+	 * @param referenceTime
+	 *            for determining the day
+	 * @return the epoch time
+	 */
+	public long getEpochTimeForDay(int msecsIntoDay, long referenceTime) {
+		Day day = getDay(referenceTime);
+		if (msecsIntoDay < 0) {
+			day = getDay(day.startTime - 1);
+			msecsIntoDay += Time.MS_PER_DAY;
+		}
+		long localTime = day.localMidnightAsUtc + msecsIntoDay;
+		if (!day.hasTransition())
+			return localTime - day.offsetBefore;
+
+		// Day has a daylight savings transition so let java.time deal with
+		// gaps and overlaps
+		LocalDateTime localDateTime = LocalDateTime.of(day.date,
+				LocalTime.ofNanoOfDay(msecsIntoDay * Time.NSEC_PER_MSEC));
+		ZoneOffset standardOffset = zoneId.getRules().getStandardOffset(
+				Instant.ofEpochMilli(day.transitionTime));
+		return ZonedDateTime.ofLocal(localDateTime, zoneId, standardOffset)
+				.toInstant().toEpochMilli();
+	}
+}
@@ -64,6 +64,20 @@ public abstract class CsvBaseReader<T> {
 	protected static final Logger logger = 
 			LoggerFactory.getLogger(CsvBaseReader.class);
 
+	/**
+	 * For processing the CSV objects one at a time as they are read in
+	 * instead of first reading them all into a list. Useful for really large
+	 * files such as stop_times.txt where the list would use a lot of memory.
+	 */
+	public interface ObjectHandler<T> {
+		/**
+		 * Called for each CSV object read from the file, in file order.
+		 * 
+		 * @param gtfsObject
+		 */
+		void handle(T gtfsObject);
+	}
+
 	/********************** Member Functions **************************/
 
 	/**
@@ -105,10 +119,12 @@ public abstract class CsvBaseReader<T> {
 	
 	/**
 	 * Parse the CSV file. Reads in the header info and then each line. Calls
-	 * the abstract handleRecord() method for each record. Adds each resulting
-	 * CSV object to the gtfsObjecgts array.
+	 * the abstract handleRecord() method for each record. Passes each
+	 * resulting CSV object to the objectHandler.
+	 * 
+	 * @param objectHandler
 	 */
-	private void parse() {
+	private void parse(ObjectHandler<T> objectHandler) {
 		CSVRecord record = null;
 		try {
 			IntervalTimer timer = new IntervalTimer();
@@ -191,9 +207,9 @@ public abstract class CsvBaseReader<T> {
 					continue;
 				}
 				
-				// Add the newly created CSV object to the object list
+				// Hand off the newly created CSV object
 				if (gtfsObject != null)
-					gtfsObjects.add(gtfsObject);		
+					objectHandler.handle(gtfsObject);
 				
 				// Log info if it has been a while. Check only every 20,000
 				// lines to see if the 10 seconds has gone by. If so, then log
@@ -259,11 +275,28 @@ public abstract class CsvBaseReader<T> {
 	public List<T> get(int initialSize) {
 		gtfsObjects = new ArrayList<T>(initialSize);
 		
-		parse();
+		parse(new ObjectHandler<T>() {
+			@Override
+			public void handle(T gtfsObject) {
+				gtfsObjects.add(gtfsObject);
+			}
+		});
 		
 		return gtfsObjects;
 	}
 
+	/**
+	 * Reads in the file and passes each CSV object to the handler as it is
+	 * read instead of collecting them into a list. This way only what the
+	 * handler keeps needs to be in memory.
+	 * 
+	 * @param objectHandler
+	 *            called for each CSV object
+	 */
+	public void process(ObjectHandler<T> objectHandler) {
+		parse(objectHandler);
+	}
+
 	
 	/**
 	 * @return the file name of the file being processed
@@ -0,0 +1,115 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.utils.threading;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * For processing a list of independent items using the threads of an
+ * ExecutorService. The items are split into chunks so that there is only a
+ * task per chunk instead of per item. The results are returned in the same
+ * order as the items so that the caller can then combine them sequentially,
+ * getting the same results as if everything had been done on one thread.
+ */
+public class ParallelProcessor {
+
+	// Number of chunks per thread. More than one so that the load is
+	// balanced when some items take much longer than others.
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	/**
+	 * What is to be done for each item. Must only read shared data, or
+	 * synchronize access to it, since called by multiple threads.
+	 */
+	public interface ItemProcessor<T, R> {
+		R process(T item);
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Processes each of the items and returns the results in the same order.
+	 * Blocks until all items are processed.
+	 *
+	 * @param executor
+	 *            for running the tasks. If null then the items are simply
+	 *            processed on the calling thread.
+	 * @param numThreads
+	 *            number of threads of the executor, used to determine how
+	 *            many chunks to split the items into
+	 * @param items
+	 *            the items to process
+	 * @param itemProcessor
+	 *            what is to be done for each item
+	 * @return the results, in the same order as the items
+	 * @throws RuntimeException
+	 *             if processing an item threw an exception, or if
+	 *             interrupted
+	 */
+	public static <T, R> List<R> process(ExecutorService executor,
+			int numThreads, final List<T> items,
+			final ItemProcessor<T, R> itemProcessor) {
+		final Object[] results = new Object[items.size()];
+
+		if (executor == null || numThreads <= 1 || items.size() <= 1) {
+			for (int i = 0; i < items.size(); ++i)
+				results[i] = itemProcessor.process(items.get(i));
+		} else {
+			int numChunks = Math.min(items.size(), numThreads * CHUNKS_PER_THREAD);
+			int chunkSize = (items.size() + numChunks - 1) / numChunks;
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int start = 0; start < items.size(); start += chunkSize) {
+				final int chunkStart = start;
+				final int chunkEnd = Math.min(items.size(), start + chunkSize);
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int i = chunkStart; i < chunkEnd; ++i)
+							results[i] = itemProcessor.process(items.get(i));
+						return null;
+					}
+				}));
+			}
+
+			try {
+				for (Future<Void> future : futures)
+					future.get();
+			} catch (InterruptedException e) {
+				for (Future<Void> future : futures)
+					future.cancel(true);
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				for (Future<Void> future : futures)
+					future.cancel(true);
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		List<R> resultList = (List<R>) Arrays.asList(results);
+		return resultList;
+	}
+}
@@ -118,6 +118,15 @@
         primary key (configRev)
     );
 
+    create table ContentHashes (
+        configRev integer not null,
+        entityType varchar(20) not null,
+        entityId varchar(120) not null,
+        subId varchar(60) not null,
+        hash varchar(32),
+        primary key (configRev, entityType, entityId, subId)
+    );
+
     create table DbTest (
         id integer not null,
         primary key (id)
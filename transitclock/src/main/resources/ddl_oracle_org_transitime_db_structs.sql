@@ -118,6 +118,15 @@
         primary key (configRev)
     );
 
+    create table ContentHashes (
+        configRev number(10,0) not null,
+        entityType varchar2(20 char) not null,
+        entityId varchar2(120 char) not null,
+        subId varchar2(60 char) not null,
+        hash varchar2(32 char),
+        primary key (configRev, entityType, entityId, subId)
+    );
+
     create table DbTest (
         id number(10,0) not null,
         primary key (id)
@@ -0,0 +1,119 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.avl.gateway;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.transitclock.db.structs.AvlReport;
+
+/**
+ * Tests the line framing and the "VID=" handling of LineAvlDecoder.
+ */
+public class TestLineAvlDecoder {
+
+	/**
+	 * Records the lines passed to decodeLine()
+	 */
+	private static class RecordingDecoder extends LineAvlDecoder {
+		private final List<String> lines = new ArrayList<String>();
+
+		@Override
+		protected AvlReport decodeLine(String line, GatewaySession session) {
+			lines.add(line);
+			return null;
+		}
+	}
+
+	private static GatewaySession session() {
+		return new GatewaySession(new InetSocketAddress("127.0.0.1", 5000), 0);
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Splits the data into messages the same way as the gateway does for a
+	 * TCP connection and decodes each of them.
+	 *
+	 * @return the data after the last complete message
+	 */
+	static String decodeAll(AvlDecoder decoder, String data,
+			GatewaySession session, List<AvlReport> avlReports) {
+		byte[] bytes = bytes(data);
+		int offset = 0;
+		int messageLength;
+		while ((messageLength = decoder.getMessageLength(bytes, offset,
+				bytes.length - offset)) > 0) {
+			AvlReport avlReport =
+					decoder.decode(bytes, offset, messageLength, session);
+			if (avlReport != null)
+				avlReports.add(avlReport);
+			offset += messageLength;
+		}
+		return data.substring(offset);
+	}
+
+	@Test
+	public void testMessageLength() {
+		RecordingDecoder decoder = new RecordingDecoder();
+		byte[] bytes = bytes("abc\r\ndef\nghi");
+
+		assertEquals(5, decoder.getMessageLength(bytes, 0, bytes.length));
+		assertEquals(4, decoder.getMessageLength(bytes, 5, bytes.length - 5));
+		// Incomplete line
+		assertEquals(0, decoder.getMessageLength(bytes, 9, bytes.length - 9));
+		// Only looks at the specified length
+		assertEquals(0, decoder.getMessageLength(bytes, 0, 3));
+	}
+
+	@Test
+	public void testLines() {
+		RecordingDecoder decoder = new RecordingDecoder();
+		String remaining = decodeAll(decoder, "abc\r\n\r\n  def \nghi",
+				session(), new ArrayList<AvlReport>());
+
+		// Line endings and whitespace are trimmed and empty lines skipped
+		assertEquals(Arrays.asList("abc", "def"), decoder.lines);
+		assertEquals("ghi", remaining);
+	}
+
+	@Test
+	public void testVehicleId() {
+		RecordingDecoder decoder = new RecordingDecoder();
+		GatewaySession session = session();
+		assertNull(session.getVehicleId());
+
+		decodeAll(decoder, "VID=1234\r\nabc\n", session,
+				new ArrayList<AvlReport>());
+		assertEquals("1234", session.getVehicleId());
+		assertEquals(Arrays.asList("abc"), decoder.lines);
+
+		// Kept for the rest of the session until a new one is sent
+		decodeAll(decoder, "def\n", session, new ArrayList<AvlReport>());
+		assertEquals("1234", session.getVehicleId());
+		decodeAll(decoder, "VID=5678\n", session, new ArrayList<AvlReport>());
+		assertEquals("5678", session.getVehicleId());
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.avl.gateway;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.transitclock.db.structs.AvlReport;
+
+/**
+ * Tests decoding $GPRMC sentences with NmeaAvlDecoder.
+ */
+public class TestNmeaAvlDecoder {
+
+	private static final String GPRMC =
+			"$GPRMC,123519,A,4807.038,N,01131.000,E,022.4,084.4,230394,003.1,W*6A";
+
+	// 1994-03-23T12:35:19Z
+	private static final long GPRMC_TIME = 764426119000L;
+
+	private static GatewaySession session() {
+		return new GatewaySession(new InetSocketAddress("127.0.0.1", 5000), 0);
+	}
+
+	@Test
+	public void testDecode() {
+		List<AvlReport> avlReports = new ArrayList<AvlReport>();
+		String remaining = TestLineAvlDecoder.decodeAll(new NmeaAvlDecoder(),
+				"VID=1234\r\n" + GPRMC + "\r\n", session(), avlReports);
+		assertEquals("", remaining);
+		assertEquals(1, avlReports.size());
+
+		AvlReport avlReport = avlReports.get(0);
+		assertEquals("1234", avlReport.getVehicleId());
+		assertEquals(GPRMC_TIME, avlReport.getTime());
+		assertEquals(48.1173, avlReport.getLat(), 0.0001);
+		assertEquals(11.516667, avlReport.getLon(), 0.0001);
+		assertEquals(22.4 * 0.51444, avlReport.getSpeed(), 0.001);
+		assertEquals(84.4, avlReport.getHeading(), 0.001);
+		assertEquals("NMEA", avlReport.getSource());
+	}
+
+	@Test
+	public void testMultipleSentences() {
+		GatewaySession session = session();
+		List<AvlReport> avlReports = new ArrayList<AvlReport>();
+
+		// Vehicle ID not yet known so the first sentence is ignored. The
+		// last one isn't complete yet.
+		String remaining = TestLineAvlDecoder.decodeAll(new NmeaAvlDecoder(),
+				GPRMC + "\nVID=1234\n" + GPRMC + "\n" + GPRMC + "\n$GPR",
+				session, avlReports);
+		assertEquals(2, avlReports.size());
+		assertEquals("$GPR", remaining);
+	}
+
+	@Test
+	public void testInvalidSentences() {
+		NmeaAvlDecoder decoder = new NmeaAvlDecoder();
+		GatewaySession session = session();
+		session.setVehicleId("1234");
+		List<AvlReport> avlReports = new ArrayList<AvlReport>();
+
+		// Bad checksum, a sentence other than $GPRMC, and garbage
+		TestLineAvlDecoder.decodeAll(decoder,
+				GPRMC.replace("*6A", "*00") + "\n"
+						+ "$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,"
+						+ "545.4,M,46.9,M,,*47\n"
+						+ "not NMEA\n",
+				session, avlReports);
+		assertTrue(avlReports.isEmpty());
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.avl.gateway;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.transitclock.db.structs.AvlReport;
+import org.transitclock.utils.Time;
+
+/**
+ * Tests the framing of TAIP messages and decoding RPV messages with
+ * TaipAvlDecoder.
+ */
+public class TestTaipAvlDecoder {
+
+	private static final String RPV = ">RPV15714+3739438-1420384601512612";
+
+	private static GatewaySession session() {
+		return new GatewaySession(new InetSocketAddress("127.0.0.1", 5000), 0);
+	}
+
+	@Test
+	public void testMessageLength() {
+		TaipAvlDecoder decoder = new TaipAvlDecoder();
+		byte[] bytes = (RPV + "<" + RPV + "<\r\nVID=12")
+				.getBytes(StandardCharsets.US_ASCII);
+		int rpvLength = RPV.length() + 1;
+
+		// Messages end at the '<' even if not on their own line
+		assertEquals(rpvLength,
+				decoder.getMessageLength(bytes, 0, bytes.length));
+		assertEquals(rpvLength, decoder.getMessageLength(bytes, rpvLength,
+				bytes.length - rpvLength));
+		// The line ending after a message
+		assertEquals(2, decoder.getMessageLength(bytes, 2 * rpvLength,
+				bytes.length - 2 * rpvLength));
+		// Incomplete
+		assertEquals(0, decoder.getMessageLength(bytes, 2 * rpvLength + 2,
+				bytes.length - 2 * rpvLength - 2));
+	}
+
+	@Test
+	public void testDecodeWithId() {
+		GatewaySession session = session();
+		List<AvlReport> avlReports = new ArrayList<AvlReport>();
+		String remaining = TestLineAvlDecoder.decodeAll(new TaipAvlDecoder(),
+				RPV + ";ID=1234<\r\n" + RPV + "<", session, avlReports);
+		assertEquals("", remaining);
+
+		// The second message has no ID so uses the one from the first
+		assertEquals(2, avlReports.size());
+		assertEquals("1234", session.getVehicleId());
+		for (AvlReport avlReport : avlReports) {
+			assertEquals("1234", avlReport.getVehicleId());
+			assertEquals(15714 * Time.MS_PER_SEC,
+					avlReport.getTime() % Time.MS_PER_DAY);
+			assertEquals(37.39438, avlReport.getLat(), 0.00001);
+			assertEquals(-142.03846, avlReport.getLon(), 0.00001);
+			assertEquals(15 * 0.44704, avlReport.getSpeed(), 0.001);
+			assertEquals(126.0, avlReport.getHeading(), 0.001);
+			assertEquals("TAIP", avlReport.getSource());
+		}
+	}
+
+	@Test
+	public void testDecodeWithVehicleIdLine() {
+		List<AvlReport> avlReports = new ArrayList<AvlReport>();
+		TestLineAvlDecoder.decodeAll(new TaipAvlDecoder(),
+				"VID=5678\n" + RPV + "<", session(), avlReports);
+		assertEquals(1, avlReports.size());
+		assertEquals("5678", avlReports.get(0).getVehicleId());
+	}
+
+	@Test
+	public void testIgnoredMessages() {
+		List<AvlReport> avlReports = new ArrayList<AvlReport>();
+
+		// No vehicle ID, and a message other than RPV
+		TestLineAvlDecoder.decodeAll(new TaipAvlDecoder(),
+				RPV + "<>RID1234<", session(), avlReports);
+		assertTrue(avlReports.isEmpty());
+	}
+}
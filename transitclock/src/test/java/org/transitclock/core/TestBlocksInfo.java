@@ -0,0 +1,131 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.core;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.transitclock.db.structs.Block;
+import org.transitclock.db.structs.Trip;
+import org.transitclock.gtfs.BlockTimeIndex;
+import org.transitclock.utils.Time;
+
+/**
+ * Checks that the active blocks found using the BlockTimeIndex are offset by
+ * a day for the service IDs of yesterday and tomorrow, the same as
+ * Block.isActive(), for times around midnight.
+ */
+public class TestBlocksInfo {
+
+	// Valid today and yesterday
+	private static final String WEEKDAY = "WEEKDAY";
+	// Only valid yesterday
+	private static final String MONDAY = "MONDAY";
+	// Only valid tomorrow
+	private static final String WEDNESDAY = "WEDNESDAY";
+
+	private static final Block late =
+			block("late", WEEKDAY, 6 * Time.HOUR_IN_SECS,
+					25 * Time.HOUR_IN_SECS + 30 * Time.MIN_IN_SECS);
+	private static final Block evening =
+			block("evening", WEEKDAY, 22 * Time.HOUR_IN_SECS,
+					24 * Time.HOUR_IN_SECS + 20 * Time.MIN_IN_SECS);
+	private static final Block mondayLate =
+			block("mondayLate", MONDAY, 20 * Time.HOUR_IN_SECS,
+					26 * Time.HOUR_IN_SECS);
+	private static final Block wednesdayEarly =
+			block("wednesdayEarly", WEDNESDAY, 10 * Time.MIN_IN_SECS,
+					8 * Time.HOUR_IN_SECS);
+
+	private static final BlockTimeIndex index = BlockTimeIndex.create(
+			Arrays.asList(late, evening, mondayLate, wednesdayEarly));
+
+	private static Block block(String blockId, String serviceId,
+			int startTime, int endTime) {
+		return new Block(0, blockId, serviceId, startTime, endTime,
+				new ArrayList<Trip>());
+	}
+
+	private static List<Block> getActiveBlocks(int secsInDay,
+			Set<String> blockIdsToIgnore, int allowableBeforeTimeSecs) {
+		List<Block> activeBlocks = new ArrayList<Block>();
+		BlocksInfo.getActiveBlocks(index, secsInDay,
+				Arrays.asList(WEEKDAY),
+				Arrays.asList(WEEKDAY, MONDAY),
+				Arrays.asList(WEDNESDAY),
+				null, blockIdsToIgnore, allowableBeforeTimeSecs, -1,
+				activeBlocks);
+		return activeBlocks;
+	}
+
+	private static Set<String> blockIds(List<Block> blocks) {
+		Set<String> blockIds = new HashSet<String>();
+		for (Block block : blocks)
+			blockIds.add(block.getId());
+		assertEquals("Block found more than once", blocks.size(),
+				blockIds.size());
+		return blockIds;
+	}
+
+	@Test
+	public void testJustAfterMidnight() {
+		// 00:30 is 24:30 for the blocks of yesterday's service IDs
+		List<Block> activeBlocks =
+				getActiveBlocks(30 * Time.MIN_IN_SECS, null, 0);
+		assertEquals(new HashSet<String>(Arrays.asList("late", "mondayLate")),
+				blockIds(activeBlocks));
+	}
+
+	@Test
+	public void testJustAfterMidnightIgnoringBlock() {
+		List<Block> activeBlocks = getActiveBlocks(30 * Time.MIN_IN_SECS,
+				Collections.singleton("late"), 0);
+		assertEquals(Collections.singleton("mondayLate"),
+				blockIds(activeBlocks));
+	}
+
+	@Test
+	public void testJustBeforeMidnight() {
+		int secsInDay = 23 * Time.HOUR_IN_SECS + 55 * Time.MIN_IN_SECS;
+
+		// 23:55 is -00:05 for the blocks of tomorrow's service IDs, so the
+		// block starting at 00:10 is only active if allowed to be 15 minutes
+		// early
+		assertEquals(new HashSet<String>(Arrays.asList("late", "evening")),
+				blockIds(getActiveBlocks(secsInDay, null, 0)));
+		assertEquals(
+				new HashSet<String>(Arrays.asList("late", "evening",
+						"wednesdayEarly")),
+				blockIds(getActiveBlocks(secsInDay, null,
+						20 * Time.MIN_IN_SECS)));
+	}
+
+	@Test
+	public void testMidday() {
+		// Blocks of yesterday's service IDs that end after midnight are not
+		// active the next day at the same time of day
+		assertEquals(Collections.singleton("late"),
+				blockIds(getActiveBlocks(Time.DAY_IN_SECS / 2, null, 0)));
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.core;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import org.transitclock.db.structs.Location;
+import org.transitclock.db.structs.Vector;
+import org.transitclock.utils.Geo;
+
+public class TestSegmentSpatialIndex {
+
+	/**
+	 * The segments found using the index should be exactly the ones found
+	 * by checking the distance to every segment, which is what
+	 * SpatialMatcher does without the index.
+	 */
+	@Test
+	public void testSameAsCheckingEverySegment() {
+		Random random = new Random(42);
+		double baseLat = 37.7;
+		double baseLon = -122.4;
+		double spanDegrees = 0.05;
+		SegmentSpatialIndex index = new SegmentSpatialIndex(200.0, baseLat);
+		List<SegmentSpatialIndex.Entry> allEntries =
+				new ArrayList<SegmentSpatialIndex.Entry>();
+		for (int i = 0; i < 5000; ++i) {
+			double lat = baseLat + random.nextDouble() * spanDegrees;
+			double lon = baseLon + random.nextDouble() * spanDegrees;
+			// Segments up to several cells long
+			Vector segment = new Vector(new Location(lat, lon),
+					new Location(lat + (random.nextDouble() - 0.5) * 0.01,
+							lon + (random.nextDouble() - 0.5) * 0.01));
+			SegmentSpatialIndex.Entry entry = new SegmentSpatialIndex.Entry(
+					"tp" + i % 100, i / 100, 0, segment);
+			allEntries.add(entry);
+			index.add(entry);
+		}
+		assertEquals(5000, index.getNumberSegments());
+
+		for (int q = 0; q < 200; ++q) {
+			Location loc = new Location(
+					baseLat + random.nextDouble() * spanDegrees,
+					baseLon + random.nextDouble() * spanDegrees);
+			double distance = 20.0 + random.nextDouble() * 200.0;
+
+			Set<SegmentSpatialIndex.Entry> expected =
+					new HashSet<SegmentSpatialIndex.Entry>();
+			Set<String> expectedTripPatternIds = new HashSet<String>();
+			for (SegmentSpatialIndex.Entry entry : allEntries) {
+				if (Geo.distance(loc, entry.getSegment()) <= distance) {
+					expected.add(entry);
+					expectedTripPatternIds.add(entry.getTripPatternId());
+				}
+			}
+
+			List<SegmentSpatialIndex.Entry> found =
+					index.getSegmentsNear(loc, distance);
+			assertEquals("segment returned more than once", expected.size(),
+					found.size());
+			assertEquals(expected, new HashSet<SegmentSpatialIndex.Entry>(found));
+			assertEquals(expectedTripPatternIds,
+					index.getTripPatternIdsNear(loc, distance));
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.core.dataCache;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class TestDataCacheChanges {
+
+	@Test
+	public void testChangesSince() {
+		DataCacheChanges changes = new DataCacheChanges(10);
+		changes.vehicleChanged("v1");
+		changes.predictionsChanged("r1", "s1");
+		changes.vehicleChanged("v2");
+		changes.vehicleChanged("v1");
+
+		DataCacheChanges.Changes all = changes.getChangesSince(0);
+		assertEquals(4, all.getSequenceNumber());
+		assertEquals(Arrays.asList("v1", "v2"),
+				new ArrayList<String>(all.getVehicleIds()));
+		assertEquals(1, all.getRouteStops().size());
+		DataCacheChanges.RouteStop routeStop =
+				all.getRouteStops().iterator().next();
+		assertEquals("r1", routeStop.getRouteShortName());
+		assertEquals("s1", routeStop.getStopId());
+
+		DataCacheChanges.Changes latest = changes.getChangesSince(3);
+		assertEquals(4, latest.getSequenceNumber());
+		assertEquals(Arrays.asList("v1"),
+				new ArrayList<String>(latest.getVehicleIds()));
+		assertTrue(latest.getRouteStops().isEmpty());
+
+		DataCacheChanges.Changes none = changes.getChangesSince(4);
+		assertEquals(4, none.getSequenceNumber());
+		assertTrue(none.getVehicleIds().isEmpty());
+	}
+
+	@Test
+	public void testChangesNoLongerAvailable() {
+		DataCacheChanges changes = new DataCacheChanges(3);
+		for (int i = 0; i < 5; ++i)
+			changes.vehicleChanged("v" + i);
+
+		assertNull(changes.getChangesSince(1));
+		assertNull(changes.getChangesSince(6));
+		assertEquals(Arrays.asList("v2", "v3", "v4"), new ArrayList<String>(
+				changes.getChangesSince(2).getVehicleIds()));
+	}
+}
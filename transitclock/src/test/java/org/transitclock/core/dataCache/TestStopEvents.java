@@ -0,0 +1,98 @@
+package org.transitclock.core.dataCache;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.junit.Test;
+import org.transitclock.ipc.data.IpcArrivalDeparture;
+
+public class TestStopEvents {
+
+	private static IpcArrivalDeparture event(String tripId, String vehicleId,
+			boolean isArrival, long time) {
+		IpcArrivalDeparture event = new IpcArrivalDeparture();
+		event.setStopId("stop");
+		event.setTripId(tripId);
+		event.setVehicleId(vehicleId);
+		event.setArrival(isArrival);
+		event.setTime(new Date(time));
+		return event;
+	}
+
+	@Test
+	public void testEventsMostRecentFirst() {
+		IpcArrivalDeparture a1 = event("t1", "v1", true, 1000);
+		IpcArrivalDeparture d1 = event("t1", "v1", false, 2000);
+		IpcArrivalDeparture a2 = event("t2", "v2", true, 3000);
+		StopEvents stopEvents = new StopEvents();
+		stopEvents.addEvent(a1);
+		stopEvents.addEvent(a2);
+		// Out of order
+		stopEvents.addEvent(d1);
+		// Already there so not added again
+		stopEvents.addEvent(event("t1", "v1", false, 2000));
+
+		List<IpcArrivalDeparture> events = stopEvents.getEvents();
+		assertTrue(events instanceof RandomAccess);
+		assertEquals(Arrays.asList(a2, d1, a1), events);
+		assertEquals(a2, events.get(0));
+		assertEquals(a1, events.get(2));
+		assertEquals(new StopEvents(Arrays.asList(a1, d1, a2)), stopEvents);
+	}
+
+	@Test
+	public void testCopyDoesNotChangeOriginal() {
+		IpcArrivalDeparture a1 = event("t1", "v1", true, 1000);
+		IpcArrivalDeparture a2 = event("t1", "v1", true, 2000);
+		StopEvents original = new StopEvents();
+		original.addEvent(a1);
+		List<IpcArrivalDeparture> originalEvents = original.getEvents();
+
+		StopEvents copy = new StopEvents(original);
+		copy.addEvent(a2);
+		assertEquals(a2, copy.getArrival("t1", "v1"));
+		assertEquals(2, copy.getEvents().size());
+
+		// Neither the original nor the events read from it see the new arrival
+		assertEquals(a1, original.getArrival("t1", "v1"));
+		assertEquals(Arrays.asList(a1), original.getEvents());
+		assertEquals(Arrays.asList(a1), originalEvents);
+
+		// A second copy of the original can't use the slot already used by
+		// the first copy
+		IpcArrivalDeparture a3 = event("t3", "v3", true, 3000);
+		StopEvents secondCopy = new StopEvents(original);
+		secondCopy.addEvent(a3);
+		assertEquals(Arrays.asList(a3, a1), secondCopy.getEvents());
+		assertEquals(a1, secondCopy.getArrival("t1", "v1"));
+		assertNull(copy.getArrival("t3", "v3"));
+		assertEquals(Arrays.asList(a2, a1), copy.getEvents());
+	}
+
+	@Test
+	public void testDeparturesAtOrBefore() {
+		StopEvents stopEvents = new StopEvents();
+		for (int i = 1; i <= 100; ++i) {
+			stopEvents.addEvent(event("t" + i, "v" + i, true, i * 1000 - 10));
+			stopEvents.addEvent(event("t" + i, "v" + i, false, i * 1000));
+		}
+
+		List<IpcArrivalDeparture> departures =
+				stopEvents.getDeparturesAtOrBefore(50500);
+		assertEquals(50, departures.size());
+		assertEquals(50000, departures.get(0).getTime().getTime());
+		assertEquals(1000, departures.get(49).getTime().getTime());
+		for (IpcArrivalDeparture departure : departures)
+			assertTrue(departure.isDeparture());
+
+		assertEquals(50, stopEvents.getDeparturesAtOrBefore(50000).size());
+		assertTrue(stopEvents.getDeparturesAtOrBefore(999).isEmpty());
+		assertEquals(100, stopEvents.getDeparturesAtOrBefore(200000).size());
+		assertEquals(49990,
+				stopEvents.getArrival("t50", "v50").getTime().getTime());
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.core.dataCache.columnar;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestEventIndexes {
+
+	@Test
+	public void testAddAcrossChunks() {
+		EventIndexes indexes = new EventIndexes();
+		for (int i = 0; i < 1000; ++i) {
+			assertTrue(indexes.add(10L * i));
+			assertEquals(i + 1, indexes.size());
+		}
+
+		for (int i = 0; i < 1000; ++i)
+			assertEquals(10L * i, indexes.get(i));
+
+		long[] array = indexes.toArray();
+		assertEquals(1000, array.length);
+		for (int i = 0; i < array.length; ++i)
+			assertEquals(10L * i, array[i]);
+	}
+
+	@Test
+	public void testDiscard() {
+		EventIndexes indexes = new EventIndexes();
+		indexes.add(5);
+		indexes.add(7);
+
+		assertFalse(indexes.discardIfDropped(7));
+		assertTrue(indexes.add(9));
+		assertTrue(indexes.discardIfDropped(10));
+		assertFalse(indexes.add(11));
+		assertEquals(3, indexes.size());
+	}
+}
@@ -242,4 +242,27 @@ public class TestKalman {
 			e.printStackTrace();
 		}		
 	}
+	@Test
+	public void testDurationsSameAsSegments() throws Exception {
+		KalmanPrediction kalmanPrediction=new KalmanPrediction();
+		
+		Vehicle vehicle=new Vehicle("RIY 30");
+		
+		VehicleStopDetail originDetail=new VehicleStopDetail(null, 0, vehicle); 
+		TripSegment historical_segments_k[]={
+				new TripSegment(originDetail, new VehicleStopDetail(null, 380, vehicle)),
+				new TripSegment(originDetail, new VehicleStopDetail(null, 420, vehicle)),
+				new TripSegment(originDetail, new VehicleStopDetail(null, 400, vehicle))};
+		TripSegment last_vehicle_segment=new TripSegment(originDetail, new VehicleStopDetail(null, 300, vehicle));
+		
+		KalmanPredictionResult segmentResult = kalmanPrediction.predict(last_vehicle_segment, historical_segments_k, 72.40);
+		
+		// Array larger than needed, as when it is reused
+		long historical_durations[]={380, 420, 400, 999};
+		KalmanPredictionResult durationResult=new KalmanPredictionResult(0, 0);
+		kalmanPrediction.predict(300, historical_durations, 3, 72.40, durationResult);
+		
+		assertEquals(segmentResult.getResult(), durationResult.getResult(), 0.0);
+		assertEquals(segmentResult.getFilterError(), durationResult.getFilterError(), 0.0);
+	}
 }
@@ -0,0 +1,140 @@
+package org.transitclock.gtfs;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import org.transitclock.db.structs.ContentHash;
+import org.transitclock.utils.MapKey;
+
+public class TestGtfsDiff {
+	private static final String SERVICE_ID = "weekday";
+	private static final int NUM_BLOCKS = 6;
+
+	/**
+	 * Creates a diff with a block per trip. Trips T1 and T2 use trip pattern
+	 * P1 and the other trips use P2.
+	 */
+	private static GtfsDiff createDiff(int configRev, String pattern1,
+			String pattern2, String trip2, int numBlocks) {
+		GtfsDiff diff = new GtfsDiff(configRev);
+		String pattern1Hash = diff.addTripPattern("P1", pattern1);
+		String pattern2Hash = diff.addTripPattern("P2", pattern2);
+		for (int i = 1; i <= numBlocks; ++i) {
+			String tripId = "T" + i;
+			int startTime = i * 3600;
+			String tripHash = diff.addTrip(tripId, startTime,
+					i == 2 ? trip2 : tripId + " content",
+					i <= 2 ? pattern1Hash : pattern2Hash);
+			StringBuilder blockContent = new StringBuilder("B" + i);
+			GtfsDiff.appendTrip(blockContent, tripId, startTime, tripHash);
+			diff.addBlock("B" + i, SERVICE_ID, blockContent);
+		}
+		return diff;
+	}
+
+	/**
+	 * The hashes that were stored when the original data was written to
+	 * configRev 1.
+	 */
+	private static List<ContentHash> storedHashes() {
+		GtfsDiff previous =
+				createDiff(1, "P1 content", "P2 content", "T2 content", NUM_BLOCKS);
+		previous.determineChanges(new ArrayList<ContentHash>(), 0);
+		return previous.getHashesToWrite();
+	}
+
+	private static MapKey blockKey(String blockId) {
+		return new MapKey(GtfsDiff.BLOCK, blockId, SERVICE_ID);
+	}
+
+	private static Set<String> ids(List<ContentHash> hashes) {
+		Set<String> ids = new HashSet<String>();
+		for (ContentHash hash : hashes)
+			ids.add(hash.getEntityType() + ":" + hash.getEntityId());
+		return ids;
+	}
+
+	@Test
+	public void testNoStoredHashes() {
+		GtfsDiff diff =
+				createDiff(2, "P1 content", "P2 content", "T2 content", NUM_BLOCKS);
+		diff.determineChanges(new ArrayList<ContentHash>(), 1);
+
+		assertFalse(diff.isIncremental());
+		assertTrue(diff.getChangedBlockKeys().isEmpty());
+		assertTrue(diff.getHashesToDelete().isEmpty());
+		// 2 trip patterns, and a trip and block for each block
+		assertEquals(2 + 2 * NUM_BLOCKS, diff.getHashesToWrite().size());
+		for (ContentHash hash : diff.getHashesToWrite())
+			assertEquals(2, hash.getConfigRev());
+	}
+
+	@Test
+	public void testChangedTrip() {
+		GtfsDiff diff = createDiff(2, "P1 content", "P2 content",
+				"T2 changed content", NUM_BLOCKS);
+		diff.determineChanges(storedHashes(), 1);
+
+		assertTrue(diff.isIncremental());
+		assertEquals(1, diff.getPreviousConfigRev());
+		assertEquals(Arrays.asList(blockKey("B2")), diff.getChangedBlockKeys());
+		Set<String> expected =
+				new HashSet<String>(Arrays.asList("Trip:T2", "Block:B2"));
+		assertEquals(expected, ids(diff.getHashesToDelete()));
+		assertEquals(expected, ids(diff.getHashesToWrite()));
+	}
+
+	@Test
+	public void testChangedTripPatternChangesItsBlocks() {
+		GtfsDiff diff = createDiff(2, "P1 changed content", "P2 content",
+				"T2 content", NUM_BLOCKS);
+		diff.determineChanges(storedHashes(), 1);
+
+		assertTrue(diff.isIncremental());
+		assertEquals(new HashSet<MapKey>(Arrays.asList(blockKey("B1"),
+				blockKey("B2"))),
+				new HashSet<MapKey>(diff.getChangedBlockKeys()));
+		Set<String> expected = new HashSet<String>(Arrays.asList(
+				"TripPattern:P1", "Trip:T1", "Trip:T2", "Block:B1", "Block:B2"));
+		assertEquals(expected, ids(diff.getHashesToDelete()));
+		assertEquals(expected, ids(diff.getHashesToWrite()));
+		// The trip pattern doesn't have a sub id but it still can't be an
+		// empty string since Oracle would store that as null
+		for (ContentHash hash : diff.getHashesToWrite()) {
+			if (hash.getEntityType().equals(GtfsDiff.TRIP_PATTERN))
+				assertEquals(ContentHash.NO_SUB_ID, hash.getSubId());
+		}
+	}
+
+	@Test
+	public void testRemovedBlock() {
+		GtfsDiff diff = createDiff(2, "P1 content", "P2 content",
+				"T2 content", NUM_BLOCKS - 1);
+		diff.determineChanges(storedHashes(), 1);
+
+		assertTrue(diff.isIncremental());
+		assertTrue(diff.getChangedBlockKeys().isEmpty());
+		assertTrue(diff.getHashesToWrite().isEmpty());
+		assertEquals(new HashSet<String>(Arrays.asList("Trip:T6", "Block:B6")),
+				ids(diff.getHashesToDelete()));
+	}
+
+	@Test
+	public void testTooMuchChangedWritesWholeRev() {
+		// Trip pattern P2 is used by 4 of the 6 blocks
+		GtfsDiff diff = createDiff(2, "P1 content", "P2 changed content",
+				"T2 content", NUM_BLOCKS);
+		diff.determineChanges(storedHashes(), 1);
+
+		assertFalse(diff.isIncremental());
+		assertTrue(diff.getChangedBlockKeys().isEmpty());
+		assertTrue(diff.getHashesToDelete().isEmpty());
+		assertEquals(2 + 2 * NUM_BLOCKS, diff.getHashesToWrite().size());
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import org.transitclock.db.structs.Location;
+
+public class TestGridIndex {
+
+	@Test
+	public void testCandidatesIncludeAllPointsWithinDistance() {
+		Random random = new Random(42);
+		double baseLat = 37.7;
+		double baseLon = -122.4;
+		GridIndex<Location> grid = new GridIndex<Location>(250.0, baseLat);
+		List<Location> all = new ArrayList<Location>();
+		for (int i = 0; i < 5000; ++i) {
+			Location loc = new Location(baseLat + random.nextDouble() * 0.1,
+					baseLon + random.nextDouble() * 0.1);
+			all.add(loc);
+			grid.add(loc, loc.getLat(), loc.getLon());
+		}
+		assertEquals(5000, grid.getNumberItems());
+
+		for (int q = 0; q < 200; ++q) {
+			Location query = new Location(baseLat + random.nextDouble() * 0.1,
+					baseLon + random.nextDouble() * 0.1);
+			double distance = 50.0 + random.nextDouble() * 600.0;
+
+			Set<Location> expected = new HashSet<Location>();
+			for (Location loc : all) {
+				if (query.distance(loc) <= distance)
+					expected.add(loc);
+			}
+
+			Set<Location> found = new HashSet<Location>();
+			for (Location loc : grid.getCandidates(query, distance)) {
+				if (query.distance(loc) <= distance)
+					found.add(loc);
+			}
+			assertEquals(expected, found);
+		}
+	}
+
+	@Test
+	public void testItemInMultipleCellsReturnedOnce() {
+		GridIndex<String> grid = new GridIndex<String>(100.0, 37.7);
+		// Spans many cells
+		grid.add("long", 37.70, -122.40, 37.71, -122.39);
+		grid.add("point", 37.705, -122.395);
+
+		List<String> candidates =
+				grid.getCandidates(new Location(37.705, -122.395), 2000.0);
+		assertEquals(2, candidates.size());
+		assertTrue(candidates.contains("long"));
+		assertTrue(candidates.contains("point"));
+
+		assertTrue(grid.getCandidates(new Location(37.9, -122.0), 100.0)
+				.isEmpty());
+	}
+}
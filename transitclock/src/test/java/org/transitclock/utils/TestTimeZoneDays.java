@@ -0,0 +1,106 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+/**
+ * Compares TimeZoneDays to the Calendar based conversions that Time used
+ * before, for every few minutes of a year so that the daylight savings time
+ * transitions are included.
+ */
+public class TestTimeZoneDays {
+
+	private static final String[] TIMEZONES = {"America/Los_Angeles",
+			"Europe/Dublin", "Australia/Sydney", "UTC"};
+
+	// 2019-01-01T00:00:00Z
+	private static final long START_TIME = 1546300800000L;
+
+	@Test
+	public void testTimesIntoDaySameAsCalendar() {
+		for (String timezoneName : TIMEZONES) {
+			TimeZone timeZone = TimeZone.getTimeZone(timezoneName);
+			TimeZoneDays timeZoneDays = new TimeZoneDays(timeZone);
+			Calendar calendar = new GregorianCalendar(timeZone);
+
+			for (long t = START_TIME; t < START_TIME + Time.MS_PER_YEAR;
+					t += 7 * Time.MS_PER_MIN + 1234) {
+				calendar.setTimeInMillis(t);
+				String message = timezoneName + " " + new Date(t);
+
+				int expectedSecs = calendar.get(Calendar.HOUR_OF_DAY) * Time.SEC_PER_HOUR
+						+ calendar.get(Calendar.MINUTE) * Time.SEC_PER_MIN
+						+ calendar.get(Calendar.SECOND);
+				assertEquals(message, expectedSecs,
+						timeZoneDays.getSecondsIntoDay(t));
+				assertEquals(message,
+						expectedSecs * Time.MS_PER_SEC
+								+ calendar.get(Calendar.MILLISECOND),
+						timeZoneDays.getMsecsIntoDay(t));
+				assertEquals(message, calendar.get(Calendar.DAY_OF_YEAR),
+						timeZoneDays.getDayOfYear(t));
+
+				calendar.set(Calendar.MILLISECOND, 0);
+				calendar.set(Calendar.SECOND, 0);
+				calendar.set(Calendar.MINUTE, 0);
+				calendar.set(Calendar.HOUR_OF_DAY, 0);
+				assertEquals(message, calendar.getTimeInMillis(),
+						timeZoneDays.getStartOfDay(t));
+			}
+		}
+	}
+
+	@Test
+	public void testEpochTimeForDaySameAsCalendar() {
+		for (String timezoneName : TIMEZONES) {
+			TimeZone timeZone = TimeZone.getTimeZone(timezoneName);
+			TimeZoneDays timeZoneDays = new TimeZoneDays(timeZone);
+			Calendar calendar = new GregorianCalendar(timeZone);
+
+			// A reference time during each day of the year, and every few
+			// minutes into that day, which includes times that are skipped
+			// or repeated due to daylight savings time
+			for (long referenceTime = START_TIME + 11 * Time.MS_PER_HOUR;
+					referenceTime < START_TIME + Time.MS_PER_YEAR;
+					referenceTime += Time.MS_PER_DAY) {
+				for (int secsIntoDay = 0; secsIntoDay < Time.SEC_PER_DAY;
+						secsIntoDay += 13 * Time.SEC_PER_MIN) {
+					calendar.setTimeInMillis(referenceTime);
+					calendar.set(Calendar.MILLISECOND, 0);
+					calendar.set(Calendar.SECOND, secsIntoDay % 60);
+					calendar.set(Calendar.MINUTE, secsIntoDay / 60 % 60);
+					calendar.set(Calendar.HOUR_OF_DAY, secsIntoDay / 3600);
+
+					assertEquals(timezoneName + " " + new Date(referenceTime)
+							+ " secsIntoDay=" + secsIntoDay,
+							calendar.getTimeInMillis(),
+							timeZoneDays.getEpochTimeForDay(
+									secsIntoDay * Time.MS_PER_SEC,
+									referenceTime));
+				}
+			}
+		}
+	}
+}
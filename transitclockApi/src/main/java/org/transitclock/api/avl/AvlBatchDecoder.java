@@ -0,0 +1,213 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.api.avl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.transitclock.db.structs.AvlReport.AssignmentType;
+import org.transitclock.ipc.data.IpcAvl;
+import org.transitclock.utils.MathUtils;
+import org.transitclock.utils.Time;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+
+/**
+ * Decodes a batch of AVL reports that is in a compact binary format into
+ * IpcAvl objects, validating each one. Invalid reports are counted and
+ * skipped so that one bad report doesn't cause the whole batch to be
+ * rejected. Two formats are supported:
+ * <ul>
+ * <li>A GTFS-realtime FeedMessage containing VehiclePositions</li>
+ * <li>A stream of length-prefixed VehiclePosition messages, as written by
+ * VehiclePosition.writeDelimitedTo(). This way a sender doesn't need to
+ * build up a whole FeedMessage.</li>
+ * </ul>
+ * The fields of the VehiclePosition are handled the same way as by
+ * GtfsRtVehiclePositionsReaderBase in the core.
+ */
+public class AvlBatchDecoder {
+
+	private static final String AVL_SOURCE = "API batch";
+
+	// Reports with a time further in the future than this are invalid
+	private static final long MAX_FUTURE_MSEC = 10 * Time.MS_PER_MIN;
+
+	// What to use instead of default 64MB protobuf limit
+	private static final int SIZE_LIMIT = 200000000;
+
+	/**
+	 * The result of decoding a batch.
+	 */
+	public static class Result {
+		private final List<IpcAvl> avlReports = new ArrayList<IpcAvl>();
+		private int numberInvalid = 0;
+
+		public List<IpcAvl> getAvlReports() {
+			return avlReports;
+		}
+
+		public int getNumberInvalid() {
+			return numberInvalid;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Decodes a GTFS-realtime FeedMessage of VehiclePositions.
+	 *
+	 * @param inputStream
+	 * @return the valid reports and the number of invalid ones
+	 * @throws IOException
+	 *             if the data is not a valid FeedMessage
+	 */
+	public static Result decodeFeedMessage(InputStream inputStream)
+			throws IOException {
+		CodedInputStream codedStream = CodedInputStream.newInstance(inputStream);
+		codedStream.setSizeLimit(SIZE_LIMIT);
+		FeedMessage feed = FeedMessage.parseFrom(codedStream);
+
+		Result result = new Result();
+		long now = System.currentTimeMillis();
+		for (FeedEntity entity : feed.getEntityList()) {
+			if (entity.hasVehicle())
+				add(result, entity.getVehicle(), now);
+		}
+		return result;
+	}
+
+	/**
+	 * Decodes a stream of length-prefixed VehiclePosition messages.
+	 *
+	 * @param inputStream
+	 * @return the valid reports and the number of invalid ones
+	 * @throws IOException
+	 *             if the data is not valid
+	 */
+	public static Result decodeDelimited(InputStream inputStream)
+			throws IOException {
+		Result result = new Result();
+		long now = System.currentTimeMillis();
+		VehiclePosition vehicle;
+		while ((vehicle = VehiclePosition.parseDelimitedFrom(inputStream))
+				!= null) {
+			add(result, vehicle, now);
+		}
+		return result;
+	}
+
+	/**
+	 * Converts the VehiclePosition to an IpcAvl and adds it to the result if
+	 * it is valid. Otherwise increments the invalid count.
+	 *
+	 * @param result
+	 * @param vehicle
+	 * @param now
+	 *            current time, for checking the GPS time
+	 */
+	private static void add(Result result, VehiclePosition vehicle, long now) {
+		IpcAvl avl = convert(vehicle, now);
+		if (avl != null)
+			result.avlReports.add(avl);
+		else
+			++result.numberInvalid;
+	}
+
+	/**
+	 * Converts the VehiclePosition to an IpcAvl.
+	 *
+	 * @param vehicle
+	 * @param now
+	 *            current time, for checking the GPS time
+	 * @return the IpcAvl, or null if the VehiclePosition is not valid
+	 */
+	private static IpcAvl convert(VehiclePosition vehicle, long now) {
+		// Determine vehicle ID. Use label if no ID.
+		String vehicleId = null;
+		String licensePlate = null;
+		if (vehicle.hasVehicle()) {
+			VehicleDescriptor desc = vehicle.getVehicle();
+			if (desc.hasId() && !desc.getId().isEmpty())
+				vehicleId = desc.getId();
+			else if (desc.hasLabel() && !desc.getLabel().isEmpty())
+				vehicleId = desc.getLabel();
+			if (desc.hasLicensePlate())
+				licensePlate = desc.getLicensePlate();
+			else if (desc.hasLabel())
+				licensePlate = desc.getLabel();
+		}
+		if (vehicleId == null)
+			return null;
+
+		// Time is supposed to be in seconds but some feeds use msec
+		if (!vehicle.hasTimestamp())
+			return null;
+		long gpsTime = vehicle.getTimestamp();
+		if (gpsTime < 14396727760L)
+			gpsTime *= Time.MS_PER_SEC;
+		if (gpsTime > now + MAX_FUTURE_MSEC)
+			return null;
+
+		// Position is required and has to be reasonable
+		if (!vehicle.hasPosition())
+			return null;
+		Position position = vehicle.getPosition();
+		double lat = position.getLatitude();
+		double lon = position.getLongitude();
+		if (lat < -90.0 || lat > 90.0 || lon < -180.0 || lon > 180.0
+				|| (lat == 0.0 && lon == 0.0))
+			return null;
+
+		float speed = position.hasSpeed() ? position.getSpeed() : Float.NaN;
+		float heading =
+				position.hasBearing() ? position.getBearing() : Float.NaN;
+
+		// Determine assignment. Trip ID takes precedence over route ID.
+		String assignmentId = null;
+		AssignmentType assignmentType = AssignmentType.UNSET;
+		if (vehicle.hasTrip()) {
+			TripDescriptor tripDescriptor = vehicle.getTrip();
+			if (tripDescriptor.hasTripId()) {
+				assignmentId = tripDescriptor.getTripId();
+				assignmentType = AssignmentType.TRIP_ID;
+			} else if (tripDescriptor.hasRouteId()) {
+				assignmentId = tripDescriptor.getRouteId();
+				assignmentType = AssignmentType.ROUTE_ID;
+			}
+		}
+
+		// The feed can provide a silly amount of precision so round to just
+		// 5 decimal places
+		return new IpcAvl(vehicleId, gpsTime,
+				(float) MathUtils.round(lat, 5),
+				(float) MathUtils.round(lon, 5), speed, heading, AVL_SOURCE,
+				assignmentId, assignmentType,
+				null, // driverId
+				licensePlate,
+				-1); // passengerCount
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.api.avl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.ipc.data.IpcAvl;
+import org.transitclock.ipc.interfaces.CommandsInterface;
+import org.transitclock.utils.Time;
+import org.transitclock.utils.threading.NamedThread;
+
+/**
+ * Forwards AVL reports pushed to the API to the core asynchronously so that
+ * API threads are not tied up making RMI calls. Reports are put into a
+ * pending map that only keeps the latest report per vehicle, since there is
+ * no point processing an old report when a newer one is available. A single
+ * thread per agency sends the pending reports to the core in batches using
+ * CommandsInterface.pushAvlBatch().
+ * <p>
+ * offer() returns false, which the API turns into a HTTP 429, when the
+ * sender needs to slow down. This happens when there are too many pending
+ * vehicles or when the core has reported that its AVL queue is backed up.
+ * In the latter case the core only queues as many reports of a batch as it
+ * has room for and the rest are retried after retryIntervalMsec.
+ */
+public class AvlBatchForwarder implements Runnable {
+
+	private final String agencyId;
+	private final CommandsInterface commandsInterface;
+
+	// Latest report per vehicle waiting to be sent to the core. Synchronized
+	// on itself.
+	private final Map<String, IpcAvl> pendingReports =
+			new LinkedHashMap<String, IpcAvl>();
+
+	// Set when the core doesn't queue all of a batch. Cleared once it does.
+	private volatile boolean coreBackedUp = false;
+
+	// Keyed on agencyId
+	private static final Map<String, AvlBatchForwarder> forwarders =
+			new HashMap<String, AvlBatchForwarder>();
+
+	private static IntegerConfigValue maxPendingVehicles = new IntegerConfigValue(
+			"transitclock.api.avlBatch.maxPendingVehicles",
+			20000,
+			"Maximum number of vehicles that can have AVL reports waiting to "
+			+ "be sent to the core. If exceeded then batches pushed to the "
+			+ "API are rejected with a HTTP 429.");
+
+	private static IntegerConfigValue maxBatchSize = new IntegerConfigValue(
+			"transitclock.api.avlBatch.maxBatchSize",
+			1000,
+			"Maximum number of AVL reports sent to the core in a single "
+			+ "RMI call. Should be less than transitclock.avl.queueSize "
+			+ "of the core.");
+
+	private static IntegerConfigValue retryIntervalMsec = new IntegerConfigValue(
+			"transitclock.api.avlBatch.retryIntervalMsec",
+			1000,
+			"How long to wait before retrying to send AVL reports to the "
+			+ "core after it rejected them for being backed up.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(AvlBatchForwarder.class);
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor private so that get() is used. Starts up the thread for
+	 * forwarding reports to the core.
+	 *
+	 * @param agencyId
+	 * @param commandsInterface
+	 */
+	private AvlBatchForwarder(String agencyId,
+			CommandsInterface commandsInterface) {
+		this.agencyId = agencyId;
+		this.commandsInterface = commandsInterface;
+
+		NamedThread thread = new NamedThread(this, "avlBatch-" + agencyId);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the AvlBatchForwarder for the agency, creating it if
+	 * necessary.
+	 *
+	 * @param agencyId
+	 * @param commandsInterface
+	 *            for sending the reports to the core
+	 * @return the AvlBatchForwarder for the agency
+	 */
+	public static AvlBatchForwarder get(String agencyId,
+			CommandsInterface commandsInterface) {
+		synchronized (forwarders) {
+			AvlBatchForwarder forwarder = forwarders.get(agencyId);
+			if (forwarder == null) {
+				forwarder = new AvlBatchForwarder(agencyId, commandsInterface);
+				forwarders.put(agencyId, forwarder);
+			}
+			return forwarder;
+		}
+	}
+
+	/**
+	 * Queues the AVL reports to be sent to the core. Returns immediately.
+	 *
+	 * @param avlReports
+	 * @return true if queued, false if the sender needs to slow down because
+	 *         the core is backed up or too many reports are pending
+	 */
+	public boolean offer(Collection<IpcAvl> avlReports) {
+		if (coreBackedUp)
+			return false;
+
+		synchronized (pendingReports) {
+			// Only vehicles that don't already have a pending report add to
+			// the number of pending vehicles
+			Set<String> newVehicleIds = new HashSet<String>();
+			for (IpcAvl avlReport : avlReports) {
+				if (!pendingReports.containsKey(avlReport.getVehicleId()))
+					newVehicleIds.add(avlReport.getVehicleId());
+			}
+			if (pendingReports.size() + newVehicleIds.size()
+					> maxPendingVehicles.getValue())
+				return false;
+
+			for (IpcAvl avlReport : avlReports) {
+				IpcAvl existing = pendingReports.get(avlReport.getVehicleId());
+				if (existing == null
+						|| existing.getTime() <= avlReport.getTime())
+					pendingReports.put(avlReport.getVehicleId(), avlReport);
+			}
+			pendingReports.notifyAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Waits for there to be pending reports and then removes and returns up
+	 * to maxBatchSize of them.
+	 *
+	 * @return the batch of reports
+	 * @throws InterruptedException
+	 */
+	private List<IpcAvl> takeBatch() throws InterruptedException {
+		synchronized (pendingReports) {
+			while (pendingReports.isEmpty())
+				pendingReports.wait();
+
+			int size = Math.min(pendingReports.size(), maxBatchSize.getValue());
+			List<IpcAvl> batch = new ArrayList<IpcAvl>(size);
+			Iterator<IpcAvl> iterator = pendingReports.values().iterator();
+			while (batch.size() < size) {
+				batch.add(iterator.next());
+				iterator.remove();
+			}
+			return batch;
+		}
+	}
+
+	/**
+	 * Puts reports that couldn't be sent back into the pending reports,
+	 * except for vehicles that already have a newer report pending.
+	 *
+	 * @param batch
+	 */
+	private void putBack(List<IpcAvl> avlReports) {
+		synchronized (pendingReports) {
+			for (IpcAvl avlReport : avlReports) {
+				if (!pendingReports.containsKey(avlReport.getVehicleId()))
+					pendingReports.put(avlReport.getVehicleId(), avlReport);
+			}
+		}
+	}
+
+	/**
+	 * Sends the pending reports to the core, retrying if the core is backed
+	 * up or can't be reached.
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			List<IpcAvl> batch;
+			try {
+				batch = takeBatch();
+			} catch (InterruptedException e) {
+				logger.error("AvlBatchForwarder for agencyId={} interrupted",
+						agencyId);
+				return;
+			}
+
+			int numberQueued;
+			try {
+				numberQueued = commandsInterface.pushAvlBatch(batch);
+				if (numberQueued < batch.size())
+					logger.warn("Core for agencyId={} is backed up so will "
+							+ "retry {} of the {} AVL reports in {} msec",
+							agencyId, batch.size() - numberQueued,
+							batch.size(), retryIntervalMsec.getValue());
+			} catch (Exception e) {
+				logger.error("Exception sending {} AVL reports to core for "
+						+ "agencyId={}. Will retry in {} msec", batch.size(),
+						agencyId, retryIntervalMsec.getValue(), e);
+				numberQueued = 0;
+			}
+
+			coreBackedUp = numberQueued < batch.size();
+			if (coreBackedUp) {
+				putBack(batch.subList(numberQueued, batch.size()));
+				Time.sleep(retryIntervalMsec.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @return true if the core has rejected the last batch
+	 */
+	public boolean isCoreBackedUp() {
+		return coreBackedUp;
+	}
+}
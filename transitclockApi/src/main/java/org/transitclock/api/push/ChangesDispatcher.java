@@ -0,0 +1,545 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.api.push;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.ws.rs.core.MediaType;
+
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.api.data.ApiIds;
+import org.transitclock.api.data.ApiPredictions;
+import org.transitclock.api.data.ApiVehicles;
+import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.ipc.data.IpcChanges;
+import org.transitclock.ipc.data.IpcPredictionsForRouteStopDest;
+import org.transitclock.ipc.data.IpcVehicle;
+import org.transitclock.ipc.interfaces.ChangesInterface;
+import org.transitclock.ipc.interfaces.PredictionsInterface.RouteStop;
+import org.transitclock.utils.threading.NamedThreadFactory;
+
+/**
+ * Pushes vehicle and prediction changes for an agency to clients using
+ * server-sent events. Instead of every client polling the core, a single
+ * thread per agency asks the core via the ChangesInterface for what has
+ * changed since the last time it asked and then sends just the changes to
+ * each of the subscribed clients. This way thousands of clients only cost
+ * one RMI call per polling interval.
+ * <p>
+ * When a client subscribes it is first sent all the vehicles and predictions
+ * that match its filters. After that it is sent these events, each only if
+ * there is something to send:
+ * <ul>
+ * <li>vehicles - the vehicles that changed, as ApiVehicles</li>
+ * <li>vehiclesRemoved - IDs of vehicles that are gone or no longer match the
+ * route filter, as ApiIds</li>
+ * <li>predictions - the current predictions for the route/stops that changed,
+ * as ApiPredictions</li>
+ * <li>predictionsRemoved - route/stops that no longer have predictions, as
+ * ApiIds of "routeShortName|stopId"</li>
+ * </ul>
+ * The route filter applies to both vehicles and predictions. The stop filter
+ * only applies to predictions.
+ * <p>
+ * The events for each client are put into a bounded queue and written by a
+ * separate writer thread so that a slow client doesn't hold up polling or the
+ * other clients. A client that falls so far behind that its queue fills up
+ * is disconnected.
+ */
+public class ChangesDispatcher {
+
+	private final String agencyId;
+	private final ChangesInterface changesInterface;
+
+	private final ScheduledExecutorService executor;
+
+	// For writing the queued events to the subscribers. A subscriber is
+	// written to by at most one of the threads at a time.
+	private final ExecutorService writerExecutor;
+
+	private final List<Subscriber> subscribers =
+			new CopyOnWriteArrayList<Subscriber>();
+
+	// The state the clients have been told about. Only accessed by the
+	// executor thread. Keyed on vehicle ID and on "routeShortName|stopId".
+	private final Map<String, IpcVehicle> vehiclesById =
+			new HashMap<String, IpcVehicle>();
+	private final Map<String, List<IpcPredictionsForRouteStopDest>> predictionsByRouteStop =
+			new HashMap<String, List<IpcPredictionsForRouteStopDest>>();
+
+	// Sequence number of the changes last read from the core. 0 means need
+	// to read in everything.
+	private long sequenceNumber = 0;
+
+	// Keyed on agencyId
+	private static final Map<String, ChangesDispatcher> dispatchers =
+			new ConcurrentHashMap<String, ChangesDispatcher>();
+
+	private static IntegerConfigValue pollingIntervalMsec = new IntegerConfigValue(
+			"transitclock.api.push.pollingIntervalMsec",
+			1000,
+			"How frequently the core is asked for vehicle and prediction "
+			+ "changes to push to clients.");
+
+	private static IntegerConfigValue numPredictions = new IntegerConfigValue(
+			"transitclock.api.push.numPredictions",
+			3,
+			"Maximum number of predictions per route/stop/destination that "
+			+ "are pushed to clients.");
+
+	private static IntegerConfigValue keepAliveSecs = new IntegerConfigValue(
+			"transitclock.api.push.keepAliveSecs",
+			30,
+			"How frequently a comment is sent to clients of the push feed so "
+			+ "that connections don't time out and so that clients that "
+			+ "have gone away are detected.");
+
+	private static IntegerConfigValue maxQueuedEvents = new IntegerConfigValue(
+			"transitclock.api.push.maxQueuedEvents",
+			100,
+			"Maximum number of events waiting to be written to a client of "
+			+ "the push feed. A client that is so slow that more events "
+			+ "than this are waiting is disconnected.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(ChangesDispatcher.class);
+
+	/**
+	 * A client connection and what it wants to be told about.
+	 */
+	private static class Subscriber {
+		private final EventOutput eventOutput;
+		// Route IDs or short names. Empty means all routes.
+		private final Set<String> routes;
+		// Stop IDs. Empty means all stops.
+		private final Set<String> stopIds;
+
+		// Events waiting to be written
+		private final BlockingQueue<OutboundEvent> queue;
+		// True while a writer thread is writing the queued events
+		private final AtomicBoolean writing = new AtomicBoolean(false);
+		private final AtomicBoolean removed = new AtomicBoolean(false);
+
+		private Subscriber(EventOutput eventOutput, Set<String> routes,
+				Set<String> stopIds) {
+			this.eventOutput = eventOutput;
+			this.routes = routes;
+			this.stopIds = stopIds;
+			this.queue = new ArrayBlockingQueue<OutboundEvent>(
+					Math.max(1, maxQueuedEvents.getValue()));
+		}
+
+		private boolean matchesRoute(String routeId, String routeShortName) {
+			return routes.isEmpty() || routes.contains(routeId)
+					|| routes.contains(routeShortName);
+		}
+
+		private boolean matches(IpcVehicle vehicle) {
+			return vehicle != null
+					&& matchesRoute(vehicle.getRouteId(),
+							vehicle.getRouteShortName());
+		}
+
+		private boolean matches(IpcPredictionsForRouteStopDest preds) {
+			return matchesRoute(preds.getRouteId(), preds.getRouteShortName())
+					&& (stopIds.isEmpty() || stopIds.contains(preds.getStopId()));
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Returns the dispatcher for the agency, creating and starting it if
+	 * needed.
+	 *
+	 * @param agencyId
+	 * @param changesInterface
+	 *            for getting the changes from the core of the agency
+	 * @return the dispatcher
+	 */
+	public static ChangesDispatcher get(String agencyId,
+			ChangesInterface changesInterface) {
+		synchronized (dispatchers) {
+			ChangesDispatcher dispatcher = dispatchers.get(agencyId);
+			if (dispatcher == null) {
+				dispatcher = new ChangesDispatcher(agencyId, changesInterface);
+				dispatchers.put(agencyId, dispatcher);
+			}
+			return dispatcher;
+		}
+	}
+
+	private ChangesDispatcher(String agencyId,
+			ChangesInterface changesInterface) {
+		this.agencyId = agencyId;
+		this.changesInterface = changesInterface;
+
+		executor = Executors.newSingleThreadScheduledExecutor(
+				daemonThreadFactory("push-" + agencyId));
+		writerExecutor = Executors.newCachedThreadPool(
+				daemonThreadFactory("push-" + agencyId + "-writer"));
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				if (!subscribers.isEmpty())
+					poll();
+			}
+		}, pollingIntervalMsec.getValue(), pollingIntervalMsec.getValue(),
+				TimeUnit.MILLISECONDS);
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				keepAlive();
+			}
+		}, keepAliveSecs.getValue(), keepAliveSecs.getValue(), TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Adds a client. The current vehicles and predictions that match the
+	 * filters are sent first and then the changes as they happen.
+	 *
+	 * @param eventOutput
+	 *            the connection to the client
+	 * @param routes
+	 *            route IDs or short names. Null or empty for all routes.
+	 * @param stopIds
+	 *            stop IDs. Null or empty for all stops.
+	 */
+	public void subscribe(EventOutput eventOutput, Collection<String> routes,
+			Collection<String> stopIds) {
+		final Subscriber subscriber = new Subscriber(eventOutput,
+				nonBlank(routes), nonBlank(stopIds));
+
+		// Done on the executor thread so that the subscriber gets the current
+		// state before any changes to it
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				// If no one was subscribed then the state hasn't been kept
+				// up to date
+				if (subscribers.isEmpty())
+					poll();
+
+				List<IpcVehicle> vehicles = new ArrayList<IpcVehicle>();
+				for (IpcVehicle vehicle : vehiclesById.values())
+					if (subscriber.matches(vehicle))
+						vehicles.add(vehicle);
+				List<IpcPredictionsForRouteStopDest> preds =
+						new ArrayList<IpcPredictionsForRouteStopDest>();
+				for (List<IpcPredictionsForRouteStopDest> predsForRouteStop
+						: predictionsByRouteStop.values())
+					addMatching(subscriber, predsForRouteStop, preds);
+
+				if (send(subscriber, "vehicles", ApiVehicles.class,
+						new ApiVehicles(vehicles))
+						&& send(subscriber, "predictions", ApiPredictions.class,
+								new ApiPredictions(preds))) {
+					subscribers.add(subscriber);
+					// In case writing the initial events already failed
+					if (subscriber.removed.get())
+						subscribers.remove(subscriber);
+					else
+						logger.info("Added push subscriber for agencyId={}. "
+								+ "Now have {} subscribers.", agencyId,
+								subscribers.size());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Gets the changes from the core, updates the local state, and sends the
+	 * changes to the subscribers.
+	 */
+	private void poll() {
+		IpcChanges changes;
+		try {
+			changes = changesInterface.getChangesSince(sequenceNumber,
+					numPredictions.getValue());
+		} catch (Exception e) {
+			logger.error("Exception getting changes for agencyId={}. {}",
+					agencyId, e.getMessage());
+			return;
+		}
+		if (changes == null)
+			return;
+		sequenceNumber = changes.getSequenceNumber();
+
+		// Vehicles that changed. The previous version is kept so can tell
+		// whether a subscriber had been told about the vehicle.
+		Map<String, IpcVehicle> oldVehicles = new LinkedHashMap<String, IpcVehicle>();
+		List<IpcVehicle> changedVehicles = changes.getVehicles();
+		for (IpcVehicle vehicle : changedVehicles)
+			oldVehicles.put(vehicle.getId(), vehiclesById.put(vehicle.getId(), vehicle));
+		Collection<String> removedVehicleIds = changes.getRemovedVehicleIds();
+		if (changes.isComplete()) {
+			Set<String> ids = new HashSet<String>(vehiclesById.keySet());
+			ids.removeAll(oldVehicles.keySet());
+			removedVehicleIds = ids;
+		}
+		for (String vehicleId : removedVehicleIds)
+			oldVehicles.put(vehicleId, vehiclesById.remove(vehicleId));
+
+		// Predictions for the route/stops that changed, grouped by route/stop
+		Map<String, List<IpcPredictionsForRouteStopDest>> newPreds =
+				new LinkedHashMap<String, List<IpcPredictionsForRouteStopDest>>();
+		for (IpcPredictionsForRouteStopDest preds : changes.getPredictions()) {
+			String key = routeStopKey(preds.getRouteShortName(), preds.getStopId());
+			List<IpcPredictionsForRouteStopDest> list = newPreds.get(key);
+			if (list == null) {
+				list = new ArrayList<IpcPredictionsForRouteStopDest>();
+				newPreds.put(key, list);
+			}
+			list.add(preds);
+		}
+		Set<String> changedRouteStops = new HashSet<String>(newPreds.keySet());
+		if (changes.isComplete()) {
+			changedRouteStops.addAll(predictionsByRouteStop.keySet());
+		} else {
+			for (RouteStop routeStop : changes.getChangedRouteStops())
+				changedRouteStops.add(routeStopKey(
+						routeStop.getRouteIdOrShortName(),
+						routeStop.getStopIdOrCode()));
+		}
+		Map<String, List<IpcPredictionsForRouteStopDest>> oldPreds =
+				new HashMap<String, List<IpcPredictionsForRouteStopDest>>();
+		for (String key : changedRouteStops) {
+			List<IpcPredictionsForRouteStopDest> preds = newPreds.get(key);
+			List<IpcPredictionsForRouteStopDest> old = preds != null
+					? predictionsByRouteStop.put(key, preds)
+					: predictionsByRouteStop.remove(key);
+			if (old != null)
+				oldPreds.put(key, old);
+		}
+
+		if (oldVehicles.isEmpty() && changedRouteStops.isEmpty())
+			return;
+
+		for (Subscriber subscriber : subscribers) {
+			List<IpcVehicle> vehicles = new ArrayList<IpcVehicle>();
+			List<String> vehiclesRemoved = new ArrayList<String>();
+			for (Map.Entry<String, IpcVehicle> entry : oldVehicles.entrySet()) {
+				IpcVehicle vehicle = vehiclesById.get(entry.getKey());
+				if (subscriber.matches(vehicle))
+					vehicles.add(vehicle);
+				else if (subscriber.matches(entry.getValue()))
+					vehiclesRemoved.add(entry.getKey());
+			}
+
+			List<IpcPredictionsForRouteStopDest> preds =
+					new ArrayList<IpcPredictionsForRouteStopDest>();
+			List<String> predsRemoved = new ArrayList<String>();
+			for (String key : changedRouteStops) {
+				List<IpcPredictionsForRouteStopDest> predsForRouteStop =
+						predictionsByRouteStop.get(key);
+				if (predsForRouteStop != null
+						&& addMatching(subscriber, predsForRouteStop, preds))
+					continue;
+				List<IpcPredictionsForRouteStopDest> old = oldPreds.get(key);
+				if (old != null
+						&& addMatching(subscriber, old,
+								new ArrayList<IpcPredictionsForRouteStopDest>()))
+					predsRemoved.add(key);
+			}
+
+			boolean ok = (vehicles.isEmpty() || send(subscriber, "vehicles",
+					ApiVehicles.class, new ApiVehicles(vehicles)))
+					&& (vehiclesRemoved.isEmpty() || send(subscriber,
+							"vehiclesRemoved", ApiIds.class,
+							new ApiIds(vehiclesRemoved)))
+					&& (preds.isEmpty() || send(subscriber, "predictions",
+							ApiPredictions.class, new ApiPredictions(preds)))
+					&& (predsRemoved.isEmpty() || send(subscriber,
+							"predictionsRemoved", ApiIds.class,
+							new ApiIds(predsRemoved)));
+			if (!ok)
+				logger.debug("Push subscriber for agencyId={} went away.",
+						agencyId);
+		}
+	}
+
+	/**
+	 * Sends a comment to all the subscribers so that the connections are
+	 * kept open and so that ones that have been closed are removed.
+	 */
+	private void keepAlive() {
+		for (Subscriber subscriber : subscribers)
+			enqueue(subscriber,
+					new OutboundEvent.Builder().comment("keepalive").build());
+	}
+
+	/**
+	 * Queues an event to be sent to a subscriber. If the subscriber has gone
+	 * away or is too far behind it is removed.
+	 *
+	 * @return true if successful
+	 */
+	private boolean send(Subscriber subscriber, String name, Class<?> type,
+			Object data) {
+		return enqueue(subscriber, new OutboundEvent.Builder()
+				.name(name)
+				.mediaType(MediaType.APPLICATION_JSON_TYPE)
+				.data(type, data)
+				.build());
+	}
+
+	/**
+	 * Queues the event for the subscriber and makes sure a writer thread is
+	 * writing the subscriber's events.
+	 *
+	 * @return true if successful
+	 */
+	private boolean enqueue(final Subscriber subscriber, OutboundEvent event) {
+		if (subscriber.removed.get() || subscriber.eventOutput.isClosed()) {
+			remove(subscriber);
+			return false;
+		}
+		if (!subscriber.queue.offer(event)) {
+			logger.info("Push subscriber for agencyId={} has {} events "
+					+ "waiting to be written so disconnecting it.", agencyId,
+					subscriber.queue.size());
+			remove(subscriber);
+			return false;
+		}
+		if (subscriber.writing.compareAndSet(false, true)) {
+			writerExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					write(subscriber);
+				}
+			});
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the queued events to the subscriber until there are none left.
+	 * Runs on a writer thread.
+	 */
+	private void write(Subscriber subscriber) {
+		do {
+			OutboundEvent event;
+			while (!subscriber.removed.get()
+					&& (event = subscriber.queue.poll()) != null) {
+				try {
+					subscriber.eventOutput.write(event);
+				} catch (IOException e) {
+					remove(subscriber);
+				}
+			}
+			subscriber.writing.set(false);
+			// An event could have been queued after the queue was found to be
+			// empty but before writing was cleared, in which case no other
+			// writer was started for it
+		} while (!subscriber.removed.get() && !subscriber.queue.isEmpty()
+				&& subscriber.writing.compareAndSet(false, true));
+	}
+
+	/**
+	 * Removes the subscriber and closes its connection. The connection is
+	 * closed on a writer thread since closing it can block just like
+	 * writing to it.
+	 */
+	private void remove(final Subscriber subscriber) {
+		if (!subscriber.removed.compareAndSet(false, true))
+			return;
+		subscribers.remove(subscriber);
+		subscriber.queue.clear();
+		writerExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					subscriber.eventOutput.close();
+				} catch (IOException e) {
+					// Already gone so nothing to do
+				}
+			}
+		});
+		logger.info("Removed push subscriber for agencyId={}. Now have {} "
+				+ "subscribers.", agencyId, subscribers.size());
+	}
+
+	/**
+	 * Daemon threads so that they don't prevent the webapp from stopping.
+	 */
+	private static ThreadFactory daemonThreadFactory(String name) {
+		final ThreadFactory namedThreadFactory = new NamedThreadFactory(name);
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = namedThreadFactory.newThread(runnable);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Adds the predictions that match the subscriber to result.
+	 *
+	 * @return true if any were added
+	 */
+	private static boolean addMatching(Subscriber subscriber,
+			List<IpcPredictionsForRouteStopDest> preds,
+			List<IpcPredictionsForRouteStopDest> result) {
+		boolean added = false;
+		for (IpcPredictionsForRouteStopDest p : preds) {
+			if (subscriber.matches(p)) {
+				result.add(p);
+				added = true;
+			}
+		}
+		return added;
+	}
+
+	private static String routeStopKey(String routeShortName, String stopId) {
+		return routeShortName + "|" + stopId;
+	}
+
+	/**
+	 * @return the non-blank, trimmed values. Empty if values is null.
+	 */
+	private static Set<String> nonBlank(Collection<String> values) {
+		Set<String> result = new HashSet<String>();
+		if (values != null)
+			for (String value : values)
+				if (value != null && !value.trim().isEmpty())
+					result.add(value.trim());
+		return result;
+	}
+}
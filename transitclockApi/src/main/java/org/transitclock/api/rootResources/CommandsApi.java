@@ -27,8 +27,10 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Date;
 import javax.ws.rs.BeanParam;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
@@ -41,6 +43,8 @@ import javax.ws.rs.core.Response;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.transitclock.api.avl.AvlBatchDecoder;
+import org.transitclock.api.avl.AvlBatchForwarder;
 import org.transitclock.api.data.ApiCommandAck;
 import org.transitclock.api.utils.StandardParameters;
 import org.transitclock.api.utils.WebUtils;
@@ -65,6 +69,17 @@ public class CommandsApi {
 
 	private static final String AVL_SOURCE = "API";
 	
+	// Content types for pushAvlBatch
+	private static final String AVL_BATCH_FEED_MESSAGE = 
+			"application/x-protobuf";
+	private static final String AVL_BATCH_DELIMITED = 
+			"application/x-protobuf-delimited";
+	
+	// HTTP status for when client should slow down. Not defined in
+	// Response.Status of JAX-RS 2.0.
+	private static final int TOO_MANY_REQUESTS = 429;
+	private static final int AVL_BATCH_RETRY_AFTER_SECS = 1;
+	
 	/**
 	 * Reads in a single AVL report specified by the query string parameters
 	 * v=vehicleId
@@ -264,6 +279,81 @@ public class CommandsApi {
 		ApiCommandAck ack = new ApiCommandAck(true, "AVL processed");
 		return stdParameters.createResponse(ack);
 	}
+
+	/**
+	 * Processes a POST http request containing a batch of AVL data in a
+	 * compact binary format. Intended for integrators that send the positions
+	 * of a large fleet frequently. If the Content-Type is
+	 * application/x-protobuf then the body is a GTFS-realtime FeedMessage of
+	 * VehiclePositions. If it is application/x-protobuf-delimited then the
+	 * body is a stream of length-prefixed VehiclePosition messages.
+	 * <p>
+	 * Invalid reports are skipped and counted in the acknowledgment. The
+	 * valid ones are queued to be sent to the core and a 202 Accepted is
+	 * returned once they are queued, not once they are processed. If the
+	 * core is backed up then a 429 Too Many Requests is returned with a
+	 * Retry-After header so that the sender can slow down.
+	 * 
+	 * @param stdParameters
+	 * @param contentType
+	 * @param requestBody
+	 * @return ApiCommandAck response indicating whether queued
+	 * @throws WebApplicationException
+	 */
+	@Path("/command/pushAvlBatch")
+	@POST
+	@Consumes({ AVL_BATCH_FEED_MESSAGE, AVL_BATCH_DELIMITED })
+	@Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML })
+	@Operation(summary="Reads in a batch of AVL reports in binary format.",
+	description="Reads in a batch of AVL reports in the message body. Use "
+			+ "Content-Type application/x-protobuf for a GTFS-realtime "
+			+ "FeedMessage of VehiclePositions or "
+			+ "application/x-protobuf-delimited for length-prefixed "
+			+ "VehiclePosition messages. Returns 202 once the reports are "
+			+ "queued or 429 if the server is backed up.",
+			tags= {"operation","vehicle","avl"})
+	public Response pushAvlBatch(@BeanParam StandardParameters stdParameters,
+			@HeaderParam("Content-Type") String contentType,
+			@Parameter(description="Binary AVL reports.",required=true)InputStream requestBody) throws WebApplicationException {
+		// Make sure request is valid
+		stdParameters.validate();
+
+		// Decode and validate the AVL reports
+		AvlBatchDecoder.Result result;
+		try {
+			if (contentType != null 
+					&& contentType.startsWith(AVL_BATCH_DELIMITED))
+				result = AvlBatchDecoder.decodeDelimited(requestBody);
+			else
+				result = AvlBatchDecoder.decodeFeedMessage(requestBody);
+		} catch (IOException e) {
+			// If problem reading data then return a Bad Request
+			throw WebUtils.badRequestException(e);
+		}
+
+		// Queue the reports to be sent to the core
+		AvlBatchForwarder forwarder = AvlBatchForwarder.get(
+				stdParameters.getAgencyId(), 
+				stdParameters.getCommandsInterface());
+		if (!forwarder.offer(result.getAvlReports())) {
+			ApiCommandAck ack = new ApiCommandAck(false, 
+					"Server is backed up processing AVL data so batch of "
+					+ result.getAvlReports().size() 
+					+ " AVL reports was not queued. Retry later.");
+			Response response = 
+					stdParameters.createResponse(ack, TOO_MANY_REQUESTS);
+			return Response.fromResponse(response)
+					.header("Retry-After", AVL_BATCH_RETRY_AFTER_SECS).build();
+		}
+
+		// Create the acknowledgment and return it as JSON or XML
+		ApiCommandAck ack = new ApiCommandAck(true, "Queued " 
+				+ result.getAvlReports().size() + " AVL reports. Skipped " 
+				+ result.getNumberInvalid() + " invalid ones.");
+		return stdParameters.createResponse(ack, 
+				Response.Status.ACCEPTED.getStatusCode());
+	}
+
 	@Path("/command/resetVehicle")
 	@GET
 	@Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML })
@@ -19,6 +19,7 @@ package org.transitclock.api.rootResources;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Date;
 
 import javax.ws.rs.BeanParam;
 import javax.ws.rs.GET;
@@ -26,8 +27,12 @@ import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.StreamingOutput;
 
 import org.transitclock.api.gtfsRealtime.GtfsRtTripFeed;
@@ -35,6 +40,8 @@ import org.transitclock.api.gtfsRealtime.GtfsRtVehicleFeed;
 import org.transitclock.api.utils.StandardParameters;
 import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.feed.gtfsRt.OctalDecoder;
+import org.transitclock.ipc.data.IpcGtfsRtFeed;
+import org.transitclock.utils.Time;
 
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 
@@ -133,11 +140,22 @@ public class GtfsRealtimeApi {
 
 	/**
 	 * For getting GTFS-realtime for all trips.
+	 * <p>
+	 * If the core maintains the feed (transitclock.core.maintainGtfsRtTripUpdates)
+	 * then the already serialized feed is returned along with an ETag and
+	 * Last-Modified header so that clients can use If-None-Match or
+	 * If-Modified-Since to only get the feed if it has changed. In that case a
+	 * DIFFERENTIAL feed can also be requested.
 	 * 
 	 * @param stdParameters
 	 * @param format
 	 *            if set to "human" then will output GTFS-rt data in human
 	 *            readable format. Otherwise will output data in binary format.
+	 * @param incrementality
+	 *            if set to "differential" then only the changes since the
+	 *            time specified by the since parameter are returned
+	 * @param since
+	 *            epoch time in seconds. For differential feed.
 	 * @return
 	 * @throws WebApplicationException
 	 */
@@ -149,7 +167,12 @@ public class GtfsRealtimeApi {
 	public Response getGtfsRealtimeTripFeed(
 			final @BeanParam StandardParameters stdParameters,
 			@Parameter(description="If specified as human, it will get the output in human readable format. Otherwise will output data in binary format", required=false)
-			@QueryParam(value = "format") String format)
+			@QueryParam(value = "format") String format,
+			@Parameter(description="If specified as differential, only the trip updates that changed since the time specified by the since parameter are returned", required=false)
+			@QueryParam(value = "incrementality") String incrementality,
+			@Parameter(description="Epoch time in seconds. For a differential feed.", required=false)
+			@QueryParam(value = "since") Long since,
+			@Context Request request)
 			throws WebApplicationException {
 
 		// Make sure request is valid
@@ -167,6 +190,18 @@ public class GtfsRealtimeApi {
 				humanFormatOutput ? MediaType.TEXT_PLAIN
 						: MediaType.APPLICATION_OCTET_STREAM;
 
+		// If the core maintains the feed then use it
+		boolean differential = 
+				"differential".equalsIgnoreCase(incrementality) && since != null;
+		final IpcGtfsRtFeed coreFeed = differential ?
+				GtfsRtTripFeed.getCoreDifferentialFeed(
+						stdParameters.getAgencyId(), since * Time.MS_PER_SEC)
+				: GtfsRtTripFeed.getPossiblyCachedCoreFeed(
+						stdParameters.getAgencyId(), gtfsRtCacheSeconds.getValue());
+		if (coreFeed != null) 
+			return getCoreTripFeedResponse(coreFeed, humanFormatOutput,
+					differential ? since : null, mediaType, request);
+		
 		// Prepare a StreamingOutput object so can write using it
 		StreamingOutput stream = new StreamingOutput() {
 			public void write(OutputStream outputStream) throws IOException,
@@ -200,4 +235,64 @@ public class GtfsRealtimeApi {
 		return Response.ok(stream).type(mediaType).build();
 	}
 
+	/**
+	 * Creates the response for the serialized trip feed maintained by the
+	 * core. If the client already has the feed, as indicated by the
+	 * If-None-Match or If-Modified-Since headers, then a 304 Not Modified
+	 * response is returned.
+	 * 
+	 * @param coreFeed
+	 * @param humanFormatOutput
+	 * @param since
+	 *            the since parameter if differential feed was requested,
+	 *            otherwise null. Part of the ETag since the differential feed
+	 *            depends on it.
+	 * @param mediaType
+	 * @param request
+	 * @return
+	 */
+	private static Response getCoreTripFeedResponse(
+			final IpcGtfsRtFeed coreFeed, final boolean humanFormatOutput,
+			Long since, String mediaType, Request request) {
+		EntityTag entityTag = new EntityTag(coreFeed.getVersion()
+				+ (since != null ? "-" + since : "")
+				+ (humanFormatOutput ? "-human" : ""));
+		// HTTP dates only have a resolution of seconds. Not modified if the
+		// feed hasn't changed since the second the client has.
+		Date lastModified = new Date(coreFeed.getLastModified() 
+				/ Time.MS_PER_SEC * Time.MS_PER_SEC);
+		
+		ResponseBuilder notModifiedBuilder = 
+				request.evaluatePreconditions(lastModified, entityTag);
+		if (notModifiedBuilder != null)
+			return notModifiedBuilder.build();
+		
+		StreamingOutput stream = new StreamingOutput() {
+			public void write(OutputStream outputStream) throws IOException,
+					WebApplicationException {
+				try {
+					if (humanFormatOutput) {
+						FeedMessage message = 
+								FeedMessage.parseFrom(coreFeed.getFeed());
+						String decodedMessage =
+								OctalDecoder.convertOctalEscapedString(message
+										.toString());
+						outputStream.write(decodedMessage.getBytes());
+					} else {
+						// Already serialized so simply write it out
+						coreFeed.writeFeed(outputStream);
+					}
+				} catch (Exception e) {
+					throw new WebApplicationException(e);
+				}
+			}
+		};
+
+		// The Last-Modified header is a second earlier if the feed could
+		// still change within the second it was last modified in
+		return Response.ok(stream).type(mediaType).tag(entityTag)
+				.lastModified(new Date(coreFeed.getHttpLastModified()))
+				.build();
+	}
+
 }
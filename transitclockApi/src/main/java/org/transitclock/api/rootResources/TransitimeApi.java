@@ -35,6 +35,8 @@ import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import org.glassfish.jersey.media.sse.EventOutput;
+import org.glassfish.jersey.media.sse.SseFeature;
 import org.transitclock.api.data.ApiActiveBlocks;
 import org.transitclock.api.data.ApiActiveBlocksRoutes;
 import org.transitclock.api.data.ApiAdherenceSummary;
@@ -61,6 +63,7 @@ import org.transitclock.api.data.ApiVehicleConfigs;
 import org.transitclock.api.data.ApiVehicles;
 import org.transitclock.api.data.ApiVehiclesDetails;
 import org.transitclock.api.predsByLoc.PredsByLoc;
+import org.transitclock.api.push.ChangesDispatcher;
 import org.transitclock.api.utils.StandardParameters;
 import org.transitclock.api.utils.WebUtils;
 import org.transitclock.core.TemporalDifference;
@@ -256,6 +259,46 @@ public class TransitimeApi {
 		}
 	}
 
+	/**
+	 * Handles the "updates" command. Keeps the connection open and pushes the
+	 * vehicles and predictions to the client as server-sent events as they
+	 * change, so that the client doesn't need to poll. See ChangesDispatcher
+	 * for the events that are sent.
+	 * 
+	 * @param stdParameters
+	 *            StdParametersBean that gets the standard parameters from the
+	 *            URI, query string, and headers.
+	 * @param routesIdOrShortNames
+	 *            Optional way of specifying which routes to get vehicles and
+	 *            predictions for
+	 * @param stopIds
+	 *            Optional way of specifying which stops to get predictions for
+	 * @return The event output that the events are written to
+	 * @throws WebApplicationException
+	 */
+	@Path("/command/updates")
+	@GET
+	@Operation(summary="Pushes vehicle and prediction changes as server-sent events.",
+			description="Keeps the connection open and pushes the vehicles and predictions as they change. "
+					+ "First the current vehicles and predictions are sent and then only the changes.",
+			tags= {"vehicle","prediction"})
+	@Produces(SseFeature.SERVER_SENT_EVENTS)
+	public EventOutput getUpdates(
+			@BeanParam StandardParameters stdParameters,
+			@Parameter(description="Specifies which routes to get vehicles and predictions for.",required=false)
+			@QueryParam(value = "r") List<String> routesIdOrShortNames,
+			@Parameter(description="Specifies which stops to get predictions for.",required=false)
+			@QueryParam(value = "s") List<String> stopIds) throws WebApplicationException {
+		// Make sure request is valid
+		stdParameters.validate();
+
+		EventOutput eventOutput = new EventOutput();
+		ChangesDispatcher.get(stdParameters.getAgencyId(),
+				stdParameters.getChangesInterface())
+				.subscribe(eventOutput, routesIdOrShortNames, stopIds);
+		return eventOutput;
+	}
+
 	/**
 	 * Handles the "vehiclesDetails" command. Returns detailed data for all
 	 * vehicles or for the vehicles specified via the query string. This data
@@ -678,6 +721,12 @@ public class TransitimeApi {
 		stdParameters.validate();
 
 		try {
+			// Configuration data only changes when the config rev changes
+			// so use the cached response if there is one
+			Response cachedResponse = stdParameters.getCachedConfigResponse();
+			if (cachedResponse != null)
+				return cachedResponse;
+
 			ConfigInterface inter = stdParameters.getConfigInterface();
 			
 			// Get agency info so can also return agency name
@@ -736,7 +785,7 @@ public class TransitimeApi {
 			}
 			
 			// Create and return response
-			return stdParameters.createResponse(routesData);
+			return stdParameters.createConfigResponse(routesData);
 		} catch (Exception e) {
 			// If problem getting data then return a Bad Request
 			throw WebUtils.badRequestException(e);
@@ -794,6 +843,12 @@ public class TransitimeApi {
 		stdParameters.validate();
 
 		try {
+			// Configuration data only changes when the config rev changes
+			// so use the cached response if there is one
+			Response cachedResponse = stdParameters.getCachedConfigResponse();
+			if (cachedResponse != null)
+				return cachedResponse;
+
 			// Get Vehicle data from server
 			ConfigInterface inter = stdParameters.getConfigInterface();
 
@@ -823,7 +878,7 @@ public class TransitimeApi {
 			// ApiRoutesDetails object
 			ApiRoutesDetails routeData = 
 					new ApiRoutesDetails(ipcRoutes, agencies.get(0));
-			return stdParameters.createResponse(routeData);
+			return stdParameters.createConfigResponse(routeData);
 		} catch (Exception e) {
 			// If problem getting data then return a Bad Request
 			throw WebUtils.badRequestException(e);
@@ -856,6 +911,12 @@ public class TransitimeApi {
 		stdParameters.validate();
 
 		try {
+			// Configuration data only changes when the config rev changes
+			// so use the cached response if there is one
+			Response cachedResponse = stdParameters.getCachedConfigResponse();
+			if (cachedResponse != null)
+				return cachedResponse;
+
 			// Get stops data from server
 			ConfigInterface inter = stdParameters.getConfigInterface();
 			IpcDirectionsForRoute stopsForRoute = inter.getStops(routesIdOrShortNames);
@@ -867,7 +928,7 @@ public class TransitimeApi {
 
 			// Create and return ApiDirections response
 			ApiDirections directionsData = new ApiDirections(stopsForRoute);
-			return stdParameters.createResponse(directionsData);
+			return stdParameters.createConfigResponse(directionsData);
 		} catch (Exception e) {
 			// If problem getting data then return a Bad Request
 			throw WebUtils.badRequestException(e);
@@ -904,6 +965,12 @@ public class TransitimeApi {
 			throw WebUtils.badRequestException("Must specify serviceId");
 
 		try {
+			// Configuration data only changes when the config rev changes
+			// so use the cached response if there is one
+			Response cachedResponse = stdParameters.getCachedConfigResponse();
+			if (cachedResponse != null)
+				return cachedResponse;
+
 			// Get block data from server
 			ConfigInterface inter = stdParameters.getConfigInterface();
 			IpcBlock ipcBlock = inter.getBlock(blockId, serviceId);
@@ -916,7 +983,7 @@ public class TransitimeApi {
 
 			// Create and return ApiBlock response
 			ApiBlock apiBlock = new ApiBlock(ipcBlock);
-			return stdParameters.createResponse(apiBlock);
+			return stdParameters.createConfigResponse(apiBlock);
 		} catch (Exception e) {
 			// If problem getting data then return a Bad Request
 			throw WebUtils.badRequestException(e);
@@ -947,6 +1014,12 @@ public class TransitimeApi {
 		stdParameters.validate();
 
 		try {
+			// Configuration data only changes when the config rev changes
+			// so use the cached response if there is one
+			Response cachedResponse = stdParameters.getCachedConfigResponse();
+			if (cachedResponse != null)
+				return cachedResponse;
+
 			// Get block data from server
 			ConfigInterface inter = stdParameters.getConfigInterface();
 			Collection<IpcBlock> ipcBlocks = inter.getBlocks(blockId);
@@ -958,7 +1031,7 @@ public class TransitimeApi {
 
 			// Create and return ApiBlock response
 			ApiBlocksTerse apiBlocks = new ApiBlocksTerse(ipcBlocks);
-			return stdParameters.createResponse(apiBlocks);
+			return stdParameters.createConfigResponse(apiBlocks);
 		} catch (Exception e) {
 			// If problem getting data then return a Bad Request
 			throw WebUtils.badRequestException(e);
@@ -988,6 +1061,12 @@ public class TransitimeApi {
 		stdParameters.validate();
 
 		try {
+			// Configuration data only changes when the config rev changes
+			// so use the cached response if there is one
+			Response cachedResponse = stdParameters.getCachedConfigResponse();
+			if (cachedResponse != null)
+				return cachedResponse;
+
 			// Get block data from server
 			ConfigInterface inter = stdParameters.getConfigInterface();
 			Collection<IpcBlock> ipcBlocks = inter.getBlocks(blockId);
@@ -999,7 +1078,7 @@ public class TransitimeApi {
 
 			// Create and return ApiBlock response
 			ApiBlocks apiBlocks = new ApiBlocks(ipcBlocks);
-			return stdParameters.createResponse(apiBlocks);
+			return stdParameters.createConfigResponse(apiBlocks);
 		} catch (Exception e) {
 			// If problem getting data then return a Bad Request
 			throw WebUtils.badRequestException(e);
@@ -1312,6 +1391,12 @@ public class TransitimeApi {
 		stdParameters.validate();
 
 		try {
+			// Configuration data only changes when the config rev changes
+			// so use the cached response if there is one
+			Response cachedResponse = stdParameters.getCachedConfigResponse();
+			if (cachedResponse != null)
+				return cachedResponse;
+
 			// Get block data from server
 			ConfigInterface inter = stdParameters.getConfigInterface();
 			IpcTrip ipcTrip = inter.getTrip(tripId);
@@ -1324,7 +1409,7 @@ public class TransitimeApi {
 			// Create and return ApiBlock response.
 			// Include stop path info since just outputting single trip.
 			ApiTrip apiTrip = new ApiTrip(ipcTrip, true);
-			return stdParameters.createResponse(apiTrip);
+			return stdParameters.createConfigResponse(apiTrip);
 		} catch (Exception e) {
 			// If problem getting data then return a Bad Request
 			throw WebUtils.badRequestException(e);
@@ -1423,6 +1508,12 @@ public class TransitimeApi {
 		stdParameters.validate();
 
 		try {
+			// Configuration data only changes when the config rev changes
+			// so use the cached response if there is one
+			Response cachedResponse = stdParameters.getCachedConfigResponse();
+			if (cachedResponse != null)
+				return cachedResponse;
+
 			// Get block data from server
 			ConfigInterface inter = stdParameters.getConfigInterface();
 			List<IpcTripPattern> ipcTripPatterns = inter.getTripPatterns(routesIdOrShortNames);
@@ -1434,7 +1525,7 @@ public class TransitimeApi {
 
 			// Create and return ApiTripPatterns response
 			ApiTripPatterns apiTripPatterns = new ApiTripPatterns(ipcTripPatterns);
-			return stdParameters.createResponse(apiTripPatterns);
+			return stdParameters.createConfigResponse(apiTripPatterns);
 		} catch (Exception e) {
 			// If problem getting data then return a Bad Request
 			throw WebUtils.badRequestException(e);
@@ -1467,6 +1558,12 @@ public class TransitimeApi {
 		stdParameters.validate();
 
 		try {
+			// Configuration data only changes when the config rev changes
+			// so use the cached response if there is one
+			Response cachedResponse = stdParameters.getCachedConfigResponse();
+			if (cachedResponse != null)
+				return cachedResponse;
+
 			// Get block data from server
 			ConfigInterface inter = stdParameters.getConfigInterface();
 			List<IpcSchedule> ipcSchedules = inter.getSchedules(routesIdOrShortNames);
@@ -1478,7 +1575,7 @@ public class TransitimeApi {
 
 			// Create and return ApiSchedules response
 			ApiSchedulesVertStops apiSchedules = new ApiSchedulesVertStops(ipcSchedules);
-			return stdParameters.createResponse(apiSchedules);
+			return stdParameters.createConfigResponse(apiSchedules);
 		} catch (Exception e) {
 			// If problem getting data then return a Bad Request
 			throw WebUtils.badRequestException(e);
@@ -1511,6 +1608,12 @@ public class TransitimeApi {
 		stdParameters.validate();
 
 		try {
+			// Configuration data only changes when the config rev changes
+			// so use the cached response if there is one
+			Response cachedResponse = stdParameters.getCachedConfigResponse();
+			if (cachedResponse != null)
+				return cachedResponse;
+
 			// Get block data from server
 			ConfigInterface inter = stdParameters.getConfigInterface();
 			List<IpcSchedule> ipcSchedules = inter.getSchedules(routesIdOrShortNames);
@@ -1522,7 +1625,7 @@ public class TransitimeApi {
 
 			// Create and return ApiSchedules response
 			ApiSchedulesHorizStops apiSchedules = new ApiSchedulesHorizStops(ipcSchedules);
-			return stdParameters.createResponse(apiSchedules);
+			return stdParameters.createConfigResponse(apiSchedules);
 		} catch (Exception e) {
 			// If problem getting data then return a Bad Request
 			throw WebUtils.badRequestException(e);
@@ -0,0 +1,309 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.transitclock.api.utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.ws.rs.core.EntityTag;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.config.BooleanConfigValue;
+import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.ipc.interfaces.ConfigInterface;
+import org.transitclock.utils.Time;
+
+/**
+ * Cache of the serialized responses for API commands that only return static
+ * configuration data, such as routes, stops, and schedules. That data only
+ * changes when the core reads in the configuration. The config rev alone
+ * isn't enough since a diff update of the GTFS data modifies the active
+ * config rev in place. Therefore the config version used is the config rev
+ * plus the time the core read in the configuration. The responses are keyed
+ * on agency, config version, media type, command, and query string
+ * parameters. Once a response is cached the request doesn't need to go to
+ * the core at all.
+ * <p>
+ * The config version for each agency is only asked of the core every
+ * configRevCheckIntervalSec. When it changes all the responses for the
+ * agency are removed. Each response has a strong ETag derived from the
+ * config version and the contents so that clients can make conditional
+ * requests and get a 304 Not Modified.
+ * <p>
+ * The cache is an LRU cache limited by the total number of bytes of the
+ * responses.
+ */
+public class ConfigResponseCache {
+
+	private static BooleanConfigValue enabled = new BooleanConfigValue(
+			"transitclock.api.configResponseCache.enabled",
+			true,
+			"Whether the responses for API commands that return static "
+			+ "configuration data are cached until the core reads in "
+			+ "the configuration again.");
+
+	private static IntegerConfigValue maxBytes = new IntegerConfigValue(
+			"transitclock.api.configResponseCache.maxBytes",
+			50 * 1024 * 1024,
+			"Maximum total size in bytes of the responses in the "
+			+ "ConfigResponseCache. Least recently used responses are "
+			+ "removed when exceeded.");
+
+	private static IntegerConfigValue configRevCheckIntervalSec =
+			new IntegerConfigValue(
+					"transitclock.api.configResponseCache.configRevCheckIntervalSec",
+					30,
+					"How frequently the core is asked for the config rev and "
+					+ "when it read in the configuration so that cached "
+					+ "responses for static configuration data can be "
+					+ "cleared when they change.");
+
+	// This is a singleton class
+	private static ConfigResponseCache singleton = new ConfigResponseCache();
+
+	// Access ordered so can remove least recently used. Synchronized on
+	// itself.
+	private final LinkedHashMap<String, CachedResponse> responses =
+			new LinkedHashMap<String, CachedResponse>(16, 0.75f, true);
+	private long totalBytes = 0;
+
+	// Keyed on agencyId
+	private final Map<String, ConfigVersionCheck> configVersionChecks =
+			new ConcurrentHashMap<String, ConfigVersionCheck>();
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(ConfigResponseCache.class);
+
+	/**
+	 * A serialized response along with its media type and ETag.
+	 */
+	public static class CachedResponse {
+		private final byte[] body;
+		private final String mediaType;
+		private final EntityTag entityTag;
+
+		private CachedResponse(byte[] body, String mediaType,
+				EntityTag entityTag) {
+			this.body = body;
+			this.mediaType = mediaType;
+			this.entityTag = entityTag;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		public String getMediaType() {
+			return mediaType;
+		}
+
+		public EntityTag getEntityTag() {
+			return entityTag;
+		}
+	}
+
+	/**
+	 * The config version last read from the core for an agency and when.
+	 */
+	private static class ConfigVersionCheck {
+		private final String configVersion;
+		private final long checkTime;
+
+		private ConfigVersionCheck(String configVersion, long checkTime) {
+			this.configVersion = configVersion;
+			this.checkTime = checkTime;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * Constructor private because singleton class
+	 */
+	private ConfigResponseCache() {
+	}
+
+	/**
+	 * Get singleton instance.
+	 *
+	 * @return
+	 */
+	public static ConfigResponseCache getInstance() {
+		return singleton;
+	}
+
+	/**
+	 * @return true if the cache is enabled
+	 */
+	public boolean isEnabled() {
+		return enabled.getValue();
+	}
+
+	/**
+	 * Returns the config version for the agency, which is the config rev plus
+	 * when the core read in the configuration. Only asks the core if it
+	 * hasn't been asked within configRevCheckIntervalSec. If the config
+	 * version has changed then all the cached responses for the agency are
+	 * removed.
+	 *
+	 * @param agencyId
+	 * @param configInterface
+	 *            for asking the core for the config rev and read time
+	 * @return the config version, or null if it could not be determined, in
+	 *         which case the cache should not be used
+	 */
+	public String getConfigVersion(String agencyId,
+			ConfigInterface configInterface) {
+		long now = System.currentTimeMillis();
+		ConfigVersionCheck check = configVersionChecks.get(agencyId);
+		if (check != null && now - check.checkTime
+				< configRevCheckIntervalSec.getValue() * Time.MS_PER_SEC)
+			return check.configVersion;
+
+		String configVersion;
+		try {
+			configVersion = configInterface.getConfigRev() + "."
+					+ Long.toString(configInterface.getConfigReadTime(), 36);
+		} catch (Exception e) {
+			logger.error("Could not get config version for agencyId={} so "
+					+ "not using cached responses", agencyId, e);
+			return null;
+		}
+
+		if (check != null && !check.configVersion.equals(configVersion)) {
+			logger.info("Config version for agencyId={} changed from {} to {} "
+					+ "so clearing cached responses for the agency.",
+					agencyId, check.configVersion, configVersion);
+			invalidate(agencyId);
+		}
+		configVersionChecks.put(agencyId,
+				new ConfigVersionCheck(configVersion, now));
+		return configVersion;
+	}
+
+	/**
+	 * Returns the key for a response.
+	 *
+	 * @param agencyId
+	 * @param configVersion
+	 *            from getConfigVersion()
+	 * @param mediaType
+	 * @param command
+	 *            the command plus its normalized query string parameters
+	 * @return the key
+	 */
+	public static String getKey(String agencyId, String configVersion,
+			String mediaType, String command) {
+		return agencyId + "|" + configVersion + "|" + mediaType + "|"
+				+ command;
+	}
+
+	/**
+	 * Returns the cached response for the key.
+	 *
+	 * @param key
+	 *            from getKey()
+	 * @return the response, or null if not cached
+	 */
+	public CachedResponse get(String key) {
+		synchronized (responses) {
+			return responses.get(key);
+		}
+	}
+
+	/**
+	 * Caches a response. If the response is larger than the whole cache then
+	 * it is not cached but the CachedResponse is still returned so that it
+	 * can be sent.
+	 *
+	 * @param key
+	 *            from getKey()
+	 * @param configVersion
+	 *            so it can be part of the ETag
+	 * @param body
+	 *            the serialized response
+	 * @param mediaType
+	 * @return the CachedResponse
+	 */
+	public CachedResponse put(String key, String configVersion, byte[] body,
+			String mediaType) {
+		CachedResponse response = new CachedResponse(body, mediaType,
+				new EntityTag(configVersion + "-" + digest(body)));
+		if (body.length > maxBytes.getValue())
+			return response;
+
+		synchronized (responses) {
+			CachedResponse old = responses.put(key, response);
+			if (old != null)
+				totalBytes -= old.body.length;
+			totalBytes += body.length;
+
+			// Remove least recently used responses until within limit
+			Iterator<CachedResponse> iterator = responses.values().iterator();
+			while (totalBytes > maxBytes.getValue() && iterator.hasNext()) {
+				totalBytes -= iterator.next().body.length;
+				iterator.remove();
+			}
+		}
+		return response;
+	}
+
+	/**
+	 * Removes all the cached responses for the agency.
+	 *
+	 * @param agencyId
+	 */
+	public void invalidate(String agencyId) {
+		String prefix = agencyId + "|";
+		synchronized (responses) {
+			Iterator<Map.Entry<String, CachedResponse>> iterator =
+					responses.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<String, CachedResponse> entry = iterator.next();
+				if (entry.getKey().startsWith(prefix)) {
+					totalBytes -= entry.getValue().body.length;
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns hex of the SHA-1 digest of the body, for the ETag.
+	 *
+	 * @param body
+	 * @return the digest as hex
+	 */
+	private static String digest(byte[] body) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(body);
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest)
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-1 is always available so this can't happen
+			throw new IllegalStateException(e);
+		}
+	}
+}
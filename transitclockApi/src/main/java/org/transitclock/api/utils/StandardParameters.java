@@ -17,20 +17,37 @@
 
 package org.transitclock.api.utils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Providers;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.api.utils.ConfigResponseCache.CachedResponse;
 import org.transitclock.db.webstructs.ApiKeyManager;
 import org.transitclock.ipc.clients.CacheQueryInterfaceFactory;
+import org.transitclock.ipc.clients.ChangesInterfaceFactory;
 import org.transitclock.ipc.clients.CommandsInterfaceFactory;
 import org.transitclock.ipc.clients.ConfigInterfaceFactory;
 import org.transitclock.ipc.clients.HoldingTimeInterfaceFactory;
@@ -39,6 +56,7 @@ import org.transitclock.ipc.clients.PredictionsInterfaceFactory;
 import org.transitclock.ipc.clients.ServerStatusInterfaceFactory;
 import org.transitclock.ipc.clients.VehiclesInterfaceFactory;
 import org.transitclock.ipc.interfaces.CacheQueryInterface;
+import org.transitclock.ipc.interfaces.ChangesInterface;
 import org.transitclock.ipc.interfaces.CommandsInterface;
 import org.transitclock.ipc.interfaces.ConfigInterface;
 import org.transitclock.ipc.interfaces.HoldingTimeInterface;
@@ -80,6 +98,23 @@ public class StandardParameters {
 	@Context
 	HttpServletRequest request;
 
+	@Context
+	Request jaxrsRequest;
+
+	@Context
+	UriInfo uriInfo;
+
+	@Context
+	Providers providers;
+
+	// Set by getCachedConfigResponse() so that createConfigResponse() can
+	// cache the response. Null if response should not be cached.
+	private String configCacheKey;
+	private String configCacheVersion;
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(StandardParameters.class);
+
 	/********************** Member Functions **************************/
 
 	/**
@@ -170,8 +205,23 @@ public class StandardParameters {
 	 * @return The created response in the proper media type.
 	 */
 	public Response createResponse(Object object) {
+		return createResponse(object, Status.OK.getStatusCode());
+	}
+
+	/**
+	 * For creating a Response of a single object of the appropriate media type
+	 * but with a status other than 200 OK, such as 202 Accepted.
+	 * 
+	 * @param object
+	 *            Object to be returned in XML or JSON
+	 * @param status
+	 *            The HTTP status code
+	 * @return The created response in the proper media type.
+	 */
+	public Response createResponse(Object object, int status) {
 		// Start building the response
-		ResponseBuilder responseBuilder = Response.ok(object);
+		ResponseBuilder responseBuilder = 
+				Response.status(status).entity(object);
 
 		// Since this is a truly open API intended to be used by
 		// other web pages allow cross-origin requests.
@@ -184,6 +234,142 @@ public class StandardParameters {
 		return responseBuilder.build();
 	}
 
+	/**
+	 * For commands that only return static configuration data. Returns the
+	 * cached response for the request if there is one for the current config
+	 * version, so that the core doesn't need to be accessed. If the client
+	 * already has the response, as indicated by the If-None-Match header,
+	 * then a 304 Not Modified response is returned.
+	 * <p>
+	 * If null is returned then the command should determine the data and
+	 * then call createConfigResponse() so that the response gets cached.
+	 * 
+	 * @return The cached response, or null if there isn't one
+	 * @throws WebApplicationException
+	 */
+	public Response getCachedConfigResponse() throws WebApplicationException {
+		configCacheKey = null;
+
+		ConfigResponseCache cache = ConfigResponseCache.getInstance();
+		if (!cache.isEnabled())
+			return null;
+
+		// Only JSON and XML are cached
+		String mediaType = getMediaType();
+		if (!mediaType.equals(MediaType.APPLICATION_JSON)
+				&& !mediaType.equals(MediaType.APPLICATION_XML))
+			return null;
+
+		String configVersion = 
+				cache.getConfigVersion(agencyId, getConfigInterface());
+		if (configVersion == null)
+			return null;
+
+		configCacheVersion = configVersion;
+		configCacheKey = ConfigResponseCache.getKey(agencyId, configVersion,
+				mediaType, getCommandWithParameters());
+		CachedResponse cachedResponse = cache.get(configCacheKey);
+		if (cachedResponse == null)
+			return null;
+
+		return createResponse(cachedResponse);
+	}
+
+	/**
+	 * For commands that only return static configuration data. Like
+	 * createResponse() but if getCachedConfigResponse() was called first
+	 * then the serialized response is cached and served with an ETag.
+	 * 
+	 * @param object
+	 *            Object to be returned in XML or JSON
+	 * @return The created response in the proper media type.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public Response createConfigResponse(Object object) {
+		if (configCacheKey == null)
+			return createResponse(object);
+
+		// Serialize the object using the same writer that Jersey would use
+		// so that the cached response is the same as a regular one
+		String mediaType = getMediaType();
+		MediaType type = MediaType.valueOf(mediaType);
+		Annotation[] annotations = new Annotation[0];
+		MessageBodyWriter writer = providers.getMessageBodyWriter(
+				object.getClass(), object.getClass(), annotations, type);
+		if (writer == null)
+			return createResponse(object);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			writer.writeTo(object, object.getClass(), object.getClass(),
+					annotations, type, new MultivaluedHashMap<String, Object>(),
+					out);
+		} catch (IOException e) {
+			logger.error("Could not serialize {} for caching", 
+					object.getClass().getSimpleName(), e);
+			return createResponse(object);
+		}
+
+		CachedResponse cachedResponse = ConfigResponseCache.getInstance()
+				.put(configCacheKey, configCacheVersion, out.toByteArray(), 
+						mediaType);
+		return createResponse(cachedResponse);
+	}
+
+	/**
+	 * Creates response for a cached response. Returns 304 Not Modified if
+	 * the ETag matches the If-None-Match header of the request.
+	 * 
+	 * @param cachedResponse
+	 * @return the response
+	 */
+	private Response createResponse(CachedResponse cachedResponse) {
+		ResponseBuilder responseBuilder = jaxrsRequest
+				.evaluatePreconditions(cachedResponse.getEntityTag());
+		if (responseBuilder == null)
+			responseBuilder = Response.ok(cachedResponse.getBody(),
+					cachedResponse.getMediaType());
+
+		// Since this is a truly open API intended to be used by
+		// other web pages allow cross-origin requests.
+		responseBuilder.header("Access-Control-Allow-Origin", "*");
+
+		// Clients can cache the response but need to revalidate it each
+		// time since the config rev could change
+		CacheControl cacheControl = new CacheControl();
+		cacheControl.setNoCache(true);
+		responseBuilder.cacheControl(cacheControl);
+		responseBuilder.tag(cachedResponse.getEntityTag());
+
+		return responseBuilder.build();
+	}
+
+	/**
+	 * Returns the part of the path starting with the command, such as
+	 * "command/routes", plus the query string parameters sorted by name. The
+	 * key and agency are not included since the key doesn't affect the
+	 * response and the agency is handled separately. The format parameter is
+	 * not included since it is handled by the media type. The parameters
+	 * are not decoded so that values can't be confused with separators.
+	 * 
+	 * @return the command and parameters
+	 */
+	private String getCommandWithParameters() {
+		String path = uriInfo.getPath();
+		int commandIndex = path.indexOf("command/");
+		StringBuilder sb = new StringBuilder(
+				commandIndex >= 0 ? path.substring(commandIndex) : path);
+
+		Map<String, List<String>> parameters = 
+				new TreeMap<String, List<String>>(
+						uriInfo.getQueryParameters(false));
+		parameters.remove("format");
+		for (Map.Entry<String, List<String>> entry : parameters.entrySet()) {
+			for (String value : entry.getValue())
+				sb.append('&').append(entry.getKey()).append('=').append(value);
+		}
+		return sb.toString();
+	}
+
 	/**
 	 * Gets the VehiclesInterface for the specified agencyId. If not valid then
 	 * throws WebApplicationException.
@@ -314,6 +500,22 @@ public class StandardParameters {
 
 		return holdingTimeInterface ;
 	}
+
+	/**
+	 * Gets the ChangesInterface for the specified agencyId. If not valid
+	 * then throws WebApplicationException.
+	 * 
+	 * @return The ChangesInterface
+	 */
+	public ChangesInterface getChangesInterface()
+			throws WebApplicationException {
+		ChangesInterface changesInterface = ChangesInterfaceFactory.get(agencyId);
+		if (changesInterface == null)
+			throw WebUtils.badRequestException("Agency ID " + agencyId
+					+ " is not valid");
+
+		return changesInterface;
+	}
 	
 	/**
 	 * Simple getter for the key
@@ -16,7 +16,12 @@
  */
 package org.transitclock.reports;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.sql.SQLException;
 import java.text.ParseException;
+import java.util.Date;
 
 import org.transitclock.utils.Time;
 
@@ -51,6 +56,46 @@ public class AvlJsonQuery {
 	 */
 	public static String getAvlJson(String agencyId, String vehicleId,
 			String beginDate, String numdays, String beginTime, String endTime) {
+		StringWriter writer = new StringWriter();
+		try {
+			writeAvlJson(writer, agencyId, vehicleId, beginDate, numdays,
+					beginTime, endTime);
+			return writer.toString();
+		} catch (ParseException | SQLException | IOException e) {
+			return e.getMessage();
+		}
+	}
+
+	/**
+	 * Queries agency for AVL data and writes the result in JSON format to out
+	 * as the AVL reports are read in. Limited to returning MAX_ROWS (50,000)
+	 * data points. If the date range is well in the past then the result is
+	 * cached so that the same query can be served without going to the
+	 * database.
+	 * 
+	 * @param out
+	 *            where to write the JSON
+	 * @param agencyId
+	 * @param vehicleId
+	 *            Which vehicle to get data for. Set to null or empty string to
+	 *            get data for all vehicles
+	 * @param beginDate
+	 *            date to start query
+	 * @param numdays
+	 *            of days to collect data for
+	 * @param beginTime
+	 *            optional time of day during the date range
+	 * @param endTime
+	 *            optional time of day during the date range
+	 * @throws ParseException
+	 *             if beginDate not valid
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public static void writeAvlJson(Writer out, String agencyId,
+			String vehicleId, String beginDate, String numdays,
+			String beginTime, String endTime)
+			throws ParseException, SQLException, IOException {
 		//Determine the time portion of the SQL
 		String timeSql = "";
 		// If beginTime or endTime set but not both then use default values
@@ -86,17 +131,15 @@ public class AvlJsonQuery {
 		// to view too much data at once.
 
 		sql += "ORDER BY vehicleId, time LIMIT " + MAX_ROWS;
-		String json=null;
-		try {
-			java.util.Date startdate = Time.parseDate(beginDate);						
-			
-			json = GenericJsonQuery.getJsonString(agencyId, sql,startdate, startdate);
-				
-		} catch (ParseException e) {			
-			json=e.getMessage();
-		}						
-
-		return json;
+
+		Date startdate = Time.parseDate(beginDate);
+
+		// Determine end of the date range so can tell whether the result
+		// can be cached
+		Date rangeEnd = SqlUtils.rangeEnd(beginDate, numdays);
+
+		GenericJsonQuery.writeJson(out, agencyId, rangeEnd, sql, startdate,
+				startdate);
 	}
 	
 	/**
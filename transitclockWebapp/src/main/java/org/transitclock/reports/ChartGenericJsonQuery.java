@@ -20,6 +20,9 @@ package org.transitclock.reports;
 import org.transitclock.db.GenericQuery;
 import org.transitclock.reports.ChartJsonBuilder.RowBuilder;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.sql.SQLException;
 import java.sql.Types;
 import java.util.Date;
@@ -35,7 +38,7 @@ import java.util.List;
  */
 public class ChartGenericJsonQuery extends GenericQuery {
 
-	private ChartJsonBuilder jsonBuilder = new ChartJsonBuilder();
+	private final ChartJsonBuilder jsonBuilder;
 
 	/********************** Member Functions **************************/
 
@@ -45,6 +48,20 @@ public class ChartGenericJsonQuery extends GenericQuery {
 	 */
 	public ChartGenericJsonQuery(String agencyId) throws SQLException {
 		super(agencyId);
+		jsonBuilder = new ChartJsonBuilder();
+	}
+
+	/**
+	 * For streaming the JSON to out as the rows are read in.
+	 * 
+	 * @param agencyId
+	 * @param out
+	 * @throws SQLException
+	 */
+	private ChartGenericJsonQuery(String agencyId, Writer out)
+			throws SQLException {
+		super(agencyId);
+		jsonBuilder = new ChartJsonBuilder(out);
 	}
 
 	/* (non-Javadoc)
@@ -99,6 +116,57 @@ public class ChartGenericJsonQuery extends GenericQuery {
 			return null;
 	}
 
+	/**
+	 * Does SQL query and writes JSON formatted results to out as the rows are
+	 * read in from the database. If the query returns no rows then nothing
+	 * is written, so that the caller can respond with an error. If the query
+	 * is for a time range that ended a while ago then the result is cached
+	 * in the ReportResultCache and subsequent identical queries are served
+	 * from the cache.
+	 * 
+	 * @param out
+	 *            where to write the JSON
+	 * @param agencyId
+	 * @param rangeEnd
+	 *            end of the time range of the query. Set to null if the
+	 *            result should not be cached.
+	 * @param sql
+	 * @param parameters
+	 * @return true if data was written, false if the query returned no rows
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public static boolean writeJson(Writer out, String agencyId,
+			Date rangeEnd, String sql, Date... parameters)
+			throws SQLException, IOException {
+		ReportResultCache cache = ReportResultCache.getInstance();
+		String key = null;
+		ReportResultCache.CapturingWriter capturingWriter = null;
+		if (cache.isCacheable(rangeEnd)) {
+			key = ReportResultCache.key(agencyId, sql, (Object[]) parameters);
+			String cachedJson = cache.get(key);
+			if (cachedJson != null) {
+				out.write(cachedJson);
+				return true;
+			}
+			capturingWriter = cache.capturingWriter(out);
+			out = capturingWriter;
+		}
+
+		ChartGenericJsonQuery query = new ChartGenericJsonQuery(agencyId, out);
+		int rows;
+		try {
+			query.doQuery(sql, (Object[]) parameters);
+			rows = query.jsonBuilder.finish();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		if (capturingWriter != null && rows > 0)
+			cache.put(key, capturingWriter.getCaptured());
+		return rows > 0;
+	}
+
 	/**
 	 * For debugging
 	 * 
@@ -17,6 +17,9 @@
 
 package org.transitclock.reports;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -31,6 +34,12 @@ import org.transitclock.utils.StringUtils;
  * <p>
  * For each row one first calls newRow() to get a RowBuilder. Then one calls
  * RowBuilder.addRowElement() to add each element to the row. Then one calls
+ * getJson() to get the complete JSON string.
+ * <p>
+ * For large results a ChartJsonBuilder can instead be constructed with a
+ * Writer. Then each row is written out once the next one is started, and
+ * finish() is called at the end, so that the rows don't all need to be held
+ * in memory.
  * 
  * @author SkiBu Smith
  *
@@ -43,6 +52,14 @@ public class ChartJsonBuilder {
 	// Contains all the row data in JSON format
 	private List<RowBuilder> rowList = new ArrayList<RowBuilder>();
 
+	// For when streaming the rows. Null if building up the whole JSON string.
+	private final Writer out;
+
+	// When streaming, the row that is being populated and has not yet been
+	// written out
+	private RowBuilder pendingRow = null;
+	private int numRowsWritten = 0;
+
 	/**
 	 * For building a row, which consists of multiple data elements.
 	 */
@@ -146,6 +163,25 @@ public class ChartJsonBuilder {
 
 	/********************** Member Functions **************************/
 
+	/**
+	 * For building up the JSON and then getting it via getJson()
+	 */
+	public ChartJsonBuilder() {
+		this.out = null;
+	}
+
+	/**
+	 * For streaming the JSON to out. The rows are written out as they are
+	 * added and finish() must be called when done. Nothing is written until
+	 * the first row is complete so that if there is no data the caller can
+	 * still respond with an error.
+	 * 
+	 * @param out
+	 */
+	public ChartJsonBuilder(Writer out) {
+		this.out = out;
+	}
+
 	/**
 	 * Add a numeric column without a label
 	 */
@@ -201,19 +237,25 @@ public class ChartJsonBuilder {
 	 */
 	public RowBuilder newRow() {
 		RowBuilder rowBuilder = new RowBuilder();
-		rowList.add(rowBuilder);
+		if (out != null) {
+			// Streaming so the previous row is complete and can be written
+			try {
+				writePendingRow();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			pendingRow = rowBuilder;
+		} else {
+			rowList.add(rowBuilder);
+		}
 		return rowBuilder;
 	}
 
 	/**
-	 * Once done building a JSON object then this method is used to return it as
-	 * a string.
-	 * 
-	 * @return The complete JSON object
+	 * Appends the start of the JSON object, including the column data, up to
+	 * where the rows go.
 	 */
-	public String getJson() {
-		// Start the JSON string
-		StringBuilder sb = new StringBuilder();
+	private void appendStart(Appendable sb) throws IOException {
 		sb.append("{");
 
 		// Add the column data
@@ -230,9 +272,71 @@ public class ChartJsonBuilder {
 		}
 		sb.append("\n  ],");
 
-		// Add the row data
+		// Start the row data
 		sb.append("\n \"rows\": [");
-		first = true;
+	}
+
+	/**
+	 * Appends the end of the JSON object, after the rows.
+	 */
+	private void appendEnd(Appendable sb) throws IOException {
+		sb.append("\n  ]");
+
+		// Wrap up the JSON string
+		sb.append("\n}");
+	}
+
+	/**
+	 * When streaming, writes out the row that was being populated. The start
+	 * of the JSON is written out with the first row.
+	 */
+	private void writePendingRow() throws IOException {
+		if (pendingRow == null)
+			return;
+
+		if (numRowsWritten == 0)
+			appendStart(out);
+		else
+			out.write(",");
+		out.write("\n  ");
+		out.write(pendingRow.getJson());
+		++numRowsWritten;
+		pendingRow = null;
+	}
+
+	/**
+	 * When streaming, writes out the last row and the end of the JSON. If no
+	 * rows were added then nothing is written.
+	 * 
+	 * @return number of rows written
+	 * @throws IOException
+	 */
+	public int finish() throws IOException {
+		writePendingRow();
+		if (numRowsWritten > 0)
+			appendEnd(out);
+		out.flush();
+		return numRowsWritten;
+	}
+
+	/**
+	 * Once done building a JSON object then this method is used to return it as
+	 * a string.
+	 * 
+	 * @return The complete JSON object
+	 */
+	public String getJson() {
+		// Start the JSON string
+		StringBuilder sb = new StringBuilder();
+		try {
+			appendStart(sb);
+		} catch (IOException e) {
+			// Can't happen for a StringBuilder
+			throw new UncheckedIOException(e);
+		}
+
+		// Add the row data
+		boolean first = true;
 		for (RowBuilder row : rowList) {
 			if (first)
 				first = false;
@@ -242,10 +346,12 @@ public class ChartJsonBuilder {
 			sb.append("\n  ").append(row.getJson());
 
 		}
-		sb.append("\n  ]");
-
-		// Wrap up the JSON string
-		sb.append("\n}");
+		try {
+			appendEnd(sb);
+		} catch (IOException e) {
+			// Can't happen for a StringBuilder
+			throw new UncheckedIOException(e);
+		}
 
 		// Return the results as a string
 		return sb.toString();
@@ -16,9 +16,14 @@
  */
 package org.transitclock.reports;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -29,16 +34,19 @@ public class GenericJsonQuery extends GenericQuery {
 
 	private static final Logger logger = LoggerFactory
 			.getLogger(GenericJsonQuery.class);
-	private StringBuilder strBuilder = new StringBuilder();
+	private final Writer out;
 	private List<String> columnNames = new ArrayList<String>();
 	private boolean firstRow = true;
 	
 	/**
 	 * @param agencyId
+	 * @param out
+	 *            where the JSON rows are written to as they are read in
 	 * @throws SQLException
 	 */
-	private GenericJsonQuery(String agencyId) throws SQLException {
+	private GenericJsonQuery(String agencyId, Writer out) throws SQLException {
 		super(agencyId);
+		this.out = out;
 	}
 
 	/* (non-Javadoc)
@@ -50,20 +58,24 @@ public class GenericJsonQuery extends GenericQuery {
 		columnNames.add(columnName);
 	}
 
-	private void addRowElement(int i, double value) {
-		strBuilder.append(value);
+	private void addRowElement(int i, double value) throws IOException {
+		out.write(Double.toString(value));
 	}
 	
-	private void addRowElement(int i, long value) {
-		strBuilder.append(value);
+	private void addRowElement(int i, long value) throws IOException {
+		out.write(Long.toString(value));
 	}
 	
-	private void addRowElement(int i, String value) {
-		strBuilder.append("\"").append(value).append("\"");
+	private void addRowElement(int i, String value) throws IOException {
+		out.write("\"");
+		out.write(value);
+		out.write("\"");
 	}
 	
-	private void addRowElement(int i, Timestamp value) {
-		strBuilder.append("\"").append(value).append("\"");
+	private void addRowElement(int i, Timestamp value) throws IOException {
+		out.write("\"");
+		out.write(value.toString());
+		out.write("\"");
 	}
 	
 	/* (non-Javadoc)
@@ -71,11 +83,22 @@ public class GenericJsonQuery extends GenericQuery {
 	 */
 	@Override
 	protected void addRow(List<Object> values) {
+		// Rows are written out as they are read in so that large results
+		// don't need to be held in memory. Since addRow() can't throw an
+		// IOException it is wrapped and then unwrapped in writeJson().
+		try {
+			writeRow(values);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void writeRow(List<Object> values) throws IOException {
 		if (!firstRow)			
-			strBuilder.append(",\n");
+			out.write(",\n");
 		firstRow = false;
 		
-		strBuilder.append('{');
+		out.write('{');
 		
 		// Add each cell in the row
 		boolean firstElementInRow = true;
@@ -86,11 +109,13 @@ public class GenericJsonQuery extends GenericQuery {
 				continue;
 			
 			if (!firstElementInRow)
-				strBuilder.append(",");
+				out.write(",");
 			firstElementInRow = false;
 			
 			// Output name of attribute
-			strBuilder.append("\"").append(columnNames.get(i)).append("\":");
+			out.write("\"");
+			out.write(columnNames.get(i));
+			out.write("\":");
 			
 			// Output value of attribute
 			if (o instanceof Double || o instanceof Float) {
@@ -104,8 +129,63 @@ public class GenericJsonQuery extends GenericQuery {
 			}
 		}
 		
-		strBuilder.append('}');
+		out.write('}');
+	}
+
+	/**
+	 * Does SQL query and writes JSON formatted results to out as the rows are
+	 * read in from the database. If the query is for a time range that ended
+	 * a while ago then the result is cached in the ReportResultCache and
+	 * subsequent identical queries are served from the cache.
+	 * 
+	 * @param out
+	 *            where to write the JSON
+	 * @param agencyId
+	 * @param rangeEnd
+	 *            end of the time range of the query. Set to null if the
+	 *            result should not be cached.
+	 * @param sql
+	 * @param parameters
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public static void writeJson(Writer out, String agencyId, Date rangeEnd,
+			String sql, Object... parameters) throws SQLException, IOException {
+		ReportResultCache cache = ReportResultCache.getInstance();
+		String key = null;
+		ReportResultCache.CapturingWriter capturingWriter = null;
+		if (cache.isCacheable(rangeEnd)) {
+			key = ReportResultCache.key(agencyId, sql, parameters);
+			String cachedJson = cache.get(key);
+			if (cachedJson != null) {
+				logger.debug("Using cached result for sql={}", sql);
+				out.write(cachedJson);
+				return;
+			}
+			capturingWriter = cache.capturingWriter(out);
+			out = capturingWriter;
+		}
+
+		logger.debug("sql=" + sql);
+		GenericJsonQuery query = new GenericJsonQuery(agencyId, out);
+		
+		// Start the JSON
+		out.write("{\"data\": [\n");
+
+		try {
+			query.doQuery(sql, parameters);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		// Finish up the JSON
+		out.write("]}");
+		out.flush();
+
+		if (capturingWriter != null)
+			cache.put(key, capturingWriter.getCaptured());
 	}
+
 	/**
 	 * Does SQL query and returns JSON formatted results.
 	 * 
@@ -117,21 +197,14 @@ public class GenericJsonQuery extends GenericQuery {
 	public static String getJsonString(String agencyId, String sql, Object...parameters) {
 		// Add the rows from the query to the JSON string
 		try {
-			GenericJsonQuery query = new GenericJsonQuery(agencyId);
-			
-			// Start the JSON
-			query.strBuilder.append("{\"data\": [\n");
-
-			query.doQuery(sql, parameters);
-
-			// Finish up the JSON
-			query.strBuilder.append("]}");
-						
-			return query.strBuilder.toString();
-		} catch (SQLException e) {
+			StringWriter writer = new StringWriter();
+			writeJson(writer, agencyId, null, sql, parameters);
+			return writer.toString();
+		} catch (SQLException | IOException e) {
 			return e.getMessage();
 		}
 	}
+
 	/**
 	 * Does SQL query and returns JSON formatted results.
 	 * 
@@ -141,23 +214,7 @@ public class GenericJsonQuery extends GenericQuery {
 	 * @throws SQLException 
 	 */
 	public static String getJsonString(String agencyId, String sql) {
-		// Add the rows from the query to the JSON string
-		try {
-			GenericJsonQuery query = new GenericJsonQuery(agencyId);
-			
-			// Start the JSON
-			query.strBuilder.append("{\"data\": [\n");
-			logger.debug("sql=" + sql);
-
-			query.doQuery(sql);
-
-			// Finish up the JSON
-			query.strBuilder.append("]}");
-						
-			return query.strBuilder.toString();
-		} catch (SQLException e) {
-			return e.getMessage();
-		}
+		return getJsonString(agencyId, sql, new Object[0]);
 	}
 
 	public static void main(String[] args) {
@@ -19,6 +19,7 @@ package org.transitclock.reports;
 
 import java.sql.SQLException;
 import java.text.ParseException;
+import java.util.Date;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -204,7 +205,9 @@ public class PredAccuracyRangeQuery extends PredictionAccuracyQuery {
 	 *            How late a in msec a prediction is allowed to be. Should be a
 	 *            positive value.
 	 * @return the full JSON string contain both cols and rows info, or null if
-	 *         no data returned from query
+	 *         no data returned from query. If the date range is well in the
+	 *         past the result is cached so that the same query can be served
+	 *         without going to the database.
 	 * @throws SQLException
 	 * @throws ParseException
 	 */
@@ -212,6 +215,19 @@ public class PredAccuracyRangeQuery extends PredictionAccuracyQuery {
 			String beginTimeStr, String endTimeStr, String routeIds[],
 			String predSource, String predType, int maxEarlySec, int maxLateSec)
 			throws SQLException, ParseException {
+		// If already have the result for the date range then use it
+		ReportResultCache cache = ReportResultCache.getInstance();
+		Date rangeEnd = SqlUtils.rangeEnd(beginDateStr, numDays);
+		String key = null;
+		if (cache.isCacheable(rangeEnd)) {
+			key = ReportResultCache.key(getDbId(), "PredAccuracyRangeQuery",
+					beginDateStr, numDays, beginTimeStr, endTimeStr, routeIds,
+					predSource, predType, maxEarlySec, maxLateSec);
+			String cachedJson = cache.get(key);
+			if (cachedJson != null)
+				return cachedJson;
+		}
+
 		// Actually perform the query
 		doQuery(beginDateStr, numDays, beginTimeStr, endTimeStr, routeIds,
 				predSource, predType);
@@ -227,6 +243,8 @@ public class PredAccuracyRangeQuery extends PredictionAccuracyQuery {
 		addRows(builder, maxEarlySec, maxLateSec);
 
 		String jsonString = builder.getJson();
+		if (key != null)
+			cache.put(key, jsonString);
 		return jsonString;
 	}
 
@@ -50,6 +50,9 @@ abstract public class PredictionAccuracyQuery {
 	private final Connection connection;
 	private String dbType = null;
 
+	// Identifies the database, for when caching results
+	private final String dbId;
+
 	protected static final int MAX_PRED_LENGTH = 900;
 	protected static final int PREDICTION_LENGTH_BUCKET_SIZE = 30;
 
@@ -122,6 +125,7 @@ abstract public class PredictionAccuracyQuery {
 	public PredictionAccuracyQuery(String dbType, String dbHost, String dbName,
 			String dbUserName, String dbPassword) throws SQLException {
 		this.dbType = dbType;
+		this.dbId = dbType + "://" + dbHost + "/" + dbName;
 		connection = GenericQuery.getConnection(dbType, dbHost, dbName,
 				dbUserName, dbPassword);
 
@@ -136,11 +140,20 @@ abstract public class PredictionAccuracyQuery {
 	public PredictionAccuracyQuery(String agencyId) throws SQLException {
 		WebAgency agency = WebAgency.getCachedWebAgency(agencyId);
 		this.dbType = agency.getDbType();
+		this.dbId = agency.getDbType() + "://" + agency.getDbHost() + "/"
+				+ agency.getDbName();
 		connection = GenericQuery.getConnection(agency.getDbType(),
 				agency.getDbHost(), agency.getDbName(), agency.getDbUserName(),
 				agency.getDbPassword());
 	}
 
+	/**
+	 * @return identifies the database being queried, for when caching results
+	 */
+	protected String getDbId() {
+		return dbId;
+	}
+
 	/**
 	 * Determines which prediction bucket in the map to use. Want to have each
 	 * bucket to be for an easily understood value, such as 1 minute. Best way
@@ -338,7 +351,7 @@ abstract public class PredictionAccuracyQuery {
 		PreparedStatement statement = null;
 		try {
 		  logger.debug("SQL: {}", sql);
-			statement = connection.prepareStatement(sql);
+			statement = GenericQuery.prepareStreamingStatement(connection, sql);
 
 			// Determine the date parameters for the query
 			Timestamp beginDate = null;
@@ -429,8 +442,7 @@ abstract public class PredictionAccuracyQuery {
 		} catch (SQLException e) {
 			throw e;
 		} finally {
-			if (statement != null)
-				statement.close();
+			GenericQuery.closeStreamingStatement(connection, statement);
 		}
 	}
 
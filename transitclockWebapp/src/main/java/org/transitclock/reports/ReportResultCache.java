@@ -0,0 +1,224 @@
+/*
+ * This file is part of Transitime.org
+ *
+ * Transitime.org is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License (GPL) as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * Transitime.org is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Transitime.org .  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.transitclock.reports;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.transitclock.config.IntegerConfigValue;
+import org.transitclock.utils.Time;
+
+/**
+ * A bounded, least recently used cache of the JSON results of report
+ * queries. Only results for time ranges that ended a while ago are cached
+ * since the data for those is not expected to change. This way repeatedly
+ * looking at the same historic report, or several people looking at it, only
+ * hits the database once.
+ * <p>
+ * The size of the cache is limited by the total number of characters of the
+ * cached results. Results that are larger than
+ * transitclock.reports.resultCacheMaxEntryChars are not cached at all.
+ */
+public class ReportResultCache {
+
+	private static final ReportResultCache singleton = new ReportResultCache();
+
+	// Access ordered so that iterating gives the least recently used first
+	private final LinkedHashMap<String, String> resultsByKey =
+			new LinkedHashMap<String, String>(16, 0.75f, true);
+
+	// Total number of characters of all the cached results
+	private long totalChars = 0;
+
+	private static IntegerConfigValue maxChars = new IntegerConfigValue(
+			"transitclock.reports.resultCacheMaxChars",
+			20000000,
+			"Maximum total number of characters of report results that are "
+			+ "cached. Set to 0 to disable the report result cache.");
+
+	private static IntegerConfigValue maxEntryChars = new IntegerConfigValue(
+			"transitclock.reports.resultCacheMaxEntryChars",
+			2000000,
+			"Maximum number of characters of a single report result for it "
+			+ "to be cached.");
+
+	private static IntegerConfigValue minAgeMinutes = new IntegerConfigValue(
+			"transitclock.reports.resultCacheMinAgeMinutes",
+			60,
+			"How many minutes the end of the time range of a report needs "
+			+ "to be in the past for the result to be cached. Data such "
+			+ "as prediction accuracy is written a while after the event "
+			+ "so the range needs to be well in the past to be complete.");
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(ReportResultCache.class);
+
+	/**
+	 * For writing a result to the output while also keeping a copy of it so
+	 * that it can be cached. Stops keeping the copy once the result gets
+	 * larger than transitclock.reports.resultCacheMaxEntryChars.
+	 */
+	public static class CapturingWriter extends Writer {
+		private final Writer out;
+		private StringBuilder captured = new StringBuilder();
+
+		private CapturingWriter(Writer out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			out.write(cbuf, off, len);
+			if (captured != null) {
+				if (captured.length() + len > maxEntryChars.getValue())
+					captured = null;
+				else
+					captured.append(cbuf, off, len);
+			}
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			out.write(str, off, len);
+			if (captured != null) {
+				if (captured.length() + len > maxEntryChars.getValue())
+					captured = null;
+				else
+					captured.append(str, off, off + len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		/**
+		 * Doesn't close the underlying writer since it belongs to the caller.
+		 */
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+
+		/**
+		 * @return what was written, or null if it was too large to keep
+		 */
+		public String getCaptured() {
+			return captured != null ? captured.toString() : null;
+		}
+	}
+
+	/********************** Member Functions **************************/
+
+	/**
+	 * @return the singleton ReportResultCache
+	 */
+	public static ReportResultCache getInstance() {
+		return singleton;
+	}
+
+	private ReportResultCache() {
+	}
+
+	/**
+	 * Returns whether the result of a query for a time range ending at
+	 * rangeEnd can be cached.
+	 *
+	 * @param rangeEnd
+	 *            end of the time range of the query. Null if not known, in
+	 *            which case the result is not cached.
+	 * @return true if can be cached
+	 */
+	public boolean isCacheable(Date rangeEnd) {
+		return rangeEnd != null
+				&& maxChars.getValue() > 0
+				&& rangeEnd.getTime() < System.currentTimeMillis()
+						- minAgeMinutes.getValue() * Time.MS_PER_MIN;
+	}
+
+	/**
+	 * Creates the key for a query.
+	 *
+	 * @param agencyId
+	 *            identifies the database the query is run on
+	 * @param query
+	 *            the SQL, or other description of the query
+	 * @param parameters
+	 *            the parameters of the query
+	 * @return the key
+	 */
+	public static String key(String agencyId, String query,
+			Object... parameters) {
+		return agencyId + "|" + query + "|" + Arrays.deepToString(parameters);
+	}
+
+	/**
+	 * @param key
+	 * @return the cached result, or null if not cached
+	 */
+	public synchronized String get(String key) {
+		return resultsByKey.get(key);
+	}
+
+	/**
+	 * Caches the result. If the cache then gets too large the least recently
+	 * used results are removed.
+	 *
+	 * @param key
+	 * @param result
+	 *            the result. Not cached if null or too large.
+	 */
+	public synchronized void put(String key, String result) {
+		if (result == null || result.length() > maxEntryChars.getValue())
+			return;
+
+		String replaced = resultsByKey.put(key, result);
+		if (replaced != null)
+			totalChars -= replaced.length();
+		totalChars += result.length();
+
+		Iterator<Map.Entry<String, String>> iterator =
+				resultsByKey.entrySet().iterator();
+		while (totalChars > maxChars.getValue() && iterator.hasNext()) {
+			totalChars -= iterator.next().getValue().length();
+			iterator.remove();
+		}
+
+		logger.debug("Cached report result of {} chars. Cache now has {} "
+				+ "results with {} chars.", result.length(),
+				resultsByKey.size(), totalChars);
+	}
+
+	/**
+	 * Returns a writer that writes to out while keeping a copy of what is
+	 * written so that it can be cached once complete.
+	 *
+	 * @param out
+	 * @return the capturing writer
+	 */
+	public CapturingWriter capturingWriter(Writer out) {
+		return new CapturingWriter(out);
+	}
+}
@@ -17,6 +17,7 @@
 package org.transitclock.reports;
 
 import java.text.ParseException;
+import java.util.Date;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -228,6 +229,62 @@ public class SqlUtils {
 
 	}
 	
+	/**
+	 * Returns the end of the time range specified by the request parameters
+	 * "dateRange", or "beginDate" and "numDays", in the same way as
+	 * timeRangeClause() does. For determining whether the time range is in
+	 * the past so that the results of a query can be cached.
+	 * 
+	 * @param request
+	 *            Http request containing parameters for the query
+	 * @param maxNumDays
+	 *            maximum number of days for query
+	 * @return end of the time range, or null if it could not be determined
+	 */
+	public static Date timeRangeEnd(HttpServletRequest request, int maxNumDays) {
+		String dateRange = request.getParameter("dateRange");
+		if (dateRange != null) {
+			String fromToDates[] = dateRange.split(" to ");
+			return rangeEnd(fromToDates[fromToDates.length - 1], "1");
+		} else {
+			String numDaysStr = request.getParameter("numDays");
+			try {
+				int numDays = Integer.parseInt(numDaysStr);
+				if (numDays > maxNumDays)
+					numDays = maxNumDays;
+				return rangeEnd(request.getParameter("beginDate"), 
+						Integer.toString(numDays));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+	}
+	
+	/**
+	 * Returns the end of the time range that starts at the beginning of 
+	 * beginDateStr and is numDaysStr days long. Only dates in the MM-dd-yyyy
+	 * or MM/dd/yyyy format used by the report pages are handled since the 
+	 * lenient date parsing would otherwise give an unrelated date for other
+	 * formats.
+	 * 
+	 * @param beginDateStr
+	 * @param numDaysStr
+	 * @return end of the time range, or null if it could not be determined
+	 */
+	public static Date rangeEnd(String beginDateStr, String numDaysStr) {
+		if (beginDateStr == null || numDaysStr == null
+				|| !beginDateStr.trim().matches("\\d{1,2}[-/]\\d{1,2}[-/]\\d{2,4}"))
+			return null;
+		
+		try {
+			long beginTime = Time.parseDate(beginDateStr.trim()).getTime();
+			return new Date(beginTime 
+					+ Integer.parseInt(numDaysStr.trim()) * Time.DAY_IN_MSECS);
+		} catch (ParseException | NumberFormatException e) {
+			return null;
+		}
+	}
+	
 	/**
 	 * Converts minutes string to seconds.
 	 * 
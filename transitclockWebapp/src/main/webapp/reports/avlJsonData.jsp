@@ -11,11 +11,12 @@ String numDays = request.getParameter("numDays");
 String beginTime = request.getParameter("beginTime");
 String endTime = request.getParameter("endTime");
 
-// Query db and get JSON string
-String jsonString = AvlJsonQuery.getAvlJson(agencyId, vehicleId, beginDate, numDays, beginTime, endTime);
-
-// Respond with the JSON string
+// Respond with the JSON, written out as the AVL reports are read from the db
 response.setContentType("application/json");
 response.setHeader("Access-Control-Allow-Origin", "*");
-response.getWriter().write(jsonString);
+try {
+	AvlJsonQuery.writeAvlJson(response.getWriter(), agencyId, vehicleId, beginDate, numDays, beginTime, endTime);
+} catch (java.text.ParseException | java.sql.SQLException e) {
+	response.getWriter().write(e.getMessage());
+}
 %>
@@ -131,12 +131,16 @@ if (Integer.parseInt(numDays) > 31) {
 
 
 
-    // Determine the json data by running the query
-    String jsonString = ChartGenericJsonQuery.getJsonString(agencyId, sql);
+// Headers need to be set before the data is written out
+response.setHeader("Access-Control-Allow-Origin", "*");
+
+    // Run the query, writing out the json data as it is read in
+    boolean hasData = ChartGenericJsonQuery.writeJson(response.getWriter(),
+            agencyId, SqlUtils.timeRangeEnd(request, 30), sql);
 
 
 // If no data then return error status with an error message
-if (jsonString == null || jsonString.isEmpty()) {
+if (!hasData) {
     String message = "No data for beginDate=" + beginDate
 	    + " numDays=" + numDays 
 	    + " beginTime=" + beginTime
@@ -148,8 +152,4 @@ if (jsonString == null || jsonString.isEmpty()) {
 	response.getWriter().write(message);
 	return;
 }
-
-// Return the JSON data
-response.setHeader("Access-Control-Allow-Origin", "*");
-response.getWriter().write(jsonString);
 %>
@@ -63,12 +63,12 @@ String sql =
 // Just for debugging
 System.out.println("\nFor schedule adherence by stop query sql=\n" + sql);
     		
-// Do the query and return result in JSON format    
+// Do the query and write out the result in JSON format as it is read in
 String agencyId = request.getParameter("a");
-String jsonString = GenericJsonQuery.getJsonString(agencyId, sql);
 response.setContentType("application/json");
 response.setHeader("Access-Control-Allow-Origin", "*");
-response.getWriter().write(jsonString);
+GenericJsonQuery.writeJson(response.getWriter(), agencyId,
+		SqlUtils.timeRangeEnd(request, 7), sql);
 } catch (Exception e) {
 	response.setStatus(400);
 	response.getWriter().write(e.getMessage());
@@ -69,11 +69,11 @@ String sql =
 // Just for debugging
 System.out.println("\nFor schedule adherence by time buckets query sql=\n" + sql);
     		
-// Do the query and return result in JSON format    
-String jsonString = GenericJsonQuery.getJsonString(agencyId, sql);
+// Do the query and write out the result in JSON format as it is read in
 response.setContentType("application/json");
 response.setHeader("Access-Control-Allow-Origin", "*");
-response.getWriter().write(jsonString);
+GenericJsonQuery.writeJson(response.getWriter(), agencyId,
+		SqlUtils.timeRangeEnd(request, 7), sql);
 } catch (Exception e) {
 	response.setStatus(400);
 	response.getWriter().write(e.getMessage());
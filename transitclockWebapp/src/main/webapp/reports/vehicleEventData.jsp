@@ -17,9 +17,9 @@ if (vehicleId != null && !vehicleId.isEmpty()&&!vehicleId.startsWith(" "))
 sql +=  SqlUtils.timeRangeClause(request, "ve.time", 5) + "\n";
 sql += " order by ve.time desc";
 
-String jsonString = GenericJsonQuery.getJsonString(agencyId, sql);
 response.setHeader("Access-Control-Allow-Origin", "*");
-response.getWriter().write(jsonString);
+GenericJsonQuery.writeJson(response.getWriter(), agencyId,
+		SqlUtils.timeRangeEnd(request, 5), sql);
 } catch (Exception e) {
 	response.setStatus(400);
 	response.getWriter().write(e.getMessage());